@@ -0,0 +1,100 @@
+package org.beginningee6.book.chapter09.ejb.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.beginningee6.book.chapter09.ejb.ex02.callee.REQUIRED_CalleeEJB;
+import org.beginningee6.book.chapter09.ejb.ex02.caller.REQUIRED_CallerEJB;
+import org.beginningee6.book.chapter09.jpa.ex02.Book02;
+import org.beginningee6.book.chapter09.jpa.ex02.CD02;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.RunnerException;
+
+/**
+ * N件のBook02エンティティとN件のCD02エンティティを永続化するコストを、
+ * 以下の２つの方法で比較する。
+ *
+ * ・persistAll：REQUIRED_CallerEJB.persistAll()により、ひとつの
+ * 　トランザクションでJDBCのバッチ更新を使って永続化する
+ * ・perPair：REQUIRED_CallerEJB.REQUIRED_CalleePersist_REQUIRED_CallerPersist()
+ * 　をN回呼び出し、１組ずつ別のトランザクションで永続化する
+ *
+ * 計測値は呼び出し１回（N組の永続化）あたりの時間である。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BatchPersistBenchmark {
+
+	@Param({ "1", "10", "100", "1000" })
+	public int entities;
+
+	private EmbeddedContainer container;
+
+	private REQUIRED_CallerEJB callerEJB;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		container = EmbeddedContainer.start("ex02-batch", REQUIRED_CallerEJB.class, REQUIRED_CalleeEJB.class);
+		callerEJB = container.lookup(REQUIRED_CallerEJB.class);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		container.close();
+	}
+
+	@Benchmark
+	public void persistAll() {
+		List<Book02> books = new ArrayList<>(entities);
+		List<CD02> cds = new ArrayList<>(entities);
+		for (int i = 0; i < entities; i++) {
+			books.add(newBook(i));
+			cds.add(newCD(i));
+		}
+		callerEJB.persistAll(books, cds);
+	}
+
+	@Benchmark
+	public void perPair() {
+		for (int i = 0; i < entities; i++) {
+			callerEJB.REQUIRED_CalleePersist_REQUIRED_CallerPersist(newBook(i), newCD(i));
+		}
+	}
+
+	private static Book02 newBook(int i) {
+		Book02 book = new Book02();
+		book.setTitle("The Hitchhiker's Guide to the Galaxy " + i);
+		book.setPrice(12.5F);
+		book.setDescription("Science fiction comedy book");
+		book.setIsbn("1-84023-742-2");
+		book.setNbOfPage(354);
+		book.setIllustrations(false);
+		return book;
+	}
+
+	private static CD02 newCD(int i) {
+		return new CD02("Title " + i, 10.0F, "Title " + i + " Description", null,
+				"Music Company 1", 1, 100.0F, "male");
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		BenchmarkRunner.run("batch-persist", BatchPersistBenchmark.class.getSimpleName(), 1);
+	}
+}
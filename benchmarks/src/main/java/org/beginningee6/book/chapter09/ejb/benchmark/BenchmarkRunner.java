@@ -0,0 +1,56 @@
+package org.beginningee6.book.chapter09.ejb.benchmark;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * ベンチマークを実行し、結果をJSON形式でファイルに出力する。
+ *
+ * 出力先はシステムプロパティbenchmark.resultDir（既定はtarget/jmh-results）
+ * 配下の「<名前>-<日時>.json」となる。リリース間で結果を比較する場合は、
+ * 各リリースで出力したファイルを保存しておき、JMHのJSON形式を読める
+ * ツール（JMH Visualizerなど）で比較する。
+ *
+ * >> java -cp target/benchmarks.jar \
+ * >>   org.beginningee6.book.chapter09.ejb.benchmark.BenchmarkRunner [正規表現]
+ */
+public final class BenchmarkRunner {
+
+	private BenchmarkRunner() {
+	}
+
+	/**
+	 * 指定されたベンチマークを実行する。
+	 *
+	 * @param name 結果ファイルの名前
+	 * @param include 実行するベンチマークの正規表現
+	 * @param threads スレッド数
+	 */
+	public static void run(String name, String include, int threads) throws RunnerException {
+		ChainedOptionsBuilder options = new OptionsBuilder()
+				.include(include)
+				.threads(threads)
+				.resultFormat(ResultFormatType.JSON)
+				.result(resultFile(name + "-" + threads + "t").getPath());
+		new Runner(options.build()).run();
+	}
+
+	private static File resultFile(String name) {
+		File dir = new File(System.getProperty("benchmark.resultDir", "target/jmh-results"));
+		dir.mkdirs();
+		String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+		return new File(dir, name + "-" + timestamp + ".json");
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		String include = args.length > 0 ? args[0] : "Ex0[135]ItemBenchmark";
+		run("transaction-paths", include, 1);
+	}
+}
@@ -0,0 +1,151 @@
+package org.beginningee6.book.chapter09.ejb.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.beginningee6.book.chapter09.ejb.ex03.ItemEJB;
+import org.beginningee6.book.chapter09.ejb.stock.bucket.BucketedStockEJB;
+import org.beginningee6.book.chapter09.jpa.ex01.Item01;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.RunnerException;
+
+/**
+ * 同じItem01エンティティに在庫引き当てが集中する場合に、在庫数量を
+ * 分割するバケットの数によってex03.ItemEJB.sellOneBucketedItem()の
+ * スループットがどのように変わるかを計測する。
+ *
+ * バケットが１つの場合は、ひとつの行の行ロックで引き当てが直列化される。
+ * バケットの数を増やすと、スレッド数がバケットの数を超えるまでは
+ * スループットが伸びることが期待される。
+ *
+ * 引き当ての回数に加え、BucketedStockEJBで数えた以下の値を
+ * 補助カウンタとして出力する。
+ *
+ * ・fallbacks：他のバケットから引き当てた回数
+ * ・rebalances：バケット間で在庫数量を均した回数
+ *
+ * 1、8、32、128スレッドで実行するにはmain()を実行する。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class BucketedStockBenchmark {
+
+	// ベンチマーク中に在庫数量が尽きないだけの在庫数量
+	private static final int INITIAL_STOCK = 100000000;
+
+	@Param({ "1", "2", "4", "8", "16" })
+	public int buckets;
+
+	private EmbeddedContainer container;
+
+	private ItemEJB itemEJB;
+
+	private BucketedStockEJB bucketedStock;
+
+	private Item01 item;
+
+	// イテレーション開始時のBucketedStockEJBのカウンタ
+	private long fallbacksAtStart;
+	private long rebalancesAtStart;
+
+	// イテレーションの差分をいずれかひとつのスレッドの補助カウンタに
+	// 計上したかどうか
+	private final AtomicBoolean countersClaimed = new AtomicBoolean();
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		container = EmbeddedContainer.start("ex03-buckets", ItemEJB.class);
+		itemEJB = container.lookup(ItemEJB.class);
+		bucketedStock = container.lookup(BucketedStockEJB.class);
+
+		item = itemEJB.addAvailableStock(itemEJB.createItem(newItem()), INITIAL_STOCK);
+		bucketedStock.split(item.getId(), buckets);
+	}
+
+	@Setup(Level.Iteration)
+	public void markIteration() {
+		fallbacksAtStart = bucketedStock.getFallbacks();
+		rebalancesAtStart = bucketedStock.getRebalances();
+		countersClaimed.set(false);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		container.close();
+	}
+
+	/**
+	 * 引き当ての回数と、他のバケットから引き当てた回数、均した回数を
+	 * 求めるための補助カウンタ。
+	 *
+	 * BucketedStockEJBのカウンタはスレッドごとに分かれていないため、
+	 * イテレーションの差分は最初に終了したスレッドにだけ計上する。
+	 * 補助カウンタはスレッド間で合計されるので、合計は差分と一致する。
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class BucketCounters {
+		public long sells;
+		public long fallbacks;
+		public long rebalances;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			sells = 0;
+			fallbacks = 0;
+			rebalances = 0;
+		}
+
+		@TearDown(Level.Iteration)
+		public void collect(BucketedStockBenchmark benchmark) {
+			if (benchmark.countersClaimed.compareAndSet(false, true)) {
+				fallbacks = benchmark.bucketedStock.getFallbacks() - benchmark.fallbacksAtStart;
+				rebalances = benchmark.bucketedStock.getRebalances() - benchmark.rebalancesAtStart;
+			}
+		}
+	}
+
+	/**
+	 * バケットに分割されたItem01エンティティの在庫引き当て。
+	 *
+	 * 引き当て後の在庫数量は引数のItem01エンティティに設定されないため、
+	 * スレッド間で共有している。
+	 */
+	@Benchmark
+	public Item01 sellOneBucketedItem(BucketCounters counters) throws Exception {
+		Item01 sold = itemEJB.sellOneBucketedItem(item);
+		counters.sells++;
+		return sold;
+	}
+
+	private static Item01 newItem() {
+		Item01 item = new Item01();
+		item.setTitle("bucketed");
+		item.setPrice(12.5F);
+		item.setDescription("BucketedStockBenchmark");
+		return item;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		for (int threads : new int[] { 1, 8, 32, 128 }) {
+			BenchmarkRunner.run("bucketed-stock", BucketedStockBenchmark.class.getSimpleName(), threads);
+		}
+	}
+}
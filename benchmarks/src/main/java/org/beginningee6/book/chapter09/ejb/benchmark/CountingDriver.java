@@ -0,0 +1,143 @@
+package org.beginningee6.book.chapter09.ejb.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * 物理接続ごとのコミット回数、ロールバック回数、およびSQL文を発行した
+ * 物理接続の数を、呼び出し元のスレッドごとに数えるJDBCドライバ。
+ *
+ * 「jdbc:counting:」で始まるURLを受け付け、「jdbc:」に置き換えたURLで
+ * 実際のドライバに接続する。コネクションプールの下に置かれるため、
+ * コンテナ管理トランザクションのコミット（物理接続のcommit()）も数えられる。
+ *
+ * >> JdbcDriver = org.beginningee6.book.chapter09.ejb.benchmark.CountingDriver
+ * >> JdbcUrl    = jdbc:counting:derby:memory:ex02;create=true
+ */
+public class CountingDriver implements Driver {
+
+	private static final String PREFIX = "jdbc:counting:";
+
+	private static final ThreadLocal<Counts> COUNTS = new ThreadLocal<Counts>() {
+		@Override
+		protected Counts initialValue() {
+			return new Counts();
+		}
+	};
+
+	static {
+		try {
+			DriverManager.registerDriver(new CountingDriver());
+		} catch (SQLException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * 現在のスレッドのカウンタを０に戻す。
+	 */
+	public static void reset() {
+		Counts counts = COUNTS.get();
+		counts.commits = 0;
+		counts.rollbacks = 0;
+		counts.connections.clear();
+	}
+
+	/**
+	 * 現在のスレッドで、前回のreset()以降に行われたコミットの回数を返す。
+	 */
+	public static int commits() {
+		return COUNTS.get().commits;
+	}
+
+	/**
+	 * 現在のスレッドで、前回のreset()以降に行われたロールバックの回数を返す。
+	 */
+	public static int rollbacks() {
+		return COUNTS.get().rollbacks;
+	}
+
+	/**
+	 * 現在のスレッドで、前回のreset()以降にSQL文を発行した物理接続の数を返す。
+	 */
+	public static int connections() {
+		return COUNTS.get().connections.size();
+	}
+
+	@Override
+	public Connection connect(String url, Properties info) throws SQLException {
+		if (!acceptsURL(url)) {
+			return null;
+		}
+		final Connection physical = DriverManager.getConnection("jdbc:" + url.substring(PREFIX.length()), info);
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						Counts counts = COUNTS.get();
+						if (name.equals("commit")) {
+							counts.commits++;
+						} else if (name.equals("rollback") && (args == null || args.length == 0)) {
+							counts.rollbacks++;
+						} else if (name.startsWith("prepare") || name.equals("createStatement")) {
+							counts.connections.add(physical);
+						}
+						try {
+							return method.invoke(physical, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+	}
+
+	@Override
+	public boolean acceptsURL(String url) {
+		return url != null && url.startsWith(PREFIX);
+	}
+
+	@Override
+	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+		return new DriverPropertyInfo[0];
+	}
+
+	@Override
+	public int getMajorVersion() {
+		return 1;
+	}
+
+	@Override
+	public int getMinorVersion() {
+		return 0;
+	}
+
+	@Override
+	public boolean jdbcCompliant() {
+		return false;
+	}
+
+	@Override
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	private static class Counts {
+		int commits;
+		int rollbacks;
+		final Set<Connection> connections = Collections.newSetFromMap(new IdentityHashMap<Connection, Boolean>());
+	}
+}
@@ -0,0 +1,65 @@
+package org.beginningee6.book.chapter09.ejb.benchmark;
+
+import java.util.Properties;
+
+import org.beginningee6.book.chapter09.ejb.monitor.InstrumentedConnectionProvider;
+
+/**
+ * EmbeddedContainerのデータソース（Chapter09DS）の設定。
+ *
+ * いずれの設定も、InstrumentedDriverとInstrumentedConnectionProviderを
+ * 使用して、接続の取得待ち時間、保持時間、およびプリペアドステートメントの
+ * キャッシュのヒット率をConnectionStatisticsに記録する。
+ *
+ * ・DEFAULT：src/test/resources/jbossas-ds.xmlと同じく、プールの大きさを
+ * 　指定せず（最大20）、ステートメント・キャッシュを使用しない
+ * ・TUNED：src/test/datasource/tuned/jbossas-ds.xmlと同じく、プールを
+ * 　20から50の接続で事前に満たし、ステートメント・キャッシュを使用する
+ */
+public enum DataSourceProfile {
+
+	DEFAULT {
+		@Override
+		void configurePool(Properties properties) {
+			properties.setProperty(DATA_SOURCE + ".MaxActive", "20");
+			properties.setProperty(DATA_SOURCE + ".MaxWaitTime", "30 seconds");
+			properties.setProperty(DATA_SOURCE + ".PoolPreparedStatements", "false");
+		}
+	},
+
+	TUNED {
+		@Override
+		void configurePool(Properties properties) {
+			properties.setProperty(DATA_SOURCE + ".InitialSize", "20");
+			properties.setProperty(DATA_SOURCE + ".MinIdle", "20");
+			properties.setProperty(DATA_SOURCE + ".MaxIdle", "50");
+			properties.setProperty(DATA_SOURCE + ".MaxActive", "50");
+			properties.setProperty(DATA_SOURCE + ".MaxWaitTime", "5 seconds");
+			properties.setProperty(DATA_SOURCE + ".PoolPreparedStatements", "true");
+			properties.setProperty(DATA_SOURCE + ".MaxOpenPreparedStatements", "64");
+		}
+	};
+
+	private static final String DATA_SOURCE = "Chapter09DS";
+
+	private static final String[] UNITS = { "Chapter09ProductionPU", "Chapter09StockPU", "Chapter09BatchPU" };
+
+	/**
+	 * EmbeddedContainer.start()に渡すプロパティを返す。
+	 *
+	 * @param databaseName インメモリのDerbyデータベースの名前
+	 */
+	public Properties overrides(String databaseName) {
+		Properties properties = new Properties();
+		properties.setProperty(DATA_SOURCE + ".JdbcDriver", InstrumentedDriver.class.getName());
+		properties.setProperty(DATA_SOURCE + ".JdbcUrl", "jdbc:instrumented:derby:memory:" + databaseName + ";create=true");
+		for (String unit : UNITS) {
+			properties.setProperty(unit + ".hibernate.connection.provider_class",
+					InstrumentedConnectionProvider.class.getName());
+		}
+		configurePool(properties);
+		return properties;
+	}
+
+	abstract void configurePool(Properties properties);
+}
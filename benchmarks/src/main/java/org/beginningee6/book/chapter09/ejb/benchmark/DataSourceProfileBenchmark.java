@@ -0,0 +1,166 @@
+package org.beginningee6.book.chapter09.ejb.benchmark;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.beginningee6.book.chapter09.ejb.ex03.ItemEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.ConnectionMonitorEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.MethodLatencySnapshot;
+import org.beginningee6.book.chapter09.ejb.stock.SaleOutcome;
+import org.beginningee6.book.chapter09.jpa.ex01.Item01;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.RunnerException;
+
+/**
+ * 同じItem01エンティティに対する在庫引き当てと入庫を同時に行う負荷で、
+ * データソースの設定（DataSourceProfile）によるスループットの違いを計測する。
+ *
+ * 引き当て（ex03.ItemEJB.trySellOneItem()）を24スレッド、入庫
+ * （ex03.ItemEJB.addAvailableStock()）を8スレッドで実行する。
+ * 32スレッドは既定の設定のプールの大きさ（20）を超えるため、
+ * DEFAULTでは接続の取得待ちが生じる。
+ *
+ * 各イテレーションの接続の取得待ち時間、接続の保持時間（ビジネスメソッドの
+ * うち最も長いもの）、ステートメント・キャッシュのヒット率を補助カウンタとして
+ * 出力する。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class DataSourceProfileBenchmark {
+
+	// ベンチマーク中に在庫数量が尽きないだけの在庫数量
+	private static final int INITIAL_STOCK = 100000000;
+
+	@Param({ "DEFAULT", "TUNED" })
+	public DataSourceProfile profile;
+
+	private EmbeddedContainer container;
+
+	private ItemEJB itemEJB;
+
+	private ConnectionMonitorEJB connectionMonitor;
+
+	private Item01 item;
+
+	// イテレーションの計測値をいずれかひとつのスレッドの補助カウンタに
+	// 計上したかどうか
+	private final AtomicBoolean countersClaimed = new AtomicBoolean();
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		String database = "ex03-" + profile.name().toLowerCase();
+		container = EmbeddedContainer.start(database, profile.overrides(database), ItemEJB.class);
+		itemEJB = container.lookup(ItemEJB.class);
+		connectionMonitor = container.lookup(ConnectionMonitorEJB.class);
+
+		Item01 newItem = new Item01();
+		newItem.setTitle("The Hitchhiker's Guide to the Galaxy");
+		newItem.setPrice(12.5F);
+		newItem.setDescription("DataSourceProfileBenchmark");
+		item = itemEJB.addAvailableStock(itemEJB.createItem(newItem), INITIAL_STOCK);
+	}
+
+	@Setup(Level.Iteration)
+	public void markIteration() {
+		// 準備と前のイテレーションの記録を含めない
+		connectionMonitor.reset();
+		countersClaimed.set(false);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		container.close();
+	}
+
+	/**
+	 * 接続の取得待ち時間、保持時間、ステートメント・キャッシュのヒット率を
+	 * 出力するための補助カウンタ。
+	 *
+	 * ConnectionMonitorEJBの記録はスレッドごとに分かれていないため、
+	 * イテレーションの計測値は最初に終了したスレッドにだけ計上する。
+	 * 補助カウンタはスレッド間で合計されるので、合計は計測値と一致する。
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class ConnectionCounters {
+		public long acquires;
+		public long acquireP50Micros;
+		public long acquireP99Micros;
+		public long acquireMaxMicros;
+		public long holdP99Micros;
+		public double statementCacheHitRate;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			acquires = 0;
+			acquireP50Micros = 0;
+			acquireP99Micros = 0;
+			acquireMaxMicros = 0;
+			holdP99Micros = 0;
+			statementCacheHitRate = 0;
+		}
+
+		@TearDown(Level.Iteration)
+		public void collect(DataSourceProfileBenchmark benchmark) {
+			if (!benchmark.countersClaimed.compareAndSet(false, true)) {
+				return;
+			}
+			MethodLatencySnapshot acquire = benchmark.connectionMonitor.getAcquireWait();
+			acquires = acquire.getCount();
+			acquireP50Micros = acquire.getP50Micros();
+			acquireP99Micros = acquire.getP99Micros();
+			acquireMaxMicros = acquire.getMaxMicros();
+			for (MethodLatencySnapshot hold : benchmark.connectionMonitor.getHoldTimes()) {
+				holdP99Micros = Math.max(holdP99Micros, hold.getP99Micros());
+			}
+			statementCacheHitRate = benchmark.connectionMonitor.getStatementCacheHitRate();
+		}
+	}
+
+	/**
+	 * 引数のConnectionCountersは、各スレッドで補助カウンタを
+	 * 作成させるために受け取る（計上はイテレーションの終了時に行う）。
+	 */
+	@Benchmark
+	@Group("sellRestock")
+	@GroupThreads(24)
+	public SaleOutcome sell(ConnectionCounters counters) {
+		return itemEJB.trySellOneItem(item);
+	}
+
+	/**
+	 * 引数のItem01エンティティの在庫数量を＋１してマージする。
+	 * （すべてのスレッドで同じItem01エンティティを使用するため、
+	 * 　在庫数量は他のスレッドの更新を上書きするが、スループットの
+	 * 　計測には影響しない）
+	 */
+	@Benchmark
+	@Group("sellRestock")
+	@GroupThreads(8)
+	public Item01 restock(ConnectionCounters counters) {
+		return itemEJB.addAvailableStock(item, 1);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		BenchmarkRunner.run("datasource-profile", DataSourceProfileBenchmark.class.getSimpleName(), 32);
+	}
+}
@@ -0,0 +1,331 @@
+package org.beginningee6.book.chapter09.ejb.benchmark;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.ejb.embeddable.EJBContainer;
+import javax.naming.NamingException;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.beginningee6.book.chapter09.ejb.async.AsyncAdmissionEJB;
+import org.beginningee6.book.chapter09.ejb.id.PooledIdAllocatorEJB;
+import org.beginningee6.book.chapter09.ejb.journal.StockJournalEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyMonitorEJB;
+import org.beginningee6.book.chapter09.ejb.stock.StockLevelCacheEJB;
+import org.beginningee6.book.chapter09.ejb.stock.bucket.BucketedStockEJB;
+import org.beginningee6.book.chapter09.ejb.stock.event.EventSourcedStockEJB;
+import org.beginningee6.book.chapter09.jpa.ex01.Item01;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+/**
+ * ベンチマーク対象のEJBを、インメモリのDerbyデータベースを使用する
+ * javax.ejb.embeddable.EJBContainer上で起動する。
+ *
+ * beginningee6-chapter09-ejbには、ex01、ex03、ex04、ex05のように
+ * 同じ名前（ItemEJBなど）のEJBが複数のパッケージに含まれているため、
+ * ベンチマークごとに必要なパッケージのクラスだけを取り出し、
+ * beginningee6-chapter09-jpaのエンティティと永続化ユニットの定義を
+ * 加えたモジュールを作成してデプロイする。
+ *
+ * ベンチマークをシェーディングしたjarから実行する場合も、すべての
+ * クラスが同じjarに含まれるため、同様に必要なクラスだけを取り出す。
+ */
+public final class EmbeddedContainer implements Closeable {
+
+	private static final String DATA_SOURCE = "Chapter09DS";
+
+	// 各サンプルのEJBが共通に使用するパッケージに含まれるクラス
+	private static final Class<?>[] SHARED_PACKAGES = {
+		StockLevelCacheEJB.class, BucketedStockEJB.class, AsyncAdmissionEJB.class, LatencyMonitorEJB.class,
+		PooledIdAllocatorEJB.class, StockJournalEJB.class, EventSourcedStockEJB.class
+	};
+
+	private final EJBContainer container;
+
+	// lookup(Class)で参照を得るモジュールの名前
+	private final String moduleName;
+
+	private EmbeddedContainer(EJBContainer container, String moduleName) {
+		this.container = container;
+		this.moduleName = moduleName;
+	}
+
+	/**
+	 * 指定されたクラスのパッケージに含まれるEJBをデプロイしてコンテナを起動する。
+	 *
+	 * @param moduleName モジュール名（JNDI名の一部となる）
+	 * @param packageMarkers デプロイするパッケージに含まれるクラス
+	 * @return 起動したコンテナ
+	 */
+	public static EmbeddedContainer start(String moduleName, Class<?>... packageMarkers) throws IOException {
+		return start(moduleName, new Properties(), packageMarkers);
+	}
+
+	/**
+	 * 指定されたクラスのパッケージに含まれるEJBをデプロイしてコンテナを起動する。
+	 *
+	 * @param moduleName モジュール名（JNDI名の一部となる）
+	 * @param overrides コンテナに渡すプロパティ（データソースのプール設定など）
+	 * @param packageMarkers デプロイするパッケージに含まれるクラス
+	 * @return 起動したコンテナ
+	 */
+	public static EmbeddedContainer start(String moduleName, Properties overrides,
+			Class<?>... packageMarkers) throws IOException {
+
+		Map<String, Class<?>[]> modules = new LinkedHashMap<>();
+		modules.put(moduleName, packageMarkers);
+		return start(moduleName, overrides, modules);
+	}
+
+	/**
+	 * 複数のモジュールを、同じデータベースを使用するひとつのコンテナに
+	 * デプロイして起動する。
+	 *
+	 * ex03とex05のように同じ名前のEJBを含むパッケージを同時に使用する
+	 * 場合は、それぞれを別のモジュールとしてデプロイする。lookup(Class)は
+	 * 最初のモジュールのEJBへの参照を返す。
+	 *
+	 * @param databaseName インメモリのDerbyデータベースの名前
+	 * @param overrides コンテナに渡すプロパティ（データソースのプール設定など）
+	 * @param modules モジュール名と、そのモジュールにデプロイするパッケージに
+	 *        含まれるクラス
+	 * @return 起動したコンテナ
+	 */
+	public static EmbeddedContainer start(String databaseName, Properties overrides,
+			Map<String, Class<?>[]> modules) throws IOException {
+
+		List<File> moduleFiles = new ArrayList<>();
+		for (Map.Entry<String, Class<?>[]> module : modules.entrySet()) {
+			moduleFiles.add(extractModule(module.getKey(), module.getValue()));
+		}
+
+		Map<String, Object> properties = new HashMap<>();
+		properties.put(EJBContainer.MODULES, moduleFiles.toArray(new File[moduleFiles.size()]));
+
+		// インメモリのDerbyデータベースをJTAデータソースとして定義する
+		// 永続化ユニットのjta-data-sourceはこのデータソースに解決される
+		properties.put(DATA_SOURCE, "new://Resource?type=DataSource");
+		properties.put(DATA_SOURCE + ".JdbcDriver", "org.apache.derby.jdbc.EmbeddedDriver");
+		properties.put(DATA_SOURCE + ".JdbcUrl", "jdbc:derby:memory:" + databaseName + ";create=true");
+		properties.put(DATA_SOURCE + ".JtaManaged", "true");
+
+		// JBoss AS 7.1.1と同じくHibernateを使用し、テーブルは起動時に作成する
+		properties.put("javax.persistence.provider", "org.hibernate.ejb.HibernatePersistence");
+		properties.put("Chapter09ProductionPU.hibernate.hbm2ddl.auto", "create-drop");
+		properties.put("Chapter09ProductionPU.hibernate.dialect", "org.hibernate.dialect.DerbyTenSevenDialect");
+		properties.put("Chapter09StockPU.hibernate.hbm2ddl.auto", "create-drop");
+		properties.put("Chapter09StockPU.hibernate.dialect", "org.hibernate.dialect.DerbyTenSevenDialect");
+		properties.put("Chapter09BatchPU.hibernate.dialect", "org.hibernate.dialect.DerbyTenSevenDialect");
+
+		for (String name : overrides.stringPropertyNames()) {
+			properties.put(name, overrides.getProperty(name));
+		}
+
+		return new EmbeddedContainer(EJBContainer.createEJBContainer(properties),
+				modules.keySet().iterator().next());
+	}
+
+	/**
+	 * デプロイしたEJBへの参照を得る。
+	 *
+	 * @param beanClass EJBのクラス
+	 * @return EJBへの参照
+	 */
+	public <T> T lookup(Class<T> beanClass) {
+		return lookup(moduleName, beanClass);
+	}
+
+	/**
+	 * 指定されたモジュールにデプロイしたEJBへの参照を得る。
+	 *
+	 * @param moduleName モジュール名
+	 * @param beanClass EJBのクラス
+	 * @return EJBへの参照
+	 */
+	public <T> T lookup(String moduleName, Class<T> beanClass) {
+		String name = "java:global/" + moduleName + "/" + beanClass.getSimpleName();
+		try {
+			return beanClass.cast(container.getContext().lookup(name));
+		} catch (NamingException e) {
+			throw new IllegalStateException("EJB not found: " + name, e);
+		}
+	}
+
+	@Override
+	public void close() {
+		container.close();
+	}
+
+	private static File extractModule(String moduleName, Class<?>... packageMarkers) throws IOException {
+		Path moduleDir = Paths.get("target", "embedded-modules", moduleName);
+		Files.createDirectories(moduleDir.resolve("META-INF"));
+
+		// アノテーションで定義されたEJBを検出させるため、空の記述子を置く
+		// （ex02の呼び出し先EJBはUserTransactionを＠Injectで注入するため、
+		// 　CDIも有効にする）
+		Files.write(moduleDir.resolve("META-INF/ejb-jar.xml"),
+				"<ejb-jar/>".getBytes(StandardCharsets.UTF_8));
+		Files.write(moduleDir.resolve("META-INF/beans.xml"),
+				"<beans/>".getBytes(StandardCharsets.UTF_8));
+
+		for (Class<?> marker : packageMarkers) {
+			String prefix = marker.getPackage().getName().replace('.', '/') + "/";
+			extract(locationOf(marker), prefix, false, moduleDir);
+		}
+
+		// 各サンプルのEJBが共通に使用するパッケージは常に含める
+		for (Class<?> shared : SHARED_PACKAGES) {
+			extract(locationOf(shared), shared.getPackage().getName().replace('.', '/') + "/", false, moduleDir);
+		}
+
+		// エンティティとChapter09ProductionPUの定義を取り出す
+		File jpa = locationOf(Item01.class);
+		extract(jpa, "org/beginningee6/book/chapter09/jpa/", true, moduleDir);
+		extract(jpa, "META-INF/persistence.xml", true, moduleDir);
+
+		// beginningee6-chapter09-ejb自身の永続化ユニット（Chapter09StockPUなど）を
+		// 同じpersistence.xmlに加える
+		Path units = Files.createTempDirectory("persistence-units");
+		extract(locationOf(BucketedStockEJB.class), "META-INF/persistence.xml", true, units);
+		mergePersistenceUnits(units.resolve("META-INF/persistence.xml"), moduleDir.resolve("META-INF/persistence.xml"));
+		// Chapter09BatchPUが使用するマッピングファイル
+		extract(locationOf(BucketedStockEJB.class), "META-INF/orm-pooled-ids.xml", true, moduleDir);
+
+		return moduleDir.toFile();
+	}
+
+	private static void mergePersistenceUnits(Path from, Path into) throws IOException {
+		if (!Files.isRegularFile(from)) {
+			return;
+		}
+		try {
+			DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+			factory.setNamespaceAware(true);
+			DocumentBuilder builder = factory.newDocumentBuilder();
+			Document target = builder.parse(into.toFile());
+			Document source = builder.parse(from.toFile());
+
+			Set<String> existing = new HashSet<>();
+			NodeList targetUnits = target.getDocumentElement().getElementsByTagNameNS("*", "persistence-unit");
+			for (int i = 0; i < targetUnits.getLength(); i++) {
+				existing.add(((Element) targetUnits.item(i)).getAttribute("name"));
+			}
+
+			// シェーディングしたjarでは既にひとつにまとめられているため、
+			// 同じ名前の永続化ユニットは加えない
+			NodeList units = source.getDocumentElement().getElementsByTagNameNS("*", "persistence-unit");
+			for (int i = 0; i < units.getLength(); i++) {
+				Element unit = (Element) units.item(i);
+				if (existing.add(unit.getAttribute("name"))) {
+					target.getDocumentElement().appendChild(target.importNode(unit, true));
+				}
+			}
+			TransformerFactory.newInstance().newTransformer()
+					.transform(new DOMSource(target), new StreamResult(into.toFile()));
+		} catch (ParserConfigurationException | SAXException | TransformerException e) {
+			throw new IOException("Failed to merge " + from + " into " + into, e);
+		}
+	}
+
+	private static void extract(File source, String prefix, boolean recursive, Path to) throws IOException {
+		if (source.isDirectory()) {
+			extractDirectory(source.toPath(), prefix, recursive, to);
+		} else {
+			extractJar(source, prefix, recursive, to);
+		}
+	}
+
+	private static void extractDirectory(Path root, String prefix, boolean recursive, Path to) throws IOException {
+		Path start = root.resolve(prefix);
+		if (Files.isRegularFile(start)) {
+			Files.createDirectories(to.resolve(prefix).getParent());
+			Files.copy(start, to.resolve(prefix), StandardCopyOption.REPLACE_EXISTING);
+			return;
+		}
+		if (!Files.isDirectory(start)) {
+			return;
+		}
+
+		Files.createDirectories(to.resolve(prefix));
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(start)) {
+			for (Path entry : entries) {
+				String name = prefix + entry.getFileName();
+				if (Files.isDirectory(entry)) {
+					// 再帰的に取り出さない場合、サブパッケージは含めない
+					if (recursive) {
+						extractDirectory(root, name + "/", true, to);
+					}
+				} else {
+					Files.copy(entry, to.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+				}
+			}
+		}
+	}
+
+	private static void extractJar(File jar, String prefix, boolean recursive, Path to) throws IOException {
+		try (ZipInputStream in = new ZipInputStream(Files.newInputStream(jar.toPath()))) {
+			ZipEntry entry;
+			while ((entry = in.getNextEntry()) != null) {
+				String name = entry.getName();
+				if (entry.isDirectory() || !name.startsWith(prefix)) {
+					continue;
+				}
+				// 再帰的に取り出さない場合、サブパッケージは含めない
+				if (!recursive && name.indexOf('/', prefix.length()) >= 0) {
+					continue;
+				}
+				File target = to.resolve(name).toFile();
+				target.getParentFile().mkdirs();
+				copy(in, target);
+			}
+		}
+	}
+
+	private static void copy(InputStream in, File target) throws IOException {
+		try (OutputStream out = new FileOutputStream(target)) {
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+		}
+	}
+
+	private static File locationOf(Class<?> type) {
+		try {
+			return new File(type.getProtectionDomain().getCodeSource().getLocation().toURI());
+		} catch (URISyntaxException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package org.beginningee6.book.chapter09.ejb.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.beginningee6.book.chapter09.ejb.ex01.ItemEJB;
+import org.beginningee6.book.chapter09.jpa.ex01.Item01;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ex01.ItemEJB.createItem()（Item01エンティティの永続化と、REQUIREDで
+ * 呼び出されるInventoryEJB.addItem()による在庫数量の更新）の
+ * スループットとレイテンシを計測する。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class Ex01ItemBenchmark {
+
+	private EmbeddedContainer container;
+
+	private ItemEJB itemEJB;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		container = EmbeddedContainer.start("ex01", ItemEJB.class);
+		itemEJB = container.lookup(ItemEJB.class);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		container.close();
+	}
+
+	@Benchmark
+	public Item01 createItem() {
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Ex01ItemBenchmark");
+		return itemEJB.createItem(item);
+	}
+}
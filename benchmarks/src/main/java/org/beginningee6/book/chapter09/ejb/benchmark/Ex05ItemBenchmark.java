@@ -0,0 +1,83 @@
+package org.beginningee6.book.chapter09.ejb.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.beginningee6.book.chapter09.ejb.ex05.ItemEJB;
+import org.beginningee6.book.chapter09.ejb.stock.StockLockingEJB;
+import org.beginningee6.book.chapter09.jpa.ex01.Item01;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ex05.ItemEJB（Bean管理トランザクション）のsellOneItem()と
+ * addAvailableStock()のスループットとレイテンシを計測する。
+ *
+ * スレッドごとに別のItem01エンティティを更新するため、行ロックの競合は
+ * 含まれない。
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class Ex05ItemBenchmark {
+
+	// ベンチマーク中に在庫数量が尽きないだけの在庫数量
+	private static final int INITIAL_STOCK = 100000000;
+
+	@State(Scope.Benchmark)
+	public static class Container {
+		EmbeddedContainer container;
+		ItemEJB itemEJB;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			container = EmbeddedContainer.start("ex05", ItemEJB.class, StockLockingEJB.class);
+			itemEJB = container.lookup(ItemEJB.class);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			container.close();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class StockedItem {
+		Item01 item;
+
+		@Setup(Level.Trial)
+		public void setUp(Container c) throws Exception {
+			Item01 newItem = new Item01();
+			newItem.setTitle("The Hitchhiker's Guide to the Galaxy");
+			newItem.setPrice(12.5F);
+			newItem.setDescription("Ex05ItemBenchmark");
+			item = c.itemEJB.addAvailableStock(c.itemEJB.createItem(newItem), INITIAL_STOCK);
+		}
+	}
+
+	@Benchmark
+	public Item01 sellOneItem(Container c, StockedItem s) throws Exception {
+		return c.itemEJB.sellOneItem(s.item);
+	}
+
+	/**
+	 * 引数のItem01エンティティの在庫数量を＋１してマージする。
+	 * （スレッドごとのItem01エンティティを使用するため、在庫数量は
+	 * 　スレッドの中で単調に増える）
+	 */
+	@Benchmark
+	public Item01 addAvailableStock(Container c, StockedItem s) throws Exception {
+		return c.itemEJB.addAvailableStock(s.item, 1);
+	}
+}
@@ -0,0 +1,99 @@
+package org.beginningee6.book.chapter09.ejb.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.beginningee6.book.chapter09.ejb.ex03.ItemEJB;
+import org.beginningee6.book.chapter09.ejb.stock.HotItemStockLedgerEJB;
+import org.beginningee6.book.chapter09.jpa.ex01.Item01;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.RunnerException;
+
+/**
+ * 同じItem01エンティティに在庫引き当てが集中する場合の、データベースの
+ * 行ロックによる引き当て（ex03.ItemEJB.sellOneItem()）と、
+ * HotItemStockLedgerEJBによるメモリ上での引き当て
+ * （ex03.ItemEJB.sellOneHotItem()）のスループットを比較する。
+ *
+ * 1、8、32、128スレッドで実行するにはmain()を実行する。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class HotItemStockBenchmark {
+
+	// ベンチマーク中に在庫数量が尽きないだけの在庫数量
+	private static final int INITIAL_STOCK = 100000000;
+
+	private EmbeddedContainer container;
+
+	private ItemEJB itemEJB;
+
+	private HotItemStockLedgerEJB ledger;
+
+	private Item01 rowLockedItem;
+
+	private Item01 hotItem;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		container = EmbeddedContainer.start("ex03-hot", ItemEJB.class, HotItemStockLedgerEJB.class);
+		itemEJB = container.lookup(ItemEJB.class);
+		ledger = container.lookup(HotItemStockLedgerEJB.class);
+
+		rowLockedItem = itemEJB.addAvailableStock(itemEJB.createItem(newItem("row-locked")), INITIAL_STOCK);
+		hotItem = itemEJB.addAvailableStock(itemEJB.createItem(newItem("hot")), INITIAL_STOCK);
+		ledger.markHot(hotItem.getId());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		container.close();
+	}
+
+	/**
+	 * データベースの行ロックによる在庫引き当て。
+	 */
+	@Benchmark
+	public Item01 rowLock() throws Exception {
+		return itemEJB.sellOneItem(rowLockedItem);
+	}
+
+	/**
+	 * メモリ上のストライプ化されたカウンタによる在庫引き当て。
+	 *
+	 * 引き当て後の在庫数量が引数のItem01エンティティに設定されるが、
+	 * ベンチマークでは使用しないため、スレッド間で共有している。
+	 */
+	@Benchmark
+	public Item01 stripedLedger() throws Exception {
+		return itemEJB.sellOneHotItem(hotItem);
+	}
+
+	private static Item01 newItem(String title) {
+		Item01 item = new Item01();
+		item.setTitle(title);
+		item.setPrice(12.5F);
+		item.setDescription("HotItemStockBenchmark");
+		return item;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		for (int threads : new int[] { 1, 8, 32, 128 }) {
+			BenchmarkRunner.run("hot-item-stock", HotItemStockBenchmark.class.getSimpleName(), threads);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package org.beginningee6.book.chapter09.ejb.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.beginningee6.book.chapter09.ejb.monitor.ConnectionStatistics;
+
+/**
+ * 物理接続でのプリペアドステートメントの作成を数えるJDBCドライバ。
+ *
+ * 「jdbc:instrumented:」で始まるURLを受け付け、「jdbc:」に置き換えた
+ * URLで実際のドライバに接続する。コネクションプールの「下」に置かれる
+ * ため、ここで数えた作成数は、プールのステートメント・キャッシュに
+ * ヒットしなかったプリペアドステートメントの数となる。
+ * InstrumentedDataSourceで数えた要求数と合わせて、ConnectionStatisticsで
+ * キャッシュのヒット率を求める。
+ *
+ * >> JdbcDriver = org.beginningee6.book.chapter09.ejb.benchmark.InstrumentedDriver
+ * >> JdbcUrl    = jdbc:instrumented:derby:memory:load;create=true
+ */
+public class InstrumentedDriver implements Driver {
+
+	private static final String PREFIX = "jdbc:instrumented:";
+
+	static {
+		try {
+			DriverManager.registerDriver(new InstrumentedDriver());
+		} catch (SQLException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	@Override
+	public Connection connect(String url, Properties info) throws SQLException {
+		if (!acceptsURL(url)) {
+			return null;
+		}
+		final Connection physical = DriverManager.getConnection("jdbc:" + url.substring(PREFIX.length()), info);
+		ConnectionStatistics.physicalConnectionOpened();
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+						String name = method.getName();
+						if (name.equals("prepareStatement") || name.equals("prepareCall")) {
+							ConnectionStatistics.statementPrepared();
+						}
+						try {
+							return method.invoke(physical, args);
+						} catch (InvocationTargetException e) {
+							throw e.getCause();
+						}
+					}
+				});
+	}
+
+	@Override
+	public boolean acceptsURL(String url) {
+		return url != null && url.startsWith(PREFIX);
+	}
+
+	@Override
+	public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+		return new DriverPropertyInfo[0];
+	}
+
+	@Override
+	public int getMajorVersion() {
+		return 1;
+	}
+
+	@Override
+	public int getMinorVersion() {
+		return 0;
+	}
+
+	@Override
+	public boolean jdbcCompliant() {
+		return false;
+	}
+
+	// JDBC 4.1（Java SE 7）で追加されたメソッド
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+}
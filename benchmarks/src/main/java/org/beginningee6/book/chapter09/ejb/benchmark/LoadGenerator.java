@@ -0,0 +1,337 @@
+package org.beginningee6.book.chapter09.ejb.benchmark;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.beginningee6.book.chapter09.ejb.monitor.ConnectionMonitorEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyHistogram;
+import org.beginningee6.book.chapter09.ejb.monitor.MethodLatencySnapshot;
+import org.beginningee6.book.chapter09.ejb.stock.StockLevelCacheEJB;
+import org.beginningee6.book.chapter09.jpa.ex01.Item01;
+import org.beginningee6.book.chapter09.jpa.ex01.StockAvailabilityException;
+
+/**
+ * 同じItem01エンティティに対して、ex03.ItemEJB.sellOneItem()による
+ * 在庫引き当て、ex05.ItemEJB.addAvailableStock()による入庫、
+ * ex03.ItemEJB.createItem()による登録を、複数のスレッドから指定された
+ * 比率で混在させて実行する負荷生成ツール。
+ *
+ * ex03とex05は同じ名前のEJBを含むため、別のモジュールとして同じ
+ * データベースを使用するひとつのコンテナにデプロイする。
+ *
+ * 実行中の操作ごとのスループット、レイテンシのパーセンタイル、
+ * ロールバック、デッドロック、ロック待ちのタイムアウトの回数を出力し、
+ * 終了時に各Item01エンティティについて次の不変条件を確認する。
+ *
+ * ・在庫数量が負になっていないこと
+ * ・在庫数量が、開始時の在庫数量＋成功した入庫の数量－成功した引き当ての数
+ * 　と等しいこと（等しくない場合は、いずれかの更新が失われている）
+ *
+ * 各スレッドは、直前の操作で返されたItem01エンティティを次の操作に渡す。
+ * ex05.ItemEJB.addAvailableStock()は渡されたItem01エンティティの在庫数量に
+ * 増分を加えてマージするため、他のスレッドの更新を上書きした場合は
+ * 不変条件の違反として現れる。なお、ex05.ItemEJBはロールバックした場合も
+ * 例外をスローしないため、ロールバックしたことを検出できない入庫も
+ * 不変条件の違反として現れる。
+ *
+ * 設定はシステムプロパティで指定する。
+ *
+ * ・load.threads：スレッド数（既定は32）
+ * ・load.durationSeconds：負荷をかける秒数（既定は30）
+ * ・load.items：引き当てと入庫を行うItem01エンティティの数（既定は4）
+ * ・load.initialStock：開始時の在庫数量（既定は1000）
+ * ・load.restockQuantity：1回の入庫の数量（既定は1）
+ * ・load.mix：引き当て、入庫、登録の比率（既定は「70:25:5」）
+ * ・load.datasource：データソースの設定（DataSourceProfileのdefaultまたはtuned。
+ * 　既定はdefault）
+ *
+ * 終了時には、接続の取得待ち時間、ビジネスメソッドごとの接続の保持時間、
+ * プリペアドステートメントのキャッシュのヒット率も出力する。
+ *
+ * 不変条件を満たさないItem01エンティティがあった場合は、終了コード１で終了する。
+ *
+ * >> java -Dload.threads=64 -cp target/benchmarks.jar \
+ * >>   org.beginningee6.book.chapter09.ejb.benchmark.LoadGenerator
+ */
+public final class LoadGenerator {
+
+	private static final String EX03 = "load-ex03";
+	private static final String EX05 = "load-ex05";
+
+	// 出力するレイテンシのパーセンタイル
+	private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	// Derbyのデッドロックとロック待ちのタイムアウトのSQLSTATE
+	private static final String DEADLOCK = "40001";
+	private static final String LOCK_TIMEOUT = "40XL1";
+
+	enum Operation {
+		SELL, RESTOCK, CREATE
+	}
+
+	/**
+	 * 操作ごとの計測結果。
+	 */
+	static final class OperationStats {
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong succeeded = new AtomicLong();
+		final AtomicLong rolledBack = new AtomicLong();
+		final AtomicLong deadlocks = new AtomicLong();
+		final AtomicLong lockTimeouts = new AtomicLong();
+	}
+
+	private final int threads = Integer.getInteger("load.threads", 32);
+	private final int durationSeconds = Integer.getInteger("load.durationSeconds", 30);
+	private final int itemCount = Integer.getInteger("load.items", 4);
+	private final int initialStock = Integer.getInteger("load.initialStock", 1000);
+	private final int restockQuantity = Integer.getInteger("load.restockQuantity", 1);
+	private final int[] mix = parseMix(System.getProperty("load.mix", "70:25:5"));
+	private final DataSourceProfile dataSource
+		= DataSourceProfile.valueOf(System.getProperty("load.datasource", "default").toUpperCase());
+
+	private final Map<Operation, OperationStats> stats = new EnumMap<>(Operation.class);
+
+	// Item01エンティティごとの成功した引き当ての数と入庫の数量
+	private final AtomicLongArray sold;
+	private final AtomicLongArray restocked;
+
+	// 引き当てで返された在庫数量が負だった回数
+	private final AtomicLong negativeObserved = new AtomicLong();
+
+	private org.beginningee6.book.chapter09.ejb.ex03.ItemEJB ex03;
+	private org.beginningee6.book.chapter09.ejb.ex05.ItemEJB ex05;
+	private StockLevelCacheEJB stockLevel;
+	private ConnectionMonitorEJB connectionMonitor;
+
+	private LoadGenerator() {
+		for (Operation operation : Operation.values()) {
+			stats.put(operation, new OperationStats());
+		}
+		sold = new AtomicLongArray(itemCount);
+		restocked = new AtomicLongArray(itemCount);
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean consistent = new LoadGenerator().run();
+		System.exit(consistent ? 0 : 1);
+	}
+
+	private boolean run() throws Exception {
+		Map<String, Class<?>[]> modules = new LinkedHashMap<>();
+		modules.put(EX03, new Class<?>[] { org.beginningee6.book.chapter09.ejb.ex03.ItemEJB.class });
+		modules.put(EX05, new Class<?>[] { org.beginningee6.book.chapter09.ejb.ex05.ItemEJB.class });
+
+		try (EmbeddedContainer container = EmbeddedContainer.start("load", dataSource.overrides("load"), modules)) {
+			ex03 = container.lookup(EX03, org.beginningee6.book.chapter09.ejb.ex03.ItemEJB.class);
+			ex05 = container.lookup(EX05, org.beginningee6.book.chapter09.ejb.ex05.ItemEJB.class);
+			stockLevel = container.lookup(EX03, StockLevelCacheEJB.class);
+			connectionMonitor = container.lookup(EX03, ConnectionMonitorEJB.class);
+
+			Item01[] items = new Item01[itemCount];
+			long[] startStock = new long[itemCount];
+			for (int i = 0; i < itemCount; i++) {
+				items[i] = ex03.addAvailableStock(ex03.createItem(newItem("load-" + i)), initialStock);
+				startStock[i] = readStock(items[i].getId());
+			}
+
+			// 準備の間の記録を含めない
+			connectionMonitor.reset();
+			long elapsed = drive(items);
+			report(elapsed);
+			return check(items, startStock);
+		}
+	}
+
+	private long drive(final Item01[] items) throws Exception {
+		final CountDownLatch start = new CountDownLatch(1);
+		final long[] deadline = new long[1];
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Void>> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			final Random random = new Random(t);
+			workers.add(executor.submit(new Callable<Void>() {
+				public Void call() throws Exception {
+					// スレッドごとに、直前の操作で返されたItem01エンティティを持つ
+					Item01[] view = items.clone();
+					start.await();
+					while (System.nanoTime() < deadline[0]) {
+						execute(pick(random), random.nextInt(view.length), view);
+					}
+					return null;
+				}
+			}));
+		}
+
+		long begin = System.nanoTime();
+		deadline[0] = begin + TimeUnit.SECONDS.toNanos(durationSeconds);
+		start.countDown();
+		for (Future<Void> worker : workers) {
+			worker.get();
+		}
+		executor.shutdown();
+		return System.nanoTime() - begin;
+	}
+
+	private void execute(Operation operation, int index, Item01[] view) {
+		OperationStats s = stats.get(operation);
+		long start = System.nanoTime();
+		try {
+			switch (operation) {
+			case SELL:
+				Item01 soldItem = ex03.sellOneItem(view[index]);
+				if (soldItem.getAvailableInStock() < 0) {
+					negativeObserved.incrementAndGet();
+				}
+				sold.incrementAndGet(index);
+				view[index] = soldItem;
+				break;
+			case RESTOCK:
+				Item01 restockedItem = ex05.addAvailableStock(view[index], restockQuantity);
+				if (restockedItem == null) {
+					// ロールバックにも失敗した場合はnullが返される
+					s.rolledBack.incrementAndGet();
+					return;
+				}
+				restocked.addAndGet(index, restockQuantity);
+				view[index] = restockedItem;
+				break;
+			case CREATE:
+				ex03.createItem(newItem("created"));
+				break;
+			}
+			s.succeeded.incrementAndGet();
+		} catch (org.beginningee6.book.chapter09.ejb.ex03.InventoryLevelTooLowException
+				| StockAvailabilityException e) {
+			// 在庫数量の不足によるロールバック
+			s.rolledBack.incrementAndGet();
+		} catch (Exception e) {
+			s.rolledBack.incrementAndGet();
+			String sqlState = sqlStateOf(e);
+			if (DEADLOCK.equals(sqlState)) {
+				s.deadlocks.incrementAndGet();
+			} else if (LOCK_TIMEOUT.equals(sqlState)) {
+				s.lockTimeouts.incrementAndGet();
+			}
+		} finally {
+			s.latency.record(System.nanoTime() - start);
+		}
+	}
+
+	private void report(long elapsedNanos) {
+		double seconds = elapsedNanos / 1e9;
+		System.out.println("threads=" + threads + " duration=" + String.format("%.1fs", seconds)
+				+ " items=" + itemCount + " mix=" + mix[0] + ":" + mix[1] + ":" + mix[2]
+				+ " datasource=" + dataSource.name().toLowerCase());
+		for (Map.Entry<Operation, OperationStats> entry : stats.entrySet()) {
+			OperationStats s = entry.getValue();
+			StringBuilder line = new StringBuilder();
+			line.append(String.format("%-8s ops/s=%.1f", entry.getKey(), s.latency.getCount() / seconds));
+			for (double quantile : QUANTILES) {
+				line.append(String.format(" p%s=%dus", trim(quantile * 100),
+						TimeUnit.NANOSECONDS.toMicros(s.latency.getValueAtQuantile(quantile))));
+			}
+			line.append(" max=").append(TimeUnit.NANOSECONDS.toMicros(s.latency.getMax())).append("us");
+			line.append(" succeeded=").append(s.succeeded.get());
+			line.append(" rolledBack=").append(s.rolledBack.get());
+			line.append(" deadlocks=").append(s.deadlocks.get());
+			line.append(" lockTimeouts=").append(s.lockTimeouts.get());
+			System.out.println(line);
+		}
+		reportConnections();
+	}
+
+	private void reportConnections() {
+		// 取得待ち時間が長い場合はプールが足りず、保持時間が長い場合は
+		// SQL文の実行（行ロック待ちを含む）に時間がかかっている
+		System.out.println(format(connectionMonitor.getAcquireWait()));
+		for (MethodLatencySnapshot hold : connectionMonitor.getHoldTimes()) {
+			System.out.println(format(hold));
+		}
+		System.out.println(String.format("statement cache hit rate=%.3f",
+				connectionMonitor.getStatementCacheHitRate()));
+	}
+
+	private static String format(MethodLatencySnapshot s) {
+		return String.format("%-8s %s count=%d p50=%dus p99=%dus p99.9=%dus max=%dus",
+				s.getOutcome(), s.getMethod(), s.getCount(),
+				s.getP50Micros(), s.getP99Micros(), s.getP999Micros(), s.getMaxMicros());
+	}
+
+	private boolean check(Item01[] items, long[] startStock) {
+		boolean consistent = negativeObserved.get() == 0;
+		if (!consistent) {
+			System.out.println("VIOLATION negative stock returned by sellOneItem " + negativeObserved.get() + " times");
+		}
+		for (int i = 0; i < items.length; i++) {
+			long expected = startStock[i] + restocked.get(i) - sold.get(i);
+			long actual = readStock(items[i].getId());
+			boolean ok = actual >= 0 && actual == expected;
+			consistent &= ok;
+			System.out.println((ok ? "OK        " : "VIOLATION ") + "Item01(id=" + items[i].getId() + ")"
+					+ " start=" + startStock[i] + " restocked=" + restocked.get(i) + " sold=" + sold.get(i)
+					+ " expected=" + expected + " actual=" + actual
+					+ (actual == expected ? "" : " lost=" + (expected - actual)));
+		}
+		return consistent;
+	}
+
+	private long readStock(Long itemId) {
+		// キャッシュを破棄して、コミット済みの在庫数量をデータベースから読む
+		stockLevel.clear();
+		return stockLevel.getAvailableInStock(itemId);
+	}
+
+	private Operation pick(Random random) {
+		int r = random.nextInt(mix[0] + mix[1] + mix[2]);
+		if (r < mix[0]) {
+			return Operation.SELL;
+		}
+		return r < mix[0] + mix[1] ? Operation.RESTOCK : Operation.CREATE;
+	}
+
+	private static String sqlStateOf(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof SQLException) {
+				return ((SQLException) cause).getSQLState();
+			}
+		}
+		return null;
+	}
+
+	private static int[] parseMix(String mix) {
+		String[] parts = mix.split(":");
+		if (parts.length != 3) {
+			throw new IllegalArgumentException("load.mix must be sell:restock:create, but was " + mix);
+		}
+		int[] weights = new int[3];
+		for (int i = 0; i < 3; i++) {
+			weights[i] = Integer.parseInt(parts[i].trim());
+		}
+		return weights;
+	}
+
+	private static String trim(double percent) {
+		return percent == Math.rint(percent) ? String.valueOf((long) percent) : String.valueOf(percent);
+	}
+
+	private static Item01 newItem(String title) {
+		Item01 item = new Item01();
+		item.setTitle(title);
+		item.setPrice(12.5F);
+		item.setDescription("LoadGenerator");
+		return item;
+	}
+}
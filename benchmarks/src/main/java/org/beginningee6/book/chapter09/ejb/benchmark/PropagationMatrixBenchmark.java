@@ -0,0 +1,130 @@
+package org.beginningee6.book.chapter09.ejb.benchmark;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.beginningee6.book.chapter09.ejb.ex02.callee.REQUIRED_CalleeEJB;
+import org.beginningee6.book.chapter09.ejb.ex02.caller.REQUIRED_CallerEJB;
+import org.beginningee6.book.chapter09.ejb.ex02.caller.SUPPORTS_CallerEJB;
+import org.beginningee6.book.chapter09.jpa.ex02.Book02;
+import org.beginningee6.book.chapter09.jpa.ex02.CD02;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.RunnerException;
+
+/**
+ * ex02の呼び出し元EJB（REQUIRED_CallerEJB、SUPPORTS_CallerEJB）から
+ * 各トランザクション属性の呼び出し先EJBを呼び出す
+ * 「*_CalleePersist_*_CallerPersist」メソッドのコストを計測する。
+ *
+ * JMHのThroughputとSampleTime（p50、p99などのパーセンタイル）に加え、
+ * CountingDriverで数えた以下の値を補助カウンタとして出力する。
+ * 呼び出し１回あたりの値は、各カウンタをinvocationsで割って求める。
+ *
+ * ・connections：SQL文を発行した物理接続の数
+ * ・commits：物理接続でのコミットの回数
+ * ・rollbacks：物理接続でのロールバックの回数
+ *
+ * REQUIRES_NEWやNOT_SUPPORTEDでは、呼び出し元のトランザクションを保留
+ * している間に別の接続が使われるため、connectionsやcommitsが増える。
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PropagationMatrixBenchmark {
+
+	@Param({ "REQUIRED", "REQUIRES_NEW", "SUPPORTS", "MANDATORY", "NOT_SUPPORTED", "NEVER" })
+	public String callee;
+
+	@Param({ "REQUIRED", "SUPPORTS" })
+	public String caller;
+
+	private EmbeddedContainer container;
+
+	private Object callerEJB;
+
+	private Method method;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		Properties overrides = new Properties();
+		overrides.setProperty("Chapter09DS.JdbcDriver", CountingDriver.class.getName());
+		overrides.setProperty("Chapter09DS.JdbcUrl", "jdbc:counting:derby:memory:ex02;create=true");
+		container = EmbeddedContainer.start("ex02", overrides, REQUIRED_CallerEJB.class, REQUIRED_CalleeEJB.class);
+
+		Class<?> callerClass = caller.equals("REQUIRED") ? REQUIRED_CallerEJB.class : SUPPORTS_CallerEJB.class;
+		callerEJB = container.lookup(callerClass);
+		method = callerClass.getMethod(callee + "_CalleePersist_" + caller + "_CallerPersist", Book02.class, CD02.class);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		container.close();
+	}
+
+	/**
+	 * 呼び出し１回あたりの物理接続数とコミット回数を求めるための補助カウンタ。
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class JdbcCounters {
+		public long invocations;
+		public long connections;
+		public long commits;
+		public long rollbacks;
+		public long failures;
+	}
+
+	@Benchmark
+	public void invoke(JdbcCounters counters) throws Exception {
+		CountingDriver.reset();
+		try {
+			method.invoke(callerEJB, newBook(), newCD());
+		} catch (InvocationTargetException e) {
+			// REQUIREDの呼び出し元からNEVERの呼び出し先を呼び出した場合などは
+			// 例外がスローされるが、その場合のコストも計測対象とする
+			counters.failures++;
+		}
+		counters.invocations++;
+		counters.connections += CountingDriver.connections();
+		counters.commits += CountingDriver.commits();
+		counters.rollbacks += CountingDriver.rollbacks();
+	}
+
+	private static Book02 newBook() {
+		Book02 book = new Book02();
+		book.setTitle("The Hitchhiker's Guide to the Galaxy");
+		book.setPrice(12.5F);
+		book.setDescription("Science fiction comedy book");
+		book.setIsbn("1-84023-742-2");
+		book.setNbOfPage(354);
+		book.setIllustrations(false);
+		return book;
+	}
+
+	private static CD02 newCD() {
+		return new CD02("Title 1", 10.0F, "Title 1 Description", null, "Music Company 1", 1, 100.0F, "male");
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 1;
+		BenchmarkRunner.run("propagation-matrix", PropagationMatrixBenchmark.class.getSimpleName(), threads);
+	}
+}
@@ -0,0 +1,119 @@
+package org.beginningee6.book.chapter09.ejb.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.beginningee6.book.chapter09.ejb.stock.SaleOutcome;
+import org.beginningee6.book.chapter09.ejb.stock.SellLockStrategy;
+import org.beginningee6.book.chapter09.jpa.ex01.Item01;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * 在庫数量が１のItem01エンティティの在庫引き当て（最後のひとつのため
+ * 引き当てられない）について、例外で通知しトランザクションをロールバック
+ * するsellOneItem()と、SaleOutcomeで通知するtrySellOneItem()の
+ * スループットとレイテンシを比較する。
+ *
+ * 在庫数量はいずれの場合も１のまま変わらないため、同じItem01
+ * エンティティで繰り返し計測できる。ロック方式はいずれもNONEとし、
+ * sellOneItem(Item01)が行うキャッシュによる事前チェックは含めない。
+ *
+ * 割り当て量を比較するには、-prof gcを指定して実行する。
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SaleOutcomeBenchmark {
+
+	@State(Scope.Benchmark)
+	public static class Ex03 {
+		EmbeddedContainer container;
+		org.beginningee6.book.chapter09.ejb.ex03.ItemEJB itemEJB;
+		Item01 lastUnitItem;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			container = EmbeddedContainer.start("ex03-outcome",
+					org.beginningee6.book.chapter09.ejb.ex03.ItemEJB.class);
+			itemEJB = container.lookup(org.beginningee6.book.chapter09.ejb.ex03.ItemEJB.class);
+			// 在庫数量は１
+			lastUnitItem = itemEJB.createItem(newItem());
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			container.close();
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class Ex05 {
+		EmbeddedContainer container;
+		org.beginningee6.book.chapter09.ejb.ex05.ItemEJB itemEJB;
+		Item01 lastUnitItem;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Exception {
+			container = EmbeddedContainer.start("ex05-outcome",
+					org.beginningee6.book.chapter09.ejb.ex05.ItemEJB.class);
+			itemEJB = container.lookup(org.beginningee6.book.chapter09.ejb.ex05.ItemEJB.class);
+			// 在庫数量は１
+			lastUnitItem = itemEJB.createItem(newItem());
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			container.close();
+		}
+	}
+
+	@Benchmark
+	public void ex03Exception(Ex03 s, Blackhole bh) {
+		try {
+			bh.consume(s.itemEJB.sellOneItem(s.lastUnitItem, SellLockStrategy.NONE));
+		} catch (Exception e) {
+			bh.consume(e);
+		}
+	}
+
+	@Benchmark
+	public SaleOutcome ex03Outcome(Ex03 s) {
+		return s.itemEJB.trySellOneItem(s.lastUnitItem, SellLockStrategy.NONE);
+	}
+
+	@Benchmark
+	public void ex05Exception(Ex05 s, Blackhole bh) {
+		try {
+			// ex05のsellOneItem()は例外を内部で捕捉してロールバックする
+			bh.consume(s.itemEJB.sellOneItem(s.lastUnitItem, SellLockStrategy.NONE));
+		} catch (Exception e) {
+			bh.consume(e);
+		}
+	}
+
+	@Benchmark
+	public SaleOutcome ex05Outcome(Ex05 s) {
+		return s.itemEJB.trySellOneItem(s.lastUnitItem, SellLockStrategy.NONE);
+	}
+
+	private static Item01 newItem() {
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("SaleOutcomeBenchmark");
+		return item;
+	}
+}
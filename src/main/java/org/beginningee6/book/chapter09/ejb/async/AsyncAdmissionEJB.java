@@ -0,0 +1,135 @@
+package org.beginningee6.book.chapter09.ejb.async;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * ＠Asynchronousメソッドの呼び出しを受け付ける数を制限し、待ち行列の
+ * 長さや受け付けを断った回数などを記録するシングルトン・セッションBean。
+ *
+ * ＠Asynchronousメソッドは、EJBコンテナのスレッドプールで実行される。
+ * JBoss AS 7では、standalone.xmlのejb3サブシステムの
+ * ＜async thread-pool-name="..."/＞で指定したスレッドプール（既定は
+ * "default"）が使用されるが、その待ち行列は上限を持たない。
+ * このBeanで受け付ける数を制限することで、実行を待つ呼び出しが
+ * 際限なく積み上がることを防ぐ。
+ *
+ * 受け付ける数の上限は、環境エントリasync.maxPendingで変更できる。
+ */
+@Singleton
+// カウンタはアトミック変数で更新するため、コンテナによる排他制御は行わない
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+public class AsyncAdmissionEJB {
+
+	@Resource(name = "async.maxPending")
+	private int maxPending = 64;
+
+	// 受け付けたが、完了していない呼び出しの数
+	private final AtomicInteger pending = new AtomicInteger();
+
+	// 受け付けたが、実行が始まっていない呼び出しの数（待ち行列の長さ）
+	private final AtomicInteger queued = new AtomicInteger();
+
+	private final AtomicInteger peakQueued = new AtomicInteger();
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong queueWaitNanos = new AtomicLong();
+
+	/**
+	 * 呼び出しを受け付ける。
+	 *
+	 * @return 受け付けた時刻（System.nanoTime()）。started()に渡す
+	 * @throws RejectedExecutionException 受け付けた呼び出しの数が上限に達している場合
+	 */
+	public long admit() {
+		for (;;) {
+			int current = pending.get();
+			if (current >= maxPending) {
+				rejected.incrementAndGet();
+				throw new RejectedExecutionException(
+						"Too many pending asynchronous calls: " + current + " (max " + maxPending + ")");
+			}
+			if (pending.compareAndSet(current, current + 1)) {
+				break;
+			}
+		}
+		admitted.incrementAndGet();
+
+		int depth = queued.incrementAndGet();
+		for (;;) {
+			int peak = peakQueued.get();
+			if (depth <= peak || peakQueued.compareAndSet(peak, depth)) {
+				break;
+			}
+		}
+		return System.nanoTime();
+	}
+
+	/**
+	 * 受け付けた呼び出しの実行が始まったことを記録する。
+	 *
+	 * @param admittedAt admit()が返した時刻
+	 */
+	public void started(long admittedAt) {
+		queued.decrementAndGet();
+		queueWaitNanos.addAndGet(System.nanoTime() - admittedAt);
+	}
+
+	/**
+	 * 受け付けた呼び出しが完了したことを記録する。
+	 *
+	 * @param succeeded 正常に完了した場合はtrue
+	 */
+	public void finished(boolean succeeded) {
+		pending.decrementAndGet();
+		if (succeeded) {
+			completed.incrementAndGet();
+		} else {
+			failed.incrementAndGet();
+		}
+	}
+
+	public int getPending() {
+		return pending.get();
+	}
+
+	public int getQueueDepth() {
+		return queued.get();
+	}
+
+	public int getPeakQueueDepth() {
+		return peakQueued.get();
+	}
+
+	public long getAdmitted() {
+		return admitted.get();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	public long getCompleted() {
+		return completed.get();
+	}
+
+	public long getFailed() {
+		return failed.get();
+	}
+
+	public long getQueueWaitNanos() {
+		return queueWaitNanos.get();
+	}
+}
@@ -0,0 +1,51 @@
+package org.beginningee6.book.chapter09.ejb.ex01;
+
+import java.io.Serializable;
+
+/**
+ * ItemEJB.createItems()で、ひとつのトランザクション（チャンク）で
+ * 永続化したItem01エンティティの件数と所要時間。
+ */
+public final class ChunkResult implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final int index;
+
+	private final int itemCount;
+
+	private final long elapsedNanos;
+
+	public ChunkResult(int index, int itemCount, long elapsedNanos) {
+		this.index = index;
+		this.itemCount = itemCount;
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * ０から始まるチャンクの番号を返す。
+	 */
+	public int getIndex() {
+		return index;
+	}
+
+	/**
+	 * チャンクで永続化したItem01エンティティの件数を返す。
+	 */
+	public int getItemCount() {
+		return itemCount;
+	}
+
+	/**
+	 * チャンクの永続化からコミットまでの所要時間（ナノ秒）を返す。
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "ChunkResult[index=" + index + ", itemCount=" + itemCount
+				+ ", elapsedMillis=" + (elapsedNanos / 1000000L) + "]";
+	}
+}
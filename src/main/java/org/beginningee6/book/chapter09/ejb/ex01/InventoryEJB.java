@@ -1,9 +1,16 @@
 package org.beginningee6.book.chapter09.ejb.ex01;
 
 import javax.annotation.Resource;
+import javax.ejb.EJB;
 import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
+import javax.interceptor.Interceptors;
 
+import org.beginningee6.book.chapter09.ejb.journal.StockJournalEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.stock.RestockWriteBehindEJB;
+import org.beginningee6.book.chapter09.ejb.stock.StockLevelCacheEJB;
+import org.beginningee6.book.chapter09.ejb.stock.event.EventSourcedStockEJB;
 import org.beginningee6.book.chapter09.jpa.ex01.Item01;
 
 /**
@@ -22,23 +29,68 @@ import org.beginningee6.book.chapter09.jpa.ex01.Item01;
  *
  */
 @Stateless
+@Interceptors(LatencyInterceptor.class)
 public class InventoryEJB {
 
 	// トランザクションをロールバックにマークするために
 	// Session Contextを注入
 	@Resource
 	private SessionContext ctx;
+
+	// 在庫数量の増分をまとめてデータベースへ反映するEJBへの参照を注入
+	@EJB
+	private RestockWriteBehindEJB restockWriteBehind;
+
+	// 入庫をライトビハインドで反映するかどうか
+	@Resource(name = "restock.writeBehind")
+	private boolean writeBehind = false;
+
+	// コミットされた在庫数量の更新をキャッシュへ反映するために注入
+	@EJB
+	private StockLevelCacheEJB stockLevelCache;
+
+	// コミットされた在庫数量の増減を記録するジャーナルへの参照を注入
+	@EJB
+	private StockJournalEJB stockJournal;
+
+	// 在庫数量を増減のイベントで管理するよう指定されている場合に、
+	// 入庫のイベントを追加するために注入
+	@EJB
+	private EventSourcedStockEJB eventSourcedStock;
 	
 	/**
 	 * 永続化されたItem01エンティティの在庫数量をひとつ増やす。
 	 * 
+	 * 環境エントリrestock.writeBehindにtrueを指定した場合は、Item01
+	 * エンティティを更新せずに、増分をRestockWriteBehindEJBに記録する。
+	 * 増分は、トランザクションのコミット後にまとめてデータベースへ反映
+	 * されるため、引数のItem01エンティティの在庫数量は変わらない。
+	 * 
+	 * Item01エンティティを更新した場合は、コミットされた時点でキャッシュした
+	 * 在庫数量を破棄する（ライトビハインドの場合は、反映がコミットされた
+	 * 時点で破棄される）。
+	 * 
+	 * EventSourcedStockEJBの環境エントリinventory.eventSourcedにtrueを
+	 * 指定した場合は、ライトビハインドの指定に関係なく、Item01エンティティを
+	 * 更新せずに入庫のイベントを追加する。
+	 * 
+	 * いずれの場合も、増分はコミットされた時点でジャーナルに記録する。
+	 * 
 	 * @param item 永続化されたItem01エンティティ
 	 */
 	// ＠TransactionAttributeアノテーションを付与しない場合、
 	// デフォルトのREQUIREDが設定される
 //	@TransactionAttribute(TransactionAttributeType.REQUIRED)
 	public void addItem(Item01 item) {
-		item.increaseAvailableStock();
+		if (eventSourcedStock.isEnabled()) {
+			eventSourcedStock.add(item.getId(), 1);
+		} else if (writeBehind) {
+			restockWriteBehind.add(item.getId(), 1);
+		} else {
+			item.increaseAvailableStock();
+			stockLevelCache.invalidateOnCommit(item.getId());
+		}
+		stockJournal.recordOnCommit(item.getId(), 1);
 	}
 	
 	/**
@@ -1,10 +1,26 @@
 package org.beginningee6.book.chapter09.ejb.ex01;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Resource;
+import javax.ejb.AsyncResult;
+import javax.ejb.Asynchronous;
 import javax.ejb.EJB;
+import javax.ejb.EJBException;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.interceptor.Interceptors;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 
+import org.beginningee6.book.chapter09.ejb.async.AsyncAdmissionEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
 import org.beginningee6.book.chapter09.jpa.ex01.Item01;
 
 /**
@@ -163,6 +179,7 @@ import org.beginningee6.book.chapter09.jpa.ex01.Item01;
  * 
  */
 @Stateless
+@Interceptors(LatencyInterceptor.class)
 // EJBコンテナがEJBメソッド実行時のトランザクション制御を行うように設定
 // ＠TransactionManagementアノテーションを付与しない場合は、コンテナ管理
 // トランザクションがデフォルトとなる
@@ -180,6 +197,19 @@ public class ItemEJB {
 	@EJB
 	private InventoryEJB inventoryEJB;
 
+	// 非同期メソッドの呼び出しを受け付ける数を制限するEJBへの参照を注入
+	@EJB
+	private AsyncAdmissionEJB asyncAdmission;
+
+	// 再送されたリクエストを判別するEJBへの参照を注入
+	@EJB
+	private ItemRequestDedupeEJB requestDedupe;
+
+	// 非同期メソッドを呼び出すために、自身のビジネスオブジェクトを
+	// 取得するSession Contextを注入
+	@Resource
+	private SessionContext ctx;
+
 	/**
 	 * ２つのEJBメソッドから行ったデータベース更新をともにコミットする例。
 	 * 
@@ -208,6 +238,29 @@ public class ItemEJB {
         
         // メソッド完了時に自動的にコミット
     }
+
+	/**
+	 * クライアントが再送したリクエストでItem01エンティティが重複して
+	 * 永続化されないようにcreateItem()を実行する。
+	 * 
+	 * 同じリクエストIDで既にコミットされている場合は、データベースに
+	 * アクセスせずに最初の結果を返す。最初のリクエストが処理中の場合は、
+	 * その完了を待つ。ロールバックされたリクエストは記録されないため、
+	 * 同じリクエストIDで再実行できる。
+	 * 
+	 * @param requestId クライアントが再送しても変わらないリクエストID
+	 * @param item 永続化と更新を行うItem01エンティティ
+	 * @return 永続化と更新が行われたItem01エンティティ
+	 * 	（再送の場合は最初のリクエストの結果）
+	 */
+    public Item01 createItem(String requestId, Item01 item) {
+    	// リクエストIDはこのトランザクションがコミットされた時点で記録される
+    	Item01 committed = requestDedupe.claim(requestId, item);
+    	if (committed != null) {
+    		return committed;
+    	}
+    	return createItem(item);
+    }
     
     /**
 	 * ２つのEJBメソッドから行ったデータベース更新をともにロールバックする例。
@@ -236,4 +289,136 @@ public class ItemEJB {
     	
         // メソッド完了時に自動的にロールバック
     }
+
+    /**
+     * Item01エンティティを非同期に永続化する。
+     * 
+     * AsyncAdmissionEJBで受け付けた上で、createItemInBackground()を
+     * ＠Asynchronousメソッドとして呼び出し、その完了を待たずに戻る。
+     * 呼び出し元のスレッドは、永続化の完了を待つ間ブロックされない。
+     * 
+     * @param item 永続化するItem01エンティティ
+     * @return 永続化されたItem01エンティティを返すFuture
+     * @throws RejectedExecutionException 実行を待つ呼び出しの数が上限に達している場合
+     */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public Future<Item01> createItemAsync(Item01 item) {
+    	long admittedAt = asyncAdmission.admit();
+    	try {
+    		// ＠Asynchronousメソッドは、EJBへの参照を経由して呼び出した場合に
+    		// だけ非同期に実行されるため、自身のビジネスオブジェクトを使用する
+    		return ctx.getBusinessObject(ItemEJB.class).createItemInBackground(item, admittedAt);
+    	} catch (RuntimeException e) {
+    		asyncAdmission.started(admittedAt);
+    		asyncAdmission.finished(false);
+    		throw e;
+    	}
+    }
+
+    /**
+     * createItemAsync()から非同期に呼び出され、Item01エンティティを永続化する。
+     * 
+     * このメソッド自体はトランザクションを開始せず、createItem()を
+     * EJBへの参照を経由して呼び出す。createItem()のトランザクション属性
+     * （REQUIRED）により、永続化と在庫数量の更新はひとつのトランザクション
+     * で行われ、このメソッドが戻る前にコミットされる。
+     * 
+     * 受け付けの数を制限するため、直接呼び出さずにcreateItemAsync()を使用すること。
+     * 
+     * @param item 永続化するItem01エンティティ
+     * @param admittedAt AsyncAdmissionEJB.admit()が返した時刻
+     * @return 永続化されたItem01エンティティを返すFuture
+     */
+    @Asynchronous
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public Future<Item01> createItemInBackground(Item01 item, long admittedAt) {
+    	asyncAdmission.started(admittedAt);
+    	boolean succeeded = false;
+    	try {
+    		Item01 created = ctx.getBusinessObject(ItemEJB.class).createItem(item);
+    		succeeded = true;
+    		return new AsyncResult<Item01>(created);
+    	} finally {
+    		asyncAdmission.finished(succeeded);
+    	}
+    }
+
+    /**
+     * 大量のItem01エンティティを、chunkSize件ずつ別々のトランザクションで
+     * 永続化する。
+     * 
+     * 全件をひとつのトランザクションで永続化すると、永続化したすべての
+     * Item01エンティティが永続コンテキストに管理されたまま残り、件数に
+     * 比例してヒープを消費する。このメソッドでは、チャンクごとに
+     * createChunk()を新しいトランザクションで呼び出し、フラッシュした後に
+     * 永続コンテキストをクリアしてコミットするため、同時に管理される
+     * Item01エンティティは最大でchunkSize件となる。
+     * 
+     * 引数のIteratorからは必要な分だけ読み出すため、Iteratorが
+     * Item01エンティティを逐次生成するものであれば、入力の件数に
+     * かかわらずヒープの使用量は一定となる。
+     * 
+     * いずれかのチャンクが失敗した場合、そのチャンクはロールバックされるが、
+     * それまでにコミットしたチャンクは取り消されない。
+     * 
+     * @param items 永続化するItem01エンティティ
+     * @param chunkSize ひとつのトランザクションで永続化する件数
+     * @return チャンクごとの件数と所要時間
+     * @throws EJBException いずれかのチャンクが失敗した場合（コミット済みの件数を
+     *         メッセージに含む）
+     */
+	// このメソッド自体はトランザクションを開始しない
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public List<ChunkResult> createItems(Iterator<Item01> items, int chunkSize) {
+    	if (chunkSize <= 0) {
+    		throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+    	}
+
+    	ItemEJB self = ctx.getBusinessObject(ItemEJB.class);
+    	List<ChunkResult> results = new ArrayList<ChunkResult>();
+    	List<Item01> chunk = new ArrayList<Item01>(chunkSize);
+    	int committed = 0;
+
+    	while (items.hasNext()) {
+    		chunk.clear();
+    		while (chunk.size() < chunkSize && items.hasNext()) {
+    			chunk.add(items.next());
+    		}
+
+    		long start = System.nanoTime();
+    		try {
+    			self.createChunk(chunk);
+    		} catch (RuntimeException e) {
+    			throw new EJBException("Chunk " + results.size() + " failed; "
+    					+ committed + " items in " + results.size() + " chunks were committed", e);
+    		}
+    		results.add(new ChunkResult(results.size(), chunk.size(), System.nanoTime() - start));
+    		committed += chunk.size();
+    	}
+    	return results;
+    }
+
+    /**
+     * createItems()から呼び出され、ひとつのチャンクのItem01エンティティを
+     * 新しいトランザクションで永続化する。
+     * 
+     * createItem()と同様に、InventoryEJB.addItem()で在庫数量をひとつ
+     * 増やす。すべてのItem01エンティティをフラッシュした後、永続コンテキスト
+     * をクリアするため、引数のItem01エンティティはこのメソッドが戻った時点で
+     * 管理されていない。
+     * 
+     * @param chunk 永続化するItem01エンティティ
+     */
+	// チャンクごとに新しいトランザクションを開始し、メソッド完了時にコミットする
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+    public void createChunk(List<Item01> chunk) {
+    	for (Item01 item : chunk) {
+    		em.persist(item);
+    		inventoryEJB.addItem(item);
+    	}
+
+    	// チャンクの更新をデータベースに反映し、永続コンテキストを空にする
+    	em.flush();
+    	em.clear();
+    }
 }
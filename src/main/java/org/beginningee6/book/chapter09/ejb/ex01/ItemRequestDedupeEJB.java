@@ -0,0 +1,246 @@
+package org.beginningee6.book.chapter09.ejb.ex01;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.ConcurrentAccessTimeoutException;
+import javax.ejb.EJBException;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.beginningee6.book.chapter09.jpa.ex01.Item01;
+
+/**
+ * ItemEJB.createItem(String, Item01)のリクエストIDごとに、コミットされた
+ * 結果を保持するシングルトン・セッションBean。
+ *
+ * タイムアウトなどでクライアントが同じリクエストを再送した場合に、
+ * 最初にコミットされた結果を返し、Item01エンティティが重複して
+ * 永続化されることを防ぐ。
+ *
+ * リクエストIDは、最初に受け付けたトランザクションがコミットされた
+ * 時点で記録する。そのトランザクションが完了するまでの間に同じ
+ * リクエストIDで呼び出された場合は、完了を待ってから結果を返す。
+ * ロールバックされた場合は記録しないため、同じリクエストIDで
+ * 再実行できる。
+ *
+ * 以下の環境エントリで変更できる。
+ *
+ * ・dedupe.maxEntries：保持するリクエストIDの数の上限（古いものから破棄する）
+ * ・dedupe.ttlMillis：リクエストIDを保持する時間
+ * ・dedupe.waitMillis：処理中の同じリクエストの完了を待つ時間
+ */
+@Singleton
+// エントリはConcurrentHashMapとエントリごとのロックで保護するため、
+// コンテナによる排他制御は行わない
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class ItemRequestDedupeEJB {
+
+	// トランザクション完了時の処理を登録するために注入
+	@Resource
+	private TransactionSynchronizationRegistry txSyncRegistry;
+
+	@Resource(name = "dedupe.maxEntries")
+	private int maxEntries = 10000;
+
+	@Resource(name = "dedupe.ttlMillis")
+	private long ttlMillis = 600000L;
+
+	@Resource(name = "dedupe.waitMillis")
+	private long waitMillis = 5000L;
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	// コミットされた順のエントリ（古いものから破棄するため）
+	private final Queue<Entry> committedOrder = new ConcurrentLinkedQueue<Entry>();
+
+	private final AtomicLong claims = new AtomicLong();
+	private final AtomicLong duplicates = new AtomicLong();
+	private final AtomicLong waits = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * リクエストIDの処理を呼び出し元のトランザクションで引き受ける。
+	 *
+	 * 同じリクエストIDの結果が既にコミットされている場合はその結果を返す。
+	 * 他のトランザクションが処理中の場合は、その完了を待つ。
+	 *
+	 * nullを返した場合、呼び出し元はitemを永続化すること。呼び出し元の
+	 * トランザクションがコミットされた時点で、itemがこのリクエストIDの
+	 * 結果として記録される。
+	 *
+	 * @param requestId リクエストID
+	 * @param item 引き受けた場合に永続化するItem01エンティティ
+	 * @return コミット済みの結果。引き受けた場合はnull
+	 * @throws ConcurrentAccessTimeoutException 処理中の同じリクエストが
+	 * 	dedupe.waitMillis以内に完了しなかった場合
+	 */
+	// 引き受けたリクエストをトランザクションの完了時に記録するため、
+	// 呼び出し元のトランザクションの中でだけ実行できる
+	@TransactionAttribute(TransactionAttributeType.MANDATORY)
+	public Item01 claim(String requestId, Item01 item) {
+		long deadline = System.currentTimeMillis() + waitMillis;
+		for (;;) {
+			Entry entry = entries.get(requestId);
+			if (entry == null) {
+				Entry claimed = new Entry(requestId, item, txSyncRegistry.getTransactionKey());
+				if (entries.putIfAbsent(requestId, claimed) != null) {
+					continue;
+				}
+				try {
+					recordOnCommit(claimed);
+				} catch (IllegalStateException e) {
+					// 既にロールバックにマークされている
+					entries.remove(requestId, claimed);
+					claimed.abandon();
+					throw e;
+				}
+				claims.incrementAndGet();
+				return null;
+			}
+
+			if (entry.isPending()) {
+				// 同じトランザクションの中で再度呼び出された場合は、
+				// 待たずに処理中のItem01エンティティを返す
+				if (entry.transactionKey.equals(txSyncRegistry.getTransactionKey())) {
+					duplicates.incrementAndGet();
+					return entry.item;
+				}
+				waits.incrementAndGet();
+			}
+			Item01 committed = entry.await(deadline);
+			if (committed != null && !entry.isExpired(System.currentTimeMillis(), ttlMillis)) {
+				duplicates.incrementAndGet();
+				return committed;
+			}
+
+			// ロールバックされたか、保持する時間を過ぎたため、引き受け直す
+			entries.remove(requestId, entry);
+		}
+	}
+
+	public long getClaims() {
+		return claims.get();
+	}
+
+	/**
+	 * コミット済みの結果を返した回数。
+	 */
+	public long getDuplicates() {
+		return duplicates.get();
+	}
+
+	/**
+	 * 処理中の同じリクエストの完了を待った回数。
+	 */
+	public long getWaits() {
+		return waits.get();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public int getSize() {
+		return entries.size();
+	}
+
+	private void recordOnCommit(final Entry entry) {
+		txSyncRegistry.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) {
+					entry.commit(System.currentTimeMillis());
+					committedOrder.add(entry);
+					evict();
+				} else {
+					entries.remove(entry.requestId, entry);
+					entry.abandon();
+				}
+			}
+		});
+	}
+
+	// 上限を超えた分と、保持する時間を過ぎたものを古い順に破棄する
+	private void evict() {
+		long now = System.currentTimeMillis();
+		for (;;) {
+			Entry oldest = committedOrder.peek();
+			if (oldest == null
+					|| (entries.size() <= maxEntries && !oldest.isExpired(now, ttlMillis))) {
+				return;
+			}
+			Entry polled = committedOrder.poll();
+			if (polled != null && entries.remove(polled.requestId, polled)) {
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private static class Entry {
+		private static final int PENDING = 0;
+		private static final int COMMITTED = 1;
+		private static final int ABANDONED = 2;
+
+		final String requestId;
+		final Item01 item;
+		final Object transactionKey;
+		private int state = PENDING;
+		private long committedAt;
+
+		Entry(String requestId, Item01 item, Object transactionKey) {
+			this.requestId = requestId;
+			this.item = item;
+			this.transactionKey = transactionKey;
+		}
+
+		synchronized boolean isPending() {
+			return state == PENDING;
+		}
+
+		synchronized boolean isExpired(long now, long ttlMillis) {
+			return state == COMMITTED && now - committedAt >= ttlMillis;
+		}
+
+		synchronized void commit(long now) {
+			state = COMMITTED;
+			committedAt = now;
+			notifyAll();
+		}
+
+		synchronized void abandon() {
+			state = ABANDONED;
+			notifyAll();
+		}
+
+		// コミットされた場合は結果を、ロールバックされた場合はnullを返す
+		synchronized Item01 await(long deadline) {
+			while (state == PENDING) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					throw new ConcurrentAccessTimeoutException(
+							"Request " + requestId + " is still in progress");
+				}
+				try {
+					wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new EJBException(e);
+				}
+			}
+			return state == COMMITTED ? item : null;
+		}
+	}
+}
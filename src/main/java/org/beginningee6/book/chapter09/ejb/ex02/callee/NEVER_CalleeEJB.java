@@ -4,10 +4,13 @@ import javax.ejb.Stateless;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
 import javax.inject.Inject;
+import javax.interceptor.Interceptors;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.transaction.UserTransaction;
 
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.monitor.TransactionTraceInterceptor;
 import org.beginningee6.book.chapter09.jpa.ex02.CD02;
 
 /**
@@ -32,6 +35,7 @@ import org.beginningee6.book.chapter09.jpa.ex02.CD02;
  * ロールバックする効果を持つ非チェック例外をスローするメソッドの2つを用意している。
  */
 @Stateless
+@Interceptors({ LatencyInterceptor.class, TransactionTraceInterceptor.class })
 public class NEVER_CalleeEJB {
 	@PersistenceContext(unitName = "Chapter09ProductionPU")
 	private EntityManager em;
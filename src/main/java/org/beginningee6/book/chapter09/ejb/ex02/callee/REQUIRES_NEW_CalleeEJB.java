@@ -5,9 +5,12 @@ import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
+import javax.interceptor.Interceptors;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.monitor.TransactionTraceInterceptor;
 import org.beginningee6.book.chapter09.jpa.ex02.CD02;
 
 /**
@@ -39,6 +42,7 @@ import org.beginningee6.book.chapter09.jpa.ex02.CD02;
  * ロールバックにマークするメソッドの2つを用意している。
  */
 @Stateless
+@Interceptors({ LatencyInterceptor.class, TransactionTraceInterceptor.class })
 public class REQUIRES_NEW_CalleeEJB {
 	@PersistenceContext(unitName = "Chapter09ProductionPU")
 	private EntityManager em;
@@ -1,11 +1,14 @@
 package org.beginningee6.book.chapter09.ejb.ex02.caller;
 
+import java.util.List;
+
 import javax.annotation.Resource;
 import javax.ejb.EJB;
 import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
+import javax.interceptor.Interceptors;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 
@@ -15,6 +18,8 @@ import org.beginningee6.book.chapter09.ejb.ex02.callee.NOT_SUPPORTED_CalleeEJB;
 import org.beginningee6.book.chapter09.ejb.ex02.callee.REQUIRED_CalleeEJB;
 import org.beginningee6.book.chapter09.ejb.ex02.callee.REQUIRES_NEW_CalleeEJB;
 import org.beginningee6.book.chapter09.ejb.ex02.callee.SUPPORTS_CalleeEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.monitor.TransactionTraceInterceptor;
 import org.beginningee6.book.chapter09.jpa.ex02.Book02;
 import org.beginningee6.book.chapter09.jpa.ex02.CD02;
 
@@ -50,10 +55,20 @@ import org.beginningee6.book.chapter09.jpa.ex02.CD02;
  *
  */
 @Stateless
+@Interceptors({ LatencyInterceptor.class, TransactionTraceInterceptor.class })
 public class REQUIRED_CallerEJB {
+	// Chapter09BatchPUにhibernate.jdbc.batch_sizeが指定されていない場合の
+	// バッチサイズ
+	private static final int DEFAULT_JDBC_BATCH_SIZE = 50;
+
 	@PersistenceContext(unitName = "Chapter09ProductionPU")
 	private EntityManager em;
 
+	// JDBCのバッチ更新を有効にした永続化ユニット
+	// （persistAll()でのみ使用する）
+	@PersistenceContext(unitName = "Chapter09BatchPU")
+	private EntityManager batchEm;
+
 	// 呼び出し先のEJBへの参照を注入
 	// トランザクション属性がREQUIREDのメソッドが定義されている
 	@EJB
@@ -513,4 +528,65 @@ public class REQUIRED_CallerEJB {
 		// 従って、Book02エンティティの永続化は処理されないはずである。
 		em.persist(book);
 	}
+
+	/**
+	 * ==========================================================================
+	 * 複数のエンティティの一括永続化
+	 * ==========================================================================
+	 */
+
+	/**
+	 * 複数のBook02エンティティとCD02エンティティを、ひとつのトランザクションで
+	 * まとめて永続化する。
+	 * 
+	 * エンティティごとにINSERT文を発行するのではなく、Chapter09BatchPUの
+	 * hibernate.jdbc.batch_sizeの件数ごとに、同じ種類のエンティティの
+	 * INSERT文をJDBCのバッチ更新でまとめて発行する。
+	 * 
+	 * Book02エンティティ、CD02エンティティの順に、バッチサイズの件数ずつ
+	 * persist()してからフラッシュする。IDはpersist()の時点で割り当てられる
+	 * ため（シーケンスやテーブルによる生成の場合）、フラッシュの前に
+	 * バッチサイズ分のIDがまとめて確保される。フラッシュした後は
+	 * 永続コンテキストをクリアするため、件数が多くても永続コンテキストが
+	 * 大きくなることはない。
+	 * 
+	 * なお、エンティティのIDがIDENTITY列で生成される場合は、INSERT文を
+	 * 実行しなければIDが得られないため、バッチ更新は行われない。
+	 * 
+	 * 【結果】
+	 * すべてのBook02エンティティとCD02エンティティが永続化される
+	 * （単一トランザクションのコミットの結果として）
+	 * 
+	 * @param books 永続化するBook02エンティティ
+	 * @param cds 永続化するCD02エンティティ
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRED)
+	public void persistAll(List<Book02> books, List<CD02> cds) {
+		int batchSize = getJdbcBatchSize();
+
+		// 同じ種類のエンティティのINSERT文がひとつのバッチにまとまるよう、
+		// 種類ごとに永続化する
+		persistInBatches(books, batchSize);
+		persistInBatches(cds, batchSize);
+	}
+
+	private void persistInBatches(List<?> entities, int batchSize) {
+		for (int i = 0; i < entities.size(); i++) {
+			batchEm.persist(entities.get(i));
+			if ((i + 1) % batchSize == 0) {
+				batchEm.flush();
+				batchEm.clear();
+			}
+		}
+		batchEm.flush();
+		batchEm.clear();
+	}
+
+	private int getJdbcBatchSize() {
+		Object batchSize = batchEm.getEntityManagerFactory().getProperties().get("hibernate.jdbc.batch_size");
+		if (batchSize == null) {
+			return DEFAULT_JDBC_BATCH_SIZE;
+		}
+		return Integer.parseInt(batchSize.toString().trim());
+	}
 }
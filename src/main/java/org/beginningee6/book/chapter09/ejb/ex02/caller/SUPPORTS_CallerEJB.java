@@ -5,6 +5,7 @@ import javax.ejb.Stateless;
 import javax.ejb.TransactionAttribute;
 import javax.ejb.TransactionAttributeType;
 import javax.inject.Inject;
+import javax.interceptor.Interceptors;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.transaction.UserTransaction;
@@ -15,6 +16,8 @@ import org.beginningee6.book.chapter09.ejb.ex02.callee.NOT_SUPPORTED_CalleeEJB;
 import org.beginningee6.book.chapter09.ejb.ex02.callee.REQUIRED_CalleeEJB;
 import org.beginningee6.book.chapter09.ejb.ex02.callee.REQUIRES_NEW_CalleeEJB;
 import org.beginningee6.book.chapter09.ejb.ex02.callee.SUPPORTS_CalleeEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.monitor.TransactionTraceInterceptor;
 import org.beginningee6.book.chapter09.jpa.ex02.Book02;
 import org.beginningee6.book.chapter09.jpa.ex02.CD02;
 
@@ -50,6 +53,7 @@ import org.beginningee6.book.chapter09.jpa.ex02.CD02;
  *
  */
 @Stateless
+@Interceptors({ LatencyInterceptor.class, TransactionTraceInterceptor.class })
 public class SUPPORTS_CallerEJB {
 	@PersistenceContext(unitName = "Chapter09ProductionPU")
 	private EntityManager em;
@@ -0,0 +1,31 @@
+package org.beginningee6.book.chapter09.ejb.ex02.reader;
+
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.interceptor.Interceptors;
+
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.jpa.ex02.Book02;
+
+/**
+ * Book02エンティティをIDの昇順にページ単位で読み込むEJB。
+ * （トランザクション属性：SUPPORTS）
+ * 
+ * Book02.findAllBooksと異なり、全件を読み込む場合もメモリの使用量は
+ * ページサイズ分に収まる。
+ */
+@Stateless
+@Interceptors(LatencyInterceptor.class)
+@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+public class Book02ReaderEJB extends KeysetReader<Book02> {
+
+	public Book02ReaderEJB() {
+		super(Book02.class);
+	}
+
+	@Override
+	protected Long idOf(Book02 book) {
+		return book.getId();
+	}
+}
@@ -0,0 +1,31 @@
+package org.beginningee6.book.chapter09.ejb.ex02.reader;
+
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.interceptor.Interceptors;
+
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.jpa.ex02.CD02;
+
+/**
+ * CD02エンティティをIDの昇順にページ単位で読み込むEJB。
+ * （トランザクション属性：SUPPORTS）
+ * 
+ * CD02.findAllCDsと異なり、全件を読み込む場合もメモリの使用量は
+ * ページサイズ分に収まる。
+ */
+@Stateless
+@Interceptors(LatencyInterceptor.class)
+@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+public class CD02ReaderEJB extends KeysetReader<CD02> {
+
+	public CD02ReaderEJB() {
+		super(CD02.class);
+	}
+
+	@Override
+	protected Long idOf(CD02 cd) {
+		return cd.getId();
+	}
+}
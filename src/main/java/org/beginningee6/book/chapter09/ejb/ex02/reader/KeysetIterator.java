@@ -0,0 +1,53 @@
+package org.beginningee6.book.chapter09.ejb.ex02.reader;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * KeysetReader.iterator()が返すイテレータ。
+ *
+ * 現在のページを読み終えた時点で、そのページの最後のIDをキーとして
+ * 次のページをKeysetReader.findPage()で読み込む。保持するのは現在の
+ * ページだけのため、全件を読み込んでもメモリの使用量はページサイズ分に
+ * 収まる。
+ *
+ * findPage()はEJBへの参照を経由して呼び出されるため、ページごとに
+ * 呼び出し元のトランザクション（SUPPORTS）で読み込まれる。
+ */
+class KeysetIterator<T> implements Iterator<T> {
+
+	private final KeysetReader<T> reader;
+
+	private final int pageSize;
+
+	private KeysetPage<T> page;
+
+	private int position;
+
+	KeysetIterator(KeysetReader<T> reader, int pageSize) {
+		this.reader = reader;
+		this.pageSize = pageSize;
+	}
+
+	public boolean hasNext() {
+		while (page == null || position >= page.getEntities().size()) {
+			if (page != null && page.isLast()) {
+				return false;
+			}
+			page = reader.findPage(page == null ? null : page.getLastId(), pageSize);
+			position = 0;
+		}
+		return true;
+	}
+
+	public T next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		return page.getEntities().get(position++);
+	}
+
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,54 @@
+package org.beginningee6.book.chapter09.ejb.ex02.reader;
+
+import java.util.List;
+
+/**
+ * KeysetReader.findPage()で読み込んだ１ページ分のエンティティ。
+ *
+ * 次のページは、getLastId()の値をキーとしてfindPage()を呼び出すことで
+ * 読み込める。OFFSETを使用しないため、後ろのページほど読み込みが
+ * 遅くなることはない。
+ *
+ * @param <T> エンティティの型
+ */
+public class KeysetPage<T> {
+
+	private final List<T> entities;
+
+	private final Long lastId;
+
+	private final boolean last;
+
+	KeysetPage(List<T> entities, Long lastId, boolean last) {
+		this.entities = entities;
+		this.lastId = lastId;
+		this.last = last;
+	}
+
+	/**
+	 * このページのエンティティをIDの昇順で返す。
+	 * 
+	 * エンティティは永続コンテキストから切り離されている。
+	 */
+	public List<T> getEntities() {
+		return entities;
+	}
+
+	/**
+	 * このページの最後のエンティティのIDを返す。
+	 * 
+	 * 空のページの場合は、読み込み時に指定されたIDを返す。
+	 */
+	public Long getLastId() {
+		return lastId;
+	}
+
+	/**
+	 * 最後のページかどうかを返す。
+	 * 
+	 * エンティティの数がページサイズに満たなかった場合にtrueとなる。
+	 */
+	public boolean isLast() {
+		return last;
+	}
+}
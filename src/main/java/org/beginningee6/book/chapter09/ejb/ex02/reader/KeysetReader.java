@@ -0,0 +1,194 @@
+package org.beginningee6.book.chapter09.ejb.ex02.reader;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.Resource;
+import javax.ejb.SessionContext;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceException;
+import javax.persistence.TypedQuery;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.hibernate.Session;
+import org.hibernate.engine.spi.EntityKey;
+
+/**
+ * エンティティをIDの昇順にページ単位で読み込む、読み取り専用の
+ * ステートレス・セッションBeanの基底クラス。
+ *
+ * 名前付きクエリ（Book02.findAllBooksなど）は全件をひとつのListに
+ * 読み込むため、件数に比例してメモリを使用する。また、OFFSETによる
+ * ページングは後ろのページほど読み飛ばす行が増えて遅くなる。
+ * このクラスでは、前のページの最後のIDをキーとして
+ * 
+ * >> SELECT e FROM Book02 e WHERE e.id > :lastId ORDER BY e.id
+ * 
+ * のように次のページを読み込む（キーセット・ページネーション）。
+ * 
+ * 読み込んだエンティティはページごとに永続コンテキストから切り離すため、
+ * 呼び出し元のトランザクションの中で全件を読み込んでも、永続コンテキストが
+ * 大きくなることはない。ただし、呼び出し元のトランザクションで読み込む前から
+ * 管理されていたエンティティは、呼び出し元が変更を続けられるよう切り離さない。
+ * それ以外の返されたエンティティは切り離されているため、変更しても
+ * データベースには反映されない。
+ * 
+ * 【SUPPORTSの特徴】
+ * ・メソッドの呼び出し元でトランザクションを開始している場合は、
+ * 　その呼び出し元のトランザクションで読み込む
+ * ・メソッドの呼び出し元でトランザクションを開始していない場合は、
+ * 　トランザクションが無い状態で読み込む
+ *
+ * @param <T> エンティティの型
+ */
+@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+public abstract class KeysetReader<T> {
+	@PersistenceContext(unitName = "Chapter09ProductionPU")
+	private EntityManager em;
+
+	// 呼び出し元のトランザクションの有無を確認するために注入
+	@Resource
+	private TransactionSynchronizationRegistry txSyncRegistry;
+
+	// iterateAll()が返すイテレータから、このEJBを経由して
+	// 次のページを読み込むために注入
+	@Resource
+	private SessionContext ctx;
+
+	// ページサイズ（１回のSELECT文で読み込む件数）
+	@Resource(name = "reader.pageSize")
+	private int pageSize = 500;
+
+	private final Class<T> entityClass;
+
+	protected KeysetReader(Class<T> entityClass) {
+		this.entityClass = entityClass;
+	}
+
+	/**
+	 * 指定されたIDより大きいIDのエンティティを、IDの昇順に
+	 * 環境エントリreader.pageSizeの件数まで読み込む。
+	 * 
+	 * @param lastId 前のページの最後のID。最初のページを読み込む場合はnull
+	 * @return 読み込んだページ
+	 */
+	public KeysetPage<T> findPage(Long lastId) {
+		return findPage(lastId, pageSize);
+	}
+
+	/**
+	 * 指定されたIDより大きいIDのエンティティを、IDの昇順に
+	 * 指定された件数まで読み込む。
+	 * 
+	 * @param lastId 前のページの最後のID。最初のページを読み込む場合はnull
+	 * @param size ページサイズ
+	 * @return 読み込んだページ
+	 */
+	public KeysetPage<T> findPage(Long lastId, int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("size must be positive: " + size);
+		}
+
+		String entityName = entityClass.getSimpleName();
+		TypedQuery<T> query;
+		if (lastId == null) {
+			query = em.createQuery(
+					"SELECT e FROM " + entityName + " e ORDER BY e.id", entityClass);
+		} else {
+			query = em.createQuery(
+					"SELECT e FROM " + entityName + " e WHERE e.id > :lastId ORDER BY e.id", entityClass)
+					.setParameter("lastId", lastId);
+		}
+		// 呼び出し元のトランザクションの永続コンテキストが既に管理している
+		// エンティティは、呼び出し元が保持しているため切り離さない
+		// （トランザクションが無い場合は、読み込んだものは既に切り離されている）
+		Set<Serializable> managedIds = null;
+		if (txSyncRegistry.getTransactionKey() != null) {
+			managedIds = managedIds();
+		}
+
+		List<T> entities = query
+				.setMaxResults(size)
+				.setHint("org.hibernate.fetchSize", size)
+				.getResultList();
+
+		// 呼び出し元のトランザクションの永続コンテキストに残さない
+		if (managedIds != null) {
+			for (T entity : entities) {
+				if (!managedIds.contains(idOf(entity))) {
+					em.detach(entity);
+				}
+			}
+		}
+
+		Long newLastId = entities.isEmpty() ? lastId : idOf(entities.get(entities.size() - 1));
+		return new KeysetPage<T>(entities, newLastId, entities.size() < size);
+	}
+
+	/**
+	 * すべてのエンティティをIDの昇順に読み込み、１件ずつコールバックに渡す。
+	 * 
+	 * ページごとに読み込むため、メモリの使用量は件数によらず
+	 * ページサイズ分に収まる。
+	 * 
+	 * @param callback エンティティを処理するコールバック
+	 * @return 読み込んだエンティティの件数
+	 */
+	public long forEach(ReadCallback<? super T> callback) {
+		long count = 0;
+		KeysetPage<T> page = null;
+		do {
+			page = findPage(page == null ? null : page.getLastId(), pageSize);
+			for (T entity : page.getEntities()) {
+				callback.read(entity);
+				count++;
+			}
+		} while (!page.isLast());
+		return count;
+	}
+
+	/**
+	 * すべてのエンティティをIDの昇順に返すイテレータを返す。
+	 * 
+	 * イテレータは現在のページを読み終えるたびに、このEJBのfindPage()を
+	 * 呼び出して次のページを読み込む。
+	 * 
+	 * @return イテレータ
+	 */
+	@SuppressWarnings("unchecked")
+	public Iterator<T> iterateAll() {
+		KeysetReader<T> self = ctx.getBusinessObject(getClass());
+		return new KeysetIterator<T>(self, pageSize);
+	}
+
+	// 永続コンテキストが管理しているこのエンティティ・クラスのIDを返す。
+	// 取得できない場合は、どのエンティティも切り離さないようnullを返す
+	private Set<Serializable> managedIds() {
+		Set<?> keys;
+		try {
+			keys = em.unwrap(Session.class).getStatistics().getEntityKeys();
+		} catch (PersistenceException e) {
+			// Hibernate以外のJPAプロバイダ
+			return null;
+		}
+		Set<Serializable> ids = new HashSet<Serializable>();
+		for (Object key : keys) {
+			EntityKey entityKey = (EntityKey) key;
+			if (entityClass.getName().equals(entityKey.getEntityName())) {
+				ids.add(entityKey.getIdentifier());
+			}
+		}
+		return ids;
+	}
+
+	/**
+	 * エンティティのIDを返す。
+	 */
+	protected abstract Long idOf(T entity);
+}
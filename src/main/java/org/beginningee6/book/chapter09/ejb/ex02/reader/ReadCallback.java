@@ -0,0 +1,19 @@
+package org.beginningee6.book.chapter09.ejb.ex02.reader;
+
+/**
+ * KeysetReaderでエンティティを１件ずつ読み込む際に呼び出されるコールバック。
+ *
+ * 渡されるエンティティは、ページの読み込みが終わった時点で永続コンテキスト
+ * から切り離されるため、変更してもデータベースには反映されない。
+ *
+ * @param <T> エンティティの型
+ */
+public interface ReadCallback<T> {
+
+	/**
+	 * 読み込んだエンティティを処理する。
+	 *
+	 * @param entity 読み込んだエンティティ
+	 */
+	void read(T entity);
+}
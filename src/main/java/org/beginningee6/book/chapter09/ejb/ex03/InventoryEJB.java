@@ -1,21 +1,94 @@
 package org.beginningee6.book.chapter09.ejb.ex03;
 
+import javax.annotation.Resource;
+import javax.ejb.EJB;
 import javax.ejb.Stateless;
+import javax.interceptor.Interceptors;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.PersistenceContext;
 
+import org.beginningee6.book.chapter09.ejb.journal.StockJournalEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.stock.HotItemStockLedgerEJB;
+import org.beginningee6.book.chapter09.ejb.stock.RestockWriteBehindEJB;
+import org.beginningee6.book.chapter09.ejb.stock.SaleOutcome;
+import org.beginningee6.book.chapter09.ejb.stock.StockLevelCacheEJB;
+import org.beginningee6.book.chapter09.ejb.stock.bucket.BucketedStockEJB;
+import org.beginningee6.book.chapter09.ejb.stock.event.EventSourcedStockEJB;
 import org.beginningee6.book.chapter09.jpa.ex01.Item01;
+import org.beginningee6.book.chapter09.jpa.ex01.StockAvailabilityException;
 
 /**
  * 在庫数量の管理を行うEJB
  */
 @Stateless
+@Interceptors(LatencyInterceptor.class)
 public class InventoryEJB {
 
+	@PersistenceContext(unitName = "Chapter09ProductionPU")
+	private EntityManager em;
+
+	// アクセスが集中するItem01エンティティの在庫数量をメモリ上で
+	// 管理するEJBへの参照を注入
+	@EJB
+	private HotItemStockLedgerEJB hotItemStockLedger;
+
+	// 在庫数量を複数の行に分割して管理するEJBへの参照を注入
+	@EJB
+	private BucketedStockEJB bucketedStock;
+
+	// 在庫数量の増分をまとめてデータベースへ反映するEJBへの参照を注入
+	@EJB
+	private RestockWriteBehindEJB restockWriteBehind;
+
+	// 入庫をライトビハインドで反映するかどうか
+	@Resource(name = "restock.writeBehind")
+	private boolean writeBehind = false;
+
+	// コミット済みの在庫数量を保持するキャッシュへの参照を注入
+	@EJB
+	private StockLevelCacheEJB stockLevelCache;
+
+	// 在庫数量を増減のイベントの追加だけで管理するEJBへの参照を注入
+	@EJB
+	private EventSourcedStockEJB eventSourcedStock;
+
+	// コミットされた在庫数量の増減を記録するジャーナルへの参照を注入
+	@EJB
+	private StockJournalEJB stockJournal;
+
 	/**
 	 * Item01エンティティの在庫数量をひとつ増やす
+	 * 
+	 * 環境エントリrestock.writeBehindにtrueを指定した場合は、増分を
+	 * RestockWriteBehindEJBに記録し、コミット後にまとめて反映する。
+	 * EventSourcedStockEJBの環境エントリinventory.eventSourcedにtrueを
+	 * 指定した場合は、イベントを追加せずにItem01エンティティの在庫数量を
+	 * 増やす。永続化したばかりのItem01エンティティにはStockSnapshotも
+	 * イベントもまだなく、在庫数量の列がイベントの起点となるためである
+	 * （INSERTする行のため、他のトランザクションと行ロックを競合しない）。
+	 * いずれでもない場合は、Item01エンティティの在庫数量を増やし、
+	 * コミットされた時点でキャッシュした在庫数量を破棄する
+	 * （ライトビハインドの場合は、反映がコミットされた時点で破棄される）。
+	 * 
+	 * いずれの場合も、増分はコミットされた時点でジャーナルに記録する。
+	 * 
+	 * ItemEJB.createItem()から、永続化したItem01エンティティに対して
+	 * 呼び出されることを前提とする。
+	 * 
 	 * @param item 在庫数量を増やすItem01エンティティ
 	 */
 	public void addItem(Item01 item) {
-		item.increaseAvailableStock();
+		if (eventSourcedStock.isEnabled()) {
+			item.increaseAvailableStock();
+		} else if (writeBehind) {
+			restockWriteBehind.add(item.getId(), 1);
+		} else {
+			item.increaseAvailableStock();
+			stockLevelCache.invalidateOnCommit(item.getId());
+		}
+		stockJournal.recordOnCommit(item.getId(), 1);
 	}
 
 	/**
@@ -33,4 +106,339 @@ public class InventoryEJB {
 			throw new InventoryLevelTooLowException();
 		}
 	}
+
+	/**
+	 * 在庫引き当て前のItem01エンティティについて、指定された数量を
+	 * 引き当てられるかどうかをチェックする
+	 * 
+	 * 単品の引き当てと同様に、引き当て後の在庫数量が０以下となる場合は
+	 * 在庫数量が不足しているものとみなす。
+	 * 
+	 * @param item 在庫引き当て前のItem01エンティティ
+	 * @param quantity 引き当てる数量
+	 * @throws InventoryLevelTooLowException 引き当て後の在庫数量が０以下となる場合
+	 */
+	public void checkInventoryLevel(Item01 item, int quantity) throws InventoryLevelTooLowException {
+		int available = item.getAvailableInStock();
+		if (available - quantity <= 0) {
+			// どの明細で在庫数量が不足したかを例外に含めてスローする
+			// 呼び出し元のトランザクションはロールバックにマークされる
+			throw new InventoryLevelTooLowException(item.getId(), quantity, available);
+		}
+	}
+
+	/**
+	 * キャッシュしたコミット済みの在庫数量により、指定された数量を
+	 * 引き当てられるかどうかを事前にチェックする
+	 * 
+	 * データベースの行ロックを取得する前に、在庫数量が不足していることが
+	 * 明らかな引き当てを断るために使用する。キャッシュした在庫数量で
+	 * 引き当てられる場合でも、実際の引き当ては行ロックを取得して
+	 * 読み込んだ在庫数量で判断すること。
+	 * 
+	 * @param itemId 在庫を引き当てるItem01エンティティのID
+	 * @param quantity 引き当てる数量
+	 * @throws InventoryLevelTooLowException 引き当て後の在庫数量が０以下となる場合
+	 */
+	public void checkCachedInventoryLevel(Long itemId, int quantity) throws InventoryLevelTooLowException {
+		Integer available = stockLevelCache.getAvailableInStock(itemId);
+		if (available != null && available - quantity <= 0) {
+			throw new InventoryLevelTooLowException(itemId, quantity, available);
+		}
+	}
+
+	/**
+	 * キャッシュしたコミット済みの在庫数量により、在庫をひとつ引き当て
+	 * られるかどうかを事前にチェックする
+	 * 
+	 * 行ロックを取得して引き当てた場合と同じく、在庫数量が０の場合は
+	 * StockAvailabilityException、１の場合はInventoryLevelTooLowExceptionを
+	 * スローする。
+	 * 
+	 * @param itemId 在庫を引き当てるItem01エンティティのID
+	 * @throws InventoryLevelTooLowException キャッシュした在庫数量が１の場合
+	 * @throws StockAvailabilityException キャッシュした在庫数量が０の場合
+	 */
+	public void checkCachedStockAvailability(Long itemId)
+			throws InventoryLevelTooLowException, StockAvailabilityException {
+		Integer available = stockLevelCache.getAvailableInStock(itemId);
+		if (available == null || available > 1) {
+			return;
+		}
+		if (available == 0) {
+			// Item01エンティティが在庫数量を減らす際にスローするものと同じ例外
+			throw new StockAvailabilityException();
+		}
+		throw new InventoryLevelTooLowException(itemId, 1, available);
+	}
+
+	/**
+	 * 在庫数量を更新したItem01エンティティについて、コミットされた時点で
+	 * キャッシュした在庫数量を破棄する
+	 * 
+	 * @param itemId 在庫数量を更新したItem01エンティティのID
+	 */
+	public void stockChanged(Long itemId) {
+		stockLevelCache.invalidateOnCommit(itemId);
+	}
+
+	/**
+	 * Item01エンティティの在庫数量の増減を、コミットされた時点で
+	 * ジャーナルに記録する
+	 * 
+	 * @param itemId 在庫数量を更新したItem01エンティティのID
+	 * @param delta 在庫数量の増減（入庫は正、引き当ては負の値）
+	 */
+	public void stockMoved(Long itemId, int delta) {
+		stockJournal.recordOnCommit(itemId, delta);
+	}
+
+	/**
+	 * Item01エンティティがホットに指定されているかどうかを返す
+	 * 
+	 * @param item Item01エンティティ
+	 * @return ホットに指定されている場合はtrue
+	 */
+	public boolean isHotItem(Item01 item) {
+		return hotItemStockLedger.isHot(item.getId());
+	}
+
+	/**
+	 * ホットに指定されたItem01エンティティの在庫をメモリ上でひとつ引き当てる
+	 * 
+	 * 引き当てた場合は、引数のItem01エンティティの在庫数量を引き当て後の
+	 * 在庫数量に更新する。引き当て結果のデータベースへの反映は
+	 * HotItemStockLedgerEJBによって定期的にまとめて行われる。
+	 * 
+	 * データベースは更新しない。呼び出し元のトランザクションがロールバック
+	 * された場合、引き当てた在庫数量はメモリ上の在庫数量へ戻される。
+	 * 
+	 * @param item 在庫を引き当てるItem01エンティティ
+	 * @throws InventoryLevelTooLowException 在庫数量が１以下の場合
+	 */
+	public void reserveHotItem(Item01 item) throws InventoryLevelTooLowException {
+		long remaining = hotItemStockLedger.tryReserve(item.getId(), 1);
+		if (remaining < 0) {
+			throw new InventoryLevelTooLowException();
+		}
+		item.setAvailableInStock((int) remaining);
+	}
+
+	/**
+	 * ホットに指定されたItem01エンティティの在庫をメモリ上でひとつ引き当て、
+	 * その結果を返す
+	 * 
+	 * reserveHotItem()と同じ条件で引き当てるが、在庫数量の不足を例外では
+	 * なくSaleOutcomeで通知する。
+	 * 
+	 * @param item 在庫を引き当てるItem01エンティティ
+	 * @return 引き当ての結果
+	 */
+	public SaleOutcome trySellHotItem(Item01 item) {
+		long remaining = hotItemStockLedger.tryReserve(item.getId(), 1);
+		if (remaining < 0) {
+			return SaleOutcome.notSold(item.getId(),
+					(int) hotItemStockLedger.getAvailableInStock(item.getId()));
+		}
+		item.setAvailableInStock((int) remaining);
+		return SaleOutcome.sold(item.getId(), (int) remaining);
+	}
+
+	/**
+	 * ホットに指定されたItem01エンティティの在庫数量をメモリ上で増やす
+	 * 
+	 * 増分は呼び出し元のトランザクションがコミットされた時点でメモリ上の
+	 * 在庫数量に加えられ、データベースへはHotItemStockLedgerEJBによって
+	 * 反映される。引数のItem01エンティティの在庫数量は、入庫後の在庫数量に
+	 * 更新する。
+	 * 
+	 * @param item 在庫数量を増やすItem01エンティティ
+	 * @param stock 在庫数量の増分
+	 */
+	public void restockHotItem(Item01 item, int stock) {
+		hotItemStockLedger.restock(item.getId(), stock);
+		item.setAvailableInStock((int) hotItemStockLedger.getAvailableInStock(item.getId()) + stock);
+	}
+
+	/**
+	 * Item01エンティティがホットに指定されていないことを確認する
+	 * 
+	 * ホットに指定されたItem01エンティティの在庫数量はメモリ上で
+	 * 管理されるため、行を直接更新する処理の前に確認する。
+	 * 
+	 * @param itemId Item01エンティティのID
+	 * @throws IllegalStateException ホットに指定されている場合
+	 */
+	public void checkNotHot(Long itemId) {
+		if (hotItemStockLedger.isHot(itemId)) {
+			throw new IllegalStateException("Item01 is marked hot: id=" + itemId);
+		}
+	}
+
+	/**
+	 * 在庫数量を増減のイベントで管理するよう指定されているかどうかを返す
+	 * 
+	 * @return EventSourcedStockEJBの環境エントリinventory.eventSourcedに
+	 *         trueが指定されている場合はtrue
+	 */
+	public boolean isEventSourced() {
+		return eventSourcedStock.isEnabled();
+	}
+
+	/**
+	 * Item01エンティティの在庫数量を、入庫のイベントを追加して増やす
+	 * 
+	 * Item01エンティティは更新せず、引数のItem01エンティティの在庫数量を
+	 * 入庫後の在庫数量に更新する。
+	 * 
+	 * @param item 在庫数量を増やすItem01エンティティ
+	 * @param stock 在庫数量の増分
+	 */
+	public void addEventSourcedStock(Item01 item, int stock) {
+		eventSourcedStock.add(item.getId(), stock);
+		item.setAvailableInStock((int) eventSourcedStock.getAvailableInStock(item.getId()));
+	}
+
+	/**
+	 * Item01エンティティの在庫を、引き当てのイベントを追加してひとつ引き当てる
+	 * 
+	 * Item01エンティティの行は更新しないため、行ロックを待つことはない。
+	 * 引き当てた場合は、引数のItem01エンティティの在庫数量を引き当て後の
+	 * 在庫数量に更新する。
+	 * 
+	 * 在庫数量が不足する場合はイベントを追加していないため、ロールバック
+	 * される更新はない。
+	 * 
+	 * @param item 在庫を引き当てるItem01エンティティ
+	 * @throws InventoryLevelTooLowException 在庫数量が１以下の場合
+	 */
+	public void reserveEventSourcedItem(Item01 item) throws InventoryLevelTooLowException {
+		long remaining = eventSourcedStock.trySell(item.getId(), 1);
+		if (remaining < 0) {
+			throw new InventoryLevelTooLowException();
+		}
+		item.setAvailableInStock((int) remaining);
+	}
+
+	/**
+	 * Item01エンティティの在庫を、引き当てのイベントを追加してひとつ引き当て、
+	 * その結果を返す
+	 * 
+	 * reserveEventSourcedItem()と同じ条件で引き当てるが、在庫数量の不足を
+	 * 例外ではなくSaleOutcomeで通知する。引き当てなかった場合の在庫数量は、
+	 * 他のトランザクションが引き当て中の数量を含まない、コミット済みの
+	 * 在庫数量である。
+	 * 
+	 * @param item 在庫を引き当てるItem01エンティティ
+	 * @return 引き当ての結果
+	 */
+	public SaleOutcome trySellEventSourcedItem(Item01 item) {
+		long remaining = eventSourcedStock.trySell(item.getId(), 1);
+		if (remaining < 0) {
+			return SaleOutcome.notSold(item.getId(),
+					(int) eventSourcedStock.getAvailableInStock(item.getId()));
+		}
+		item.setAvailableInStock((int) remaining);
+		return SaleOutcome.sold(item.getId(), (int) remaining);
+	}
+
+	/**
+	 * Item01エンティティの在庫数量がバケットに分割されているかどうかを返す
+	 * 
+	 * @param item Item01エンティティ
+	 * @return バケットに分割されている場合はtrue
+	 */
+	public boolean isBucketedItem(Item01 item) {
+		return bucketedStock.isBucketed(item.getId());
+	}
+
+	/**
+	 * バケットに分割されたItem01エンティティの在庫をいずれかのバケットから
+	 * ひとつ引き当てる
+	 * 
+	 * 引き当て後の在庫数量を得るにはすべてのバケットを読む必要があり、
+	 * 他のトランザクションが引き当て中のバケットの行ロックを待つことに
+	 * なるため、引数のItem01エンティティの在庫数量は更新しない。
+	 * 
+	 * すべてのバケットの在庫数量が０の場合は、分割後に入庫された
+	 * Item01エンティティの在庫数量から、最後のひとつを残して引き当てる。
+	 * いずれからも引き当てられない場合は、データベースを更新していないため、
+	 * ロールバックされる更新はない。
+	 * 
+	 * @param item 在庫を引き当てるItem01エンティティ
+	 * @throws InventoryLevelTooLowException すべてのバケットの在庫数量が０で、
+	 * Item01エンティティの在庫数量が１以下の場合
+	 */
+	public void reserveBucketedItem(Item01 item) throws InventoryLevelTooLowException {
+		if (!bucketedStock.sellOne(item.getId())) {
+			throw new InventoryLevelTooLowException();
+		}
+	}
+
+	/**
+	 * バケットに分割されたItem01エンティティの在庫をいずれかのバケットから
+	 * ひとつ引き当て、その結果を返す
+	 * 
+	 * reserveBucketedItem()と同じ条件で引き当てるが、在庫数量の不足を
+	 * 例外ではなくSaleOutcomeで通知する。引き当てた場合の在庫数量は、
+	 * reserveBucketedItem()と同じ理由ですべてのバケットを読まずに、引数の
+	 * Item01エンティティの在庫数量からひとつ減らした値とする（他の
+	 * トランザクションによる引き当ては含まない）。
+	 * 
+	 * @param item 在庫を引き当てるItem01エンティティ
+	 * @return 引き当ての結果
+	 */
+	public SaleOutcome trySellBucketedItem(Item01 item) {
+		if (!bucketedStock.sellOne(item.getId())) {
+			return SaleOutcome.notSold(item.getId(),
+					(int) bucketedStock.getAvailableInStock(item.getId()));
+		}
+		return SaleOutcome.sold(item.getId(), item.getAvailableInStock() - 1);
+	}
+
+	/**
+	 * Item01エンティティの在庫数量がバケットに分割されていないことを確認する
+	 * 
+	 * バケットに分割されたItem01エンティティの在庫数量の大部分は
+	 * バケットにあるため、行を直接更新する処理の前に確認する。
+	 * 
+	 * @param itemId Item01エンティティのID
+	 * @throws IllegalStateException バケットに分割されている場合
+	 */
+	public void checkNotBucketed(Long itemId) {
+		if (bucketedStock.isBucketed(itemId)) {
+			throw new IllegalStateException("Item01 is split into buckets: id=" + itemId);
+		}
+	}
+
+	/**
+	 * Item01エンティティの在庫数量を、その管理方法に応じて返す
+	 * 
+	 * 在庫数量を増減のイベントで管理するよう指定されている場合は
+	 * EventSourcedStockEJB、ホットに指定されている場合は
+	 * HotItemStockLedgerEJB、バケットに分割されている場合は
+	 * BucketedStockEJB（すべてのバケットとItem01エンティティに残した
+	 * 在庫数量の合計）から得る。いずれでもない場合は、Item01エンティティの
+	 * 在庫数量の列を読み込む。
+	 * 
+	 * @param itemId Item01エンティティのID
+	 * @return 在庫数量
+	 * @throws EntityNotFoundException Item01エンティティが存在しない場合
+	 */
+	public int getAvailableInStock(Long itemId) {
+		if (eventSourcedStock.isEnabled()) {
+			return (int) eventSourcedStock.getAvailableInStock(itemId);
+		}
+		if (hotItemStockLedger.isHot(itemId)) {
+			return (int) hotItemStockLedger.getAvailableInStock(itemId);
+		}
+		if (bucketedStock.isBucketed(itemId)) {
+			return (int) bucketedStock.getAvailableInStock(itemId);
+		}
+		Item01 item = em.find(Item01.class, itemId);
+		if (item == null) {
+			throw new EntityNotFoundException("Item01 not found: id=" + itemId);
+		}
+		return item.getAvailableInStock();
+	}
 }
@@ -21,19 +21,66 @@ public class InventoryLevelTooLowException extends Exception {
 
 	private static final long serialVersionUID = 1L;
 
+	// 在庫数量が不足したItem01エンティティのID
+	// （特定の明細を示さない場合はnull）
+	private final Long itemId;
+
+	// 引き当てようとした数量
+	private final int requestedQuantity;
+
+	// 引き当て前の在庫数量
+	private final int availableInStock;
+
 	public InventoryLevelTooLowException() {
-		super();
+		this((String) null);
+	}
+
+	/**
+	 * 在庫数量が不足した明細を特定する情報を持つ例外を生成する。
+	 * 
+	 * @param itemId 在庫数量が不足したItem01エンティティのID
+	 * @param requestedQuantity 引き当てようとした数量
+	 * @param availableInStock 引き当て前の在庫数量
+	 */
+	public InventoryLevelTooLowException(Long itemId, int requestedQuantity, int availableInStock) {
+		super("Inventory level too low: itemId=" + itemId
+				+ ", requested=" + requestedQuantity
+				+ ", available=" + availableInStock);
+		this.itemId = itemId;
+		this.requestedQuantity = requestedQuantity;
+		this.availableInStock = availableInStock;
 	}
 
 	public InventoryLevelTooLowException(String message, Throwable cause) {
 		super(message, cause);
+		this.itemId = null;
+		this.requestedQuantity = 0;
+		this.availableInStock = 0;
 	}
 
 	public InventoryLevelTooLowException(String message) {
 		super(message);
+		this.itemId = null;
+		this.requestedQuantity = 0;
+		this.availableInStock = 0;
 	}
 
 	public InventoryLevelTooLowException(Throwable cause) {
 		super(cause);
+		this.itemId = null;
+		this.requestedQuantity = 0;
+		this.availableInStock = 0;
+	}
+
+	public Long getItemId() {
+		return itemId;
+	}
+
+	public int getRequestedQuantity() {
+		return requestedQuantity;
+	}
+
+	public int getAvailableInStock() {
+		return availableInStock;
 	}
 }
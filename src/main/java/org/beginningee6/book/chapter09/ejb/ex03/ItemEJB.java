@@ -1,10 +1,32 @@
 package org.beginningee6.book.chapter09.ejb.ex03;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Resource;
+import javax.ejb.AsyncResult;
+import javax.ejb.Asynchronous;
 import javax.ejb.EJB;
+import javax.ejb.SessionContext;
 import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.interceptor.Interceptors;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.LockModeType;
 import javax.persistence.PersistenceContext;
 
+import org.beginningee6.book.chapter09.ejb.async.AsyncAdmissionEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.stock.SaleOutcome;
+import org.beginningee6.book.chapter09.ejb.stock.SellLockStrategy;
+import org.beginningee6.book.chapter09.ejb.stock.StockLockingEJB;
 import org.beginningee6.book.chapter09.jpa.ex01.Item01;
 import org.beginningee6.book.chapter09.jpa.ex01.StockAvailabilityException;
 
@@ -39,6 +61,7 @@ import org.beginningee6.book.chapter09.jpa.ex01.StockAvailabilityException;
  *
  */
 @Stateless
+@Interceptors(LatencyInterceptor.class)
 public class ItemEJB {
 	@PersistenceContext(unitName = "Chapter09ProductionPU")
 	private EntityManager em;
@@ -46,6 +69,17 @@ public class ItemEJB {
 	@EJB
 	private InventoryEJB inventoryEJB;
 
+	@EJB
+	private StockLockingEJB stockLockingEJB;
+
+	// 非同期メソッドの呼び出しを受け付ける数を制限するEJBへの参照を注入
+	@EJB
+	private AsyncAdmissionEJB asyncAdmission;
+
+	// 非同期メソッドを呼び出すためにSession Contextを注入
+	@Resource
+	private SessionContext ctx;
+
 	/**
 	 * Item01エンティティを永続化する。
 	 * 
@@ -67,18 +101,84 @@ public class ItemEJB {
         return item;
     }
 
+    /**
+     * Item01エンティティを非同期に永続化する。
+     * 
+     * AsyncAdmissionEJBで受け付けた上で、createItemInBackground()を
+     * ＠Asynchronousメソッドとして呼び出し、その完了を待たずに戻る。
+     * 呼び出し元のスレッドは、永続化の完了を待つ間ブロックされない。
+     * 
+     * @param item 永続化するItem01エンティティ
+     * @return 永続化されたItem01エンティティを返すFuture
+     * @throws RejectedExecutionException 実行を待つ呼び出しの数が上限に達している場合
+     */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+    public Future<Item01> createItemAsync(Item01 item) {
+    	long admittedAt = asyncAdmission.admit();
+    	try {
+    		// ＠Asynchronousメソッドは、EJBへの参照を経由して呼び出した場合に
+    		// だけ非同期に実行されるため、自身のビジネスオブジェクトを使用する
+    		return ctx.getBusinessObject(ItemEJB.class).createItemInBackground(item, admittedAt);
+    	} catch (RuntimeException e) {
+    		asyncAdmission.started(admittedAt);
+    		asyncAdmission.finished(false);
+    		throw e;
+    	}
+    }
+
+    /**
+     * createItemAsync()から非同期に呼び出され、Item01エンティティを永続化する。
+     * 
+     * このメソッド自体はトランザクションを開始せず、createItem()を
+     * EJBへの参照を経由して呼び出す。createItem()のトランザクション属性
+     * （REQUIRED）により、永続化と在庫数量の更新はひとつのトランザクション
+     * で行われ、このメソッドが戻る前にコミットされる。
+     * 
+     * 受け付けの数を制限するため、直接呼び出さずにcreateItemAsync()を使用すること。
+     * 
+     * @param item 永続化するItem01エンティティ
+     * @param admittedAt AsyncAdmissionEJB.admit()が返した時刻
+     * @return 永続化されたItem01エンティティを返すFuture
+     */
+    @Asynchronous
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+    public Future<Item01> createItemInBackground(Item01 item, long admittedAt) {
+    	asyncAdmission.started(admittedAt);
+    	boolean succeeded = false;
+    	try {
+    		Item01 created = ctx.getBusinessObject(ItemEJB.class).createItem(item);
+    		succeeded = true;
+    		return new AsyncResult<Item01>(created);
+    	} finally {
+    		asyncAdmission.finished(succeeded);
+    	}
+    }
+
     /**
      * Item01エンティティの在庫数量を指定された数量だけ増やす。
      * 
+     * 在庫数量を増減のイベントで管理するよう指定されている場合は、
+     * Item01エンティティをマージせずに入庫のイベントを追加する。
+     * HotItemStockLedgerEJBでホットに指定されている場合は、メモリ上の
+     * 在庫数量に加える。
+     * 
      * @param item 在庫数量を増やすItem01エンティティ
      * @param stock 在庫数量の増分
      * @return 在庫数量が増加したItem01エンティティ
      */
     public Item01 addAvailableStock(Item01 item, int stock) {
-    	int currentStock = item.getAvailableInStock();
-    	item.setAvailableInStock(currentStock + stock);
-    	
-    	em.merge(item);
+    	if (inventoryEJB.isEventSourced()) {
+    		inventoryEJB.addEventSourcedStock(item, stock);
+    	} else if (inventoryEJB.isHotItem(item)) {
+    		inventoryEJB.restockHotItem(item, stock);
+    	} else {
+    		int currentStock = item.getAvailableInStock();
+    		item.setAvailableInStock(currentStock + stock);
+
+    		em.merge(item);
+    		inventoryEJB.stockChanged(item.getId());
+    	}
+    	inventoryEJB.stockMoved(item.getId(), stock);
     	
     	return item;
     }
@@ -87,22 +187,318 @@ public class ItemEJB {
      * Item01エンティティの”在庫引き当て処理”を行う。
      * （実際は、在庫数量を－１する）
      * 
+     * 在庫数量を増減のイベントで管理するよう指定されている場合は、
+     * Item01エンティティの行ロックを取得せずに、引き当てのイベントを追加する。
+     * HotItemStockLedgerEJBでホットに指定されている場合は、行ロックを
+     * 取得せずにメモリ上で在庫を引き当てる。BucketedStockEJBでバケットに
+     * 分割されている場合は、いずれかのバケットから引き当てる。
+     * キャッシュした在庫数量による事前チェックは、Item01エンティティの
+     * 在庫数量の列から引き当てる場合にだけ行う。
+     * 
      * @param item 在庫を引き当てるItem01エンティティ
      * @return 在庫引き当て後のItem01エンティティ
      * @throws InventoryLevelTooLowException 在庫数量が１のItem01エンティティで処理した場合
      * @throws StockAvailabilityException 在庫数量が０のItem01エンティティで処理した場合
      */
     public Item01 sellOneItem(Item01 item) throws InventoryLevelTooLowException, StockAvailabilityException {
-    	Item01 soldItem = em.find(Item01.class, item.getId());
+    	if (!inventoryEJB.isEventSourced() && !inventoryEJB.isHotItem(item)
+    			&& !inventoryEJB.isBucketedItem(item)) {
+    		// キャッシュしたコミット済みの在庫数量で不足が明らかな場合は、
+    		// 行ロックを取得せずに断る
+    		inventoryEJB.checkCachedStockAvailability(item.getId());
+    	}
+
+    	// 環境エントリで指定された既定のロック方式（指定がない場合は
+    	// ロックを指定しない従来の方式）で引き当てる
+    	return sellOneItem(item, stockLockingEJB.getDefaultStrategy());
+    }
+
+    /**
+     * 指定されたロック方式でItem01エンティティの”在庫引き当て処理”を行う。
+     * （実際は、在庫数量を－１する）
+     * 
+     * 商品の分類ごとに、競合の度合いに応じたロック方式を選択できる。
+     * ロック方式ごとの再試行回数や行ロックの待機回数は
+     * SellLockStatisticsEJBに記録される。
+     * 
+     * sellOneItem(Item01)と異なり、キャッシュした在庫数量による事前チェックは
+     * 行わず、常に指定されたロック方式でItem01エンティティを取得する。
+     * 
+     * 在庫数量を増減のイベントで管理するよう指定されている場合は、
+     * ロック方式にかかわらず、Item01エンティティの行ロックを取得せずに
+     * 引き当てのイベントを追加する。ホットに指定されている場合も、
+     * ロック方式にかかわらず、メモリ上で在庫を引き当てる。
+     * バケットに分割されている場合は、ロック方式にかかわらず、いずれかの
+     * バケットから引き当てる。この場合、すべてのバケットを読まずに済むよう、
+     * 戻り値のItem01エンティティの在庫数量は更新しない
+     * （引き当て後の在庫数量はgetAvailableInStock()で得られる）。
+     * 
+     * @param item 在庫を引き当てるItem01エンティティ
+     * @param strategy Item01エンティティを取得する際のロック方式
+     * @return 在庫引き当て後のItem01エンティティ
+     * @throws InventoryLevelTooLowException 在庫数量が１のItem01エンティティで処理した場合
+     * @throws StockAvailabilityException 在庫数量が０のItem01エンティティで処理した場合
+     */
+    public Item01 sellOneItem(Item01 item, SellLockStrategy strategy) throws InventoryLevelTooLowException, StockAvailabilityException {
+    	if (inventoryEJB.isEventSourced()) {
+    		// 在庫数量が不足する場合、InventoryLevelTooLowExceptionが
+    		// スローされる
+    		inventoryEJB.reserveEventSourcedItem(item);
+    		inventoryEJB.stockMoved(item.getId(), -1);
+    		return item;
+    	}
+    	if (inventoryEJB.isHotItem(item)) {
+    		// メモリ上で在庫を引き当てる
+    		// 在庫数量が不足する場合、InventoryLevelTooLowExceptionが
+    		// スローされる
+    		inventoryEJB.reserveHotItem(item);
+    		inventoryEJB.stockMoved(item.getId(), -1);
+    		return item;
+    	}
+    	if (inventoryEJB.isBucketedItem(item)) {
+    		// いずれかのバケットの在庫数量をひとつ減らす
+    		// すべてのバケットの在庫数量が０の場合、InventoryLevelTooLowExceptionが
+    		// スローされる
+    		inventoryEJB.reserveBucketedItem(item);
+    		inventoryEJB.stockMoved(item.getId(), -1);
+    		return item;
+    	}
 
-    	// Item01エンティティの在庫数量をひとつ減らす
-    	soldItem.decreaseAvailableStock();
+    	// 指定されたロック方式でItem01エンティティを取得し、
+    	// 在庫数量をひとつ減らす
+    	Item01 soldItem = stockLockingEJB.decreaseAvailableStock(item.getId(), strategy);
 
     	// Item01エンティティの在庫数量をチェックする
     	// 在庫数量が０の場合、InventoryLevelTooLowExceptionが
     	// スローされ、トランザクションがロールバックにマークされる
     	inventoryEJB.checkInventoryLevel(soldItem);
+
+    	// 引き当てをコミットされた時点でジャーナルに記録する
+    	inventoryEJB.stockMoved(soldItem.getId(), -1);
     	
     	return soldItem;
     }
+
+    /**
+     * Item01エンティティの”在庫引き当て処理”を行い、その結果を返す。
+     * 
+     * sellOneItem()と同じ条件で在庫を引き当てるが、在庫数量の不足を
+     * 例外ではなくSaleOutcomeで通知する。引き当てなかった場合は
+     * データベースを更新していないため、トランザクションをロールバックに
+     * マークしない。呼び出し元のトランザクションは、引き当ての結果に
+     * かかわらずそのまま続けられる。
+     * 
+     * @param item 在庫を引き当てるItem01エンティティ
+     * @return 引き当ての結果
+     */
+    public SaleOutcome trySellOneItem(Item01 item) {
+    	return trySellOneItem(item, stockLockingEJB.getDefaultStrategy());
+    }
+
+    /**
+     * 指定されたロック方式でItem01エンティティの”在庫引き当て処理”を行い、
+     * その結果を返す。
+     * 
+     * 在庫数量を増減のイベントで管理するよう指定されている場合、
+     * ホットに指定されている場合、あるいはバケットに分割されている場合は、
+     * sellOneItem(Item01, SellLockStrategy)と同様に、引き当てのイベントを
+     * 追加する、メモリ上で引き当てる、あるいはバケットから引き当てる。
+     * 
+     * @param item 在庫を引き当てるItem01エンティティ
+     * @param strategy Item01エンティティを取得する際のロック方式
+     * @return 引き当ての結果
+     */
+    public SaleOutcome trySellOneItem(Item01 item, SellLockStrategy strategy) {
+    	// 引き当てなかった場合、いずれもデータベースを更新しないため、
+    	// ロールバックにマークする必要はない
+    	SaleOutcome outcome;
+    	if (inventoryEJB.isEventSourced()) {
+    		outcome = inventoryEJB.trySellEventSourcedItem(item);
+    	} else if (inventoryEJB.isHotItem(item)) {
+    		outcome = inventoryEJB.trySellHotItem(item);
+    	} else if (inventoryEJB.isBucketedItem(item)) {
+    		outcome = inventoryEJB.trySellBucketedItem(item);
+    	} else {
+    		outcome = stockLockingEJB.trySell(item.getId(), strategy);
+    	}
+    	if (outcome.isSold()) {
+    		// 引き当てをコミットされた時点でジャーナルに記録する
+    		inventoryEJB.stockMoved(item.getId(), -1);
+    	}
+    	return outcome;
+    }
+
+    /**
+     * アクセスが集中するItem01エンティティの”在庫引き当て処理”を行う。
+     * 
+     * ホットに指定されているかどうかはsellOneItem()が判断するため、
+     * sellOneItem()と同じ処理を行う。
+     * 
+     * 在庫数量を増減のイベントで管理するよう指定されている場合は、
+     * HotItemStockLedgerEJBはItem01エンティティの在庫数量の列を起点と
+     * するため使用されない。
+     * 
+     * @param item 在庫を引き当てるItem01エンティティ
+     * @return 在庫引き当て後のItem01エンティティ
+     * @throws InventoryLevelTooLowException 在庫数量が１のItem01エンティティで処理した場合
+     * @throws StockAvailabilityException 在庫数量が０のItem01エンティティで処理した場合
+     */
+    public Item01 sellOneHotItem(Item01 item) throws InventoryLevelTooLowException, StockAvailabilityException {
+    	return sellOneItem(item);
+    }
+
+    /**
+     * 在庫数量を複数の行（バケット）に分割したItem01エンティティの
+     * ”在庫引き当て処理”を行う。
+     * 
+     * バケットに分割されているかどうかはsellOneItem()が判断するため、
+     * sellOneItem()と同じ処理を行う。
+     * 
+     * @param item 在庫を引き当てるItem01エンティティ
+     * @return 在庫引き当て後のItem01エンティティ
+     * @throws InventoryLevelTooLowException 在庫数量が１のItem01エンティティで処理した場合
+     * @throws StockAvailabilityException 在庫数量が０のItem01エンティティで処理した場合
+     */
+    public Item01 sellOneBucketedItem(Item01 item) throws InventoryLevelTooLowException, StockAvailabilityException {
+    	return sellOneItem(item);
+    }
+
+    /**
+     * Item01エンティティの在庫数量を返す。
+     * 
+     * 在庫数量の列ではなく、イベント、メモリ上の在庫数量、あるいはバケットで
+     * 管理されている場合も、引き当てられる在庫数量の合計を返す。
+     * 
+     * @param itemId Item01エンティティのID
+     * @return 在庫数量
+     * @throws EntityNotFoundException Item01エンティティが存在しない場合
+     */
+    public int getAvailableInStock(Long itemId) {
+    	return inventoryEJB.getAvailableInStock(itemId);
+    }
+
+    /**
+     * Item01エンティティの”在庫引き当て処理”を条件付きUPDATE文ひとつで行う。
+     * 
+     * sellOneItem()では、SELECT文によるエンティティの取得、在庫数量の更新、
+     * 在庫数量が０になった場合のロールバックが必要になるが、このメソッドでは
+     * 
+     * >> UPDATE Item01 SET availableInStock = availableInStock - 1
+     * >>  WHERE id = ? AND availableInStock > 1
+     * 
+     * を発行し、更新件数だけで引き当ての成否を判断する。
+     * 
+     * 在庫数量が１以下の場合は更新件数が０件となり、データベースには何も
+     * 変更が加えられないため、トランザクションをロールバックにマークする
+     * 必要もない。
+     * 
+     * なお、このUPDATE文は永続コンテキストを経由せずにデータベースへ直接
+     * 発行されるため、同じトランザクションで既に取得済みのItem01エンティティが
+     * ある場合、その在庫数量は更新前の値のままとなる点に注意すること。
+     * 
+     * 在庫数量を増減のイベントで管理するよう指定されている場合、
+     * ホットに指定されている場合、あるいはバケットに分割されている場合は、
+     * UPDATE文を発行せずに、trySellOneItem()と同様に引き当てる。
+     * 
+     * @param item 在庫を引き当てるItem01エンティティ
+     * @return 在庫を引き当てた場合はtrue、在庫数量が１以下（またはエンティティが
+     *         存在しない）ため引き当てなかった場合はfalse
+     */
+    public boolean sellOneItemByConditionalUpdate(Item01 item) {
+    	if (inventoryEJB.isEventSourced() || inventoryEJB.isHotItem(item)
+    			|| inventoryEJB.isBucketedItem(item)) {
+    		return trySellOneItem(item, stockLockingEJB.getDefaultStrategy()).isSold();
+    	}
+
+    	int updated = em.createQuery(
+    			"UPDATE Item01 i SET i.availableInStock = i.availableInStock - 1 " +
+    			"WHERE i.id = :id AND i.availableInStock > 1")
+    			.setParameter("id", item.getId())
+    			.executeUpdate();
+
+    	if (updated == 1) {
+    		inventoryEJB.stockChanged(item.getId());
+    		inventoryEJB.stockMoved(item.getId(), -1);
+    	}
+
+    	// 更新件数が１件であれば引き当て成功
+    	return updated == 1;
+    }
+
+    /**
+     * 複数明細の”在庫引き当て処理”を単一のトランザクションで行う。
+     * 
+     * 明細ごとにsellOneItem()を呼び出すと、呼び出しのたびにトランザクションの
+     * 開始とコミットが行われるが、このメソッドでは全明細の在庫数量の更新を
+     * ひとつのトランザクションにまとめ、最後に一度だけフラッシュする。
+     * 
+     * 複数のトランザクションが同じItem01エンティティの組み合わせを
+     * 引き当てる場合にデッドロックとならないよう、行ロック
+     * （LockModeType.PESSIMISTIC_WRITE）はIDの昇順に取得する。
+     * 
+     * いずれかの明細で在庫数量が不足する場合は、その明細のID、
+     * 引き当てようとした数量、引き当て前の在庫数量を持つ
+     * InventoryLevelTooLowExceptionがスローされ、全明細の更新が
+     * ロールバックされる。
+     * 
+     * 在庫数量を増減のイベントで管理するよう指定されている場合は、
+     * Item01エンティティの在庫数量の列を更新できないため使用できない。
+     * 同様に、ホットに指定された、あるいはバケットに分割されたItem01
+     * エンティティを含む明細は引き当てない。
+     * 
+     * @param quantitiesById Item01エンティティのIDと引き当てる数量の組
+     * @return 在庫引き当て後のItem01エンティティ（IDの昇順）
+     * @throws InventoryLevelTooLowException いずれかの明細で在庫数量が不足する場合
+     * @throws IllegalStateException 在庫数量を増減のイベントで管理するよう
+     *         指定されている場合、あるいはホットに指定された、またはバケットに
+     *         分割されたItem01エンティティを含む場合
+     */
+    public List<Item01> sellItems(Map<Long, Integer> quantitiesById) throws InventoryLevelTooLowException {
+    	if (inventoryEJB.isEventSourced()) {
+    		throw new IllegalStateException(
+    				"sellItems() is not supported while stock is event-sourced");
+    	}
+
+    	// 行ロックをIDの昇順に取得するため、明細をIDでソートする
+    	SortedMap<Long, Integer> sortedQuantities = new TreeMap<Long, Integer>(quantitiesById);
+
+    	// キャッシュしたコミット済みの在庫数量で不足が明らかな明細が
+    	// ある場合は、行ロックを取得せずに断る
+    	for (Map.Entry<Long, Integer> line : sortedQuantities.entrySet()) {
+    		// 在庫数量がメモリ上にあるItem01エンティティの行は更新しない
+    		inventoryEJB.checkNotHot(line.getKey());
+    		inventoryEJB.checkNotBucketed(line.getKey());
+    		if (line.getValue() > 0) {
+    			inventoryEJB.checkCachedInventoryLevel(line.getKey(), line.getValue());
+    		}
+    	}
+
+    	List<Item01> soldItems = new ArrayList<Item01>(sortedQuantities.size());
+    	for (Map.Entry<Long, Integer> line : sortedQuantities.entrySet()) {
+    		int quantity = line.getValue();
+    		if (quantity <= 0) {
+    			throw new IllegalArgumentException(
+    					"quantity must be positive: itemId=" + line.getKey() + ", quantity=" + quantity);
+    		}
+
+    		Item01 soldItem = em.find(Item01.class, line.getKey(), LockModeType.PESSIMISTIC_WRITE);
+    		if (soldItem == null) {
+    			throw new EntityNotFoundException("Item01 not found: id=" + line.getKey());
+    		}
+
+        	// 在庫数量が不足する場合、InventoryLevelTooLowExceptionが
+        	// スローされ、トランザクションがロールバックにマークされる
+    		inventoryEJB.checkInventoryLevel(soldItem, quantity);
+
+    		soldItem.setAvailableInStock(soldItem.getAvailableInStock() - quantity);
+    		inventoryEJB.stockChanged(soldItem.getId());
+    		inventoryEJB.stockMoved(soldItem.getId(), -quantity);
+    		soldItems.add(soldItem);
+    	}
+
+    	// 全明細の更新をまとめてデータベースに反映する
+    	em.flush();
+
+    	return soldItems;
+    }
 }
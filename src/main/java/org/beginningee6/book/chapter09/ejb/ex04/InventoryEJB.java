@@ -1,6 +1,7 @@
 package org.beginningee6.book.chapter09.ejb.ex04;
 
 import javax.ejb.Stateless;
+import javax.interceptor.Interceptors;
 
 import org.beginningee6.book.chapter09.ejb.ex04.exception.CheckedExceptionWithApplicationAnnotationRollbackFalse;
 import org.beginningee6.book.chapter09.ejb.ex04.exception.CheckedExceptionWithApplicationAnnotationRollbackTrue;
@@ -8,8 +9,11 @@ import org.beginningee6.book.chapter09.ejb.ex04.exception.CheckedExceptionWithou
 import org.beginningee6.book.chapter09.ejb.ex04.exception.UncheckedExceptionWithApplicationAnnotationRollbackFalse;
 import org.beginningee6.book.chapter09.ejb.ex04.exception.UncheckedExceptionWithApplicationAnnotationRollbackTrue;
 import org.beginningee6.book.chapter09.ejb.ex04.exception.UncheckedExceptionWithoutAnnotation;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.monitor.RollbackCauseInterceptor;
 
 @Stateless
+@Interceptors({ LatencyInterceptor.class, RollbackCauseInterceptor.class })
 public class InventoryEJB {
 
 	/**
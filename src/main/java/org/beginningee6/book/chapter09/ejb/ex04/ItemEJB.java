@@ -2,6 +2,7 @@ package org.beginningee6.book.chapter09.ejb.ex04;
 
 import javax.ejb.EJB;
 import javax.ejb.Stateless;
+import javax.interceptor.Interceptors;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 
@@ -9,6 +10,8 @@ import org.beginningee6.book.chapter09.ejb.ex04.exception.CheckedExceptionWithAp
 import org.beginningee6.book.chapter09.ejb.ex04.exception.CheckedExceptionWithApplicationAnnotationRollbackTrue;
 import org.beginningee6.book.chapter09.ejb.ex04.exception.CheckedExceptionWithoutAnnotation;
 import org.beginningee6.book.chapter09.ejb.ex04.exception.UncheckedExceptionWithApplicationAnnotationRollbackFalse;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.monitor.RollbackCauseInterceptor;
 import org.beginningee6.book.chapter09.jpa.ex01.Item01;
 
 /**
@@ -33,6 +36,7 @@ import org.beginningee6.book.chapter09.jpa.ex01.Item01;
  * 　付与された非チェック例外
  */
 @Stateless
+@Interceptors({ LatencyInterceptor.class, RollbackCauseInterceptor.class })
 public class ItemEJB {
 	@PersistenceContext(unitName = "Chapter09ProductionPU")
 	private EntityManager em;
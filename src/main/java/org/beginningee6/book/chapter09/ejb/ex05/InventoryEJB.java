@@ -1,12 +1,27 @@
 package org.beginningee6.book.chapter09.ejb.ex05;
 
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 import javax.annotation.Resource;
+import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.ejb.TransactionManagement;
 import javax.ejb.TransactionManagementType;
+import javax.interceptor.Interceptors;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
 import javax.transaction.SystemException;
 import javax.transaction.UserTransaction;
 
+import org.beginningee6.book.chapter09.ejb.journal.StockJournalEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.stock.HotItemStockLedgerEJB;
+import org.beginningee6.book.chapter09.ejb.stock.SaleOutcome;
+import org.beginningee6.book.chapter09.ejb.stock.StockHold;
+import org.beginningee6.book.chapter09.ejb.stock.StockLevelCacheEJB;
+import org.beginningee6.book.chapter09.ejb.stock.bucket.BucketedStockEJB;
+import org.beginningee6.book.chapter09.ejb.stock.event.EventSourcedStockEJB;
 import org.beginningee6.book.chapter09.jpa.ex01.Item01;
 import org.beginningee6.book.chapter09.jpa.ex01.StockAvailabilityException;
 
@@ -17,17 +32,61 @@ import org.beginningee6.book.chapter09.jpa.ex01.StockAvailabilityException;
  * 前提とするように実装されている。
  */
 @Stateless
+@Interceptors(LatencyInterceptor.class)
 // Bean管理トランザクションによるトランザクション制御を指定
 @TransactionManagement(TransactionManagementType.BEAN)
 public class InventoryEJB {
+	private static final Logger logger = Logger.getLogger(InventoryEJB.class.getName());
+
+	@PersistenceContext(unitName = "Chapter09ProductionPU")
+	private EntityManager em;
+
+	// 確保した在庫数量のホールド（StockHoldエンティティ）を管理する永続化ユニット
+	@PersistenceContext(unitName = "Chapter09StockPU")
+	private EntityManager stockEm;
 
 	// トランザクションを制御するためのUserTransactionを
 	// 注入する
 	@Resource
 	private UserTransaction userTransaction;
+
+	// アクセスが集中するItem01エンティティの在庫数量をメモリ上で
+	// 管理するEJBへの参照を注入
+	@EJB
+	private HotItemStockLedgerEJB hotItemStockLedger;
+
+	// 在庫数量を複数の行に分割して管理するEJBへの参照を注入
+	@EJB
+	private BucketedStockEJB bucketedStock;
+
+	// 期限付きで確保した在庫数量を保持するEJBへの参照を注入
+	@EJB
+	private StockReservationEJB stockReservation;
+
+	// コミットされた在庫数量の更新をキャッシュへ反映するために注入
+	@EJB
+	private StockLevelCacheEJB stockLevelCache;
+
+	// コミットされた在庫数量の増減を記録するために注入
+	@EJB
+	private StockJournalEJB stockJournal;
+
+	// 在庫数量を増減のイベントで管理するよう指定されている場合に、
+	// イベントを追加するために注入（このBeanのトランザクションの中で実行される）
+	@EJB
+	private EventSourcedStockEJB eventSourcedStock;
 	
 	/**
 	 * Item01エンティティの在庫数量をひとつ増やす
+	 * 
+	 * このメソッドは呼び出し元のトランザクションの外で実行されるため、
+	 * キャッシュした在庫数量の破棄は呼び出し元（ItemEJB.createItem()）が
+	 * そのトランザクションに登録する。
+	 * 
+	 * 追加するItem01エンティティの行を更新するだけのため、
+	 * EventSourcedStockEJBで在庫数量を管理している場合もこのままでよい
+	 * （その行の在庫数量が、イベントの増減の起点となる）。
+	 * 
 	 * @param item 在庫数量を増やすItem01エンティティ
 	 */
 	public void addItem(Item01 item) {
@@ -50,4 +109,257 @@ public class InventoryEJB {
 			throw new InventoryLevelTooLowException();
 		}
 	}
+
+	/**
+	 * Item01エンティティがホットに指定されているかどうかを返す
+	 * 
+	 * @param item Item01エンティティ
+	 * @return ホットに指定されている場合はtrue
+	 */
+	public boolean isHotItem(Item01 item) {
+		return hotItemStockLedger.isHot(item.getId());
+	}
+
+	/**
+	 * ホットに指定されたItem01エンティティの在庫をメモリ上でひとつ引き当てる
+	 * 
+	 * 引き当てた場合は、引数のItem01エンティティの在庫数量を引き当て後の
+	 * 在庫数量に更新する。引き当て結果のデータベースへの反映は
+	 * HotItemStockLedgerEJBによって定期的にまとめて行われる。
+	 * 
+	 * データベースは更新しないため、トランザクションをロールバックにマーク
+	 * する必要はない。
+	 * 
+	 * @param item 在庫を引き当てるItem01エンティティ
+	 * @throws InventoryLevelTooLowException 在庫数量が１以下の場合
+	 */
+	public void reserveHotItem(Item01 item) throws InventoryLevelTooLowException {
+		long remaining = hotItemStockLedger.tryReserve(item.getId(), 1);
+		if (remaining < 0) {
+			throw new InventoryLevelTooLowException();
+		}
+		item.setAvailableInStock((int) remaining);
+	}
+
+	/**
+	 * ホットに指定されたItem01エンティティの在庫をメモリ上でひとつ引き当て、
+	 * その結果を返す
+	 * 
+	 * @param item 在庫を引き当てるItem01エンティティ
+	 * @return 引き当ての結果
+	 */
+	public SaleOutcome trySellHotItem(Item01 item) {
+		long remaining = hotItemStockLedger.tryReserve(item.getId(), 1);
+		if (remaining < 0) {
+			return SaleOutcome.notSold(item.getId(),
+					(int) hotItemStockLedger.getAvailableInStock(item.getId()));
+		}
+		item.setAvailableInStock((int) remaining);
+		return SaleOutcome.sold(item.getId(), (int) remaining);
+	}
+
+	/**
+	 * ホットに指定されたItem01エンティティの在庫数量をメモリ上で増やす
+	 * 
+	 * 呼び出し元のトランザクションの中で呼び出した場合、増分はその
+	 * トランザクションがコミットされた時点でメモリ上の在庫数量に加えられる。
+	 * 
+	 * @param item 在庫数量を増やすItem01エンティティ
+	 * @param stock 在庫数量の増分
+	 */
+	public void restockHotItem(Item01 item, int stock) {
+		hotItemStockLedger.restock(item.getId(), stock);
+		item.setAvailableInStock((int) hotItemStockLedger.getAvailableInStock(item.getId()) + stock);
+	}
+
+	/**
+	 * Item01エンティティの在庫数量を期限付きで確保する
+	 * 
+	 * 確保した数量はただちに在庫数量から差し引かれる。confirm()で確定するか、
+	 * release()で解放するまでの間、他の在庫引き当てには使用されない。
+	 * 有効期間内に確定も解放もされなかった場合は、StockReservationEJBの
+	 * タイマーにより在庫数量へ戻される。
+	 * 
+	 * 在庫数量を差し引くのと同じトランザクションでホールドをテーブルに
+	 * 追加するため、差し引いた在庫数量がホールドなしに残ることはない。
+	 * 
+	 * 在庫引き当てと同様に、在庫数量の最後のひとつは確保しない。
+	 * 
+	 * EventSourcedStockEJBで在庫数量を管理している場合は、在庫数量を
+	 * 差し引く代わりに、同じトランザクションで引き当てのイベントを追加する。
+	 * 
+	 * ホットに指定されたItem01エンティティの在庫数量はメモリ上で
+	 * 管理されるため、指定されている間は確保できない。同様に、
+	 * バケットに分割されている間も確保できない。
+	 * 
+	 * @param itemId 在庫数量を確保するItem01エンティティのID
+	 * @param quantity 確保する数量
+	 * @param ttlMillis 有効期間（ミリ秒）
+	 * @return ホールドのID
+	 * @throws InventoryLevelTooLowException 確保後の在庫数量が０以下となる場合
+	 * @throws IllegalStateException ホットに指定されている、あるいは
+	 *         バケットに分割されている場合
+	 */
+	public long reserve(Long itemId, int quantity, long ttlMillis) throws InventoryLevelTooLowException {
+		if (quantity <= 0 || ttlMillis <= 0) {
+			throw new IllegalArgumentException(
+					"quantity and ttlMillis must be positive: " + quantity + ", " + ttlMillis);
+		}
+		if (hotItemStockLedger.isHot(itemId)) {
+			throw new IllegalStateException("Item01 is marked hot: id=" + itemId);
+		}
+		if (bucketedStock.isBucketed(itemId)) {
+			throw new IllegalStateException("Item01 is split into buckets: id=" + itemId);
+		}
+
+		StockHold hold = null;
+		try {
+			// トランザクションを開始
+			userTransaction.begin();
+
+			// 確保後の在庫数量が１以上となる場合にだけ差し引く
+			int updated;
+			if (eventSourcedStock.isEnabled()) {
+				updated = eventSourcedStock.trySell(itemId, quantity) >= 0 ? 1 : 0;
+			} else {
+				updated = em.createQuery(
+						"UPDATE Item01 i SET i.availableInStock = i.availableInStock - :quantity " +
+						"WHERE i.id = :id AND i.availableInStock > :quantity")
+						.setParameter("quantity", quantity)
+						.setParameter("id", itemId)
+						.executeUpdate();
+				if (updated == 1) {
+					stockLevelCache.invalidateOnCommit(itemId);
+				}
+			}
+			if (updated == 1) {
+				// 差し引いたのと同じトランザクションでホールドを追加する
+				hold = stockReservation.newHold(itemId, quantity, ttlMillis);
+				stockEm.persist(hold);
+				stockJournal.recordOnCommit(itemId, -quantity);
+			}
+
+			// トランザクションをコミット
+			userTransaction.commit();
+		} catch (Exception e) {
+			try {
+				// 例外がスローされた場合は、トランザクションをロールバック
+				userTransaction.rollback();
+			} catch (Exception ex) {
+				logger.log(Level.WARNING, "Rollback failed", ex);
+			}
+			throw new IllegalStateException("Failed to reserve Item01: id=" + itemId, e);
+		}
+
+		if (hold == null) {
+			throw new InventoryLevelTooLowException(
+					"Inventory level too low: itemId=" + itemId + ", requested=" + quantity);
+		}
+
+		// コミットした後に、期限切れの時点で戻すよう登録する
+		// （登録する前にサーバが停止しても、起動時にテーブルから登録される）
+		stockReservation.track(hold);
+		return hold.getId();
+	}
+
+	/**
+	 * 確保した在庫数量を確定する
+	 * 
+	 * 確保した時点で在庫数量から差し引かれているため、ホールドを
+	 * 削除するだけで、在庫数量は更新しない。
+	 * 
+	 * @param reservationId ホールドのID
+	 * @return 確定した場合はtrue。既に解放された、あるいは期限切れと
+	 *         なっていた場合はfalse
+	 * @throws IllegalStateException ホールドを削除するトランザクションが失敗した場合
+	 */
+	public boolean confirm(long reservationId) {
+		boolean confirmed;
+		try {
+			// トランザクションを開始
+			userTransaction.begin();
+
+			confirmed = deleteHold(reservationId);
+
+			// トランザクションをコミット
+			userTransaction.commit();
+		} catch (Exception e) {
+			try {
+				// 例外がスローされた場合は、トランザクションをロールバック
+				userTransaction.rollback();
+			} catch (Exception ex) {
+				logger.log(Level.WARNING, "Rollback failed", ex);
+			}
+			throw new IllegalStateException("Failed to confirm reservation: id=" + reservationId, e);
+		}
+
+		stockReservation.forget(reservationId);
+		return confirmed;
+	}
+
+	/**
+	 * 確保した在庫数量を解放し、在庫数量へ戻す
+	 * 
+	 * ホールドの削除と在庫数量の更新はひとつのトランザクションで行う。
+	 * トランザクションが失敗した場合、ホールドはテーブルに残り、
+	 * 期限切れとなった時点でStockReservationEJBのタイマーにより戻される。
+	 * 
+	 * 確保した後でホットに指定されたItem01エンティティの場合は、
+	 * メモリ上の在庫数量へ戻す。EventSourcedStockEJBで在庫数量を
+	 * 管理している場合は、入庫のイベントを追加する。
+	 * 
+	 * @param reservationId ホールドのID
+	 * @return 解放した場合はtrue。既に確定された、あるいは期限切れと
+	 *         なっていた場合はfalse
+	 * @throws IllegalStateException 在庫数量を戻すトランザクションが失敗した場合
+	 */
+	public boolean release(long reservationId) {
+		boolean released = false;
+		try {
+			// トランザクションを開始
+			userTransaction.begin();
+
+			StockHold hold = stockEm.find(StockHold.class, reservationId);
+			// 読み込んだ後に確定・期限切れにより削除された場合は戻さない
+			if (hold != null && deleteHold(reservationId)) {
+				if (eventSourcedStock.isEnabled()) {
+					eventSourcedStock.add(hold.getItemId(), hold.getQuantity());
+				} else if (hotItemStockLedger.isHot(hold.getItemId())) {
+					hotItemStockLedger.restock(hold.getItemId(), hold.getQuantity());
+				} else {
+					em.createQuery(
+							"UPDATE Item01 i SET i.availableInStock = i.availableInStock + :quantity " +
+							"WHERE i.id = :id")
+							.setParameter("quantity", hold.getQuantity())
+							.setParameter("id", hold.getItemId())
+							.executeUpdate();
+					stockLevelCache.invalidateOnCommit(hold.getItemId());
+				}
+				stockJournal.recordOnCommit(hold.getItemId(), hold.getQuantity());
+				released = true;
+			}
+
+			// トランザクションをコミット
+			userTransaction.commit();
+		} catch (Exception e) {
+			try {
+				// 例外がスローされた場合は、トランザクションをロールバック
+				userTransaction.rollback();
+			} catch (Exception ex) {
+				logger.log(Level.WARNING, "Rollback failed", ex);
+			}
+			throw new IllegalStateException("Failed to release reservation: id=" + reservationId, e);
+		}
+
+		stockReservation.forget(reservationId);
+		return released;
+	}
+
+	// ホールドの行を削除し、削除できた場合はtrueを返す
+	// （既に確定・解放された、あるいは期限切れとして戻された場合はfalse）
+	private boolean deleteHold(long reservationId) {
+		return stockEm.createQuery("DELETE FROM StockHold h WHERE h.id = :id")
+				.setParameter("id", reservationId)
+				.executeUpdate() == 1;
+	}
 }
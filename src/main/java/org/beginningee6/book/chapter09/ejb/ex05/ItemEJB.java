@@ -5,6 +5,7 @@ import javax.ejb.EJB;
 import javax.ejb.Stateless;
 import javax.ejb.TransactionManagement;
 import javax.ejb.TransactionManagementType;
+import javax.interceptor.Interceptors;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.transaction.HeuristicMixedException;
@@ -14,6 +15,14 @@ import javax.transaction.RollbackException;
 import javax.transaction.SystemException;
 import javax.transaction.UserTransaction;
 
+import org.beginningee6.book.chapter09.ejb.journal.StockJournalEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.stock.SaleOutcome;
+import org.beginningee6.book.chapter09.ejb.stock.SellLockStrategy;
+import org.beginningee6.book.chapter09.ejb.stock.StockLevelCacheEJB;
+import org.beginningee6.book.chapter09.ejb.stock.StockLockingEJB;
+import org.beginningee6.book.chapter09.ejb.stock.bucket.BucketedStockEJB;
+import org.beginningee6.book.chapter09.ejb.stock.event.EventSourcedStockEJB;
 import org.beginningee6.book.chapter09.jpa.ex01.Item01;
 import org.beginningee6.book.chapter09.jpa.ex01.StockAvailabilityException;
 
@@ -52,6 +61,7 @@ import org.beginningee6.book.chapter09.jpa.ex01.StockAvailabilityException;
  * 
  */
 @Stateless
+@Interceptors(LatencyInterceptor.class)
 // Bean管理トランザクションによるトランザクション制御を指定
 @TransactionManagement(TransactionManagementType.BEAN)
 public class ItemEJB {
@@ -65,6 +75,25 @@ public class ItemEJB {
 	
 	@EJB
 	private InventoryEJB inventoryEJB;
+
+	@EJB
+	private StockLockingEJB stockLockingEJB;
+
+	@EJB
+	private StockLevelCacheEJB stockLevelCache;
+
+	@EJB
+	private StockJournalEJB stockJournal;
+
+	// バケットに分割されたItem01エンティティの在庫をバケットから
+	// 引き当てるために注入（このBeanのトランザクションの中で実行される）
+	@EJB
+	private BucketedStockEJB bucketedStock;
+
+	// 在庫数量を増減のイベントで管理するよう指定されている場合に、
+	// イベントを追加するために注入（このBeanのトランザクションの中で実行される）
+	@EJB
+	private EventSourcedStockEJB eventSourcedStock;
 	
 	/**
 	 * Item01エンティティを永続化する。
@@ -86,6 +115,11 @@ public class ItemEJB {
 	        em.persist(item);
 	        // 在庫数量をひとつ増やす
 	        inventoryEJB.addItem(item);
+	        // コミットされた時点で、キャッシュした在庫数量を破棄する
+	        // （Bean管理トランザクションのInventoryEJBはこのトランザクションの
+	        // 外で実行されるため、ここで登録する）
+	        stockLevelCache.invalidateOnCommit(item.getId());
+	        stockJournal.recordOnCommit(item.getId(), 1);
 	
 	        // トランザクションをコミット
 	        userTransaction.commit();
@@ -105,20 +139,43 @@ public class ItemEJB {
     /**
      * Item01エンティティの在庫数量を指定された数量だけ増やす。
      * 
+     * ホットに指定されているItem01エンティティの場合は、
+     * メモリ上の在庫数量を増やす。EventSourcedStockEJBの環境エントリ
+     * inventory.eventSourcedにtrueを指定した場合は、Item01エンティティを
+     * 更新せずに入庫のイベントを追加する。
+     * 
      * @param item 在庫数量を増やすItem01エンティティ
      * @param stock 在庫数量の増分
      * @return 在庫数量が増加したItem01エンティティ
      */
     public Item01 addAvailableStock(Item01 item, int stock) throws NotSupportedException, SystemException, SecurityException, IllegalStateException, RollbackException, HeuristicMixedException, HeuristicRollbackException {
+    	if (inventoryEJB.isHotItem(item)) {
+    		// トランザクションの外で実行されるため、ただちに反映され、
+    		// ジャーナルに記録される
+    		inventoryEJB.restockHotItem(item, stock);
+    		stockJournal.recordOnCommit(item.getId(), stock);
+    		return item;
+    	}
+
     	try {
     		// トランザクションを開始
 	    	userTransaction.begin();
 	    	
-	    	// 在庫数量を指定した数だけ増やす
-	    	int currentStock = item.getAvailableInStock();
-	    	item.setAvailableInStock(currentStock + stock);
-	    	
-	    	em.merge(item);
+	    	if (eventSourcedStock.isEnabled()) {
+	    		// 入庫のイベントを追加し、入庫後の在庫数量を設定する
+	    		eventSourcedStock.add(item.getId(), stock);
+	    		item.setAvailableInStock((int) eventSourcedStock.getAvailableInStock(item.getId()));
+	    	} else {
+		    	// 在庫数量を指定した数だけ増やす
+		    	int currentStock = item.getAvailableInStock();
+		    	item.setAvailableInStock(currentStock + stock);
+		    	
+		    	em.merge(item);
+		    	// コミットされた時点で、キャッシュした在庫数量を破棄する
+		    	stockLevelCache.invalidateOnCommit(item.getId());
+	    	}
+	    	// コミットされた時点で、増分をジャーナルに記録する
+	    	stockJournal.recordOnCommit(item.getId(), stock);
 	    	
 	    	// トランザクションをコミットする
 	    	userTransaction.commit();
@@ -145,19 +202,79 @@ public class ItemEJB {
      * @throws StockAvailabilityException 在庫数量が０のItem01エンティティで処理した場合
      */
     public Item01 sellOneItem(Item01 item) throws InventoryLevelTooLowException, StockAvailabilityException {
+    	// 環境エントリで指定された既定のロック方式（指定がない場合は
+    	// ロックを指定しない従来の方式）で引き当てる
+    	return sellOneItem(item, stockLockingEJB.getDefaultStrategy());
+    }
+
+    /**
+     * 指定されたロック方式でItem01エンティティの”在庫引き当て処理”を行う。
+     * （実際は、在庫数量を－１する）
+     * 
+     * 商品の分類ごとに、競合の度合いに応じたロック方式を選択できる。
+     * ロック方式ごとの再試行回数や行ロックの待機回数は
+     * SellLockStatisticsEJBに記録される。
+     * 
+     * HotItemStockLedgerEJBでホットに指定されているItem01エンティティの
+     * 場合は、ロック方式に関係なく、トランザクションを開始せずに
+     * メモリ上で在庫を引き当てる。BucketedStockEJBでバケットに分割されて
+     * いる場合は、ロック方式に関係なく、いずれかのバケットから引き当てる
+     * （戻り値のItem01エンティティの在庫数量は更新しない）。
+     * EventSourcedStockEJBの環境エントリinventory.eventSourcedにtrueを
+     * 指定した場合は、ロック方式に関係なく、引き当てのイベントを追加する。
+     * 
+     * @param item 在庫を引き当てるItem01エンティティ
+     * @param strategy Item01エンティティを取得する際のロック方式
+     * @return 在庫引き当て後のItem01エンティティ
+     * @throws InventoryLevelTooLowException 在庫数量が１のItem01エンティティで処理した場合
+     * @throws StockAvailabilityException 在庫数量が０のItem01エンティティで処理した場合
+     */
+    public Item01 sellOneItem(Item01 item, SellLockStrategy strategy) throws InventoryLevelTooLowException, StockAvailabilityException {
+    	if (inventoryEJB.isHotItem(item)) {
+        	// メモリ上で在庫を引き当てる
+        	// 在庫数量が不足する場合、InventoryLevelTooLowExceptionが
+        	// スローされる
+        	inventoryEJB.reserveHotItem(item);
+        	// トランザクションの外で実行されるため、ただちにジャーナルに記録される
+        	stockJournal.recordOnCommit(item.getId(), -1);
+        	return item;
+    	}
+
     	Item01 soldItem = null;
     	try {
     		// トランザクションを開始する
     		userTransaction.begin();
     		
-    		// 在庫数量を－１する
-        	soldItem = em.find(Item01.class, item.getId());
-        	soldItem.decreaseAvailableStock();
-        	
-        	// Item01エンティティの在庫数量をチェックする
-        	// 在庫数量が０の場合、InventoryLevelTooLowExceptionが
-        	// スローされる。
-        	inventoryEJB.checkInventoryLevel(soldItem);
+    		if (eventSourcedStock.isEnabled()) {
+    			// 引き当てのイベントを追加する
+    			// 在庫数量が不足する場合は、InventoryLevelTooLowExceptionを
+    			// スローする
+    			long remaining = eventSourcedStock.trySell(item.getId(), 1);
+    			if (remaining < 0) {
+    				throw new InventoryLevelTooLowException();
+    			}
+    			item.setAvailableInStock((int) remaining);
+    			soldItem = item;
+    		} else if (bucketedStock.isBucketed(item.getId())) {
+    			// いずれかのバケットの在庫数量をひとつ減らす
+    			// すべてのバケットの在庫数量が０の場合は、
+    			// InventoryLevelTooLowExceptionをスローする
+    			if (!bucketedStock.sellOne(item.getId())) {
+    				throw new InventoryLevelTooLowException();
+    			}
+    			soldItem = item;
+    		} else {
+	    		// 指定されたロック方式でItem01エンティティを取得し、
+	    		// 在庫数量を－１する
+	    		// （StockLockingEJBはこのトランザクションの中で実行される）
+	        	soldItem = stockLockingEJB.decreaseAvailableStock(item.getId(), strategy);
+	        	
+	        	// Item01エンティティの在庫数量をチェックする
+	        	// 在庫数量が０の場合、InventoryLevelTooLowExceptionが
+	        	// スローされる。
+	        	inventoryEJB.checkInventoryLevel(soldItem);
+    		}
+        	stockJournal.recordOnCommit(soldItem.getId(), -1);
 
         	// トランザクションをコミットする
         	userTransaction.commit();
@@ -176,4 +293,97 @@ public class ItemEJB {
     	
     	return soldItem;
     }
+
+    /**
+     * Item01エンティティの”在庫引き当て処理”を行い、その結果を返す。
+     * 
+     * sellOneItem()と同じ条件で在庫を引き当てるが、在庫数量の不足を
+     * 例外ではなくSaleOutcomeで通知する。引き当てなかった場合は、
+     * InventoryLevelTooLowExceptionをスローせずにトランザクションを
+     * ロールバックする。
+     * 
+     * @param item 在庫を引き当てるItem01エンティティ
+     * @return 引き当ての結果。トランザクションの制御に失敗した場合はnull
+     */
+    public SaleOutcome trySellOneItem(Item01 item) {
+    	return trySellOneItem(item, stockLockingEJB.getDefaultStrategy());
+    }
+
+    /**
+     * 指定されたロック方式でItem01エンティティの”在庫引き当て処理”を行い、
+     * その結果を返す。
+     * 
+     * @param item 在庫を引き当てるItem01エンティティ
+     * @param strategy Item01エンティティを取得する際のロック方式
+     * @return 引き当ての結果。トランザクションの制御に失敗した場合はnull
+     */
+    public SaleOutcome trySellOneItem(Item01 item, SellLockStrategy strategy) {
+    	if (inventoryEJB.isHotItem(item)) {
+    		// ホットに指定されている場合はメモリ上で引き当てる
+    		SaleOutcome outcome = inventoryEJB.trySellHotItem(item);
+    		if (outcome.isSold()) {
+    			stockJournal.recordOnCommit(item.getId(), -1);
+    		}
+    		return outcome;
+    	}
+
+    	try {
+    		// トランザクションを開始する
+    		userTransaction.begin();
+
+    		SaleOutcome outcome;
+    		if (eventSourcedStock.isEnabled()) {
+    			// 引き当てのイベントを追加する
+    			long remaining = eventSourcedStock.trySell(item.getId(), 1);
+    			outcome = remaining >= 0
+    					? SaleOutcome.sold(item.getId(), (int) remaining)
+    					: SaleOutcome.notSold(item.getId(),
+    							(int) eventSourcedStock.getAvailableInStock(item.getId()));
+    		} else if (bucketedStock.isBucketed(item.getId())) {
+    			// バケットから引き当てる（引き当て後の在庫数量は、すべての
+    			// バケットを読まずに済むよう、引数の在庫数量から求める）
+    			outcome = bucketedStock.sellOne(item.getId())
+    					? SaleOutcome.sold(item.getId(), item.getAvailableInStock() - 1)
+    					: SaleOutcome.notSold(item.getId(),
+    							(int) bucketedStock.getAvailableInStock(item.getId()));
+    		} else {
+    			outcome = stockLockingEJB.trySell(item.getId(), strategy);
+    		}
+    		if (outcome.isSold()) {
+    			stockJournal.recordOnCommit(item.getId(), -1);
+    			// トランザクションをコミットする
+    			userTransaction.commit();
+    		} else {
+    			// 引き当てなかった場合はデータベースを更新していないが、
+    			// sellOneItem()と同様にトランザクションをロールバックする
+    			userTransaction.rollback();
+    		}
+    		return outcome;
+    	} catch (Exception e) {
+    		try {
+    			// トランザクション制御、EJBやJPAの処理に係る例外が
+    			// スローされた場合はトランザクションを明示的に
+    			// ロールバックする
+				userTransaction.rollback();
+			} catch (Exception ex) {
+				// sellOneItem()と同様にnullを返す
+			}
+    		return null;
+    	}
+    }
+
+    /**
+     * アクセスが集中するItem01エンティティの”在庫引き当て処理”を行う。
+     * 
+     * sellOneItem()がホットに指定されたItem01エンティティをメモリ上で
+     * 引き当てるため、sellOneItem()と同じ処理を行う。
+     * 
+     * @param item 在庫を引き当てるItem01エンティティ
+     * @return 在庫引き当て後のItem01エンティティ
+     * @throws InventoryLevelTooLowException 在庫数量が１のItem01エンティティで処理した場合
+     * @throws StockAvailabilityException 在庫数量が０のItem01エンティティで処理した場合
+     */
+    public Item01 sellOneHotItem(Item01 item) throws InventoryLevelTooLowException, StockAvailabilityException {
+    	return sellOneItem(item);
+    }
 }
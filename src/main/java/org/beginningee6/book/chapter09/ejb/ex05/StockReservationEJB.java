@@ -0,0 +1,284 @@
+package org.beginningee6.book.chapter09.ejb.ex05;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionManagement;
+import javax.ejb.TransactionManagementType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter09.ejb.journal.StockJournalEJB;
+import org.beginningee6.book.chapter09.ejb.stock.HotItemStockLedgerEJB;
+import org.beginningee6.book.chapter09.ejb.stock.ReservationWheel;
+import org.beginningee6.book.chapter09.ejb.stock.ReservationWheel.Hold;
+import org.beginningee6.book.chapter09.ejb.stock.StockHold;
+import org.beginningee6.book.chapter09.ejb.stock.StockLevelCacheEJB;
+import org.beginningee6.book.chapter09.ejb.stock.event.EventSourcedStockEJB;
+
+/**
+ * 期限付きで確保（ホールド）した在庫数量を管理し、期限切れのホールドを
+ * タイマーによりまとめて在庫数量へ戻すシングルトン・セッションBean。
+ *
+ * ホールドはStockHoldとしてテーブルに保持され、在庫数量を差し引くのと
+ * 同じトランザクションで追加される（InventoryEJB.reserve()）。確定・解放・
+ * 期限切れのいずれも、ホールドの行を削除できたトランザクションだけが
+ * 在庫数量を戻すため、同じホールドが二重に戻されることはない。
+ *
+ * 期限の時刻はReservationWheelのティック単位に丸めてSTOCK_HOLDの
+ * EXPIRY_BUCKET列に保持する。ホイールはどのティックにホールドが
+ * あるかをメモリ上で保持するだけで、期限切れのホールドがある場合にだけ
+ * EXPIRY_BUCKET列の索引を使ってテーブルから読み込む。ホールドがない
+ * ティックでデータベースにアクセスすることはない。起動時には
+ * テーブルのホールドをホイールに登録し直すため、サーバを再起動しても
+ * 確保していた在庫数量は期限切れの時点で在庫数量へ戻される。
+ *
+ * 期限切れのホールドはItem01エンティティごとに数量を合計し、
+ * sweep.batchSize件のホールドごとにひとつのトランザクションで
+ * データベースへ戻す。ホールドごとにトランザクションを開始することはない。
+ *
+ * 以下の環境エントリで動作を変更できる。
+ *
+ * ・reservation.tickMillis：ホイールのひとつのスロットが受け持つ時間
+ * ・reservation.slotCount：ホイールのスロット数
+ * ・reservation.sweepBatchSize：ひとつのトランザクションで在庫数量を
+ * 　戻すホールドの数
+ */
+@Singleton
+// 起動時にテーブルのホールドを読み込む
+@Startup
+// ホールドはスレッドセーフなReservationWheelで管理するため、
+// コンテナによる排他制御は行わない
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+// Bean管理トランザクションによるトランザクション制御を指定
+@TransactionManagement(TransactionManagementType.BEAN)
+public class StockReservationEJB {
+	private static final Logger logger = Logger.getLogger(StockReservationEJB.class.getName());
+
+	@PersistenceContext(unitName = "Chapter09ProductionPU")
+	private EntityManager em;
+
+	// StockHoldエンティティを管理する永続化ユニット
+	@PersistenceContext(unitName = "Chapter09StockPU")
+	private EntityManager stockEm;
+
+	// トランザクションを制御するためのUserTransactionを
+	// 注入する
+	@Resource
+	private UserTransaction userTransaction;
+
+	@EJB
+	private StockLevelCacheEJB stockLevelCache;
+
+	@EJB
+	private StockJournalEJB stockJournal;
+
+	// ホットに指定されたItem01エンティティの在庫数量はメモリ上へ戻すために注入
+	@EJB
+	private HotItemStockLedgerEJB hotItemStockLedger;
+
+	// 在庫数量を増減のイベントで管理している場合は入庫のイベントとして戻すために注入
+	@EJB
+	private EventSourcedStockEJB eventSourcedStock;
+
+	@Resource(name = "reservation.tickMillis")
+	private long tickMillis = 1000L;
+
+	@Resource(name = "reservation.slotCount")
+	private int slotCount = 3600;
+
+	@Resource(name = "reservation.sweepBatchSize")
+	private int sweepBatchSize = 100;
+
+	private ReservationWheel wheel;
+
+	/**
+	 * ホイールを作成し、テーブルに残っているホールドを登録する。
+	 *
+	 * トランザクションを開始せずに読み込むだけのため、読み込みに失敗しても
+	 * インスタンスの生成は失敗しない。その場合、読み込めなかったホールドは
+	 * 期限切れとなっても在庫数量へ戻されないため、警告を記録する。
+	 */
+	@PostConstruct
+	void createWheel() {
+		wheel = new ReservationWheel(slotCount, tickMillis, System.currentTimeMillis());
+		try {
+			List<StockHold> holds = stockEm.createQuery(
+					"SELECT h FROM StockHold h ORDER BY h.expiryBucket", StockHold.class)
+					.getResultList();
+			for (StockHold hold : holds) {
+				track(hold);
+			}
+			if (!holds.isEmpty()) {
+				logger.info("Reloaded " + holds.size() + " stock holds");
+			}
+		} catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Failed to reload stock holds; they will not expire until restart", e);
+		}
+	}
+
+	/**
+	 * 在庫数量を確保したホールドを作成する。
+	 *
+	 * 作成したホールドは、呼び出し元が在庫数量を差し引くトランザクションで
+	 * 永続化し、コミットした後にtrack()で登録する。
+	 *
+	 * @param itemId Item01エンティティのID
+	 * @param quantity 確保した数量
+	 * @param ttlMillis ホールドの有効期間（ミリ秒）
+	 * @return 永続化されていないホールド
+	 */
+	public StockHold newHold(Long itemId, int quantity, long ttlMillis) {
+		long expiresAt = System.currentTimeMillis() + ttlMillis;
+		return new StockHold(itemId, quantity, expiresAt, expiresAt / tickMillis);
+	}
+
+	/**
+	 * 永続化したホールドを、期限切れの時点で在庫数量へ戻すよう登録する。
+	 *
+	 * @param hold 永続化したホールド
+	 */
+	public void track(StockHold hold) {
+		wheel.add(new Hold(hold.getId(), hold.getItemId(), hold.getQuantity(), hold.getExpiresAt()));
+	}
+
+	/**
+	 * 確定・解放によりテーブルから削除したホールドの登録を取り除く。
+	 *
+	 * @param holdId ホールドのID
+	 */
+	public void forget(long holdId) {
+		wheel.remove(holdId);
+	}
+
+	/**
+	 * 保持しているホールドの数を返す。
+	 */
+	public int getHoldCount() {
+		return wheel.size();
+	}
+
+	/**
+	 * 期限切れのホールドを在庫数量へ戻す。
+	 *
+	 * ホイールに期限切れのホールドがある場合にだけ、EXPIRY_BUCKET列が
+	 * 現在のティック以前のホールドをsweepBatchSize件ずつ読み込み、
+	 * ひとつのトランザクションで削除して在庫数量へ戻す。Item01エンティティ
+	 * ごとに数量を合計し、IDの昇順に（在庫引き当てと同じ順序で行ロックを
+	 * 取得するため）更新する。トランザクションが失敗した場合、
+	 * ホールドは次回のタイマーで再度戻す。
+	 *
+	 * @return 在庫数量を戻したホールドの数
+	 */
+	@Schedule(hour = "*", minute = "*", second = "*", persistent = false)
+	public int sweepExpired() {
+		long now = System.currentTimeMillis();
+		List<Hold> expired = wheel.pollExpired(now);
+		if (expired.isEmpty()) {
+			return 0;
+		}
+
+		int restored = 0;
+		for (;;) {
+			int count = restoreBatch(now / tickMillis);
+			if (count < 0) {
+				// 戻せなかったホールドは次回のタイマーで戻す
+				for (Hold hold : expired) {
+					wheel.add(new Hold(hold.getId(), hold.getItemId(), hold.getQuantity(), 0L));
+				}
+				break;
+			}
+			restored += count;
+			if (count < sweepBatchSize) {
+				break;
+			}
+		}
+		return restored;
+	}
+
+	// 期限切れのホールドをひとつのトランザクションで戻し、読み込んだ数を返す
+	// （失敗した場合は－１）
+	private int restoreBatch(long bucket) {
+		try {
+			// トランザクションを開始
+			userTransaction.begin();
+
+			List<StockHold> holds = stockEm.createQuery(
+					"SELECT h FROM StockHold h WHERE h.expiryBucket <= :bucket " +
+					"ORDER BY h.expiryBucket", StockHold.class)
+					.setParameter("bucket", bucket)
+					.setMaxResults(sweepBatchSize)
+					.getResultList();
+
+			// 確定・解放と同時に削除された場合は戻さない
+			Map<Long, Integer> byItem = new TreeMap<Long, Integer>();
+			for (StockHold hold : holds) {
+				if (deleteHold(hold.getId())) {
+					Integer quantity = byItem.get(hold.getItemId());
+					byItem.put(hold.getItemId(),
+							(quantity == null ? 0 : quantity) + hold.getQuantity());
+				}
+			}
+			for (Map.Entry<Long, Integer> entry : byItem.entrySet()) {
+				restore(entry.getKey(), entry.getValue());
+			}
+
+			// トランザクションをコミット
+			userTransaction.commit();
+
+			for (StockHold hold : holds) {
+				wheel.remove(hold.getId());
+			}
+			return holds.size();
+		} catch (Exception e) {
+			logger.log(Level.WARNING, "Failed to restore expired holds; retrying on next sweep", e);
+			try {
+				// 例外がスローされた場合は、トランザクションをロールバック
+				userTransaction.rollback();
+			} catch (Exception ex) {
+				logger.log(Level.WARNING, "Rollback failed", ex);
+			}
+			return -1;
+		}
+	}
+
+	// 確保していた在庫数量を戻す
+	// （ホットに指定されたItem01エンティティの場合は、メモリ上の在庫数量へ戻し、
+	// 増減のイベントで管理している場合は、入庫のイベントを追加する）
+	private void restore(Long itemId, int quantity) {
+		if (eventSourcedStock.isEnabled()) {
+			eventSourcedStock.add(itemId, quantity);
+		} else if (hotItemStockLedger.isHot(itemId)) {
+			hotItemStockLedger.restock(itemId, quantity);
+		} else {
+			em.createQuery(
+					"UPDATE Item01 i SET i.availableInStock = i.availableInStock + :quantity " +
+					"WHERE i.id = :id")
+					.setParameter("quantity", quantity)
+					.setParameter("id", itemId)
+					.executeUpdate();
+			stockLevelCache.invalidateOnCommit(itemId);
+		}
+		stockJournal.recordOnCommit(itemId, quantity);
+	}
+
+	// ホールドの行を削除し、削除できた場合はtrueを返す
+	// （確定・解放により既に削除されていた場合はfalse）
+	private boolean deleteHold(long holdId) {
+		return stockEm.createQuery("DELETE FROM StockHold h WHERE h.id = :id")
+				.setParameter("id", holdId)
+				.executeUpdate() == 1;
+	}
+}
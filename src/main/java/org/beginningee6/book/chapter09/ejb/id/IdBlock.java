@@ -0,0 +1,70 @@
+package org.beginningee6.book.chapter09.ejb.id;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * IDを払い出すテーブルごとに、次に確保するブロックの先頭のIDを保持する
+ * エンティティ。
+ *
+ * すべてのノードはこの行の行ロックを取得してブロックを確保するため、
+ * 同じIDが複数のノードに払い出されることはない。
+ *
+ * このエンティティはChapter09StockPUで管理される。
+ */
+@Entity
+@Table(name = "ID_BLOCK")
+public class IdBlock {
+
+	@Id
+	@Column(name = "SEQUENCE_NAME")
+	private String sequenceName;
+
+	@Column(name = "NEXT_HI", nullable = false)
+	private long nextHi;
+
+	// 払い出したIDが使用されたかどうかを数えるためのテーブルと列
+	@Column(name = "TARGET_TABLE", nullable = false)
+	private String targetTable;
+
+	@Column(name = "TARGET_COLUMN", nullable = false)
+	private String targetColumn;
+
+	public IdBlock() {
+	}
+
+	public IdBlock(String sequenceName, String targetTable, String targetColumn, long nextHi) {
+		this.sequenceName = sequenceName;
+		this.targetTable = targetTable;
+		this.targetColumn = targetColumn;
+		this.nextHi = nextHi;
+	}
+
+	public String getSequenceName() {
+		return sequenceName;
+	}
+
+	public long getNextHi() {
+		return nextHi;
+	}
+
+	public void setNextHi(long nextHi) {
+		this.nextHi = nextHi;
+	}
+
+	public String getTargetTable() {
+		return targetTable;
+	}
+
+	public String getTargetColumn() {
+		return targetColumn;
+	}
+
+	@Override
+	public String toString() {
+		return "IdBlock [sequenceName=" + sequenceName + ", nextHi=" + nextHi
+				+ ", targetTable=" + targetTable + ", targetColumn=" + targetColumn + "]";
+	}
+}
@@ -0,0 +1,78 @@
+package org.beginningee6.book.chapter09.ejb.id;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * ノードが最後に確保したIDのブロックを記録するエンティティ。
+ *
+ * ノードを再起動すると、払い出していなかったブロックの残りは使われない。
+ * 起動時にこの記録と実際にテーブルに挿入された行を突き合わせることで、
+ * 再起動によって無駄になったIDの数を求める。
+ *
+ * このエンティティはChapter09StockPUで管理される。
+ */
+@Entity
+@Table(name = "ID_LEASE",
+		uniqueConstraints = @UniqueConstraint(columnNames = { "SEQUENCE_NAME", "NODE_NAME" }))
+public class IdLease {
+
+	@Id
+	@GeneratedValue
+	private Long id;
+
+	@Column(name = "SEQUENCE_NAME", nullable = false)
+	private String sequenceName;
+
+	@Column(name = "NODE_NAME", nullable = false)
+	private String nodeName;
+
+	@Column(name = "BLOCK_START", nullable = false)
+	private long blockStart;
+
+	@Column(name = "BLOCK_END", nullable = false)
+	private long blockEnd;
+
+	public IdLease() {
+	}
+
+	public IdLease(String sequenceName, String nodeName) {
+		this.sequenceName = sequenceName;
+		this.nodeName = nodeName;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public String getSequenceName() {
+		return sequenceName;
+	}
+
+	public String getNodeName() {
+		return nodeName;
+	}
+
+	public long getBlockStart() {
+		return blockStart;
+	}
+
+	public long getBlockEnd() {
+		return blockEnd;
+	}
+
+	public void setBlock(long blockStart, long blockEnd) {
+		this.blockStart = blockStart;
+		this.blockEnd = blockEnd;
+	}
+
+	@Override
+	public String toString() {
+		return "IdLease [sequenceName=" + sequenceName + ", nodeName=" + nodeName
+				+ ", blockStart=" + blockStart + ", blockEnd=" + blockEnd + "]";
+	}
+}
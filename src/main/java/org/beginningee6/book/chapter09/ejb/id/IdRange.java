@@ -0,0 +1,74 @@
+package org.beginningee6.book.chapter09.ejb.id;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * データベースから確保したひとつのIDのブロック（startからendまで）。
+ *
+ * next()はAtomicLongのgetAndIncrement()だけでIDを払い出すため、
+ * 複数のスレッドから同時に呼び出してもロックを取得しない。
+ * ブロックを使い切った後は、呼び出し元が新しいブロックを確保する。
+ */
+public class IdRange {
+
+	/**
+	 * ブロックを使い切ったことを表すnext()の戻り値。
+	 */
+	public static final long EXHAUSTED = -1L;
+
+	private final long start;
+
+	private final long end;
+
+	private final AtomicLong next;
+
+	/**
+	 * @param start ブロックの最初のID
+	 * @param size ブロックに含まれるIDの数
+	 */
+	public IdRange(long start, int size) {
+		if (size < 1) {
+			throw new IllegalArgumentException("size must be positive: " + size);
+		}
+		this.start = start;
+		this.end = start + size - 1;
+		this.next = new AtomicLong(start);
+	}
+
+	/**
+	 * 次のIDを払い出す。
+	 *
+	 * @return ID。ブロックを使い切っている場合はEXHAUSTED
+	 */
+	public long next() {
+		long id = next.getAndIncrement();
+		return id <= end ? id : EXHAUSTED;
+	}
+
+	public long getStart() {
+		return start;
+	}
+
+	public long getEnd() {
+		return end;
+	}
+
+	/**
+	 * これまでに払い出したIDの数を返す。
+	 */
+	public long getIssued() {
+		return Math.min(next.get(), end + 1) - start;
+	}
+
+	/**
+	 * まだ払い出していないIDの数を返す。
+	 */
+	public long getRemaining() {
+		return end - start + 1 - getIssued();
+	}
+
+	@Override
+	public String toString() {
+		return "IdRange [start=" + start + ", end=" + end + ", issued=" + getIssued() + "]";
+	}
+}
@@ -0,0 +1,322 @@
+package org.beginningee6.book.chapter09.ejb.id;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJBException;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.Timeout;
+import javax.ejb.Timer;
+import javax.ejb.TimerConfig;
+import javax.ejb.TimerService;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+
+/**
+ * テーブルごとにIDのブロックをデータベースから確保し、エンティティの
+ * IDをメモリ上で払い出すシングルトン・セッションBean（hi/lo方式）。
+ *
+ * ブロックの確保はID_BLOCKの行の行ロックを取得する短いトランザクション
+ * （REQUIRES_NEW）で行い、呼び出し元のトランザクションには含めない。
+ * ブロックの大きさは環境エントリids.blockSizeで指定する。ブロックの中の
+ * IDはIdRangeからロックを取得せずに払い出すため、永続化のたびに
+ * データベースへ往復することはなく、ID生成で処理が直列化されることもない。
+ *
+ * ブロックはノードごとに確保されるため、ノード間でIDの順序は保証されない。
+ * また、ノードを再起動するとブロックの残りは使われずに無駄になる。
+ * その数は起動時にID_LEASEの記録から求め、getWastedOnRestart()で返す。
+ *
+ * IdBlockエンティティとIdLeaseエンティティは、Chapter09StockPUで管理される。
+ */
+@Singleton
+@Startup
+// 払い出し中のブロックはスレッドセーフなIdRangeで管理するため、
+// コンテナによる排他制御は行わない
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class PooledIdAllocatorEJB {
+	private static final Logger logger = Logger.getLogger(PooledIdAllocatorEJB.class.getName());
+
+	@PersistenceContext(unitName = "Chapter09StockPU")
+	private EntityManager em;
+
+	// ブロックの確保と起動時の計測を別のトランザクションで行うために注入
+	@Resource
+	private SessionContext ctx;
+
+	// 起動時の計測をインスタンスの生成後に行うために注入
+	@Resource
+	private TimerService timerService;
+
+	// 一度に確保するIDの数
+	@Resource(name = "ids.blockSize")
+	private int blockSize = 100;
+
+	// 最初のブロックの先頭のIDの下限
+	// Chapter09ProductionPUのID生成が払い出すIDと重ならないよう、
+	// それより十分に大きな値とする
+	@Resource(name = "ids.initialValue")
+	private long initialValue = 1000000000L;
+
+	// シーケンス名（テーブル名）ごとの払い出し中のブロック
+	private final ConcurrentMap<String, IdRange> ranges
+		= new ConcurrentHashMap<String, IdRange>();
+
+	// ブロックを確保する処理をシーケンス名ごとに直列化するためのロック
+	private final ConcurrentMap<String, Object> reserveLocks
+		= new ConcurrentHashMap<String, Object>();
+
+	// シーケンス名ごとの、再起動によって無駄になったIDの数
+	private final ConcurrentMap<String, Long> wastedOnRestart
+		= new ConcurrentHashMap<String, Long>();
+
+	private final AtomicLong blocksReserved = new AtomicLong();
+	private final AtomicLong idsIssued = new AtomicLong();
+
+	private final String nodeName = nodeName();
+
+	/**
+	 * 起動の直後に、再起動によって無駄になったIDを数えるタイマーを作成する。
+	 *
+	 * 計測はmeasureRestartWaste()を別のトランザクションで呼び出して行うため、
+	 * インスタンスの生成が終わってからタイマーで実行する。
+	 */
+	@PostConstruct
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	void scheduleRestartWasteMeasurement() {
+		timerService.createSingleActionTimer(0L, new TimerConfig(null, false));
+	}
+
+	/**
+	 * タイマーから呼び出され、measureRestartWaste()で数えた結果を
+	 * getWastedOnRestart()で返せるよう保持する。
+	 */
+	@Timeout
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	void measureRestartWasteOnStartup(Timer timer) {
+		PooledIdAllocatorEJB self = ctx.getBusinessObject(PooledIdAllocatorEJB.class);
+		try {
+			wastedOnRestart.putAll(self.measureRestartWaste());
+		} catch (RuntimeException e) {
+			// 計測のトランザクションはロールバックされるが、
+			// IDの払い出しには影響しない
+			logger.warning("Failed to measure ids wasted on restart: " + e);
+		}
+	}
+
+	/**
+	 * 前回の起動時にこのノードが確保したブロックのうち、実際にテーブルに
+	 * 挿入されなかったIDの数を数える。
+	 *
+	 * ロールバックされたトランザクションで払い出したIDも、ここで無駄になった
+	 * IDとして数えられる。数えたブロックの記録は、次に起動したときに同じ
+	 * ブロックを数えないよう削除する。
+	 *
+	 * 起動時にタイマーから呼び出される。このノードで払い出し中のブロックも
+	 * 数えて記録を削除するため、それ以外では呼び出さないこと。
+	 *
+	 * @return シーケンス名ごとの、無駄になったIDの数
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public Map<String, Long> measureRestartWaste() {
+		Map<String, Long> wasted = new HashMap<String, Long>();
+		List<IdLease> leases = em.createQuery(
+				"SELECT l FROM IdLease l WHERE l.nodeName = :nodeName", IdLease.class)
+				.setParameter("nodeName", nodeName)
+				.getResultList();
+		for (IdLease lease : leases) {
+			IdBlock block = em.find(IdBlock.class, lease.getSequenceName());
+			if (block != null) {
+				long used = countIds(block, lease.getBlockStart(), lease.getBlockEnd());
+				long unused = lease.getBlockEnd() - lease.getBlockStart() + 1 - used;
+				wasted.put(lease.getSequenceName(), unused);
+
+				logger.info(unused + " ids of " + lease.getSequenceName() + " wasted on restart of node " + nodeName);
+			}
+
+			// 次に起動したときに同じブロックを数えないよう削除する
+			em.remove(lease);
+		}
+		return wasted;
+	}
+
+	/**
+	 * テーブルに挿入する行のIDを払い出す。
+	 *
+	 * 払い出し中のブロックに残りがあれば、データベースにアクセスせずに
+	 * 返す。使い切っていれば、新しいブロックを確保してから返す。
+	 *
+	 * @param sequenceName IDを払い出すシーケンスの名前
+	 * @param targetTable IDを使用するテーブル
+	 * @param targetColumn IDを格納する列
+	 * @return ID
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long nextId(String sequenceName, String targetTable, String targetColumn) {
+		IdRange range = ranges.get(sequenceName);
+		if (range != null) {
+			long id = range.next();
+			if (id != IdRange.EXHAUSTED) {
+				idsIssued.incrementAndGet();
+				return id;
+			}
+		}
+
+		synchronized (reserveLockFor(sequenceName)) {
+			// 他のスレッドが既に新しいブロックを確保していれば、そこから払い出す
+			range = ranges.get(sequenceName);
+			long id = range != null ? range.next() : IdRange.EXHAUSTED;
+			if (id == IdRange.EXHAUSTED) {
+				range = new IdRange(reserve(sequenceName, targetTable, targetColumn), blockSize);
+				ranges.put(sequenceName, range);
+				id = range.next();
+			}
+			idsIssued.incrementAndGet();
+			return id;
+		}
+	}
+
+	/**
+	 * ID_BLOCKの行の行ロックを取得して、新しいブロックを確保する。
+	 *
+	 * 行が無い場合は、テーブルの既存の行のIDと環境エントリids.initialValueの
+	 * 大きい方から始まる行を作成する。確保したブロックは、再起動時に
+	 * 無駄になったIDを数えるためにID_LEASEに記録する。
+	 *
+	 * @return 確保したブロックの先頭のID
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public long reserveBlock(String sequenceName, String targetTable, String targetColumn, int size) {
+		IdBlock block = em.find(IdBlock.class, sequenceName, LockModeType.PESSIMISTIC_WRITE);
+		if (block == null) {
+			long first = Math.max(initialValue, maxId(targetTable, targetColumn) + 1);
+			block = new IdBlock(sequenceName, targetTable, targetColumn, first);
+			em.persist(block);
+		}
+
+		long start = block.getNextHi();
+		block.setNextHi(start + size);
+
+		List<IdLease> leases = em.createQuery(
+				"SELECT l FROM IdLease l WHERE l.sequenceName = :sequenceName AND l.nodeName = :nodeName",
+				IdLease.class)
+				.setParameter("sequenceName", sequenceName)
+				.setParameter("nodeName", nodeName)
+				.getResultList();
+		IdLease lease = leases.isEmpty() ? new IdLease(sequenceName, nodeName) : leases.get(0);
+		lease.setBlock(start, start + size - 1);
+		if (leases.isEmpty()) {
+			em.persist(lease);
+		}
+
+		blocksReserved.incrementAndGet();
+		return start;
+	}
+
+	/**
+	 * このノードで確保したブロックの数を返す。
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getBlocksReserved() {
+		return blocksReserved.get();
+	}
+
+	/**
+	 * このノードで払い出したIDの数を返す。
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getIdsIssued() {
+		return idsIssued.get();
+	}
+
+	/**
+	 * 払い出し中のブロックに残っている、シーケンス名ごとのIDの数を返す。
+	 * 今ノードを停止すると、これらのIDは無駄になる。
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public Map<String, Long> getIdsRemaining() {
+		Map<String, Long> remaining = new HashMap<String, Long>();
+		for (Map.Entry<String, IdRange> entry : ranges.entrySet()) {
+			remaining.put(entry.getKey(), entry.getValue().getRemaining());
+		}
+		return remaining;
+	}
+
+	/**
+	 * 前回の起動時に確保したブロックのうち、使われなかったIDの数を
+	 * シーケンス名ごとに返す。
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public Map<String, Long> getWastedOnRestart() {
+		return new HashMap<String, Long>(wastedOnRestart);
+	}
+
+	private long reserve(String sequenceName, String targetTable, String targetColumn) {
+		PooledIdAllocatorEJB self = ctx.getBusinessObject(PooledIdAllocatorEJB.class);
+		try {
+			return self.reserveBlock(sequenceName, targetTable, targetColumn, blockSize);
+		} catch (EJBException e) {
+			// 他のノードが同時にID_BLOCKの行を作成した場合は、
+			// 作成された行からもう一度確保する
+			logger.info("Retrying to reserve id block of " + sequenceName + ": " + e);
+			return self.reserveBlock(sequenceName, targetTable, targetColumn, blockSize);
+		}
+	}
+
+	private Object reserveLockFor(String sequenceName) {
+		Object lock = reserveLocks.get(sequenceName);
+		if (lock == null) {
+			Object created = new Object();
+			lock = reserveLocks.putIfAbsent(sequenceName, created);
+			if (lock == null) {
+				lock = created;
+			}
+		}
+		return lock;
+	}
+
+	private long maxId(String table, String column) {
+		Number max = (Number) em.createNativeQuery(
+				"SELECT MAX(" + column + ") FROM " + table)
+				.getSingleResult();
+		return max != null ? max.longValue() : 0L;
+	}
+
+	private long countIds(IdBlock block, long start, long end) {
+		Number count = (Number) em.createNativeQuery(
+				"SELECT COUNT(*) FROM " + block.getTargetTable()
+				+ " WHERE " + block.getTargetColumn() + " BETWEEN ?1 AND ?2")
+				.setParameter(1, start)
+				.setParameter(2, end)
+				.getSingleResult();
+		return count.longValue();
+	}
+
+	private static String nodeName() {
+		// JBoss ASのノード名。設定されていなければホスト名を使用する
+		String name = System.getProperty("jboss.node.name");
+		if (name != null) {
+			return name;
+		}
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "localhost";
+		}
+	}
+}
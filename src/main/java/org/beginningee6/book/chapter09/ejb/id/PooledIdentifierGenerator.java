@@ -0,0 +1,64 @@
+package org.beginningee6.book.chapter09.ejb.id;
+
+import java.io.Serializable;
+import java.util.Properties;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+
+import org.hibernate.HibernateException;
+import org.hibernate.MappingException;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.id.Configurable;
+import org.hibernate.id.IdentifierGenerator;
+import org.hibernate.id.PersistentIdentifierGenerator;
+import org.hibernate.type.Type;
+
+/**
+ * PooledIdAllocatorEJBからエンティティのIDを取得するHibernateの
+ * ID生成クラス。
+ *
+ * 永続化ユニットの中で、このクラスのインスタンスはエンティティ（テーブル）
+ * ごとに生成される。テーブル名をシーケンス名として、テーブルごとに別の
+ * ブロックからIDを払い出す。
+ *
+ * このパッケージのpackage-info.javaで、「pooledIds」という名前で
+ * 定義している。
+ */
+public class PooledIdentifierGenerator implements IdentifierGenerator, Configurable {
+
+	static final String ALLOCATOR_NAME = "java:module/PooledIdAllocatorEJB";
+
+	private String targetTable;
+
+	private String targetColumn;
+
+	private volatile PooledIdAllocatorEJB allocator;
+
+	@Override
+	public void configure(Type type, Properties params, Dialect dialect) throws MappingException {
+		targetTable = params.getProperty(PersistentIdentifierGenerator.TABLE);
+		targetColumn = params.getProperty(PersistentIdentifierGenerator.PK);
+	}
+
+	@Override
+	public Serializable generate(SessionImplementor session, Object object) throws HibernateException {
+		return allocator().nextId(targetTable, targetTable, targetColumn);
+	}
+
+	private PooledIdAllocatorEJB allocator() {
+		// ID生成クラスは永続化ユニットの起動時に生成されるため、
+		// EJBへの参照は最初に使用するときに取得する
+		PooledIdAllocatorEJB result = allocator;
+		if (result == null) {
+			try {
+				result = (PooledIdAllocatorEJB) new InitialContext().lookup(ALLOCATOR_NAME);
+			} catch (NamingException e) {
+				throw new HibernateException("Failed to look up " + ALLOCATOR_NAME, e);
+			}
+			allocator = result;
+		}
+		return result;
+	}
+}
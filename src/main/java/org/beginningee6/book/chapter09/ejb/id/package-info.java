@@ -0,0 +1,11 @@
+/**
+ * エンティティのIDをブロック単位で確保して払い出す（hi/lo方式）クラス。
+ *
+ * META-INF/orm-pooled-ids.xmlで、エンティティのIDの生成方法を
+ * ここで定義した「pooledIds」に置き換える。
+ */
+@GenericGenerator(name = "pooledIds",
+		strategy = "org.beginningee6.book.chapter09.ejb.id.PooledIdentifierGenerator")
+package org.beginningee6.book.chapter09.ejb.id;
+
+import org.hibernate.annotations.GenericGenerator;
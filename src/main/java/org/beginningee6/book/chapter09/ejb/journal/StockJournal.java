@@ -0,0 +1,273 @@
+package org.beginningee6.book.chapter09.ejb.journal;
+
+import static org.beginningee6.book.chapter09.ejb.journal.StockJournalFormat.*;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Item01エンティティの在庫数量の増減を、固定長のレコードとして追記する
+ * ジャーナル。
+ *
+ * レコードは、FileChannel.map()でメモリにマップしたセグメントファイルに
+ * 書き込む。書き込みはメモリへのコピーだけで終わり、システムコールを
+ * 発行しない。セグメントに収まらなくなった場合は、次の番号のセグメント
+ * ファイルを作成して記録を続ける（ファイルの形式はStockJournalFormatを参照）。
+ *
+ * ディスクへの同期（MappedByteBuffer.force()）はレコードごとには行わず、
+ * 以下のいずれかに該当した時点でまとめて行う。同期していないレコードは、
+ * OSが異常終了した場合に失われることがある（プロセスの異常終了では
+ * 失われない）。
+ *
+ * ・同期していないレコードの数がsyncBatchSizeに達した
+ * ・前回の同期からsyncIntervalMillisが経過した後に記録した、または
+ * 　syncIfDue()が呼び出された
+ *
+ * append()に渡した増減はひとつのトランザクションとして、同じトランザクション
+ * IDを付けて同じセグメントに記録する。
+ *
+ * 既存のジャーナルを開いた場合は、最後のセグメントから最後のトランザクション
+ * IDを求め、新しいセグメントに記録を続ける。異常終了により壊れたレコードが
+ * 残っている場合でも、その後ろに追記することはない。
+ *
+ * このクラスはスレッドセーフである。
+ */
+public class StockJournal implements Closeable {
+
+	private final File directory;
+
+	private final int segmentSize;
+
+	private final int syncBatchSize;
+
+	private final long syncIntervalMillis;
+
+	private RandomAccessFile file;
+
+	private FileChannel channel;
+
+	private MappedByteBuffer segment;
+
+	private long segmentNumber;
+
+	// 次のレコードを書き込むセグメント内の位置
+	private int position;
+
+	private long lastTransactionId;
+
+	// 同期していないレコードの数と、前回同期した時刻
+	private int unsyncedRecords;
+	private long lastSyncAt;
+
+	private long appendedRecords;
+	private long appendedTransactions;
+	private long syncs;
+
+	private boolean closed;
+
+	private final byte[] scratch = new byte[RECORD_SIZE];
+
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * @param directory セグメントファイルを置くディレクトリ（ない場合は作成する）
+	 * @param segmentSize セグメントファイルの長さ（バイト）
+	 * @param syncBatchSize 同期せずに記録するレコードの数の上限
+	 * @param syncIntervalMillis 同期せずに記録する時間の上限
+	 */
+	public StockJournal(File directory, int segmentSize, int syncBatchSize, long syncIntervalMillis)
+			throws IOException {
+		if (segmentSize < HEADER_SIZE + RECORD_SIZE) {
+			throw new IllegalArgumentException("segmentSize must be at least "
+					+ (HEADER_SIZE + RECORD_SIZE) + ": " + segmentSize);
+		}
+		if (syncBatchSize <= 0 || syncIntervalMillis < 0) {
+			throw new IllegalArgumentException("invalid sync policy: syncBatchSize="
+					+ syncBatchSize + ", syncIntervalMillis=" + syncIntervalMillis);
+		}
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create journal directory: " + directory);
+		}
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		this.syncBatchSize = syncBatchSize;
+		this.syncIntervalMillis = syncIntervalMillis;
+
+		File[] segments = listSegments(directory);
+		if (segments.length == 0) {
+			openSegment(1L, 0L);
+		} else {
+			long lastSegment = recover(segments[segments.length - 1]);
+			openSegment(lastSegment + 1, lastTransactionId);
+		}
+		lastSyncAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * ひとつのトランザクションで行われた在庫数量の増減を記録する。
+	 *
+	 * @param movements 在庫数量の増減（記録する順）
+	 * @return 記録したレコードに付けたトランザクションID
+	 * @throws IllegalArgumentException 増減がない場合、またはひとつのセグメントに収まらない場合
+	 */
+	public synchronized long append(List<StockMovement> movements) throws IOException {
+		checkOpen();
+		int required = movements.size() * RECORD_SIZE;
+		if (required == 0 || HEADER_SIZE + required > segmentSize) {
+			throw new IllegalArgumentException(
+					"movements must fit in one segment: " + movements.size() + " movements");
+		}
+		if (position + required > segment.limit()) {
+			roll();
+		}
+
+		long transactionId = ++lastTransactionId;
+		long now = System.currentTimeMillis();
+		for (StockMovement movement : movements) {
+			writeRecord(segment, position, scratch, crc,
+					movement.getItemId(), movement.getDelta(), now, transactionId);
+			position += RECORD_SIZE;
+		}
+		appendedRecords += movements.size();
+		appendedTransactions++;
+		unsyncedRecords += movements.size();
+
+		if (unsyncedRecords >= syncBatchSize || now - lastSyncAt >= syncIntervalMillis) {
+			sync();
+		}
+		return transactionId;
+	}
+
+	/**
+	 * 同期していないレコードがあれば、ただちにディスクへ同期する。
+	 */
+	public synchronized void sync() {
+		if (closed || unsyncedRecords == 0) {
+			return;
+		}
+		segment.force();
+		syncs++;
+		unsyncedRecords = 0;
+		lastSyncAt = System.currentTimeMillis();
+	}
+
+	/**
+	 * 前回の同期からsyncIntervalMillisが経過していれば、同期していない
+	 * レコードをディスクへ同期する。
+	 *
+	 * 記録が途絶えた場合でも、同期していないレコードが残り続けないよう、
+	 * タイマーなどから定期的に呼び出すこと。
+	 *
+	 * @return 同期した場合はtrue
+	 */
+	public synchronized boolean syncIfDue() {
+		if (unsyncedRecords == 0 || System.currentTimeMillis() - lastSyncAt < syncIntervalMillis) {
+			return false;
+		}
+		sync();
+		return true;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public synchronized long getSegmentNumber() {
+		return segmentNumber;
+	}
+
+	public synchronized long getLastTransactionId() {
+		return lastTransactionId;
+	}
+
+	public synchronized long getAppendedRecords() {
+		return appendedRecords;
+	}
+
+	public synchronized long getAppendedTransactions() {
+		return appendedTransactions;
+	}
+
+	public synchronized long getSyncs() {
+		return syncs;
+	}
+
+	public synchronized int getUnsyncedRecords() {
+		return unsyncedRecords;
+	}
+
+	/**
+	 * 同期していないレコードを同期してから、セグメントファイルを閉じる。
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		sync();
+		closed = true;
+		closeSegment();
+	}
+
+	/**
+	 * 既存の最後のセグメントを読み、最後のトランザクションIDを求める。
+	 *
+	 * @return セグメントの番号
+	 */
+	private long recover(File last) throws IOException {
+		RandomAccessFile existing = new RandomAccessFile(last, "r");
+		try {
+			FileChannel existingChannel = existing.getChannel();
+			MappedByteBuffer existingSegment
+				= existingChannel.map(FileChannel.MapMode.READ_ONLY, 0, existingChannel.size());
+			lastTransactionId = readHeader(existingSegment, last);
+			for (int i = HEADER_SIZE; readRecord(existingSegment, i, scratch, crc); i += RECORD_SIZE) {
+				lastTransactionId = Math.max(lastTransactionId, transactionId(scratch));
+			}
+			return existingSegment.getLong(16);
+		} finally {
+			existing.close();
+		}
+	}
+
+	private void roll() throws IOException {
+		// 前のセグメントのレコードは、次のセグメントより先に同期しておく
+		sync();
+		closeSegment();
+		openSegment(segmentNumber + 1, lastTransactionId);
+	}
+
+	private void openSegment(long number, long previousTransactionId) throws IOException {
+		File segmentFile = segmentFile(directory, number);
+		if (segmentFile.exists()) {
+			throw new IOException("Journal segment already exists: " + segmentFile);
+		}
+		file = new RandomAccessFile(segmentFile, "rw");
+		file.setLength(segmentSize);
+		channel = file.getChannel();
+		segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+		writeHeader(segment, number, previousTransactionId);
+		segment.force();
+
+		segmentNumber = number;
+		position = HEADER_SIZE;
+	}
+
+	private void closeSegment() throws IOException {
+		// マップした領域は、チャネルを閉じた後もガベージコレクションまで残る
+		channel.close();
+		file.close();
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new IOException("Journal is closed: " + directory);
+		}
+	}
+}
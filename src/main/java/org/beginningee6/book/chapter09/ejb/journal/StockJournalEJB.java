@@ -0,0 +1,226 @@
+package org.beginningee6.book.chapter09.ejb.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJBException;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * Item01エンティティの在庫数量の増減を、StockJournalに監査証跡として
+ * 記録するシングルトン・セッションBean。
+ *
+ * 増減ごとに監査用の行を同じトランザクションでINSERTすると、在庫数量の
+ * 更新と同じだけの書き込みがデータベースに加わる。このBeanは、増減を
+ * トランザクションごとにメモリ上にまとめ、トランザクションの完了時
+ * （Synchronization.afterCompletion()）にコミットされた場合にだけ
+ * ジャーナルへ追記する。ロールバックされた増減は記録されない。
+ *
+ * 記録するのは、ex01のInventoryEJB（ItemEJBのcreateItem()（リクエストIDを
+ * 指定するものを含む）、createItems()、createItemAsync()による商品の登録）と、
+ * ex03とex05のItemEJB、InventoryEJBおよびStockReservationEJBがItem01
+ * エンティティの在庫数量を増減するすべての経路（商品の登録、入庫、
+ * ロック方式を指定した引き当て、条件付きUPDATEによる引き当て、複数商品の
+ * 引き当て、ホットおよびバケットに分割したItem01エンティティの引き当て、
+ * 期限付きの確保とその解放・期限切れによる返却）である。
+ * バケットの分割・統合・再配分とHotItemStockLedgerEJBによるデータベースへの
+ * 反映は、在庫数量の合計を変えないため記録しない（ホットなItem01
+ * エンティティの引き当ては、引き当てた時点で記録する）。トランザクションの
+ * 外で呼び出された場合は、ただちに記録する。
+ * ex04のサンプルは記録の対象外である。
+ *
+ * コミットの後に記録するため、コミットから記録までの間にサーバが
+ * 異常終了した場合、そのトランザクションの増減は記録されない。
+ *
+ * 以下の環境エントリで記録先と同期の方針を指定できる。
+ *
+ * ・journal.directory：セグメントファイルを置くディレクトリ。
+ * 　指定がない場合は、一時ディレクトリのchapter09-stock-journal
+ * ・journal.segmentSize：セグメントファイルの長さ（バイト）
+ * ・journal.syncBatchSize：同期せずに記録するレコードの数の上限
+ * ・journal.syncIntervalMillis：同期せずに記録する時間の上限。
+ * 　タイマーにより１秒ごとに確認する
+ *
+ * アンデプロイ時には、同期していないレコードを同期してジャーナルを閉じる。
+ */
+@Singleton
+@Startup
+// 記録はスレッドセーフなStockJournalで行うため、コンテナによる排他制御は行わない
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class StockJournalEJB {
+	private static final Logger logger = Logger.getLogger(StockJournalEJB.class.getName());
+
+	// トランザクションごとの増減をTransactionSynchronizationRegistryに保持するキー
+	private static final String MOVEMENTS_KEY = StockJournalEJB.class.getName() + ".movements";
+
+	// トランザクション完了時の処理を登録するために注入
+	@Resource
+	private TransactionSynchronizationRegistry txSyncRegistry;
+
+	@Resource(name = "journal.directory")
+	private String directory = new File(System.getProperty("java.io.tmpdir"), "chapter09-stock-journal").getPath();
+
+	@Resource(name = "journal.segmentSize")
+	private int segmentSize = 64 * 1024 * 1024;
+
+	@Resource(name = "journal.syncBatchSize")
+	private int syncBatchSize = 1000;
+
+	@Resource(name = "journal.syncIntervalMillis")
+	private long syncIntervalMillis = 1000L;
+
+	private StockJournal journal;
+
+	// 記録に失敗したトランザクションの数
+	private final AtomicLong failedTransactions = new AtomicLong();
+
+	@PostConstruct
+	void open() {
+		try {
+			journal = new StockJournal(new File(directory), segmentSize, syncBatchSize, syncIntervalMillis);
+		} catch (IOException e) {
+			throw new EJBException("Cannot open stock journal: " + directory, e);
+		}
+		logger.info("Stock journal opened in " + directory + " at segment " + journal.getSegmentNumber());
+	}
+
+	@PreDestroy
+	void close() {
+		try {
+			journal.close();
+		} catch (IOException e) {
+			logger.log(Level.WARNING, "Cannot close stock journal: " + directory, e);
+		}
+	}
+
+	/**
+	 * 呼び出し元のトランザクションがコミットされた時点で、Item01
+	 * エンティティの在庫数量の増減をジャーナルに記録する。
+	 *
+	 * 同じトランザクションで記録した増減は、同じトランザクションIDを
+	 * 付けてまとめて記録する。トランザクションがない場合は、ただちに記録する。
+	 *
+	 * @param itemId Item01エンティティのID
+	 * @param delta 在庫数量の増減（入庫は正、引き当ては負の値）
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public void recordOnCommit(Long itemId, int delta) {
+		if (delta == 0) {
+			return;
+		}
+		StockMovement movement = new StockMovement(itemId, delta);
+
+		if (txSyncRegistry.getTransactionKey() == null) {
+			append(Collections.singletonList(movement));
+			return;
+		}
+
+		@SuppressWarnings("unchecked")
+		List<StockMovement> movements = (List<StockMovement>) txSyncRegistry.getResource(MOVEMENTS_KEY);
+		if (movements == null) {
+			final List<StockMovement> registered = new ArrayList<StockMovement>();
+			txSyncRegistry.putResource(MOVEMENTS_KEY, registered);
+			txSyncRegistry.registerInterposedSynchronization(new Synchronization() {
+				public void beforeCompletion() {
+				}
+
+				public void afterCompletion(int status) {
+					if (status == Status.STATUS_COMMITTED) {
+						append(registered);
+					}
+				}
+			});
+			movements = registered;
+		}
+		movements.add(movement);
+	}
+
+	/**
+	 * ジャーナルの先頭からすべてのレコードを再生し、Item01エンティティの
+	 * IDごとの在庫数量を求める。
+	 *
+	 * @return Item01エンティティのIDと、ジャーナルに記録された増減の合計
+	 * @see StockJournalReader#rebuildStockLevels()
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public Map<Long, Long> rebuildStockLevels() {
+		StockJournalReader reader = null;
+		try {
+			reader = new StockJournalReader(journal.getDirectory());
+			return reader.rebuildStockLevels();
+		} catch (IOException e) {
+			throw new EJBException("Cannot replay stock journal: " + directory, e);
+		} finally {
+			if (reader != null) {
+				reader.close();
+			}
+		}
+	}
+
+	/**
+	 * 前回の同期からjournal.syncIntervalMillisが経過していれば、
+	 * 同期していないレコードをディスクへ同期する。
+	 */
+	@Schedule(hour = "*", minute = "*", second = "*", persistent = false)
+	public void syncIfDue() {
+		journal.syncIfDue();
+	}
+
+	/**
+	 * 同期していないレコードを、ただちにディスクへ同期する。
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public void sync() {
+		journal.sync();
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getAppendedRecords() {
+		return journal.getAppendedRecords();
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getAppendedTransactions() {
+		return journal.getAppendedTransactions();
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getSyncs() {
+		return journal.getSyncs();
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getFailedTransactions() {
+		return failedTransactions.get();
+	}
+
+	private void append(List<StockMovement> movements) {
+		try {
+			journal.append(movements);
+		} catch (IOException e) {
+			// トランザクションは既にコミットされているため、記録の失敗を
+			// 呼び出し元に通知することはできない
+			failedTransactions.incrementAndGet();
+			logger.log(Level.SEVERE, "Cannot append to stock journal: " + movements, e);
+		}
+	}
+}
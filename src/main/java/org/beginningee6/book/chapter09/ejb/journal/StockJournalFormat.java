@@ -0,0 +1,156 @@
+package org.beginningee6.book.chapter09.ejb.journal;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * StockJournalのセグメントファイルの形式。
+ *
+ * セグメントファイルは、先頭の32バイトのヘッダと、それに続く32バイト
+ * 固定長のレコードからなる。数値はすべてビッグエンディアンで格納する。
+ *
+ * ヘッダ：
+ * 　0　int　　マジックナンバー（"SJNL"）
+ * 　4　int　　形式のバージョン
+ * 　8　int　　レコードの長さ
+ * 　12　int　　（予約）
+ * 　16　long　セグメントの番号
+ * 　24　long　セグメントを作成した時点の最後のトランザクションID
+ *
+ * レコード：
+ * 　0　long　Item01エンティティのID
+ * 　8　int　　在庫数量の増減
+ * 　12　long　記録した時刻（エポックからのミリ秒）
+ * 　20　long　トランザクションID
+ * 　28　int　　先頭28バイトのCRC-32
+ *
+ * セグメントファイルは作成時にセグメントの長さまで０で埋められるため、
+ * CRC-32が一致しないレコードを、そのセグメントの記録の終わりとみなす。
+ * 書き込みの途中で異常終了した場合の壊れたレコードも同様に扱われる。
+ */
+final class StockJournalFormat {
+
+	static final int MAGIC = 0x534A4E4C;
+
+	static final int VERSION = 1;
+
+	static final int HEADER_SIZE = 32;
+
+	static final int RECORD_SIZE = 32;
+
+	private static final int CHECKED_SIZE = RECORD_SIZE - 4;
+
+	private static final String PREFIX = "stock-journal-";
+
+	private static final String SUFFIX = ".seg";
+
+	private static final FilenameFilter SEGMENTS = new FilenameFilter() {
+		public boolean accept(File dir, String name) {
+			return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+		}
+	};
+
+	private StockJournalFormat() {
+	}
+
+	/**
+	 * セグメントの番号に対応するファイルを返す。
+	 */
+	static File segmentFile(File directory, long segment) {
+		return new File(directory, PREFIX + String.format("%020d", segment) + SUFFIX);
+	}
+
+	/**
+	 * ディレクトリ内のセグメントファイルを、セグメントの番号の順に返す。
+	 */
+	static File[] listSegments(File directory) throws IOException {
+		File[] files = directory.listFiles(SEGMENTS);
+		if (files == null) {
+			throw new IOException("Not a directory: " + directory);
+		}
+		// 番号は０で埋めた固定長のため、名前の順が番号の順となる
+		Arrays.sort(files);
+		return files;
+	}
+
+	static void writeHeader(ByteBuffer segment, long segmentNumber, long lastTransactionId) {
+		segment.putInt(0, MAGIC);
+		segment.putInt(4, VERSION);
+		segment.putInt(8, RECORD_SIZE);
+		segment.putInt(12, 0);
+		segment.putLong(16, segmentNumber);
+		segment.putLong(24, lastTransactionId);
+	}
+
+	/**
+	 * ヘッダを検証し、セグメントを作成した時点の最後のトランザクションIDを返す。
+	 *
+	 * @throws IOException StockJournalのセグメントファイルではない場合
+	 */
+	static long readHeader(ByteBuffer segment, File file) throws IOException {
+		if (segment.limit() < HEADER_SIZE
+				|| segment.getInt(0) != MAGIC
+				|| segment.getInt(4) != VERSION
+				|| segment.getInt(8) != RECORD_SIZE) {
+			throw new IOException("Not a stock journal segment: " + file);
+		}
+		return segment.getLong(24);
+	}
+
+	/**
+	 * レコードをscratchに組み立て、CRC-32を付けてsegmentのpositionの位置に書き込む。
+	 */
+	static void writeRecord(ByteBuffer segment, int position, byte[] scratch, CRC32 crc,
+			long itemId, int delta, long timestamp, long transactionId) {
+		ByteBuffer record = ByteBuffer.wrap(scratch);
+		record.putLong(itemId);
+		record.putInt(delta);
+		record.putLong(timestamp);
+		record.putLong(transactionId);
+		crc.reset();
+		crc.update(scratch, 0, CHECKED_SIZE);
+		record.putInt((int) crc.getValue());
+
+		ByteBuffer target = segment.duplicate();
+		target.position(position);
+		target.put(scratch, 0, RECORD_SIZE);
+	}
+
+	/**
+	 * segmentのpositionの位置のレコードをscratchに読み込む。
+	 *
+	 * @return CRC-32が一致する場合はtrue、記録の終わり（または壊れたレコード）の場合はfalse
+	 */
+	static boolean readRecord(ByteBuffer segment, int position, byte[] scratch, CRC32 crc) {
+		if (position + RECORD_SIZE > segment.limit()) {
+			return false;
+		}
+		ByteBuffer source = segment.duplicate();
+		source.position(position);
+		source.get(scratch, 0, RECORD_SIZE);
+
+		crc.reset();
+		crc.update(scratch, 0, CHECKED_SIZE);
+		return ByteBuffer.wrap(scratch).getInt(CHECKED_SIZE) == (int) crc.getValue();
+	}
+
+	static long itemId(byte[] record) {
+		return ByteBuffer.wrap(record).getLong(0);
+	}
+
+	static int delta(byte[] record) {
+		return ByteBuffer.wrap(record).getInt(8);
+	}
+
+	static long timestamp(byte[] record) {
+		return ByteBuffer.wrap(record).getLong(12);
+	}
+
+	static long transactionId(byte[] record) {
+		return ByteBuffer.wrap(record).getLong(20);
+	}
+}
@@ -0,0 +1,149 @@
+package org.beginningee6.book.chapter09.ejb.journal;
+
+import static org.beginningee6.book.chapter09.ejb.journal.StockJournalFormat.*;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * StockJournalのセグメントファイルを、セグメントの番号の順にメモリに
+ * マップし、記録されたレコードを先頭から順に読み取るリーダー。
+ *
+ * 各セグメントは、CRC-32が一致しない最初のレコードまでを読み取る。
+ * 読み取りはStockJournalによる記録と同時に行える。その場合、リーダーを
+ * 作成した後に作成されたセグメントは読み取らない。
+ *
+ * このクラスはスレッドセーフではない。
+ */
+public class StockJournalReader implements Closeable {
+
+	private final File[] segments;
+
+	private int segmentIndex = -1;
+
+	private MappedByteBuffer segment;
+
+	// 次のレコードのセグメント内の位置
+	private int position;
+
+	private long recordNumber;
+
+	private final byte[] record = new byte[RECORD_SIZE];
+
+	private final CRC32 crc = new CRC32();
+
+	public StockJournalReader(File directory) throws IOException {
+		this.segments = listSegments(directory);
+	}
+
+	/**
+	 * 次のレコードへ進む。
+	 *
+	 * @return レコードがある場合はtrue、ジャーナルの終わりに達した場合はfalse
+	 * @throws IOException StockJournalのセグメントファイルではないファイルがある場合など
+	 */
+	public boolean next() throws IOException {
+		for (;;) {
+			if (segment != null && readRecord(segment, position, record, crc)) {
+				position += RECORD_SIZE;
+				recordNumber++;
+				return true;
+			}
+			if (segmentIndex + 1 >= segments.length) {
+				segment = null;
+				return false;
+			}
+			map(segments[++segmentIndex]);
+		}
+	}
+
+	/**
+	 * 現在のレコードのItem01エンティティのIDを返す。
+	 */
+	public long getItemId() {
+		return itemId(record);
+	}
+
+	/**
+	 * 現在のレコードの在庫数量の増減を返す。
+	 */
+	public int getDelta() {
+		return delta(record);
+	}
+
+	/**
+	 * 現在のレコードを記録した時刻（エポックからのミリ秒）を返す。
+	 */
+	public long getTimestamp() {
+		return timestamp(record);
+	}
+
+	/**
+	 * 現在のレコードのトランザクションIDを返す。
+	 */
+	public long getTransactionId() {
+		return transactionId(record);
+	}
+
+	/**
+	 * 現在のレコードが、ジャーナルの何番目のレコードか（１から始まる）を返す。
+	 */
+	public long getRecordNumber() {
+		return recordNumber;
+	}
+
+	/**
+	 * 残りのレコードの増減を、Item01エンティティのIDごとにlevelsに加える。
+	 *
+	 * @param levels Item01エンティティのIDと在庫数量。ジャーナルにあってlevelsに
+	 *        ないIDは、在庫数量０から加える
+	 */
+	public void replay(Map<Long, Long> levels) throws IOException {
+		while (next()) {
+			Long itemId = getItemId();
+			Long level = levels.get(itemId);
+			levels.put(itemId, (level != null ? level : 0L) + getDelta());
+		}
+	}
+
+	/**
+	 * 残りのレコードを再生し、Item01エンティティのIDごとの在庫数量を求める。
+	 *
+	 * ジャーナルの先頭から読み取った場合、ジャーナルに記録された増減の
+	 * 合計を返す。ジャーナルを開始する前の在庫数量や、ジャーナルに
+	 * 記録されない方法で更新された在庫数量は含まれない。
+	 *
+	 * @return Item01エンティティのIDと在庫数量（IDの昇順）
+	 */
+	public Map<Long, Long> rebuildStockLevels() throws IOException {
+		Map<Long, Long> levels = new TreeMap<Long, Long>();
+		replay(levels);
+		return levels;
+	}
+
+	@Override
+	public void close() {
+		segment = null;
+		segmentIndex = segments.length;
+	}
+
+	private void map(File segmentFile) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(segmentFile, "r");
+		try {
+			// マップした領域は、ファイルを閉じた後も読み取れる
+			FileChannel channel = file.getChannel();
+			segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			file.close();
+		}
+		readHeader(segment, segmentFile);
+		position = HEADER_SIZE;
+	}
+}
@@ -0,0 +1,40 @@
+package org.beginningee6.book.chapter09.ejb.journal;
+
+import java.io.Serializable;
+
+/**
+ * StockJournalに記録する、Item01エンティティの在庫数量の増減。
+ *
+ * 記録した時刻とトランザクションIDは、StockJournalが記録する時点で付与する。
+ */
+public final class StockMovement implements Serializable {
+	private static final long serialVersionUID = 1L;
+
+	private final long itemId;
+
+	private final int delta;
+
+	public StockMovement(long itemId, int delta) {
+		this.itemId = itemId;
+		this.delta = delta;
+	}
+
+	/**
+	 * Item01エンティティのIDを返す。
+	 */
+	public long getItemId() {
+		return itemId;
+	}
+
+	/**
+	 * 在庫数量の増減を返す。入庫は正、引き当ては負の値となる。
+	 */
+	public int getDelta() {
+		return delta;
+	}
+
+	@Override
+	public String toString() {
+		return "StockMovement[itemId=" + itemId + ", delta=" + delta + "]";
+	}
+}
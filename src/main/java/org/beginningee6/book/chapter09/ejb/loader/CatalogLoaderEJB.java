@@ -0,0 +1,247 @@
+package org.beginningee6.book.chapter09.ejb.loader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Resource;
+import javax.ejb.AsyncResult;
+import javax.ejb.Asynchronous;
+import javax.ejb.EJBException;
+import javax.ejb.SessionContext;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+/**
+ * 数GBのカタログのCSVファイルを読み込み、Item01、Book02、CD02の
+ * エンティティとして永続化するEJB。
+ *
+ * CSVの解析と永続化はパイプラインとして並行に行う。
+ *
+ * １．解析：＠Asynchronousメソッドparse()が、MappedCsvReaderでファイルを
+ * 　　メモリにマップして読み込み、chunkSize件ごとのチャンクにまとめて
+ * 　　キューに入れる。
+ * ２．永続化：load()を呼び出したスレッドが、キューからチャンクを取り出し、
+ * 　　persistChunk()でチャンクごとに新しいトランザクションで永続化する。
+ *
+ * 永続化している間に次のチャンクの解析が進むため、データベースが
+ * 解析を待つことはほとんどない。キューに入れられるチャンクの数は
+ * queueCapacityに制限されるため、解析が先行しすぎてヒープを
+ * 消費することもない。
+ */
+@Stateless
+public class CatalogLoaderEJB {
+
+	// 解析の終わりを表すチャンク
+	private static final List<Object> END_OF_INPUT = Collections.emptyList();
+
+	private static final long OFFER_TIMEOUT_MILLIS = 100L;
+
+	@PersistenceContext(unitName = "Chapter09ProductionPU")
+	private EntityManager em;
+
+	// 非同期メソッドと新しいトランザクションのメソッドを呼び出すために、
+	// 自身のビジネスオブジェクトを取得するSession Contextを注入
+	@Resource
+	private SessionContext ctx;
+
+	/**
+	 * CSVファイルを読み込み、エンティティとして永続化する。
+	 *
+	 * いずれかのチャンクの永続化が失敗した場合は、解析を中止し、解析が
+	 * 止まるのを待ってからEJBExceptionをスローする。
+	 * それまでにコミットしたチャンクは取り消されない。
+	 *
+	 * @param csv 読み込むCSVファイル
+	 * @param type レコードの種類
+	 * @param skipHeader 先頭のレコードを見出しとして読み飛ばす場合はtrue
+	 * @param chunkSize ひとつのトランザクションで永続化する件数
+	 * @param queueCapacity 解析済みで永続化を待つチャンクの数の上限
+	 * @return 読み込んだ件数と所要時間
+	 */
+	// このメソッド自体はトランザクションを開始しない
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public LoadResult load(File csv, CatalogRecordType type, boolean skipHeader,
+			int chunkSize, int queueCapacity) {
+		if (chunkSize <= 0 || queueCapacity <= 0) {
+			throw new IllegalArgumentException(
+					"chunkSize and queueCapacity must be positive: " + chunkSize + ", " + queueCapacity);
+		}
+
+		CatalogLoaderEJB self = ctx.getBusinessObject(CatalogLoaderEJB.class);
+		BlockingQueue<List<Object>> chunks = new ArrayBlockingQueue<List<Object>>(queueCapacity);
+		AtomicBoolean cancelled = new AtomicBoolean();
+
+		long start = System.nanoTime();
+		Future<Long> parser = null;
+
+		long records = 0;
+		int chunkCount = 0;
+		long persistNanos = 0;
+		long idleNanos = 0;
+		try {
+			parser = self.parse(csv, type, skipHeader, chunkSize, chunks, cancelled);
+
+			for (;;) {
+				long waitStart = System.nanoTime();
+				List<Object> chunk = chunks.poll(OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+				idleNanos += System.nanoTime() - waitStart;
+				if (chunk == null) {
+					// 解析が異常終了していないか確認する
+					if (parser.isDone() && chunks.isEmpty()) {
+						parser.get();
+						break;
+					}
+					continue;
+				}
+				if (chunk == END_OF_INPUT) {
+					break;
+				}
+
+				long persistStart = System.nanoTime();
+				self.persistChunk(chunk);
+				persistNanos += System.nanoTime() - persistStart;
+				records += chunk.size();
+				chunkCount++;
+			}
+
+			// 解析で例外がスローされていた場合はここで通知される
+			parser.get();
+		} catch (InterruptedException e) {
+			cancelled.set(true);
+			Thread.currentThread().interrupt();
+			throw new EJBException("Interrupted after " + records + " records were committed", e);
+		} catch (ExecutionException e) {
+			throw new EJBException("Failed to parse " + csv + " after " + records
+					+ " records were committed", toException(e.getCause()));
+		} catch (IOException e) {
+			// 非同期メソッドの例外は通常Future.get()で通知される
+			throw new EJBException("Failed to parse " + csv + " after " + records
+					+ " records were committed", e);
+		} catch (RuntimeException e) {
+			cancelled.set(true);
+			// 解析が止まり、ファイルが閉じられるのを待ってから通知する
+			long parsed = awaitParser(parser);
+			throw new EJBException("Failed to persist chunk " + chunkCount + " of " + csv
+					+ " after " + records + " records were committed; parsing cancelled after "
+					+ parsed + " records", e);
+		}
+
+		return new LoadResult(records, chunkCount, System.nanoTime() - start, persistNanos, idleNanos);
+	}
+
+	/**
+	 * load()から非同期に呼び出され、CSVファイルを解析してチャンクをキューに入れる。
+	 *
+	 * 最後に解析の終わりを表す空のチャンクをキューに入れる。
+	 * 直接呼び出さずにload()を使用すること。
+	 *
+	 * キューに入れるのを待つ間に割り込まれた場合は、解析の終わりを
+	 * キューに入れずにInterruptedExceptionをスローする。例外はFuture.get()で
+	 * 通知されるため、load()は途中までの件数を正常終了として返さずに失敗する。
+	 *
+	 * @return 解析したレコードの件数
+	 * @throws InterruptedException キューに入れるのを待つ間に割り込まれた場合
+	 */
+	@Asynchronous
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public Future<Long> parse(File csv, CatalogRecordType type, boolean skipHeader, int chunkSize,
+			BlockingQueue<List<Object>> chunks, AtomicBoolean cancelled)
+			throws IOException, InterruptedException {
+		long records = 0;
+		MappedCsvReader reader = new MappedCsvReader(csv);
+		try {
+			if (skipHeader) {
+				reader.next();
+			}
+
+			List<Object> chunk = new ArrayList<Object>(chunkSize);
+			while (reader.next()) {
+				chunk.add(type.map(reader));
+				records++;
+				if (chunk.size() == chunkSize) {
+					if (!put(chunks, chunk, cancelled)) {
+						return new AsyncResult<Long>(records);
+					}
+					chunk = new ArrayList<Object>(chunkSize);
+				}
+			}
+			if (!chunk.isEmpty() && !put(chunks, chunk, cancelled)) {
+				return new AsyncResult<Long>(records);
+			}
+			put(chunks, END_OF_INPUT, cancelled);
+		} finally {
+			reader.close();
+		}
+		return new AsyncResult<Long>(records);
+	}
+
+	/**
+	 * ひとつのチャンクのエンティティを新しいトランザクションで永続化する。
+	 *
+	 * すべてのエンティティをフラッシュした後、永続コンテキストをクリアして
+	 * からコミットする。
+	 *
+	 * @param chunk 永続化するエンティティ
+	 */
+	// チャンクごとに新しいトランザクションを開始し、メソッド完了時にコミットする
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public void persistChunk(List<Object> chunk) {
+		for (Object entity : chunk) {
+			em.persist(entity);
+		}
+		em.flush();
+		em.clear();
+	}
+
+	// 永続化が中止された場合に待ち続けないよう、一定時間ごとに確認しながら
+	// キューに入れる
+	private static boolean put(BlockingQueue<List<Object>> chunks, List<Object> chunk,
+			AtomicBoolean cancelled) throws InterruptedException {
+		while (!chunks.offer(chunk, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+			if (cancelled.get()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// 中止された解析が終わるまで待ち、解析したレコードの件数を返す。
+	// 解析自体が失敗していた場合は-1を返す
+	private static long awaitParser(Future<Long> parser) {
+		if (parser == null) {
+			return 0L;
+		}
+		boolean interrupted = false;
+		try {
+			for (;;) {
+				try {
+					return parser.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					return -1L;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private static Exception toException(Throwable cause) {
+		return cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+	}
+}
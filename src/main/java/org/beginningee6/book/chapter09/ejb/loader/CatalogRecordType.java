@@ -0,0 +1,71 @@
+package org.beginningee6.book.chapter09.ejb.loader;
+
+import org.beginningee6.book.chapter09.jpa.ex01.Item01;
+import org.beginningee6.book.chapter09.jpa.ex02.Book02;
+
+/**
+ * CatalogLoaderEJBで読み込むCSVのレコードの種類と、各フィールドから
+ * エンティティを組み立てる方法。
+ */
+public enum CatalogRecordType {
+
+	/**
+	 * title,price,description[,availableInStock]
+	 */
+	ITEM01 {
+		@Override
+		public Object map(MappedCsvReader r) {
+			Item01 item = new Item01();
+			item.setTitle(r.getString(0));
+			item.setPrice(r.getFloat(1));
+			item.setDescription(r.getString(2));
+			if (r.getFieldCount() > 3 && !r.isEmpty(3)) {
+				item.setAvailableInStock(r.getInt(3));
+			}
+			return item;
+		}
+	},
+
+	/**
+	 * title,price,description,isbn,nbOfPage,illustrations
+	 */
+	BOOK02 {
+		@Override
+		public Object map(MappedCsvReader r) {
+			Book02 book = new Book02();
+			book.setTitle(r.getString(0));
+			book.setPrice(r.getFloat(1));
+			book.setDescription(r.getString(2));
+			book.setIsbn(r.getString(3));
+			book.setNbOfPage(r.getInt(4));
+			book.setIllustrations(r.getBoolean(5));
+			return book;
+		}
+	},
+
+	/**
+	 * title,price,description,musicCompany,numberOfCDs,totalDuration,gender
+	 */
+	CD02 {
+		@Override
+		public Object map(MappedCsvReader r) {
+			return new org.beginningee6.book.chapter09.jpa.ex02.CD02(
+					r.getString(0),
+					r.getFloat(1),
+					r.getString(2),
+					null,
+					r.getString(3),
+					r.getInt(4),
+					r.getFloat(5),
+					r.getString(6));
+		}
+	};
+
+	/**
+	 * 現在のレコードからエンティティを組み立てる。
+	 *
+	 * @param r 読み込み中のレコードを指すMappedCsvReader
+	 * @return 組み立てたエンティティ
+	 */
+	public abstract Object map(MappedCsvReader r);
+}
@@ -0,0 +1,68 @@
+package org.beginningee6.book.chapter09.ejb.loader;
+
+import java.io.Serializable;
+
+/**
+ * CatalogLoaderEJB.load()で読み込んだレコードの件数と所要時間。
+ */
+public final class LoadResult implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long recordCount;
+
+	private final int chunkCount;
+
+	private final long elapsedNanos;
+
+	private final long persistNanos;
+
+	private final long persisterIdleNanos;
+
+	public LoadResult(long recordCount, int chunkCount, long elapsedNanos,
+			long persistNanos, long persisterIdleNanos) {
+		this.recordCount = recordCount;
+		this.chunkCount = chunkCount;
+		this.elapsedNanos = elapsedNanos;
+		this.persistNanos = persistNanos;
+		this.persisterIdleNanos = persisterIdleNanos;
+	}
+
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	public int getChunkCount() {
+		return chunkCount;
+	}
+
+	/**
+	 * 読み込みの開始から最後のチャンクのコミットまでの時間（ナノ秒）を返す。
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * チャンクの永続化とコミットに要した時間の合計（ナノ秒）を返す。
+	 */
+	public long getPersistNanos() {
+		return persistNanos;
+	}
+
+	/**
+	 * 永続化を行うスレッドが、解析済みのチャンクを待っていた時間の合計
+	 * （ナノ秒）を返す。この値が大きい場合、解析が永続化に追いついていない。
+	 */
+	public long getPersisterIdleNanos() {
+		return persisterIdleNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "LoadResult[records=" + recordCount + ", chunks=" + chunkCount
+				+ ", elapsedMillis=" + (elapsedNanos / 1000000L)
+				+ ", persistMillis=" + (persistNanos / 1000000L)
+				+ ", persisterIdleMillis=" + (persisterIdleNanos / 1000000L) + "]";
+	}
+}
@@ -0,0 +1,340 @@
+package org.beginningee6.book.chapter09.ejb.loader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * CSVファイルをFileChannel.map()でメモリにマップし、マップしたバッファから
+ * 直接レコードを読み取るリーダー。
+ *
+ * レコードごとに区切り文字の位置だけを記録し、フィールドの値は
+ * getInt()、getFloat()などでバッファのバイト列から直接変換する。
+ * Stringが生成されるのは、getString()で文字列のフィールドを
+ * 読み取る場合だけである。
+ *
+ * 数GBのファイルを扱えるよう、ファイルはwindowSizeバイトずつ
+ * マップし直しながら読み進める。ひとつのレコードはwindowSizeバイト
+ * 以下でなければならない。
+ *
+ * 以下の形式のCSVを前提とする。
+ *
+ * ・文字コードはUTF-8、フィールドの区切りはカンマ、レコードの区切りは
+ * 　LFまたはCRLF
+ * ・引用符によるエスケープには対応しない（フィールドの値にカンマや
+ * 　改行を含めることはできない）
+ * ・空行は読み飛ばす
+ *
+ * このクラスはスレッドセーフではない。
+ */
+public class MappedCsvReader implements Closeable {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+	private final RandomAccessFile file;
+
+	private final FileChannel channel;
+
+	private final long fileSize;
+
+	private final int windowSize;
+
+	private MappedByteBuffer window;
+
+	// マップしている領域の先頭のファイル上の位置
+	private long windowStart;
+
+	// 次のレコードの先頭（ウィンドウ内の位置）
+	private int position;
+
+	// 現在のレコードの各フィールドの開始位置と終了位置（ウィンドウ内の位置）
+	private int[] fieldStart = new int[16];
+	private int[] fieldEnd = new int[16];
+	private int fieldCount;
+
+	private long recordNumber;
+
+	private byte[] scratch = new byte[256];
+
+	public MappedCsvReader(File csv) throws IOException {
+		this(csv, DEFAULT_WINDOW_SIZE);
+	}
+
+	public MappedCsvReader(File csv, int windowSize) throws IOException {
+		if (windowSize <= 0) {
+			throw new IllegalArgumentException("windowSize must be positive: " + windowSize);
+		}
+		this.file = new RandomAccessFile(csv, "r");
+		this.channel = file.getChannel();
+		this.fileSize = channel.size();
+		this.windowSize = windowSize;
+		map(0L);
+	}
+
+	/**
+	 * 次のレコードへ進む。
+	 *
+	 * @return レコードがある場合はtrue、ファイルの終わりに達した場合はfalse
+	 * @throws IOException ひとつのレコードがwindowSizeバイトを超える場合など
+	 */
+	public boolean next() throws IOException {
+		for (;;) {
+			int end = findRecordEnd();
+			if (end < 0) {
+				// ウィンドウの終わりまでにレコードが終わっていない
+				if (windowStart + window.limit() >= fileSize) {
+					if (position >= window.limit()) {
+						return false;
+					}
+					// 最後のレコードに改行がない場合
+					end = window.limit();
+				} else {
+					if (position == 0) {
+						throw new IOException("Record " + (recordNumber + 1)
+								+ " is longer than the mapped window (" + windowSize + " bytes)");
+					}
+					// レコードの先頭からマップし直して再度探す
+					map(windowStart + position);
+					continue;
+				}
+			}
+
+			int recordStart = position;
+			position = Math.min(end + 1, window.limit());
+
+			int recordEnd = end;
+			if (recordEnd > recordStart && window.get(recordEnd - 1) == '\r') {
+				recordEnd--;
+			}
+			if (recordEnd == recordStart) {
+				// 空行は読み飛ばす
+				continue;
+			}
+
+			splitFields(recordStart, recordEnd);
+			recordNumber++;
+			return true;
+		}
+	}
+
+	/**
+	 * 現在のレコードのフィールド数を返す。
+	 */
+	public int getFieldCount() {
+		return fieldCount;
+	}
+
+	/**
+	 * 現在のレコードが、ファイルの何番目のレコードか（１から始まる）を返す。
+	 * 空行は数えない。
+	 */
+	public long getRecordNumber() {
+		return recordNumber;
+	}
+
+	/**
+	 * フィールドが空かどうかを返す。
+	 */
+	public boolean isEmpty(int field) {
+		checkField(field);
+		return fieldStart[field] == fieldEnd[field];
+	}
+
+	/**
+	 * フィールドの値を文字列として返す。空のフィールドはnullを返す。
+	 */
+	public String getString(int field) {
+		checkField(field);
+		int start = fieldStart[field];
+		int length = fieldEnd[field] - start;
+		if (length == 0) {
+			return null;
+		}
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+		}
+		for (int i = 0; i < length; i++) {
+			scratch[i] = window.get(start + i);
+		}
+		return new String(scratch, 0, length, UTF_8);
+	}
+
+	/**
+	 * フィールドの値を整数として返す。
+	 *
+	 * @throws NumberFormatException 整数として解釈できない場合
+	 */
+	public int getInt(int field) {
+		checkField(field);
+		int i = fieldStart[field];
+		int end = fieldEnd[field];
+		if (i == end) {
+			throw invalid(field, "int");
+		}
+
+		boolean negative = false;
+		byte b = window.get(i);
+		if (b == '-' || b == '+') {
+			negative = b == '-';
+			if (++i == end) {
+				throw invalid(field, "int");
+			}
+		}
+
+		long value = 0;
+		for (; i < end; i++) {
+			int digit = window.get(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw invalid(field, "int");
+			}
+			value = value * 10 + digit;
+			if (value > (long) Integer.MAX_VALUE + 1) {
+				throw invalid(field, "int");
+			}
+		}
+		value = negative ? -value : value;
+		if (value > Integer.MAX_VALUE) {
+			throw invalid(field, "int");
+		}
+		return (int) value;
+	}
+
+	/**
+	 * フィールドの値を小数として返す。
+	 *
+	 * 「-12.50」のような符号と小数点を含む10進数表記に対応する
+	 * （指数表記には対応しない）。
+	 *
+	 * @throws NumberFormatException 小数として解釈できない場合
+	 */
+	public float getFloat(int field) {
+		checkField(field);
+		int i = fieldStart[field];
+		int end = fieldEnd[field];
+		if (i == end) {
+			throw invalid(field, "float");
+		}
+
+		boolean negative = false;
+		byte b = window.get(i);
+		if (b == '-' || b == '+') {
+			negative = b == '-';
+			i++;
+		}
+
+		long mantissa = 0;
+		int scale = 0;
+		int digits = 0;
+		boolean fraction = false;
+		for (; i < end; i++) {
+			byte c = window.get(i);
+			if (c == '.' && !fraction) {
+				fraction = true;
+				continue;
+			}
+			int digit = c - '0';
+			if (digit < 0 || digit > 9) {
+				throw invalid(field, "float");
+			}
+			// floatの精度を超える桁は切り捨てる
+			if (digits < 18) {
+				mantissa = mantissa * 10 + digit;
+				digits++;
+				if (fraction) {
+					scale++;
+				}
+			} else if (!fraction) {
+				scale--;
+			}
+		}
+		if (digits == 0) {
+			throw invalid(field, "float");
+		}
+
+		double value = scale >= 0 ? mantissa / Math.pow(10, scale) : mantissa * Math.pow(10, -scale);
+		return (float) (negative ? -value : value);
+	}
+
+	/**
+	 * フィールドの値を真偽値として返す。
+	 *
+	 * 「true」（大文字・小文字を区別しない）または「1」の場合にtrueを返す。
+	 */
+	public boolean getBoolean(int field) {
+		checkField(field);
+		int start = fieldStart[field];
+		int length = fieldEnd[field] - start;
+		if (length == 1) {
+			return window.get(start) == '1';
+		}
+		if (length != 4) {
+			return false;
+		}
+		return (window.get(start) | 0x20) == 't'
+				&& (window.get(start + 1) | 0x20) == 'r'
+				&& (window.get(start + 2) | 0x20) == 'u'
+				&& (window.get(start + 3) | 0x20) == 'e';
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		file.close();
+	}
+
+	private void map(long start) throws IOException {
+		long size = Math.min((long) windowSize, fileSize - start);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+		windowStart = start;
+		position = 0;
+	}
+
+	private int findRecordEnd() {
+		int limit = window.limit();
+		for (int i = position; i < limit; i++) {
+			if (window.get(i) == '\n') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void splitFields(int recordStart, int recordEnd) {
+		fieldCount = 0;
+		int start = recordStart;
+		for (int i = recordStart; i <= recordEnd; i++) {
+			if (i == recordEnd || window.get(i) == ',') {
+				if (fieldCount == fieldStart.length) {
+					int[] grownStart = new int[fieldCount * 2];
+					int[] grownEnd = new int[fieldCount * 2];
+					System.arraycopy(fieldStart, 0, grownStart, 0, fieldCount);
+					System.arraycopy(fieldEnd, 0, grownEnd, 0, fieldCount);
+					fieldStart = grownStart;
+					fieldEnd = grownEnd;
+				}
+				fieldStart[fieldCount] = start;
+				fieldEnd[fieldCount] = i;
+				fieldCount++;
+				start = i + 1;
+			}
+		}
+	}
+
+	private void checkField(int field) {
+		if (field < 0 || field >= fieldCount) {
+			throw new IndexOutOfBoundsException("Record " + recordNumber + " has " + fieldCount
+					+ " fields: " + field);
+		}
+	}
+
+	private NumberFormatException invalid(int field, String type) {
+		return new NumberFormatException("Record " + recordNumber + ", field " + field
+				+ " is not a valid " + type + ": " + getString(field));
+	}
+}
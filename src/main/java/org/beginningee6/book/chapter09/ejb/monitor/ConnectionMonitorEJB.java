@@ -0,0 +1,147 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.management.ObjectName;
+
+/**
+ * InstrumentedDataSource（ベンチマークではInstrumentedDriverも）が記録した
+ * 計測値を、プラットフォームMBeanサーバにMBeanとして登録するシングルトン・
+ * セッションBean。
+ *
+ * サーバ上では、InstrumentedDataSourceBinderEJBが登録したデータソースを
+ * 使用するすべての永続化ユニット（Chapter09ProductionPU、Chapter09StockPU、
+ * Chapter09BatchPU）の接続が計測される。
+ *
+ * レイテンシの原因が、コネクションプールが空くのを待っていることに
+ * あるのか、SQL文の実行にあるのかを切り分けるために使用する。
+ * 取得待ち時間が長い場合はプールの大きさを、保持時間が長いビジネス
+ * メソッドはそのトランザクションの処理を見直す。
+ *
+ * >> org.beginningee6.book.chapter09:type=ConnectionMonitor
+ */
+@Singleton
+@Startup
+// 記録はスレッドセーフなConnectionStatisticsで保持するため、
+// コンテナによる排他制御は行わない
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class ConnectionMonitorEJB {
+
+	static final String OBJECT_NAME = "org.beginningee6.book.chapter09:type=ConnectionMonitor";
+
+	// 取得待ち時間の集計値のメソッド名と結果の種類
+	static final String ACQUIRE = "DataSource.getConnection()";
+	static final String WAITED = "WAITED";
+
+	// 保持時間の集計値の結果の種類
+	static final String HELD = "HELD";
+
+	private ObjectName objectName;
+
+	@PostConstruct
+	void register() {
+		objectName = MBeanRegistration.register(OBJECT_NAME, new ConnectionMonitor());
+	}
+
+	@PreDestroy
+	void unregister() {
+		MBeanRegistration.unregister(objectName);
+	}
+
+	/**
+	 * 接続の取得待ち時間の集計値を返す。
+	 */
+	public MethodLatencySnapshot getAcquireWait() {
+		return acquireWait();
+	}
+
+	/**
+	 * 接続を取得したビジネスメソッドごとの、接続の保持時間の集計値を返す。
+	 */
+	public List<MethodLatencySnapshot> getHoldTimes() {
+		return holdTimes();
+	}
+
+	/**
+	 * プリペアドステートメントのキャッシュのヒット率を返す。
+	 * 求められない場合は－１を返す。
+	 */
+	public double getStatementCacheHitRate() {
+		return ConnectionStatistics.getStatementCacheHitRate();
+	}
+
+	/**
+	 * すべての記録を破棄する。
+	 */
+	public void reset() {
+		ConnectionStatistics.reset();
+	}
+
+	static MethodLatencySnapshot acquireWait() {
+		return MethodLatencySnapshot.of(ACQUIRE, WAITED, ConnectionStatistics.getAcquireWait());
+	}
+
+	static List<MethodLatencySnapshot> holdTimes() {
+		List<MethodLatencySnapshot> snapshots = new ArrayList<MethodLatencySnapshot>();
+		for (Map.Entry<String, LatencyHistogram> entry : ConnectionStatistics.getHoldTimes().entrySet()) {
+			if (entry.getValue().getCount() > 0) {
+				snapshots.add(MethodLatencySnapshot.of(entry.getKey(), HELD, entry.getValue()));
+			}
+		}
+		return snapshots;
+	}
+
+	/**
+	 * MBeanサーバに登録する実体。EJBのプロキシではなく、このオブジェクトを
+	 * 登録する。
+	 */
+	static class ConnectionMonitor implements ConnectionMonitorMXBean {
+		@Override
+		public MethodLatencySnapshot getAcquireWait() {
+			return acquireWait();
+		}
+
+		@Override
+		public List<MethodLatencySnapshot> getHoldTimes() {
+			return holdTimes();
+		}
+
+		@Override
+		public long getStatementsRequested() {
+			return ConnectionStatistics.getStatementsRequested();
+		}
+
+		@Override
+		public long getStatementsPrepared() {
+			return ConnectionStatistics.getStatementsPrepared();
+		}
+
+		@Override
+		public double getStatementCacheHitRate() {
+			return ConnectionStatistics.getStatementCacheHitRate();
+		}
+
+		@Override
+		public long getStatementsBatched() {
+			return ConnectionStatistics.getStatementsBatched();
+		}
+
+		@Override
+		public long getBatchesExecuted() {
+			return ConnectionStatistics.getBatchesExecuted();
+		}
+
+		@Override
+		public void reset() {
+			ConnectionStatistics.reset();
+		}
+	}
+}
@@ -0,0 +1,53 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.util.List;
+
+/**
+ * データソースの接続とプリペアドステートメントの計測値を公開する
+ * MBeanのインタフェース。
+ *
+ * >> org.beginningee6.book.chapter09:type=ConnectionMonitor
+ */
+public interface ConnectionMonitorMXBean {
+
+	/**
+	 * 接続の取得待ち時間の集計値を返す。
+	 */
+	MethodLatencySnapshot getAcquireWait();
+
+	/**
+	 * 接続を取得したビジネスメソッドごとの、接続の保持時間の集計値を返す。
+	 */
+	List<MethodLatencySnapshot> getHoldTimes();
+
+	/**
+	 * プリペアドステートメントの要求数を返す。
+	 */
+	long getStatementsRequested();
+
+	/**
+	 * 物理接続でプリペアドステートメントを作成した回数を返す。
+	 */
+	long getStatementsPrepared();
+
+	/**
+	 * プリペアドステートメントのキャッシュのヒット率を返す。
+	 * 求められない場合は－１を返す。
+	 */
+	double getStatementCacheHitRate();
+
+	/**
+	 * バッチに追加された文の数を返す。
+	 */
+	long getStatementsBatched();
+
+	/**
+	 * 実行されたバッチの数を返す。
+	 */
+	long getBatchesExecuted();
+
+	/**
+	 * すべての記録を破棄する。
+	 */
+	void reset();
+}
@@ -0,0 +1,253 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * データソースの接続と、プリペアドステートメントの計測値を保持する。
+ *
+ * ・接続の取得待ち時間：InstrumentedDataSourceのgetConnection()に
+ * 　かかった時間（コネクションプールが空くまで待たされた時間を含む）
+ * ・接続の保持時間：接続を取得してからclose()するまでの時間。
+ * 　接続を取得したビジネスメソッドごとに記録する
+ * ・プリペアドステートメントの要求数：InstrumentedDataSourceの接続で
+ * 　prepareStatement()が呼び出された回数
+ * ・プリペアドステートメントの作成数：ベンチマークのInstrumentedDriverの物理接続で
+ * 　prepareStatement()が呼び出された回数（コネクションプールの
+ * 　ステートメント・キャッシュにヒットしなかった回数）
+ * ・ステートメント・キャッシュのヒット率：InstrumentedDriverを使用している
+ * 　場合は上の２つから、サーバ上ではコネクションプールの統計
+ * 　（PoolStatementCache）から求める
+ * ・バッチ更新：InstrumentedDataSourceの接続で作成したプリペアド
+ * 　ステートメントでaddBatch()とexecuteBatch()が呼び出された回数
+ *
+ * LatencyRegistryと同様に、アプリケーション（クラスローダ）ごとに
+ * ひとつのこのクラスで保持する。
+ */
+public final class ConnectionStatistics {
+
+	// ビジネスメソッドの外で取得された接続の保持時間を記録する名前
+	static final String OUTSIDE_BUSINESS_METHOD = "(outside business method)";
+
+	private static final LatencyHistogram ACQUIRE_WAIT = new LatencyHistogram();
+
+	private static final ConcurrentMap<String, LatencyHistogram> HOLD_TIMES
+		= new ConcurrentHashMap<String, LatencyHistogram>();
+
+	private static final AtomicLong STATEMENTS_REQUESTED = new AtomicLong();
+
+	private static final AtomicLong STATEMENTS_PREPARED = new AtomicLong();
+
+	private static final AtomicLong PHYSICAL_CONNECTIONS = new AtomicLong();
+
+	private static final AtomicLong STATEMENTS_BATCHED = new AtomicLong();
+
+	private static final AtomicLong BATCHES_EXECUTED = new AtomicLong();
+
+	// InstrumentedDriverが物理接続を開いたことがあるかどうか
+	// （reset()で物理接続の数を０に戻しても、プリペアドステートメントの
+	// 　作成数は引き続き数えられる）
+	private static volatile boolean driverInstrumented;
+
+	// ステートメント・キャッシュの統計を読み出すコネクションプールの名前
+	// （InstrumentedDataSourceBinderEJBが設定する）
+	private static volatile String[] monitoredPool;
+
+	// reset()の時点のコネクションプールのヒット数とミス数
+	private static volatile long[] poolBaseline = new long[2];
+
+	// 現在のスレッドで実行中のビジネスメソッド（LatencyInterceptorが設定する）
+	private static final ThreadLocal<String> CURRENT_METHOD = new ThreadLocal<String>();
+
+	private ConnectionStatistics() {
+	}
+
+	/**
+	 * 現在のスレッドで実行中のビジネスメソッドを設定する。
+	 *
+	 * @return それまで設定されていたビジネスメソッド。exit()に渡す
+	 */
+	static String enter(String method) {
+		String previous = CURRENT_METHOD.get();
+		CURRENT_METHOD.set(method);
+		return previous;
+	}
+
+	/**
+	 * enter()の前に設定されていたビジネスメソッドに戻す。
+	 */
+	static void exit(String previous) {
+		if (previous == null) {
+			CURRENT_METHOD.remove();
+		} else {
+			CURRENT_METHOD.set(previous);
+		}
+	}
+
+	static String currentMethod() {
+		String method = CURRENT_METHOD.get();
+		return method != null ? method : OUTSIDE_BUSINESS_METHOD;
+	}
+
+	static void recordAcquireWait(long nanos) {
+		ACQUIRE_WAIT.record(nanos);
+	}
+
+	static void recordHoldTime(String method, long nanos) {
+		LatencyHistogram histogram = HOLD_TIMES.get(method);
+		if (histogram == null) {
+			LatencyHistogram created = new LatencyHistogram();
+			histogram = HOLD_TIMES.putIfAbsent(method, created);
+			if (histogram == null) {
+				histogram = created;
+			}
+		}
+		histogram.record(nanos);
+	}
+
+	static void statementRequested() {
+		STATEMENTS_REQUESTED.incrementAndGet();
+	}
+
+	/**
+	 * 物理接続でプリペアドステートメントを作成したことを記録する。
+	 * ベンチマークのInstrumentedDriverから呼び出される。
+	 */
+	public static void statementPrepared() {
+		STATEMENTS_PREPARED.incrementAndGet();
+	}
+
+	static void statementBatched() {
+		STATEMENTS_BATCHED.incrementAndGet();
+	}
+
+	static void batchExecuted() {
+		BATCHES_EXECUTED.incrementAndGet();
+	}
+
+	/**
+	 * 物理接続を開いたことを記録する。
+	 * ベンチマークのInstrumentedDriverから呼び出される。
+	 */
+	public static void physicalConnectionOpened() {
+		driverInstrumented = true;
+		PHYSICAL_CONNECTIONS.incrementAndGet();
+	}
+
+	/**
+	 * ステートメント・キャッシュのヒット率を、指定したコネクションプールの
+	 * 統計から求めるようにする。名前を指定しない場合は求めない。
+	 *
+	 * @param poolNames プールの名前、またはJNDI名
+	 */
+	static void monitorPool(String... poolNames) {
+		if (poolNames.length == 0) {
+			monitoredPool = null;
+			return;
+		}
+		long[] counts = PoolStatementCache.read(poolNames);
+		poolBaseline = counts != null ? counts : new long[2];
+		monitoredPool = poolNames;
+	}
+
+	/**
+	 * 接続の取得待ち時間のヒストグラムを返す。
+	 */
+	public static LatencyHistogram getAcquireWait() {
+		return ACQUIRE_WAIT;
+	}
+
+	/**
+	 * 接続の保持時間のヒストグラムを、接続を取得したビジネスメソッドの
+	 * 名前の順に返す。
+	 */
+	public static Map<String, LatencyHistogram> getHoldTimes() {
+		return new TreeMap<String, LatencyHistogram>(HOLD_TIMES);
+	}
+
+	public static long getStatementsRequested() {
+		return STATEMENTS_REQUESTED.get();
+	}
+
+	public static long getStatementsPrepared() {
+		return STATEMENTS_PREPARED.get();
+	}
+
+	/**
+	 * バッチに追加された文の数（addBatch()の呼び出し回数）を返す。
+	 */
+	public static long getStatementsBatched() {
+		return STATEMENTS_BATCHED.get();
+	}
+
+	/**
+	 * 実行されたバッチの数（executeBatch()の呼び出し回数）を返す。
+	 */
+	public static long getBatchesExecuted() {
+		return BATCHES_EXECUTED.get();
+	}
+
+	public static long getPhysicalConnections() {
+		return PHYSICAL_CONNECTIONS.get();
+	}
+
+	static boolean isDriverInstrumented() {
+		return driverInstrumented;
+	}
+
+	/**
+	 * プリペアドステートメントの要求のうち、コネクションプールの
+	 * ステートメント・キャッシュから返されたものの割合を返す。
+	 *
+	 * InstrumentedDriverを使用している場合は、要求数と物理接続での
+	 * 作成数から求める。使用していない場合は、InstrumentedDataSourceBinderEJBが
+	 * 指定したコネクションプールの統計の、reset()からの差分で求める。
+	 * いずれも使用できない場合や、まだ要求が無い場合は－１を返す。
+	 */
+	public static double getStatementCacheHitRate() {
+		if (driverInstrumented) {
+			long requested = STATEMENTS_REQUESTED.get();
+			if (requested == 0) {
+				return -1.0;
+			}
+			return Math.max(0.0, 1.0 - (double) STATEMENTS_PREPARED.get() / requested);
+		}
+		String[] pool = monitoredPool;
+		long[] counts = pool != null ? PoolStatementCache.read(pool) : null;
+		if (counts == null) {
+			return -1.0;
+		}
+		long[] baseline = poolBaseline;
+		long hits = counts[0] - baseline[0];
+		long accesses = hits + counts[1] - baseline[1];
+		if (accesses <= 0) {
+			return -1.0;
+		}
+		return (double) hits / accesses;
+	}
+
+	/**
+	 * すべての記録を破棄する。
+	 */
+	public static void reset() {
+		ACQUIRE_WAIT.reset();
+		for (LatencyHistogram histogram : HOLD_TIMES.values()) {
+			histogram.reset();
+		}
+		STATEMENTS_REQUESTED.set(0);
+		STATEMENTS_PREPARED.set(0);
+		PHYSICAL_CONNECTIONS.set(0);
+		STATEMENTS_BATCHED.set(0);
+		BATCHES_EXECUTED.set(0);
+		String[] pool = monitoredPool;
+		if (pool != null) {
+			long[] counts = PoolStatementCache.read(pool);
+			if (counts != null) {
+				poolBaseline = counts;
+			}
+		}
+	}
+}
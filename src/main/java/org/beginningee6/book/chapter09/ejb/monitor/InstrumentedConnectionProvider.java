@@ -0,0 +1,34 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.util.Map;
+
+import org.hibernate.service.jdbc.connections.internal.DatasourceConnectionProviderImpl;
+
+/**
+ * 永続化ユニットのjta-data-sourceをInstrumentedDataSourceでラップする
+ * HibernateのConnectionProvider。
+ *
+ * 永続化ユニットのプロパティに以下を指定して使用する。
+ *
+ * >> hibernate.connection.provider_class
+ * >>   = org.beginningee6.book.chapter09.ejb.monitor.InstrumentedConnectionProvider
+ *
+ * サーバ上では、InstrumentedDataSourceBinderEJBがjta-data-sourceの
+ * JNDI名にラップしたデータソースを登録するため、指定する必要はない。
+ * ベンチマークのEmbeddedContainerでは、すべての永続化ユニットに
+ * プロパティで指定している。既にラップされている場合は、重ねてラップしない。
+ */
+public class InstrumentedConnectionProvider extends DatasourceConnectionProviderImpl {
+
+	private static final long serialVersionUID = 1L;
+
+	@SuppressWarnings("rawtypes")
+	@Override
+	public void configure(Map configValues) {
+		// jta-data-sourceのデータソースを取得してからラップする
+		super.configure(configValues);
+		if (!(getDataSource() instanceof InstrumentedDataSource)) {
+			setDataSource(new InstrumentedDataSource(getDataSource()));
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * コネクションプールのデータソースをラップし、接続の取得待ち時間、
+ * 保持時間、およびプリペアドステートメントの要求数をConnectionStatisticsに
+ * 記録するデータソース。プリペアドステートメントのバッチ更新も数える。
+ *
+ * コネクションプールの「上」に置かれるため、getConnection()の時間には
+ * プールが空くまで待たされた時間が含まれる。永続化ユニットでは
+ * InstrumentedConnectionProviderを指定することで使用される。
+ */
+public class InstrumentedDataSource implements DataSource {
+
+	private final DataSource delegate;
+
+	public InstrumentedDataSource(DataSource delegate) {
+		this.delegate = delegate;
+	}
+
+	public DataSource getDelegate() {
+		return delegate;
+	}
+
+	@Override
+	public Connection getConnection() throws SQLException {
+		long start = System.nanoTime();
+		Connection connection = delegate.getConnection();
+		return instrument(connection, start);
+	}
+
+	@Override
+	public Connection getConnection(String username, String password) throws SQLException {
+		long start = System.nanoTime();
+		Connection connection = delegate.getConnection(username, password);
+		return instrument(connection, start);
+	}
+
+	private Connection instrument(final Connection connection, long start) {
+		final long acquired = System.nanoTime();
+		ConnectionStatistics.recordAcquireWait(acquired - start);
+
+		// 保持時間は接続を取得したビジネスメソッドに記録する
+		final String method = ConnectionStatistics.currentMethod();
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, new InvocationHandler() {
+					private boolean closed;
+
+					public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+						String name = m.getName();
+						if (name.equals("close") && !closed) {
+							closed = true;
+							ConnectionStatistics.recordHoldTime(method, System.nanoTime() - acquired);
+						} else if (name.equals("prepareStatement") || name.equals("prepareCall")) {
+							ConnectionStatistics.statementRequested();
+							return instrumentBatch(call(connection, m, args), m.getReturnType());
+						}
+						return call(connection, m, args);
+					}
+				});
+	}
+
+	// プリペアドステートメントのaddBatch()とexecuteBatch()を数える
+	private static Object instrumentBatch(final Object statement, Class<?> type) {
+		if (statement == null) {
+			return null;
+		}
+		return Proxy.newProxyInstance(type.getClassLoader(),
+				new Class<?>[] { type }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+						String name = m.getName();
+						if (name.equals("addBatch")) {
+							ConnectionStatistics.statementBatched();
+						} else if (name.equals("executeBatch")) {
+							ConnectionStatistics.batchExecuted();
+						}
+						return call(statement, m, args);
+					}
+				});
+	}
+
+	private static Object call(Object target, Method m, Object[] args) throws Throwable {
+		try {
+			return m.invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause();
+		}
+	}
+
+	@Override
+	public PrintWriter getLogWriter() throws SQLException {
+		return delegate.getLogWriter();
+	}
+
+	@Override
+	public void setLogWriter(PrintWriter out) throws SQLException {
+		delegate.setLogWriter(out);
+	}
+
+	@Override
+	public void setLoginTimeout(int seconds) throws SQLException {
+		delegate.setLoginTimeout(seconds);
+	}
+
+	@Override
+	public int getLoginTimeout() throws SQLException {
+		return delegate.getLoginTimeout();
+	}
+
+	// JDBC 4.1（Java SE 7）で追加されたメソッド
+	public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+		throw new SQLFeatureNotSupportedException();
+	}
+
+	@Override
+	public <T> T unwrap(Class<T> iface) throws SQLException {
+		if (iface.isInstance(this)) {
+			return iface.cast(this);
+		}
+		return delegate.unwrap(iface);
+	}
+
+	@Override
+	public boolean isWrapperFor(Class<?> iface) throws SQLException {
+		return iface.isInstance(this) || delegate.isWrapperFor(iface);
+	}
+}
@@ -0,0 +1,98 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.sql.DataSource;
+
+/**
+ * コネクションプールのデータソースをInstrumentedDataSourceでラップし、
+ * 永続化ユニットが使用するJNDI名に登録するシングルトン・セッションBean。
+ *
+ * データソースの定義（jbossas-ds.xml）では、コネクションプールを
+ * 「jdbc/BeginningJavaEE6Chapter09ProductionPool」に登録する。
+ * このBeanはそれをラップしたデータソースを、永続化ユニットの
+ * jta-data-sourceである「jdbc/BeginningJavaEE6Chapter09Production」に
+ * 登録する。
+ *
+ * これにより、beginningee6-chapter09-jpaで定義されている
+ * Chapter09ProductionPUの永続化ユニットのプロパティを変更せずに、
+ * その接続も計測される（このモジュールのChapter09StockPU、
+ * Chapter09BatchPUも同じデータソースを使用する）。
+ *
+ * コネクションプールが見つからない場合（ベンチマークのEmbeddedContainerなど）は
+ * 何も登録しない。その場合はInstrumentedConnectionProviderで計測する。
+ *
+ * 登録したデータソースはアンデプロイ時に登録を解除する。
+ */
+@Singleton
+@Startup
+// 起動時と終了時にだけ処理を行うため、コンテナによる排他制御は行わない
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class InstrumentedDataSourceBinderEJB {
+	private static final Logger logger = Logger.getLogger(InstrumentedDataSourceBinderEJB.class.getName());
+
+	// コネクションプールのデータソースのJNDI名
+	@Resource(name = "monitor.poolJndiName")
+	private String poolJndiName = "java:/jdbc/BeginningJavaEE6Chapter09ProductionPool";
+
+	// ラップしたデータソースを登録するJNDI名
+	@Resource(name = "monitor.dataSourceJndiName")
+	private String dataSourceJndiName = "java:/jdbc/BeginningJavaEE6Chapter09Production";
+
+	// ステートメント・キャッシュの統計を参照するコネクションプールの名前
+	@Resource(name = "monitor.poolName")
+	private String poolName = "BeginningJavaEE6Chapter09OProductionDerbyPool";
+
+	private boolean bound;
+
+	@PostConstruct
+	void bind() {
+		try {
+			InitialContext context = new InitialContext();
+			DataSource pool;
+			try {
+				pool = (DataSource) context.lookup(poolJndiName);
+			} catch (NamingException e) {
+				logger.info("Connection pool " + poolJndiName + " not found; "
+						+ dataSourceJndiName + " is not instrumented");
+				return;
+			}
+			context.rebind(dataSourceJndiName, new InstrumentedDataSource(pool));
+			bound = true;
+			ConnectionStatistics.monitorPool(poolName, poolJndiName);
+			logger.info("Bound instrumented " + poolJndiName + " to " + dataSourceJndiName);
+		} catch (NamingException e) {
+			logger.log(Level.WARNING, "Failed to bind " + dataSourceJndiName, e);
+		}
+	}
+
+	@PreDestroy
+	void unbind() {
+		if (!bound) {
+			return;
+		}
+		ConnectionStatistics.monitorPool();
+		try {
+			new InitialContext().unbind(dataSourceJndiName);
+		} catch (NamingException e) {
+			logger.log(Level.WARNING, "Failed to unbind " + dataSourceJndiName, e);
+		}
+	}
+
+	/**
+	 * ラップしたデータソースを登録したかどうかを返す。
+	 */
+	public boolean isBound() {
+		return bound;
+	}
+}
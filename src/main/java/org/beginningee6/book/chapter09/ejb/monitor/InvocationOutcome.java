@@ -0,0 +1,24 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+/**
+ * ビジネスメソッドの呼び出しの結果の種類。
+ */
+public enum InvocationOutcome {
+
+	/**
+	 * 例外をスローせずに戻り、トランザクションがロールバックにマーク
+	 * されていなかった（トランザクションがない場合を含む）。
+	 */
+	COMMITTED,
+
+	/**
+	 * 例外をスローせずに戻ったが、トランザクションがロールバックにマーク
+	 * されていた。
+	 */
+	ROLLED_BACK,
+
+	/**
+	 * 例外をスローした。
+	 */
+	EXCEPTION
+}
@@ -0,0 +1,132 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * ナノ秒単位のレイテンシを記録する、ロックフリーの対数線形ヒストグラム。
+ *
+ * 値を２のべき乗ごとの区間に分け、各区間をさらにSUB_BUCKETS個の
+ * 等幅のバケットに分ける。相対誤差は最大で1/SUB_BUCKETS（6.25%）となる。
+ * 16未満の値は値ごとのバケットに記録する。
+ *
+ * record()はAtomicLongArrayの要素を増やすだけであり、ロックの取得や
+ * オブジェクトの生成を行わない。
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	// 64ビットのすべての値を表せるバケット数
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	// [0]：件数、[1]：合計、[2]：最大値
+	private final AtomicLongArray totals = new AtomicLongArray(3);
+
+	/**
+	 * 値を記録する。負の値は０として記録する。
+	 *
+	 * @param nanos レイテンシ（ナノ秒）
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0L, nanos);
+		counts.incrementAndGet(indexOf(value));
+		totals.incrementAndGet(0);
+		totals.addAndGet(1, value);
+		for (;;) {
+			long max = totals.get(2);
+			if (value <= max || totals.compareAndSet(2, max, value)) {
+				break;
+			}
+		}
+	}
+
+	public long getCount() {
+		return totals.get(0);
+	}
+
+	public long getMax() {
+		return totals.get(2);
+	}
+
+	/**
+	 * 平均値を返す。記録がない場合は０を返す。
+	 */
+	public double getMean() {
+		long count = totals.get(0);
+		return count == 0 ? 0.0 : (double) totals.get(1) / count;
+	}
+
+	/**
+	 * 指定された分位点の値を返す。
+	 *
+	 * 値はバケットの中央値で近似する。記録中に呼び出した場合は、
+	 * その時点までに記録された値のおおよその分位点となる。
+	 *
+	 * @param quantile 分位点（0.5、0.99など）
+	 * @return 分位点の値（ナノ秒）。記録がない場合は０
+	 */
+	public long getValueAtQuantile(double quantile) {
+		long[] snapshot = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if (total == 0) {
+			return 0L;
+		}
+
+		long rank = (long) Math.ceil(Math.min(Math.max(quantile, 0.0), 1.0) * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= Math.max(rank, 1L)) {
+				return Math.min(midpointOf(i), getMax());
+			}
+		}
+		return getMax();
+	}
+
+	/**
+	 * すべての記録を破棄する。
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0L);
+		}
+		for (int i = 0; i < 3; i++) {
+			totals.set(i, 0L);
+		}
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	static long lowerBoundOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = index % SUB_BUCKETS;
+		return (1L << exponent) + (subBucket << (exponent - SUB_BUCKET_BITS));
+	}
+
+	private static long midpointOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return lowerBoundOf(index) + width / 2;
+	}
+}
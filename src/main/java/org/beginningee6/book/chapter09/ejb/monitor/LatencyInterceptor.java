@@ -0,0 +1,62 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import javax.annotation.Resource;
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.InvocationContext;
+import javax.transaction.Status;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * ビジネスメソッドのレイテンシを、呼び出しの結果の種類ごとに
+ * LatencyHistogramへ記録するインターセプタ。
+ *
+ * EJBのクラス宣言に以下のアノテーションを付与して使用する。
+ *
+ * >> ＠Interceptors(LatencyInterceptor.class)
+ *
+ * 結果の種類は、メソッドが戻った時点のトランザクションの状態で判断する。
+ * 呼び出し元のトランザクションに参加している場合や、メソッドが戻った後の
+ * コミットが失敗した場合は、最終的なトランザクションの結果と異なる
+ * ことがある。
+ *
+ * 記録した値は、LatencyMonitorEJBが登録するMBeanで参照できる。
+ *
+ * また、実行中のビジネスメソッドをConnectionStatisticsに設定し、
+ * InstrumentedDataSourceから取得した接続の保持時間をメソッドごとに
+ * 記録できるようにする。
+ */
+public class LatencyInterceptor {
+
+	@Resource
+	private TransactionSynchronizationRegistry txSyncRegistry;
+
+	@AroundInvoke
+	public Object measure(InvocationContext ic) throws Exception {
+		MethodLatency latency = LatencyRegistry.of(ic.getMethod());
+
+		// このメソッドの中で取得された接続の保持時間を、このメソッドに記録する
+		String previous = ConnectionStatistics.enter(latency.getMethod());
+		long start = System.nanoTime();
+		Object result;
+		try {
+			result = ic.proceed();
+		} catch (Exception e) {
+			latency.record(InvocationOutcome.EXCEPTION, System.nanoTime() - start);
+			throw e;
+		} finally {
+			ConnectionStatistics.exit(previous);
+		}
+		latency.record(outcome(), System.nanoTime() - start);
+		return result;
+	}
+
+	private InvocationOutcome outcome() {
+		int status = txSyncRegistry.getTransactionStatus();
+		if (status == Status.STATUS_MARKED_ROLLBACK
+				|| status == Status.STATUS_ROLLING_BACK
+				|| status == Status.STATUS_ROLLEDBACK) {
+			return InvocationOutcome.ROLLED_BACK;
+		}
+		return InvocationOutcome.COMMITTED;
+	}
+}
@@ -0,0 +1,86 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.management.ObjectName;
+
+/**
+ * LatencyInterceptorが記録したレイテンシを、プラットフォームMBeanサーバに
+ * MBeanとして登録するシングルトン・セッションBean。
+ *
+ * アプリケーションの起動時に登録し、停止時に登録を解除する。
+ * JConsoleなどで以下の名前のMBeanを参照する。
+ *
+ * >> org.beginningee6.book.chapter09:type=LatencyMonitor
+ */
+@Singleton
+@Startup
+// 記録はスレッドセーフなLatencyRegistryで保持するため、
+// コンテナによる排他制御は行わない
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class LatencyMonitorEJB {
+
+	static final String OBJECT_NAME = "org.beginningee6.book.chapter09:type=LatencyMonitor";
+
+	private ObjectName objectName;
+
+	@PostConstruct
+	void register() {
+		objectName = MBeanRegistration.register(OBJECT_NAME, new LatencyMonitor());
+	}
+
+	@PreDestroy
+	void unregister() {
+		MBeanRegistration.unregister(objectName);
+	}
+
+	/**
+	 * 記録のあるビジネスメソッドと結果の種類ごとの集計値を返す。
+	 */
+	public List<MethodLatencySnapshot> getSnapshots() {
+		return snapshots();
+	}
+
+	/**
+	 * すべての記録を破棄する。
+	 */
+	public void reset() {
+		LatencyRegistry.reset();
+	}
+
+	static List<MethodLatencySnapshot> snapshots() {
+		List<MethodLatencySnapshot> snapshots = new ArrayList<MethodLatencySnapshot>();
+		for (MethodLatency latency : LatencyRegistry.all()) {
+			for (InvocationOutcome outcome : InvocationOutcome.values()) {
+				LatencyHistogram histogram = latency.getHistogram(outcome);
+				if (histogram.getCount() > 0) {
+					snapshots.add(MethodLatencySnapshot.of(latency.getMethod(), outcome, histogram));
+				}
+			}
+		}
+		return snapshots;
+	}
+
+	/**
+	 * MBeanサーバに登録する実体。EJBのプロキシではなく、このオブジェクトを
+	 * 登録する。
+	 */
+	static class LatencyMonitor implements LatencyMonitorMXBean {
+		@Override
+		public List<MethodLatencySnapshot> getSnapshots() {
+			return snapshots();
+		}
+
+		@Override
+		public void reset() {
+			LatencyRegistry.reset();
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.util.List;
+
+/**
+ * ビジネスメソッドのレイテンシを公開するMBeanのインタフェース。
+ *
+ * >> org.beginningee6.book.chapter09:type=LatencyMonitor
+ */
+public interface LatencyMonitorMXBean {
+
+	/**
+	 * 記録のあるビジネスメソッドと結果の種類ごとの集計値を返す。
+	 */
+	List<MethodLatencySnapshot> getSnapshots();
+
+	/**
+	 * すべての記録を破棄する。
+	 */
+	void reset();
+}
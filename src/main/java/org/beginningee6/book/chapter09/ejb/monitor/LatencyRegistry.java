@@ -0,0 +1,80 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * ビジネスメソッドごとのレイテンシのヒストグラムを保持する。
+ *
+ * インターセプタのインスタンスはEJBのインスタンスごとに生成されるため、
+ * ヒストグラムはアプリケーション（クラスローダ）ごとにひとつの
+ * このクラスで保持する。
+ */
+public final class LatencyRegistry {
+
+	private static final ConcurrentMap<Method, MethodLatency> LATENCIES
+		= new ConcurrentHashMap<Method, MethodLatency>();
+
+	private LatencyRegistry() {
+	}
+
+	/**
+	 * ビジネスメソッドのヒストグラムを返す。初めての場合は作成する。
+	 */
+	public static MethodLatency of(Method method) {
+		MethodLatency latency = LATENCIES.get(method);
+		if (latency == null) {
+			MethodLatency created = new MethodLatency(nameOf(method));
+			latency = LATENCIES.putIfAbsent(method, created);
+			if (latency == null) {
+				latency = created;
+			}
+		}
+		return latency;
+	}
+
+	/**
+	 * 記録のあるすべてのビジネスメソッドのヒストグラムを、メソッド名の順に返す。
+	 */
+	public static List<MethodLatency> all() {
+		List<MethodLatency> all = new ArrayList<MethodLatency>(LATENCIES.values());
+		Collections.sort(all, new Comparator<MethodLatency>() {
+			public int compare(MethodLatency a, MethodLatency b) {
+				return a.getMethod().compareTo(b.getMethod());
+			}
+		});
+		return all;
+	}
+
+	/**
+	 * すべての記録を破棄する。
+	 */
+	public static void reset() {
+		for (MethodLatency latency : LATENCIES.values()) {
+			latency.reset();
+		}
+	}
+
+	// 同じ名前のEJBが複数のパッケージにあるため、パッケージの
+	// 最後の部分を含めて「ex03.ItemEJB.sellOneItem(Item01)」とする
+	static String nameOf(Method method) {
+		String className = method.getDeclaringClass().getName();
+		int end = className.lastIndexOf('.');
+		int start = className.lastIndexOf('.', end - 1);
+		StringBuilder name = new StringBuilder(className.substring(start + 1))
+			.append('.').append(method.getName()).append('(');
+		Class<?>[] parameters = method.getParameterTypes();
+		for (int i = 0; i < parameters.length; i++) {
+			if (i > 0) {
+				name.append(',');
+			}
+			name.append(parameters[i].getSimpleName());
+		}
+		return name.append(')').toString();
+	}
+}
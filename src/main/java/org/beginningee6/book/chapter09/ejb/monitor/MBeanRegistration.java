@@ -0,0 +1,54 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * このパッケージのMBeanをプラットフォームMBeanサーバに登録、登録解除する。
+ */
+final class MBeanRegistration {
+	private static final Logger logger = Logger.getLogger(MBeanRegistration.class.getName());
+
+	private MBeanRegistration() {
+	}
+
+	/**
+	 * MBeanを登録する。同じ名前のMBeanが既に登録されている場合
+	 * （再デプロイ前のアプリケーションが登録したもの）は置き換える。
+	 *
+	 * @return 登録した名前。登録できなかった場合はnull
+	 */
+	static ObjectName register(String name, Object mbean) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			ObjectName objectName = new ObjectName(name);
+			try {
+				server.registerMBean(mbean, objectName);
+			} catch (InstanceAlreadyExistsException e) {
+				server.unregisterMBean(objectName);
+				server.registerMBean(mbean, objectName);
+			}
+			return objectName;
+		} catch (JMException e) {
+			logger.log(Level.WARNING, "Failed to register " + name, e);
+			return null;
+		}
+	}
+
+	static void unregister(ObjectName objectName) {
+		if (objectName == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			logger.log(Level.WARNING, "Failed to unregister " + objectName, e);
+		}
+	}
+}
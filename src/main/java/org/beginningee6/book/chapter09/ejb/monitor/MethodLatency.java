@@ -0,0 +1,41 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * ひとつのビジネスメソッドについて、呼び出しの結果の種類ごとの
+ * レイテンシのヒストグラム。
+ */
+public class MethodLatency {
+
+	private final String method;
+
+	private final Map<InvocationOutcome, LatencyHistogram> histograms
+		= new EnumMap<InvocationOutcome, LatencyHistogram>(InvocationOutcome.class);
+
+	public MethodLatency(String method) {
+		this.method = method;
+		for (InvocationOutcome outcome : InvocationOutcome.values()) {
+			histograms.put(outcome, new LatencyHistogram());
+		}
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	public void record(InvocationOutcome outcome, long nanos) {
+		histograms.get(outcome).record(nanos);
+	}
+
+	public LatencyHistogram getHistogram(InvocationOutcome outcome) {
+		return histograms.get(outcome);
+	}
+
+	public void reset() {
+		for (LatencyHistogram histogram : histograms.values()) {
+			histogram.reset();
+		}
+	}
+}
@@ -0,0 +1,85 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * MBeanで公開する、ビジネスメソッドと結果の種類ごとのレイテンシの集計値。
+ *
+ * 時間の単位はマイクロ秒。
+ */
+public class MethodLatencySnapshot {
+
+	private final String method;
+	private final String outcome;
+	private final long count;
+	private final double meanMicros;
+	private final long p50Micros;
+	private final long p90Micros;
+	private final long p99Micros;
+	private final long p999Micros;
+	private final long maxMicros;
+
+	@ConstructorProperties({ "method", "outcome", "count", "meanMicros",
+		"p50Micros", "p90Micros", "p99Micros", "p999Micros", "maxMicros" })
+	public MethodLatencySnapshot(String method, String outcome, long count, double meanMicros,
+			long p50Micros, long p90Micros, long p99Micros, long p999Micros, long maxMicros) {
+		this.method = method;
+		this.outcome = outcome;
+		this.count = count;
+		this.meanMicros = meanMicros;
+		this.p50Micros = p50Micros;
+		this.p90Micros = p90Micros;
+		this.p99Micros = p99Micros;
+		this.p999Micros = p999Micros;
+		this.maxMicros = maxMicros;
+	}
+
+	static MethodLatencySnapshot of(String method, InvocationOutcome outcome, LatencyHistogram h) {
+		return of(method, outcome.name(), h);
+	}
+
+	static MethodLatencySnapshot of(String method, String outcome, LatencyHistogram h) {
+		return new MethodLatencySnapshot(method, outcome, h.getCount(), h.getMean() / 1000.0,
+				h.getValueAtQuantile(0.5) / 1000L,
+				h.getValueAtQuantile(0.9) / 1000L,
+				h.getValueAtQuantile(0.99) / 1000L,
+				h.getValueAtQuantile(0.999) / 1000L,
+				h.getMax() / 1000L);
+	}
+
+	public String getMethod() {
+		return method;
+	}
+
+	public String getOutcome() {
+		return outcome;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public double getMeanMicros() {
+		return meanMicros;
+	}
+
+	public long getP50Micros() {
+		return p50Micros;
+	}
+
+	public long getP90Micros() {
+		return p90Micros;
+	}
+
+	public long getP99Micros() {
+		return p99Micros;
+	}
+
+	public long getP999Micros() {
+		return p999Micros;
+	}
+
+	public long getMaxMicros() {
+		return maxMicros;
+	}
+}
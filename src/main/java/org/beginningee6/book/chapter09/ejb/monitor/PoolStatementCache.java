@@ -0,0 +1,77 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.lang.management.ManagementFactory;
+import java.util.Set;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * アプリケーション・サーバのコネクションプールが公開している
+ * プリペアドステートメントのキャッシュの統計（ヒット数とミス数）を、
+ * プラットフォームMBeanサーバから読み出す。
+ *
+ * >> jboss.as:...,data-source=<プール>,statistics=jdbc
+ * >>   PreparedStatementCacheHitCount、PreparedStatementCacheMissCount
+ *
+ * データソースはサーバの設定で定義される場合（data-sourceはプールの名前）と
+ * デプロイメントに含まれる場合（jbossas-ds.xml。data-sourceはJNDI名）が
+ * あるため、statistics=jdbcのMBeanのうち、data-sourceにいずれかの名前を
+ * 含むものを合計する。
+ */
+final class PoolStatementCache {
+
+	private static final String STATISTICS = "jboss.as:statistics=jdbc,*";
+
+	private static final String HITS = "PreparedStatementCacheHitCount";
+	private static final String MISSES = "PreparedStatementCacheMissCount";
+
+	private PoolStatementCache() {
+	}
+
+	/**
+	 * プールのステートメント・キャッシュのヒット数とミス数を返す。
+	 *
+	 * @param poolNames プールの名前、またはJNDI名
+	 * @return ヒット数とミス数の配列。統計のMBeanが無い場合はnull
+	 */
+	static long[] read(String... poolNames) {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			Set<ObjectName> names = server.queryNames(new ObjectName(STATISTICS), null);
+			long[] counts = null;
+			for (ObjectName name : names) {
+				String dataSource = name.getKeyProperty("data-source");
+				if (dataSource == null || !matches(dataSource, poolNames)) {
+					continue;
+				}
+				if (counts == null) {
+					counts = new long[2];
+				}
+				counts[0] += toLong(server.getAttribute(name, HITS));
+				counts[1] += toLong(server.getAttribute(name, MISSES));
+			}
+			return counts;
+		} catch (JMException e) {
+			return null;
+		}
+	}
+
+	private static boolean matches(String dataSource, String[] poolNames) {
+		for (String poolName : poolNames) {
+			if (poolName != null && dataSource.contains(poolName)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// 管理モデルの属性は数値または文字列で返される
+	private static long toLong(Object value) {
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		return value != null ? Long.parseLong(value.toString()) : 0L;
+	}
+}
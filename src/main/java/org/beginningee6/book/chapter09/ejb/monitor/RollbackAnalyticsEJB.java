@@ -0,0 +1,73 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.management.ObjectName;
+
+/**
+ * RollbackCauseInterceptorが記録したロールバックの原因を、プラットフォーム
+ * MBeanサーバにMBeanとして登録するシングルトン・セッションBean。
+ *
+ * 書き込んだ後にロールバックされる処理のうち、失われる処理量の大きい
+ * ものから見直すために使用する。
+ *
+ * >> org.beginningee6.book.chapter09:type=RollbackAnalytics
+ */
+@Singleton
+@Startup
+// 記録はスレッドセーフなRollbackCauseRegistryで保持するため、
+// コンテナによる排他制御は行わない
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class RollbackAnalyticsEJB {
+
+	static final String OBJECT_NAME = "org.beginningee6.book.chapter09:type=RollbackAnalytics";
+
+	private ObjectName objectName;
+
+	@PostConstruct
+	void register() {
+		objectName = MBeanRegistration.register(OBJECT_NAME, new RollbackAnalytics());
+	}
+
+	@PreDestroy
+	void unregister() {
+		MBeanRegistration.unregister(objectName);
+	}
+
+	/**
+	 * 失われた処理量の大きい順に、ロールバックの原因を返す。
+	 *
+	 * @param n 返す原因の数の上限
+	 */
+	public List<RollbackCauseSnapshot> getTopCauses(int n) {
+		return RollbackCauseRegistry.top(n);
+	}
+
+	/**
+	 * すべての記録を破棄する。
+	 */
+	public void reset() {
+		RollbackCauseRegistry.reset();
+	}
+
+	/**
+	 * MBeanサーバに登録する実体。
+	 */
+	static class RollbackAnalytics implements RollbackAnalyticsMXBean {
+		@Override
+		public List<RollbackCauseSnapshot> topCauses(int n) {
+			return RollbackCauseRegistry.top(n);
+		}
+
+		@Override
+		public void reset() {
+			RollbackCauseRegistry.reset();
+		}
+	}
+}
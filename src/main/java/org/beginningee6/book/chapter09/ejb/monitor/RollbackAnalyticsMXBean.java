@@ -0,0 +1,23 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.util.List;
+
+/**
+ * ロールバックの原因を公開するMBeanのインタフェース。
+ *
+ * >> org.beginningee6.book.chapter09:type=RollbackAnalytics
+ */
+public interface RollbackAnalyticsMXBean {
+
+	/**
+	 * 失われた処理量の大きい順に、ロールバックの原因を返す。
+	 *
+	 * @param n 返す原因の数の上限
+	 */
+	List<RollbackCauseSnapshot> topCauses(int n);
+
+	/**
+	 * すべての記録を破棄する。
+	 */
+	void reset();
+}
@@ -0,0 +1,54 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ロールバックの原因（ビジネスメソッドと例外クラスの組）ごとの、
+ * ロールバックの回数と失われた処理量の累計。
+ */
+class RollbackCause {
+
+	private final String method;
+
+	private final String exception;
+
+	private final AtomicLong rollbacks = new AtomicLong();
+
+	private final AtomicLong discardedEntities = new AtomicLong();
+
+	private final AtomicLong maxDiscardedEntities = new AtomicLong();
+
+	private final AtomicLong transactionNanos = new AtomicLong();
+
+	RollbackCause(String method, String exception) {
+		this.method = method;
+		this.exception = exception;
+	}
+
+	void record(int entities, long nanos) {
+		rollbacks.incrementAndGet();
+		transactionNanos.addAndGet(nanos);
+		if (entities <= 0) {
+			return;
+		}
+		discardedEntities.addAndGet(entities);
+		for (;;) {
+			long max = maxDiscardedEntities.get();
+			if (entities <= max || maxDiscardedEntities.compareAndSet(max, entities)) {
+				break;
+			}
+		}
+	}
+
+	void reset() {
+		rollbacks.set(0L);
+		discardedEntities.set(0L);
+		maxDiscardedEntities.set(0L);
+		transactionNanos.set(0L);
+	}
+
+	RollbackCauseSnapshot snapshot() {
+		return new RollbackCauseSnapshot(method, exception, rollbacks.get(),
+				discardedEntities.get(), maxDiscardedEntities.get(), transactionNanos.get() / 1000L);
+	}
+}
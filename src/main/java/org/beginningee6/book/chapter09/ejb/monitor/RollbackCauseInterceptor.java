@@ -0,0 +1,163 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import javax.annotation.Resource;
+import javax.ejb.ApplicationException;
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.InvocationContext;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PersistenceException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.hibernate.Session;
+
+/**
+ * トランザクションがロールバックされた原因を、ビジネスメソッドと例外クラス
+ * の組ごとにRollbackCauseRegistryへ記録するインターセプタ。
+ *
+ * トランザクションの中で最初に呼び出されたときに、トランザクションの
+ * 完了を通知するSynchronizationを登録し、ロールバックされた場合に、
+ * 以下のうち最初に観測したものを原因として記録する。
+ *
+ * ・ロールバックを引き起こす例外（＠ApplicationExceptionのrollbackが
+ * 　trueの例外、または＠ApplicationExceptionが付与されない非チェック例外）
+ * 　をスローしたビジネスメソッドと、その例外クラス
+ * ・例外をスローせずにトランザクションをロールバックにマークした
+ * 　ビジネスメソッド（MARKED_ROLLBACK_ONLY）
+ *
+ * 失われた処理量は、ビジネスメソッドから戻る時点で永続コンテキストが
+ * 管理していたエンティティの数（永続化、読み込み、変更されたもの）の
+ * 最大値と、最初の呼び出しからトランザクションが完了するまでの時間で
+ * 推定する。エンティティの数の取得にはHibernateのSessionを使用し、
+ * 取得できない場合は時間だけを記録する。
+ *
+ * デプロイメント記述子でアプリケーション例外として指定された例外は
+ * 判別できない。
+ */
+public class RollbackCauseInterceptor {
+
+	// トランザクションごとの記録をTransactionSynchronizationRegistryに保持するキー
+	private static final String WORK_KEY = RollbackCauseInterceptor.class.getName() + ".work";
+
+	@Resource
+	private TransactionSynchronizationRegistry txSyncRegistry;
+
+	@PersistenceContext(unitName = "Chapter09ProductionPU")
+	private EntityManager em;
+
+	@AroundInvoke
+	public Object collect(InvocationContext ic) throws Exception {
+		if (txSyncRegistry.getTransactionKey() == null) {
+			return ic.proceed();
+		}
+
+		String method = LatencyRegistry.nameOf(ic.getMethod());
+		TransactionWork work = (TransactionWork) txSyncRegistry.getResource(WORK_KEY);
+		if (work == null) {
+			work = watch(method);
+			if (work == null) {
+				return ic.proceed();
+			}
+		}
+
+		Exception thrown = null;
+		try {
+			return ic.proceed();
+		} catch (Exception e) {
+			thrown = e;
+			throw e;
+		} finally {
+			if (thrown != null && causesRollback(thrown)) {
+				work.causedBy(method, thrown.getClass().getName());
+			} else if (txSyncRegistry.getRollbackOnly()) {
+				work.causedBy(method, RollbackCauseRegistry.MARKED_ROLLBACK_ONLY);
+			}
+			work.observeEntities(managedEntityCount());
+		}
+	}
+
+	private TransactionWork watch(String method) {
+		final TransactionWork work = new TransactionWork(method);
+		try {
+			txSyncRegistry.registerInterposedSynchronization(new Synchronization() {
+				@Override
+				public void beforeCompletion() {
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					if (status != Status.STATUS_COMMITTED) {
+						work.recordRollback();
+					}
+				}
+			});
+		} catch (IllegalStateException e) {
+			// 既にロールバックにマークされているなど、Synchronizationを
+			// 登録できない場合は記録しない
+			return null;
+		}
+		txSyncRegistry.putResource(WORK_KEY, work);
+		return work;
+	}
+
+	private int managedEntityCount() {
+		try {
+			return em.unwrap(Session.class).getStatistics().getEntityCount();
+		} catch (PersistenceException e) {
+			// Hibernate以外のJPAプロバイダ
+			return -1;
+		}
+	}
+
+	// コンテナがトランザクションをロールバックする例外かを判定する
+	static boolean causesRollback(Exception e) {
+		boolean inherited = true;
+		for (Class<?> type = e.getClass(); type != null && inherited; type = type.getSuperclass()) {
+			ApplicationException annotation = type.getAnnotation(ApplicationException.class);
+			if (annotation != null) {
+				if (type == e.getClass() || annotation.inherited()) {
+					return annotation.rollback();
+				}
+				inherited = false;
+			}
+		}
+		return e instanceof RuntimeException;
+	}
+
+	/**
+	 * ひとつのトランザクションの中での観測結果。
+	 */
+	private static class TransactionWork {
+		private final String firstMethod;
+		private final long startNanos = System.nanoTime();
+		private String causeMethod;
+		private String causeException;
+		private int maxEntities = -1;
+
+		TransactionWork(String firstMethod) {
+			this.firstMethod = firstMethod;
+		}
+
+		synchronized void causedBy(String method, String exception) {
+			if (causeMethod == null) {
+				causeMethod = method;
+				causeException = exception;
+			}
+		}
+
+		synchronized void observeEntities(int entities) {
+			maxEntities = Math.max(maxEntities, entities);
+		}
+
+		synchronized void recordRollback() {
+			long nanos = System.nanoTime() - startNanos;
+			if (causeMethod == null) {
+				RollbackCauseRegistry.record(firstMethod, RollbackCauseRegistry.UNKNOWN, maxEntities, nanos);
+			} else {
+				RollbackCauseRegistry.record(causeMethod, causeException, maxEntities, nanos);
+			}
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * ロールバックの原因ごとの集計を保持する。
+ *
+ * ロールバックはトランザクションの完了時（Synchronization.afterCompletion()）
+ * に記録するため、EJBを経由せずに記録できるよう、アプリケーション
+ * （クラスローダ）ごとにひとつのこのクラスで保持する。
+ */
+public final class RollbackCauseRegistry {
+
+	/**
+	 * 例外をスローせずにトランザクションをロールバックにマークした場合の原因の名前。
+	 */
+	public static final String MARKED_ROLLBACK_ONLY = "(setRollbackOnly)";
+
+	/**
+	 * コミットの失敗やタイムアウトなど、原因を特定できなかった場合の原因の名前。
+	 */
+	public static final String UNKNOWN = "(unknown)";
+
+	private static final ConcurrentMap<String, RollbackCause> CAUSES
+		= new ConcurrentHashMap<String, RollbackCause>();
+
+	private RollbackCauseRegistry() {
+	}
+
+	/**
+	 * ロールバックを１回記録する。
+	 *
+	 * @param method 原因となったビジネスメソッド
+	 * @param exception 原因となった例外のクラス名
+	 * @param entities ロールバック時に永続コンテキストが管理していたエンティティの数
+	 * 	（取得できなかった場合は負の値）
+	 * @param transactionNanos トランザクションの実行時間（ナノ秒）
+	 */
+	static void record(String method, String exception, int entities, long transactionNanos) {
+		String key = method + '\u0000' + exception;
+		RollbackCause cause = CAUSES.get(key);
+		if (cause == null) {
+			RollbackCause created = new RollbackCause(method, exception);
+			cause = CAUSES.putIfAbsent(key, created);
+			if (cause == null) {
+				cause = created;
+			}
+		}
+		cause.record(entities, transactionNanos);
+	}
+
+	/**
+	 * 失われた処理量の大きい順に、ロールバックの原因を返す。
+	 *
+	 * 失われたエンティティの数の累計、トランザクションの実行時間の累計、
+	 * ロールバックの回数の順に比較する。
+	 *
+	 * @param n 返す原因の数の上限
+	 */
+	public static List<RollbackCauseSnapshot> top(int n) {
+		List<RollbackCauseSnapshot> all = new ArrayList<RollbackCauseSnapshot>();
+		for (RollbackCause cause : CAUSES.values()) {
+			RollbackCauseSnapshot snapshot = cause.snapshot();
+			if (snapshot.getRollbacks() > 0) {
+				all.add(snapshot);
+			}
+		}
+		Collections.sort(all, new Comparator<RollbackCauseSnapshot>() {
+			public int compare(RollbackCauseSnapshot a, RollbackCauseSnapshot b) {
+				int c = compareDescending(a.getDiscardedEntities(), b.getDiscardedEntities());
+				if (c == 0) {
+					c = compareDescending(a.getTransactionMicros(), b.getTransactionMicros());
+				}
+				if (c == 0) {
+					c = compareDescending(a.getRollbacks(), b.getRollbacks());
+				}
+				return c;
+			}
+		});
+		return new ArrayList<RollbackCauseSnapshot>(all.subList(0, Math.min(Math.max(n, 0), all.size())));
+	}
+
+	/**
+	 * すべての記録を破棄する。
+	 */
+	public static void reset() {
+		for (RollbackCause cause : CAUSES.values()) {
+			cause.reset();
+		}
+	}
+
+	private static int compareDescending(long a, long b) {
+		return a > b ? -1 : (a < b ? 1 : 0);
+	}
+}
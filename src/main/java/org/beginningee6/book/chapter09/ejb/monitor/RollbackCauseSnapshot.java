@@ -0,0 +1,68 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * MBeanで公開する、ロールバックの原因ごとの集計値。
+ */
+public class RollbackCauseSnapshot {
+
+	private final String method;
+	private final String exception;
+	private final long rollbacks;
+	private final long discardedEntities;
+	private final long maxDiscardedEntities;
+	private final long transactionMicros;
+
+	@ConstructorProperties({ "method", "exception", "rollbacks",
+		"discardedEntities", "maxDiscardedEntities", "transactionMicros" })
+	public RollbackCauseSnapshot(String method, String exception, long rollbacks,
+			long discardedEntities, long maxDiscardedEntities, long transactionMicros) {
+		this.method = method;
+		this.exception = exception;
+		this.rollbacks = rollbacks;
+		this.discardedEntities = discardedEntities;
+		this.maxDiscardedEntities = maxDiscardedEntities;
+		this.transactionMicros = transactionMicros;
+	}
+
+	/**
+	 * ロールバックの原因となった例外をスローした（またはトランザクションを
+	 * ロールバックにマークした）ビジネスメソッド。
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * ロールバックの原因となった例外のクラス名。例外によらずにロールバック
+	 * された場合は、RollbackCauseRegistry.MARKED_ROLLBACK_ONLYまたは
+	 * RollbackCauseRegistry.UNKNOWN。
+	 */
+	public String getException() {
+		return exception;
+	}
+
+	public long getRollbacks() {
+		return rollbacks;
+	}
+
+	/**
+	 * ロールバックにより失われた処理量の推定値の累計（ロールバック時に
+	 * 永続コンテキストが管理していたエンティティの数）。
+	 */
+	public long getDiscardedEntities() {
+		return discardedEntities;
+	}
+
+	public long getMaxDiscardedEntities() {
+		return maxDiscardedEntities;
+	}
+
+	/**
+	 * ロールバックされたトランザクションの実行時間の累計（マイクロ秒）。
+	 */
+	public long getTransactionMicros() {
+		return transactionMicros;
+	}
+}
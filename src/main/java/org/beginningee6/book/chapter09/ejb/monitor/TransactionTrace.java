@@ -0,0 +1,275 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * ひとつのトップレベルのビジネスメソッドの呼び出しについて、
+ * TransactionTraceInterceptorが記録したトランザクションのイベントの木。
+ *
+ * 呼び出されたビジネスメソッドごとにSpanを作成し、各Spanに以下の
+ * イベントをトレースの開始からの経過時間（ナノ秒）とともに記録する。
+ *
+ * ・BEGIN：新しいトランザクションが開始された
+ * ・JOIN：呼び出し元のトランザクションに参加した
+ * ・SUSPEND：呼び出し元のトランザクションが保留された
+ * ・RESUME：保留された呼び出し元のトランザクションが再開された
+ * ・COMMIT／ROLLBACK：このSpanで開始されたトランザクションが完了した
+ *
+ * コンテナがトランザクションを完了するのはビジネスメソッドから戻った後
+ * のため、トップレベルのSpanが終了しても、COMMIT／ROLLBACKが記録される
+ * までは完了していない（isCompleted()がfalse）。
+ */
+public class TransactionTrace {
+
+	/**
+	 * トランザクションのイベントの種類。
+	 */
+	public enum EventType {
+		BEGIN, JOIN, SUSPEND, RESUME, COMMIT, ROLLBACK
+	}
+
+	private final long id;
+
+	private final long startedAtMillis = System.currentTimeMillis();
+
+	private final long startNanos = System.nanoTime();
+
+	private Span root;
+
+	private int pendingCompletions;
+
+	TransactionTrace(long id) {
+		this.id = id;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public long getStartedAtMillis() {
+		return startedAtMillis;
+	}
+
+	public synchronized Span getRoot() {
+		return root;
+	}
+
+	/**
+	 * トップレベルのSpanが終了し、記録したすべてのトランザクションの
+	 * 完了が記録されている場合にtrueを返す。
+	 */
+	public synchronized boolean isCompleted() {
+		return root != null && root.isClosed() && pendingCompletions == 0;
+	}
+
+	/**
+	 * トレースを字下げした複数行の文字列として返す（ログ出力用）。
+	 */
+	public String format() {
+		StringBuilder text = new StringBuilder();
+		text.append("trace #").append(id).append(' ')
+			.append(new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS").format(new Date(startedAtMillis)));
+		if (!isCompleted()) {
+			text.append(" (in progress)");
+		}
+		Span span = getRoot();
+		if (span != null) {
+			span.format(text, 1);
+		}
+		return text.toString();
+	}
+
+	Span open(Span parent, String method) {
+		Span span = new Span(method, now());
+		if (parent == null) {
+			synchronized (this) {
+				root = span;
+			}
+		} else {
+			parent.addChild(span);
+		}
+		return span;
+	}
+
+	void close(Span span, Throwable failure) {
+		span.close(now(), failure == null ? null : failure.getClass().getName());
+	}
+
+	void event(Span span, EventType type, String transactionId) {
+		span.addEvent(new Event(type, transactionId, now()));
+	}
+
+	synchronized void expectCompletion() {
+		pendingCompletions++;
+	}
+
+	synchronized void completionObserved() {
+		pendingCompletions--;
+	}
+
+	private long now() {
+		return System.nanoTime() - startNanos;
+	}
+
+	/**
+	 * ひとつのビジネスメソッドの呼び出し。
+	 */
+	public static class Span {
+
+		private final String method;
+
+		private final long startNanos;
+
+		private long endNanos = -1L;
+
+		private String exception;
+
+		private final List<Event> events = new ArrayList<Event>();
+
+		private final List<Span> children = new ArrayList<Span>();
+
+		Span(String method, long startNanos) {
+			this.method = method;
+			this.startNanos = startNanos;
+		}
+
+		public String getMethod() {
+			return method;
+		}
+
+		/**
+		 * 呼び出しの開始時刻（トレースの開始からの経過時間、ナノ秒）。
+		 */
+		public long getStartNanos() {
+			return startNanos;
+		}
+
+		/**
+		 * 呼び出しの終了時刻（トレースの開始からの経過時間、ナノ秒）。
+		 * 終了していない場合は-1。
+		 */
+		public synchronized long getEndNanos() {
+			return endNanos;
+		}
+
+		public synchronized boolean isClosed() {
+			return endNanos >= 0;
+		}
+
+		/**
+		 * 呼び出しがスローした例外のクラス名。スローしなかった場合はnull。
+		 */
+		public synchronized String getException() {
+			return exception;
+		}
+
+		public synchronized List<Event> getEvents() {
+			return Collections.unmodifiableList(new ArrayList<Event>(events));
+		}
+
+		public synchronized List<Span> getChildren() {
+			return Collections.unmodifiableList(new ArrayList<Span>(children));
+		}
+
+		/**
+		 * このSpanで呼び出し元のトランザクションが保留されていた時間の合計
+		 * （ナノ秒）を返す。再開されていない保留は含まない。
+		 */
+		public synchronized long getSuspendedNanos() {
+			long total = 0;
+			long suspendedAt = -1L;
+			for (Event event : events) {
+				if (event.getType() == EventType.SUSPEND) {
+					suspendedAt = event.getOffsetNanos();
+				} else if (event.getType() == EventType.RESUME && suspendedAt >= 0) {
+					total += event.getOffsetNanos() - suspendedAt;
+					suspendedAt = -1L;
+				}
+			}
+			return total;
+		}
+
+		synchronized void addEvent(Event event) {
+			events.add(event);
+		}
+
+		synchronized void addChild(Span child) {
+			children.add(child);
+		}
+
+		synchronized void close(long endNanos, String exception) {
+			this.endNanos = endNanos;
+			this.exception = exception;
+		}
+
+		void format(StringBuilder text, int depth) {
+			indent(text, depth).append(method)
+				.append(" +").append(micros(startNanos)).append("us");
+			if (isClosed()) {
+				text.append(" (").append(micros(getEndNanos() - startNanos)).append("us)");
+			}
+			if (getException() != null) {
+				text.append(" threw ").append(getException());
+			}
+			for (Event event : getEvents()) {
+				indent(text, depth + 1).append('+').append(micros(event.getOffsetNanos())).append("us ")
+					.append(event.getType()).append(' ').append(event.getTransactionId());
+			}
+			for (Span child : getChildren()) {
+				child.format(text, depth + 1);
+			}
+		}
+
+		private static StringBuilder indent(StringBuilder text, int depth) {
+			text.append('\n');
+			for (int i = 0; i < depth; i++) {
+				text.append("  ");
+			}
+			return text;
+		}
+
+		private static long micros(long nanos) {
+			return nanos / 1000L;
+		}
+	}
+
+	/**
+	 * トランザクションのイベント。
+	 */
+	public static class Event {
+
+		private final EventType type;
+
+		private final String transactionId;
+
+		private final long offsetNanos;
+
+		Event(EventType type, String transactionId, long offsetNanos) {
+			this.type = type;
+			this.transactionId = transactionId;
+			this.offsetNanos = offsetNanos;
+		}
+
+		public EventType getType() {
+			return type;
+		}
+
+		/**
+		 * イベントの対象のトランザクションの識別子（ログで対応付けるためのもの）。
+		 */
+		public String getTransactionId() {
+			return transactionId;
+		}
+
+		/**
+		 * イベントの発生時刻（トレースの開始からの経過時間、ナノ秒）。
+		 */
+		public long getOffsetNanos() {
+			return offsetNanos;
+		}
+	}
+}
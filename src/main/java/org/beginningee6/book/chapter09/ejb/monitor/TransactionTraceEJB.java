@@ -0,0 +1,110 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+
+/**
+ * TransactionTraceInterceptorが記録するトレースの採取を決め、採取した
+ * トレースのうち新しいものを保持するシングルトン・セッションBean。
+ *
+ * トップレベルの呼び出しのうち、trace.sampleEvery回に１回だけトレースを
+ * 採取する。採取しない呼び出しでは、このBeanの呼び出しとスレッド
+ * ローカル変数の設定以外の処理は行わないため、本番環境で有効にした
+ * ままにできる。
+ *
+ * 以下の環境エントリで変更できる。
+ *
+ * ・trace.sampleEvery：何回に１回採取するか（０以下の場合は採取しない）
+ * ・trace.maxRetained：保持するトレースの数
+ */
+@Singleton
+// カウンタはアトミック変数で更新し、保持するトレースは個別に
+// 同期化するため、コンテナによる排他制御は行わない
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+public class TransactionTraceEJB {
+
+	@Resource(name = "trace.sampleEvery")
+	private int sampleEvery = 100;
+
+	@Resource(name = "trace.maxRetained")
+	private int maxRetained = 100;
+
+	private final AtomicLong calls = new AtomicLong();
+
+	private final AtomicLong sampled = new AtomicLong();
+
+	private final LinkedList<TransactionTrace> retained = new LinkedList<TransactionTrace>();
+
+	/**
+	 * トップレベルの呼び出しのトレースを採取するかを決める。
+	 *
+	 * @return 採取する場合は新しいトレース、採取しない場合はnull
+	 */
+	public TransactionTrace sample() {
+		int every = sampleEvery;
+		if (every <= 0 || calls.incrementAndGet() % every != 0) {
+			return null;
+		}
+		return new TransactionTrace(sampled.incrementAndGet());
+	}
+
+	/**
+	 * トップレベルの呼び出しが終了したトレースを保持する。
+	 *
+	 * トランザクションの完了はこの後で記録されることがあるため、
+	 * 参照する際はTransactionTrace.isCompleted()を確認する。
+	 */
+	public void retain(TransactionTrace trace) {
+		synchronized (retained) {
+			retained.addLast(trace);
+			while (retained.size() > Math.max(maxRetained, 0)) {
+				retained.removeFirst();
+			}
+		}
+	}
+
+	/**
+	 * 保持しているトレースを古いものから順に返す。
+	 */
+	public List<TransactionTrace> getRecentTraces() {
+		synchronized (retained) {
+			return new ArrayList<TransactionTrace>(retained);
+		}
+	}
+
+	/**
+	 * 保持しているトレースを破棄する。
+	 */
+	public void clear() {
+		synchronized (retained) {
+			retained.clear();
+		}
+	}
+
+	public int getSampleEvery() {
+		return sampleEvery;
+	}
+
+	/**
+	 * 採取の頻度を変更する。
+	 *
+	 * @param sampleEvery 何回に１回採取するか（０以下の場合は採取しない）
+	 */
+	public void setSampleEvery(int sampleEvery) {
+		this.sampleEvery = sampleEvery;
+	}
+
+	public long getSampledCount() {
+		return sampled.get();
+	}
+}
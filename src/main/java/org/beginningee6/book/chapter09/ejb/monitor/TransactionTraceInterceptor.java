@@ -0,0 +1,182 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.interceptor.AroundInvoke;
+import javax.interceptor.InvocationContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.beginningee6.book.chapter09.ejb.monitor.TransactionTrace.EventType;
+import org.beginningee6.book.chapter09.ejb.monitor.TransactionTrace.Span;
+
+/**
+ * ビジネスメソッドの呼び出しごとに、トランザクションの開始、参加、
+ * 保留、再開、コミット、ロールバックをTransactionTraceに記録する
+ * インターセプタ。
+ *
+ * このインターセプタを付与したEJBのうち、最も外側の呼び出しで
+ * TransactionTraceEJBが採取を決めた場合にトレースを開始し、その中から
+ * 呼び出された（このインターセプタを付与した）EJBの呼び出しを子の
+ * Spanとして記録する。
+ *
+ * トランザクションの変化は、呼び出し元のSpanで観測したトランザクションと、
+ * 呼び出されたメソッドの中で観測したトランザクションを
+ * TransactionSynchronizationRegistry.getTransactionKey()で比較して判断する。
+ *
+ * ・同じトランザクション：JOIN
+ * ・別のトランザクション：SUSPEND（呼び出し元にある場合）、BEGIN
+ * ・トランザクションなし：SUSPEND（呼び出し元にある場合）
+ *
+ * REQUIRES_NEWで開始されたトランザクションの完了はSynchronizationで記録し、
+ * 呼び出し元のトランザクションはその直後に再開されたもの（RESUME）とする。
+ * NOT_SUPPORTEDでは、メソッドから戻った時点で再開されたものとする。
+ * いずれもコンテナの処理の前後で観測しているため、実際の保留、再開の
+ * 時刻とはコンテナの処理時間の分だけずれる。
+ */
+public class TransactionTraceInterceptor {
+
+	// 現在のスレッドで実行中の、トレース中の呼び出し
+	private static final ThreadLocal<Frame> CURRENT = new ThreadLocal<Frame>();
+
+	// 採取しないことに決まったトップレベルの呼び出しの中であることを示す
+	private static final Frame UNSAMPLED = new Frame(null, null, null);
+
+	@Resource
+	private TransactionSynchronizationRegistry txSyncRegistry;
+
+	@EJB
+	private TransactionTraceEJB traces;
+
+	@AroundInvoke
+	public Object trace(InvocationContext ic) throws Exception {
+		Frame parent = CURRENT.get();
+		if (parent == UNSAMPLED) {
+			return ic.proceed();
+		}
+		if (parent == null) {
+			return traceTopLevel(ic);
+		}
+		return traceNested(parent, ic);
+	}
+
+	private Object traceTopLevel(InvocationContext ic) throws Exception {
+		TransactionTrace trace = traces.sample();
+		if (trace == null) {
+			CURRENT.set(UNSAMPLED);
+			try {
+				return ic.proceed();
+			} finally {
+				CURRENT.remove();
+			}
+		}
+
+		Span span = trace.open(null, LatencyRegistry.nameOf(ic.getMethod()));
+		Object key = txSyncRegistry.getTransactionKey();
+		if (key != null) {
+			// クライアントが開始したトランザクションに参加した場合も、
+			// このトレースの中ではBEGINとして記録する
+			trace.event(span, EventType.BEGIN, idOf(key));
+			watchCompletion(trace, span, key, null);
+		}
+
+		CURRENT.set(new Frame(trace, span, key));
+		Throwable failure = null;
+		try {
+			return ic.proceed();
+		} catch (Exception e) {
+			failure = e;
+			throw e;
+		} finally {
+			CURRENT.remove();
+			trace.close(span, failure);
+			traces.retain(trace);
+		}
+	}
+
+	private Object traceNested(Frame parent, InvocationContext ic) throws Exception {
+		TransactionTrace trace = parent.trace;
+		Span span = trace.open(parent.span, LatencyRegistry.nameOf(ic.getMethod()));
+		Object key = txSyncRegistry.getTransactionKey();
+		String parentId = parent.transactionKey == null ? null : idOf(parent.transactionKey);
+
+		boolean resumeOnReturn = false;
+		if (key == null) {
+			if (parentId != null) {
+				// NOT_SUPPORTED：呼び出し元のトランザクションは戻るまで保留される
+				trace.event(span, EventType.SUSPEND, parentId);
+				resumeOnReturn = true;
+			}
+		} else if (key.equals(parent.transactionKey)) {
+			trace.event(span, EventType.JOIN, idOf(key));
+		} else {
+			// REQUIRES_NEW：呼び出し元のトランザクションは、新しい
+			// トランザクションが完了するまで保留される
+			if (parentId != null) {
+				trace.event(span, EventType.SUSPEND, parentId);
+			}
+			trace.event(span, EventType.BEGIN, idOf(key));
+			watchCompletion(trace, span, key, parentId);
+		}
+
+		CURRENT.set(new Frame(trace, span, key));
+		Throwable failure = null;
+		try {
+			return ic.proceed();
+		} catch (Exception e) {
+			failure = e;
+			throw e;
+		} finally {
+			CURRENT.set(parent);
+			trace.close(span, failure);
+			if (resumeOnReturn) {
+				trace.event(span, EventType.RESUME, parentId);
+			}
+		}
+	}
+
+	private void watchCompletion(final TransactionTrace trace, final Span span,
+			Object key, final String resumedId) {
+
+		final String id = idOf(key);
+		trace.expectCompletion();
+		try {
+			txSyncRegistry.registerInterposedSynchronization(new Synchronization() {
+				@Override
+				public void beforeCompletion() {
+				}
+
+				@Override
+				public void afterCompletion(int status) {
+					trace.event(span,
+							status == Status.STATUS_COMMITTED ? EventType.COMMIT : EventType.ROLLBACK, id);
+					if (resumedId != null) {
+						trace.event(span, EventType.RESUME, resumedId);
+					}
+					trace.completionObserved();
+				}
+			});
+		} catch (IllegalStateException e) {
+			// 既にロールバックにマークされているなど、Synchronizationを
+			// 登録できない場合は完了を記録しない
+			trace.completionObserved();
+		}
+	}
+
+	private static String idOf(Object transactionKey) {
+		return "tx-" + Integer.toHexString(transactionKey.hashCode());
+	}
+
+	private static class Frame {
+		final TransactionTrace trace;
+		final Span span;
+		final Object transactionKey;
+
+		Frame(TransactionTrace trace, Span span, Object transactionKey) {
+			this.trace = trace;
+			this.span = span;
+			this.transactionKey = transactionKey;
+		}
+	}
+}
@@ -0,0 +1,311 @@
+package org.beginningee6.book.chapter09.ejb.stock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.Singleton;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.beginningee6.book.chapter09.ejb.stock.bucket.BucketedStockEJB;
+import org.beginningee6.book.chapter09.ejb.stock.event.EventSourcedStockEJB;
+import org.beginningee6.book.chapter09.jpa.ex01.Item01;
+
+/**
+ * アクセスが集中する（”ホット”な）Item01エンティティの在庫数量を
+ * メモリ上で管理するシングルトン・セッションBean。
+ *
+ * ホットに指定されたItem01エンティティの在庫引き当ては、データベースの
+ * 行ロックを取得せずに、StripedStockCounterによってメモリ上で行われる。
+ * メモリ上での在庫数量の増減は、タイマーにより定期的に、すべてのホットな
+ * Item01エンティティについてひとつのトランザクションでまとめて
+ * データベースへ反映される。
+ *
+ * ex03、ex05の在庫引き当てと同様に、在庫数量の最後のひとつは引き当てない。
+ * そのため、メモリ上で引き当て可能な在庫数量は、ホットに指定した時点の
+ * 在庫数量から１を引いた値となる。
+ *
+ * ホットに指定している間、そのItem01エンティティの在庫数量をこのBeanを
+ * 経由せずにデータベース上で更新した場合、その更新はメモリ上の在庫数量には
+ * 反映されない。そのため、ex03、ex05のInventoryEJBとItemEJBは、在庫引き当てと
+ * 入庫をホットに指定されたItem01エンティティについてはこのBeanで行い、
+ * 行を直接更新する処理（複数商品の引き当て、期限付きの確保、バケットへの
+ * 分割）はホットに指定されている間は行わない。
+ *
+ * 引き当てと入庫は呼び出し元のトランザクションに合わせて行われる。
+ * 引き当てはただちにメモリ上の在庫数量から差し引き、トランザクションが
+ * コミットされなかった場合は戻す。入庫はトランザクションがコミットされた
+ * 時点でメモリ上の在庫数量に加える。
+ */
+@Singleton
+// 在庫数量はスレッドセーフなStripedStockCounterで管理するため、
+// コンテナによる排他制御は行わない
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class HotItemStockLedgerEJB {
+	private static final Logger logger = Logger.getLogger(HotItemStockLedgerEJB.class.getName());
+
+	@PersistenceContext(unitName = "Chapter09ProductionPU")
+	private EntityManager em;
+
+	// トランザクション完了時の処理を登録するために注入
+	@Resource
+	private TransactionSynchronizationRegistry txSyncRegistry;
+
+	@EJB
+	private StockLevelCacheEJB stockLevelCache;
+
+	// バケットに分割されたItem01エンティティをホットに指定しないために注入
+	@EJB
+	private BucketedStockEJB bucketedStock;
+
+	// 在庫数量を増減のイベントで管理している間はホットに指定しないために注入
+	@EJB
+	private EventSourcedStockEJB eventSourcedStock;
+
+	// ホットに指定されたItem01エンティティのIDと在庫数量
+	private final ConcurrentMap<Long, StripedStockCounter> counters
+		= new ConcurrentHashMap<Long, StripedStockCounter>();
+
+	// ホットの指定を解除されたが、増減をまだデータベースへ反映していないもの
+	private final ConcurrentMap<Long, StripedStockCounter> retired
+		= new ConcurrentHashMap<Long, StripedStockCounter>();
+
+	/**
+	 * Item01エンティティをホットに指定する。
+	 *
+	 * データベースから現在の在庫数量を読み込み、メモリ上での在庫引き当てを
+	 * 開始する。既にホットに指定されている場合は何もしない。
+	 *
+	 * 在庫数量はバケットの行にあるため、バケットに分割されたItem01
+	 * エンティティはホットに指定できない。同様に、EventSourcedStockEJBで
+	 * 在庫数量を管理している間は、在庫数量の列を更新できないため、
+	 * ホットに指定できない。
+	 *
+	 * @param itemId ホットに指定するItem01エンティティのID
+	 * @throws IllegalStateException バケットに分割されている場合、あるいは
+	 *         在庫数量を増減のイベントで管理している場合
+	 */
+	public void markHot(Long itemId) {
+		if (counters.containsKey(itemId)) {
+			return;
+		}
+		if (eventSourcedStock.isEnabled()) {
+			throw new IllegalStateException("Stock is event-sourced; Item01 cannot be marked hot: id=" + itemId);
+		}
+		if (bucketedStock.isBucketed(itemId)) {
+			throw new IllegalStateException("Item01 is split into buckets: id=" + itemId);
+		}
+
+		// 読み込んでからメモリ上の在庫数量を作成するまでの間に、他の
+		// トランザクションが在庫数量を更新しないよう、行ロックを取得して読み込む
+		// 行ロックはこのメソッドのトランザクションの終了時に解放されるため、
+		// 指定中の更新を防ぐものではない
+		Item01 item = em.find(Item01.class, itemId, LockModeType.PESSIMISTIC_WRITE);
+		if (item == null) {
+			throw new IllegalArgumentException("Item01 not found: id=" + itemId);
+		}
+
+		// 在庫数量の最後のひとつは引き当てないため、１を引いておく
+		long sellable = Math.max(0, item.getAvailableInStock() - 1);
+		if (counters.putIfAbsent(itemId, new StripedStockCounter(sellable)) == null) {
+			logger.info("Item01(id=" + itemId + ") marked hot with " + sellable + " sellable units");
+		}
+	}
+
+	/**
+	 * Item01エンティティのホットの指定を解除する。
+	 *
+	 * 解除後の在庫引き当てはデータベース上で行われる。メモリ上での増減は
+	 * 次回のreconcile()でデータベースへ反映される。
+	 *
+	 * @param itemId ホットの指定を解除するItem01エンティティのID
+	 */
+	public void unmarkHot(Long itemId) {
+		StripedStockCounter counter = counters.remove(itemId);
+		if (counter != null) {
+			retired.put(itemId, counter);
+		}
+	}
+
+	/**
+	 * Item01エンティティがホットに指定されているかどうかを返す。
+	 *
+	 * @param itemId Item01エンティティのID
+	 * @return ホットに指定されている場合はtrue
+	 */
+	public boolean isHot(Long itemId) {
+		return counters.containsKey(itemId);
+	}
+
+	/**
+	 * ホットに指定されたItem01エンティティの在庫をメモリ上で引き当てる。
+	 *
+	 * 引き当てた数量は、呼び出し元のトランザクションがコミットされなかった
+	 * 場合にメモリ上の在庫数量へ戻す。
+	 *
+	 * @param itemId 在庫を引き当てるItem01エンティティのID
+	 * @param quantity 引き当てる数量
+	 * @return 引き当てた場合は引き当て後の在庫数量、在庫数量が不足する
+	 *         場合は-1
+	 * @throws IllegalArgumentException ホットに指定されていない場合
+	 */
+	public long tryReserve(Long itemId, final int quantity) {
+		final StripedStockCounter counter = getCounter(itemId);
+		if (!counter.tryReserve(quantity)) {
+			return -1;
+		}
+		try {
+			txSyncRegistry.registerInterposedSynchronization(new Synchronization() {
+				public void beforeCompletion() {
+				}
+
+				public void afterCompletion(int status) {
+					if (status != Status.STATUS_COMMITTED) {
+						counter.add(quantity);
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			// 登録できなかった場合は、引き当てた数量をただちに戻す
+			counter.add(quantity);
+			throw e;
+		}
+		// 引き当てずに残している最後のひとつを加えて返す
+		return counter.sum() + 1;
+	}
+
+	/**
+	 * ホットに指定されたItem01エンティティの在庫数量をメモリ上で増やす。
+	 *
+	 * 呼び出し元のトランザクションがコミットされた時点で増やす。
+	 *
+	 * @param itemId 在庫数量を増やすItem01エンティティのID
+	 * @param quantity 増やす数量
+	 * @throws IllegalArgumentException ホットに指定されていない場合
+	 */
+	public void restock(Long itemId, final int quantity) {
+		final StripedStockCounter counter = getCounter(itemId);
+		txSyncRegistry.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) {
+					counter.add(quantity);
+				}
+			}
+		});
+	}
+
+	/**
+	 * ホットに指定されたItem01エンティティのメモリ上の在庫数量を返す。
+	 *
+	 * @param itemId Item01エンティティのID
+	 * @return 在庫数量
+	 * @throws IllegalArgumentException ホットに指定されていない場合
+	 */
+	public long getAvailableInStock(Long itemId) {
+		return getCounter(itemId).sum() + 1;
+	}
+
+	/**
+	 * メモリ上での在庫数量の増減をデータベースへ反映する。
+	 *
+	 * すべてのホットなItem01エンティティについて、前回の反映以降の増減を
+	 * ひとつのトランザクションでまとめてUPDATE文として発行する。
+	 * トランザクションがコミットされなかった場合は、取り出した増減を
+	 * 記録に戻し、次回の反映で再度反映する。
+	 *
+	 * UPDATE文が例外をスローした場合も、それまでに取り出した増減が
+	 * 失われないよう、増減を取り出す前にトランザクション完了時の処理を
+	 * 登録しておく。
+	 *
+	 * 反映はItem01エンティティの行ロックを取得して読み込んだ在庫数量に
+	 * 増減を加えて行う。加えた結果が負となる場合は反映せず、増減を記録に
+	 * 戻して警告を記録する（指定中に行が直接更新されたことを示す）。
+	 *
+	 * EventSourcedStockEJBで在庫数量を管理している間は、markHot()で
+	 * ホットに指定できないため、反映する増減はない。
+	 */
+	@Schedule(hour = "*", minute = "*", second = "*/5", persistent = false)
+	public void reconcile() {
+		final Map<StripedStockCounter, Long> drained = new HashMap<StripedStockCounter, Long>();
+		final Map<Long, StripedStockCounter> drainedRetired = new HashMap<Long, StripedStockCounter>(retired);
+
+		txSyncRegistry.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) {
+					// 指定を解除されたものは反映が済んだので破棄する
+					removeRetired(drainedRetired);
+				} else {
+					// コミットされなかった場合は増減を記録に戻す
+					for (Map.Entry<StripedStockCounter, Long> entry : drained.entrySet()) {
+						entry.getKey().restoreDelta(entry.getValue());
+					}
+				}
+			}
+		});
+
+		drain(counters, drained);
+		drain(drainedRetired, drained);
+	}
+
+	private void drain(Map<Long, StripedStockCounter> source, Map<StripedStockCounter, Long> drained) {
+		for (Map.Entry<Long, StripedStockCounter> entry : source.entrySet()) {
+			long delta = entry.getValue().drainDelta();
+			if (delta == 0) {
+				continue;
+			}
+			// UPDATE文の発行前に記録し、失敗した場合もafterCompletion()で戻す
+			// （反映中に指定を解除されたものは、両方のMapから取り出される）
+			Long previous = drained.get(entry.getValue());
+			drained.put(entry.getValue(), previous == null ? delta : previous + delta);
+
+			Item01 item = em.find(Item01.class, entry.getKey(), LockModeType.PESSIMISTIC_WRITE);
+			if (item == null) {
+				logger.warning("Item01(id=" + entry.getKey() + ") was removed; dropped hot-item delta " + delta);
+				continue;
+			}
+			long stock = item.getAvailableInStock() + delta;
+			if (stock < 0) {
+				// 反映せずに、次回の反映まで記録に戻す
+				logger.warning("Hot-item delta " + delta + " would drive Item01(id=" + entry.getKey()
+						+ ") stock " + item.getAvailableInStock() + " below zero; kept for the next reconcile");
+				drained.put(entry.getValue(), drained.get(entry.getValue()) - delta);
+				entry.getValue().restoreDelta(delta);
+				continue;
+			}
+			item.setAvailableInStock((int) stock);
+			stockLevelCache.invalidateOnCommit(entry.getKey());
+		}
+	}
+
+	private void removeRetired(Map<Long, StripedStockCounter> drainedRetired) {
+		for (Map.Entry<Long, StripedStockCounter> entry : drainedRetired.entrySet()) {
+			retired.remove(entry.getKey(), entry.getValue());
+		}
+	}
+
+	private StripedStockCounter getCounter(Long itemId) {
+		StripedStockCounter counter = counters.get(itemId);
+		if (counter == null) {
+			throw new IllegalArgumentException("Item01 is not marked hot: id=" + itemId);
+		}
+		return counter;
+	}
+}
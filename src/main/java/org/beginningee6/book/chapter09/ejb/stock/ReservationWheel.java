@@ -0,0 +1,159 @@
+package org.beginningee6.book.chapter09.ejb.stock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 期限付きの在庫の確保（ホールド）を、期限の時刻ごとのスロットに
+ * 振り分けて保持するタイミングホイール。
+ *
+ * 期限の時刻をtickMillis単位の”ティック”に丸め、ティックをスロット数で
+ * 割った余りのスロットに格納する。期限切れのホールドを取り出す際は、
+ * 前回取り出した時点から経過したティックのスロットだけを調べればよいため、
+ * すべてのホールドを走査する必要はない。
+ *
+ * スロット数×tickMillisを、ホールドの有効期間の上限以上にしておくと、
+ * 調べたスロットに含まれるホールドはすべて期限切れとなる。
+ *
+ * すべてのメソッドはこのオブジェクトで同期されている。いずれの操作も
+ * メモリ上で完結するため、データベースへのアクセスはロックの外で行うこと。
+ */
+public class ReservationWheel {
+
+	private final long tickMillis;
+
+	private final List<Map<Long, Hold>> slots;
+
+	// ホールドのIDとホールド（確定・解放時の検索用）
+	private final Map<Long, Hold> holds = new HashMap<Long, Hold>();
+
+	// 期限切れのホールドを取り出し済みのティック
+	private long sweptTick;
+
+	/**
+	 * @param slotCount スロット数
+	 * @param tickMillis ひとつのスロットが受け持つ時間（ミリ秒）
+	 * @param nowMillis 現在時刻
+	 */
+	public ReservationWheel(int slotCount, long tickMillis, long nowMillis) {
+		if (slotCount <= 0 || tickMillis <= 0) {
+			throw new IllegalArgumentException(
+					"slotCount and tickMillis must be positive: " + slotCount + ", " + tickMillis);
+		}
+		this.tickMillis = tickMillis;
+		this.slots = new ArrayList<Map<Long, Hold>>(slotCount);
+		for (int i = 0; i < slotCount; i++) {
+			slots.add(new HashMap<Long, Hold>());
+		}
+		this.sweptTick = nowMillis / tickMillis;
+	}
+
+	/**
+	 * ホールドを追加する。
+	 *
+	 * 期限が既に取り出し済みのティックに含まれる場合は、次回の取り出しで
+	 * 期限切れとして扱われる。
+	 */
+	public synchronized void add(Hold hold) {
+		hold.tick = Math.max(hold.getExpiresAtMillis() / tickMillis, sweptTick + 1);
+		holds.put(hold.getId(), hold);
+		slotOf(hold.tick).put(hold.getId(), hold);
+	}
+
+	/**
+	 * ホールドを取り除く。
+	 *
+	 * @param holdId ホールドのID
+	 * @return 取り除いたホールド。既に確定・解放された、あるいは期限切れとして
+	 *         取り出された場合はnull
+	 */
+	public synchronized Hold remove(long holdId) {
+		Hold hold = holds.remove(holdId);
+		if (hold != null) {
+			slotOf(hold.tick).remove(holdId);
+		}
+		return hold;
+	}
+
+	/**
+	 * 指定された時刻までに期限が切れたホールドを取り除いて返す。
+	 *
+	 * 前回の呼び出しから経過したティックのスロットだけを調べる。
+	 * 経過したティックがスロット数を超える場合も、各スロットを１回ずつ
+	 * 調べるだけでよい。
+	 *
+	 * @param nowMillis 現在時刻
+	 * @return 期限切れのホールド
+	 */
+	public synchronized List<Hold> pollExpired(long nowMillis) {
+		List<Hold> expired = new ArrayList<Hold>();
+		long nowTick = nowMillis / tickMillis;
+		long from = Math.max(sweptTick + 1, nowTick - slots.size() + 1);
+
+		for (long tick = from; tick <= nowTick; tick++) {
+			Iterator<Hold> it = slotOf(tick).values().iterator();
+			while (it.hasNext()) {
+				Hold hold = it.next();
+				// スロット数を超える有効期間のホールドは、ホイールが
+				// 一周するまで残す
+				if (hold.tick <= nowTick) {
+					it.remove();
+					holds.remove(hold.getId());
+					expired.add(hold);
+				}
+			}
+		}
+		sweptTick = Math.max(sweptTick, nowTick);
+		return expired;
+	}
+
+	/**
+	 * 保持しているホールドの数を返す。
+	 */
+	public synchronized int size() {
+		return holds.size();
+	}
+
+	private Map<Long, Hold> slotOf(long tick) {
+		return slots.get((int) (tick % slots.size()));
+	}
+
+	/**
+	 * Item01エンティティの在庫数量を期限付きで確保したもの。
+	 */
+	public static final class Hold {
+		private final long id;
+		private final Long itemId;
+		private final int quantity;
+		private final long expiresAtMillis;
+
+		// 格納先のティック（ReservationWheelのロックの下で更新される）
+		long tick;
+
+		public Hold(long id, Long itemId, int quantity, long expiresAtMillis) {
+			this.id = id;
+			this.itemId = itemId;
+			this.quantity = quantity;
+			this.expiresAtMillis = expiresAtMillis;
+		}
+
+		public long getId() {
+			return id;
+		}
+
+		public Long getItemId() {
+			return itemId;
+		}
+
+		public int getQuantity() {
+			return quantity;
+		}
+
+		public long getExpiresAtMillis() {
+			return expiresAtMillis;
+		}
+	}
+}
@@ -0,0 +1,363 @@
+package org.beginningee6.book.chapter09.ejb.stock;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.Asynchronous;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.beginningee6.book.chapter09.ejb.stock.event.EventSourcedStockEJB;
+
+/**
+ * Item01エンティティの在庫数量の増分（入庫）をメモリ上でまとめ、
+ * Item01エンティティごとにひとつのUPDATE文でデータベースへ反映する
+ * （ライトビハインド）シングルトン・セッションBean。
+ *
+ * 入庫を１個ずつInventoryEJB.addItem()で行うと、そのたびにItem01
+ * エンティティの行が更新されるが、このBeanを使用すると、一定時間内の
+ * 入庫は「availableInStock = availableInStock + 増分」という
+ * ひとつのUPDATE文にまとめられる。
+ *
+ * 増分は呼び出し元のトランザクションがコミットされた時点で記録される
+ * ため、ロールバックされた入庫が反映されることはない。
+ *
+ * 記録した増分はメモリ上にだけ保持されるため、サーバが異常終了すると
+ * 失われる。失われる量は、以下の環境エントリで制限できる。
+ *
+ * ・restock.maxUnflushedUnits：反映していない増分の合計の上限。
+ * 　上限に達した時点で、入庫とは別のスレッドで反映を行う
+ * ・restock.maxAgeMillis：増分を記録してから反映するまでの時間の上限。
+ * 　タイマーにより１秒ごとに確認する
+ *
+ * アンデプロイ時には、反映していない増分をすべて反映する。
+ */
+@Singleton
+// 増分はAtomicLongで管理するため、コンテナによる排他制御は行わない
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class RestockWriteBehindEJB {
+	private static final Logger logger = Logger.getLogger(RestockWriteBehindEJB.class.getName());
+
+	@PersistenceContext(unitName = "Chapter09ProductionPU")
+	private EntityManager em;
+
+	// トランザクション完了時の処理を登録するために注入
+	@Resource
+	private TransactionSynchronizationRegistry txSyncRegistry;
+
+	// 新しいトランザクションで反映を行うため、自身のビジネスオブジェクトを
+	// 取得するために注入
+	@Resource
+	private SessionContext ctx;
+
+	@EJB
+	private StockLevelCacheEJB stockLevelCache;
+
+	// ホットに指定されたItem01エンティティの増分はメモリ上の在庫数量へ
+	// 反映するために注入
+	@EJB
+	private HotItemStockLedgerEJB hotItemStockLedger;
+
+	// 在庫数量を増減のイベントで管理している場合は入庫のイベントとして
+	// 反映するために注入
+	@EJB
+	private EventSourcedStockEJB eventSourcedStock;
+
+	@Resource(name = "restock.maxUnflushedUnits")
+	private long maxUnflushedUnits = 1000L;
+
+	@Resource(name = "restock.maxAgeMillis")
+	private long maxAgeMillis = 1000L;
+
+	// 反映が済んでpendingから取り除く増分に設定する値
+	// （取り除く間に記録しようとしたスレッドは、新しい増分に記録し直す）
+	private static final long REMOVED = Long.MIN_VALUE;
+
+	// Item01エンティティのIDと反映していない増分
+	// 反映がコミットされた時点で増分が０のものは取り除く
+	private final ConcurrentMap<Long, AtomicLong> pending = new ConcurrentHashMap<Long, AtomicLong>();
+
+	// 反映していない増分の合計
+	private final AtomicLong unflushedUnits = new AtomicLong();
+
+	// 反映していない増分のうち最も古いものを記録した時刻（ない場合は０）
+	private final AtomicLong oldestUnflushedAt = new AtomicLong();
+
+	// 上限に達したことによる反映を要求済みかどうか
+	// （反映が始まるまで、重ねて要求しない）
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+	// 反映したUPDATE文の数と増分の合計
+	private final AtomicLong flushedStatements = new AtomicLong();
+	private final AtomicLong flushedUnits = new AtomicLong();
+
+	/**
+	 * Item01エンティティの在庫数量の増分を記録する。
+	 *
+	 * 呼び出し元のトランザクションがある場合は、そのトランザクションが
+	 * コミットされた時点で記録する。
+	 *
+	 * @param itemId Item01エンティティのID
+	 * @param units 増分
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public void add(final Long itemId, final int units) {
+		if (units <= 0) {
+			throw new IllegalArgumentException("units must be positive: " + units);
+		}
+
+		if (txSyncRegistry.getTransactionKey() == null) {
+			record(itemId, units);
+			return;
+		}
+		txSyncRegistry.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) {
+					record(itemId, units);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Item01エンティティについて、反映していない増分を返す。
+	 *
+	 * @param itemId Item01エンティティのID
+	 * @return 反映していない増分
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getPendingUnits(Long itemId) {
+		AtomicLong delta = pending.get(itemId);
+		if (delta == null) {
+			return 0L;
+		}
+		long units = delta.get();
+		return units == REMOVED ? 0L : units;
+	}
+
+	/**
+	 * 増分を保持しているItem01エンティティの数を返す。
+	 *
+	 * @return 増分を保持しているItem01エンティティの数
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public int getPendingItems() {
+		return pending.size();
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getUnflushedUnits() {
+		return unflushedUnits.get();
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getFlushedStatements() {
+		return flushedStatements.get();
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getFlushedUnits() {
+		return flushedUnits.get();
+	}
+
+	/**
+	 * 反映していない増分の記録から最も古いものがrestock.maxAgeMillisを
+	 * 超えている場合、あるいは増分の合計が上限に達している場合に反映する。
+	 */
+	@Schedule(hour = "*", minute = "*", second = "*", persistent = false)
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public void flushIfDue() {
+		long oldest = oldestUnflushedAt.get();
+		if (oldest == 0) {
+			return;
+		}
+		if (System.currentTimeMillis() - oldest >= maxAgeMillis
+				|| unflushedUnits.get() >= maxUnflushedUnits) {
+			flushPending();
+		}
+	}
+
+	/**
+	 * 反映していない増分を、新しいトランザクションでデータベースへ反映する。
+	 *
+	 * Item01エンティティのIDの昇順に、Item01エンティティごとにひとつの
+	 * UPDATE文を発行する。トランザクションがコミットされなかった場合は、
+	 * 取り出した増分を記録に戻す。ホットに指定されているItem01エンティティの
+	 * 増分は、UPDATE文ではなくHotItemStockLedgerEJBへ反映する。
+	 * EventSourcedStockEJBで在庫数量を管理している場合は、UPDATE文ではなく
+	 * 入庫のイベントとして反映する。
+	 *
+	 * @return 反映した増分の合計
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public long flush() {
+		return flushPending();
+	}
+
+	/**
+	 * 反映していない増分の合計が上限に達した時点で、呼び出し元とは別の
+	 * スレッドの新しいトランザクションでデータベースへ反映する。
+	 *
+	 * 入庫のトランザクションの中で反映すると、入庫が行ロックを保持したまま
+	 * 同じ行を更新するトランザクションを待つことになるため、非同期に行う。
+	 */
+	@Asynchronous
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public void flushAsync() {
+		flushRequested.set(false);
+		flushPending();
+	}
+
+	/**
+	 * アンデプロイ時に、反映していない増分をすべて反映する。
+	 */
+	@PreDestroy
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	void flushOnUndeploy() {
+		long units = flushPending();
+		if (units > 0) {
+			logger.info("Flushed " + units + " restocked units on undeploy");
+		}
+	}
+
+	private void record(Long itemId, long units) {
+		for (;;) {
+			AtomicLong delta = pending.get(itemId);
+			if (delta == null) {
+				AtomicLong created = new AtomicLong();
+				delta = pending.putIfAbsent(itemId, created);
+				if (delta == null) {
+					delta = created;
+				}
+			}
+			long current = delta.get();
+			if (current == REMOVED) {
+				// 取り除かれる途中の増分には記録せず、新しい増分に記録する
+				pending.remove(itemId, delta);
+				continue;
+			}
+			if (delta.compareAndSet(current, current + units)) {
+				break;
+			}
+		}
+		long total = unflushedUnits.addAndGet(units);
+		oldestUnflushedAt.compareAndSet(0, System.currentTimeMillis());
+
+		// 上限に達した場合は、別のスレッドで反映する
+		// （要求できなかった場合も、タイマーのflushIfDue()で反映される）
+		if (total >= maxUnflushedUnits && flushRequested.compareAndSet(false, true)) {
+			try {
+				ctx.getBusinessObject(RestockWriteBehindEJB.class).flushAsync();
+			} catch (RuntimeException e) {
+				flushRequested.set(false);
+				logger.warning("Failed to request restock flush; leaving it to the timer: " + e);
+			}
+		}
+	}
+
+	private long flushPending() {
+		final long oldest = oldestUnflushedAt.getAndSet(0);
+
+		// 在庫引き当てと同じ順序で行ロックを取得するため、IDの昇順に並べる
+		final Map<Long, Long> drained = new TreeMap<Long, Long>();
+		for (Map.Entry<Long, AtomicLong> entry : pending.entrySet()) {
+			long units = drain(entry.getValue());
+			if (units != 0) {
+				drained.put(entry.getKey(), units);
+			}
+		}
+		if (drained.isEmpty()) {
+			return 0L;
+		}
+
+		long total = 0;
+		for (Map.Entry<Long, Long> entry : drained.entrySet()) {
+			total += entry.getValue();
+		}
+		unflushedUnits.addAndGet(-total);
+
+		final long drainedTotal = total;
+		txSyncRegistry.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) {
+					flushedStatements.addAndGet(drained.size());
+					flushedUnits.addAndGet(drainedTotal);
+					// 反映後に記録されていない増分を取り除き、入庫された
+					// すべてのItem01エンティティの増分が残り続けないようにする
+					for (Long itemId : drained.keySet()) {
+						removeIfEmpty(itemId);
+					}
+				} else {
+					// コミットされなかった場合は増分を記録に戻す
+					for (Map.Entry<Long, Long> entry : drained.entrySet()) {
+						record(entry.getKey(), entry.getValue());
+					}
+					oldestUnflushedAt.set(oldest);
+				}
+			}
+		});
+
+		for (Map.Entry<Long, Long> entry : drained.entrySet()) {
+			if (eventSourcedStock.isEnabled()) {
+				eventSourcedStock.add(entry.getKey(), entry.getValue().intValue());
+				continue;
+			}
+			if (hotItemStockLedger.isHot(entry.getKey())) {
+				hotItemStockLedger.restock(entry.getKey(), entry.getValue().intValue());
+				continue;
+			}
+			em.createQuery(
+					"UPDATE Item01 i SET i.availableInStock = i.availableInStock + :units " +
+					"WHERE i.id = :id")
+					.setParameter("units", entry.getValue().intValue())
+					.setParameter("id", entry.getKey())
+					.executeUpdate();
+			stockLevelCache.invalidateOnCommit(entry.getKey());
+		}
+		return total;
+	}
+
+	// 増分を取り出して０にする（取り除かれる途中のものは取り出さない）
+	private static long drain(AtomicLong delta) {
+		for (;;) {
+			long units = delta.get();
+			if (units == 0 || units == REMOVED) {
+				return 0L;
+			}
+			if (delta.compareAndSet(units, 0)) {
+				return units;
+			}
+		}
+	}
+
+	private void removeIfEmpty(Long itemId) {
+		AtomicLong delta = pending.get(itemId);
+		if (delta != null && delta.compareAndSet(0, REMOVED)) {
+			pending.remove(itemId, delta);
+		}
+	}
+}
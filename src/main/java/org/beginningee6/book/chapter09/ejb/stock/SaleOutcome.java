@@ -0,0 +1,110 @@
+package org.beginningee6.book.chapter09.ejb.stock;
+
+import java.io.Serializable;
+
+/**
+ * 在庫引き当ての結果を表す不変オブジェクト。
+ *
+ * 在庫数量の不足を例外で通知するsellOneItem()に対して、
+ * trySellOneItem()は引き当ての結果をこのオブジェクトで返す。
+ * 在庫数量の不足は通常の業務上の結果であるため、例外の生成
+ * （スタックトレースの取得）を伴わずに通知する。
+ */
+public final class SaleOutcome implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * 在庫引き当ての結果の種類。
+	 */
+	public enum Status {
+
+		/**
+		 * 在庫をひとつ引き当てた。
+		 */
+		SOLD,
+
+		/**
+		 * 在庫数量が１のため、引き当てなかった（最後のひとつは引き当てない）。
+		 * 
+		 * sellOneItem()でInventoryLevelTooLowExceptionがスローされる場合に相当する。
+		 */
+		LAST_UNIT_BLOCKED,
+
+		/**
+		 * 在庫数量が０のため、引き当てなかった。
+		 * 
+		 * sellOneItem()でStockAvailabilityExceptionがスローされる場合に相当する。
+		 */
+		OUT_OF_STOCK,
+
+		/**
+		 * Item01エンティティが存在しない。
+		 */
+		NOT_FOUND
+	}
+
+	private final Status status;
+
+	private final Long itemId;
+
+	private final int availableInStock;
+
+	private SaleOutcome(Status status, Long itemId, int availableInStock) {
+		this.status = status;
+		this.itemId = itemId;
+		this.availableInStock = availableInStock;
+	}
+
+	/**
+	 * @param itemId 在庫を引き当てたItem01エンティティのID
+	 * @param availableInStock 引き当て後の在庫数量
+	 */
+	public static SaleOutcome sold(Long itemId, int availableInStock) {
+		return new SaleOutcome(Status.SOLD, itemId, availableInStock);
+	}
+
+	/**
+	 * @param itemId 在庫を引き当てなかったItem01エンティティのID
+	 * @param availableInStock 現在の在庫数量
+	 */
+	public static SaleOutcome notSold(Long itemId, int availableInStock) {
+		return new SaleOutcome(availableInStock == 0 ? Status.OUT_OF_STOCK : Status.LAST_UNIT_BLOCKED,
+				itemId, availableInStock);
+	}
+
+	/**
+	 * @param itemId 存在しなかったItem01エンティティのID
+	 */
+	public static SaleOutcome notFound(Long itemId) {
+		return new SaleOutcome(Status.NOT_FOUND, itemId, 0);
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	/**
+	 * 在庫を引き当てた場合はtrueを返す。
+	 */
+	public boolean isSold() {
+		return status == Status.SOLD;
+	}
+
+	public Long getItemId() {
+		return itemId;
+	}
+
+	/**
+	 * 引き当てた場合は引き当て後の在庫数量、引き当てなかった場合は
+	 * 現在の在庫数量を返す。Item01エンティティが存在しない場合は０を返す。
+	 */
+	public int getAvailableInStock() {
+		return availableInStock;
+	}
+
+	@Override
+	public String toString() {
+		return "SaleOutcome[" + status + ", itemId=" + itemId + ", availableInStock=" + availableInStock + "]";
+	}
+}
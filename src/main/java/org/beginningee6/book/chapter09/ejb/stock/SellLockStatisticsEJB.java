@@ -0,0 +1,114 @@
+package org.beginningee6.book.chapter09.ejb.stock;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+
+/**
+ * 在庫引き当てのロック方式ごとに、引き当て回数、再試行回数、行ロックの
+ * 待機回数と待機時間を記録するシングルトン・セッションBean。
+ *
+ * 商品の分類ごとにどのロック方式を選択するかを、実測したスループットと
+ * 合わせて判断するために使用する。
+ */
+@Singleton
+// カウンタはAtomicLongで更新するため、コンテナによる排他制御は行わない
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class SellLockStatisticsEJB {
+
+	private final Map<SellLockStrategy, Counters> counters
+		= new EnumMap<SellLockStrategy, Counters>(SellLockStrategy.class);
+
+	public SellLockStatisticsEJB() {
+		for (SellLockStrategy strategy : SellLockStrategy.values()) {
+			counters.put(strategy, new Counters());
+		}
+	}
+
+	/**
+	 * 在庫引き当てを１回記録する。
+	 */
+	public void recordInvocation(SellLockStrategy strategy) {
+		counters.get(strategy).invocations.incrementAndGet();
+	}
+
+	/**
+	 * 他のトランザクションと競合したことによる再試行を１回記録する。
+	 */
+	public void recordRetry(SellLockStrategy strategy) {
+		counters.get(strategy).retries.incrementAndGet();
+	}
+
+	/**
+	 * 再試行の上限回数に達して引き当てを断念したことを記録する。
+	 */
+	public void recordRetriesExhausted(SellLockStrategy strategy) {
+		counters.get(strategy).retriesExhausted.incrementAndGet();
+	}
+
+	/**
+	 * 行ロックの取得を１回記録する。
+	 *
+	 * @param waitNanos 行ロックの取得に要した時間（ナノ秒）
+	 * @param timedOut タイムアウトなどにより取得できなかった場合はtrue
+	 */
+	public void recordLockWait(SellLockStrategy strategy, long waitNanos, boolean timedOut) {
+		Counters c = counters.get(strategy);
+		c.lockWaits.incrementAndGet();
+		c.lockWaitNanos.addAndGet(waitNanos);
+		if (timedOut) {
+			c.lockTimeouts.incrementAndGet();
+		}
+	}
+
+	public long getInvocations(SellLockStrategy strategy) {
+		return counters.get(strategy).invocations.get();
+	}
+
+	public long getRetries(SellLockStrategy strategy) {
+		return counters.get(strategy).retries.get();
+	}
+
+	public long getRetriesExhausted(SellLockStrategy strategy) {
+		return counters.get(strategy).retriesExhausted.get();
+	}
+
+	public long getLockWaits(SellLockStrategy strategy) {
+		return counters.get(strategy).lockWaits.get();
+	}
+
+	public long getLockWaitNanos(SellLockStrategy strategy) {
+		return counters.get(strategy).lockWaitNanos.get();
+	}
+
+	public long getLockTimeouts(SellLockStrategy strategy) {
+		return counters.get(strategy).lockTimeouts.get();
+	}
+
+	/**
+	 * すべてのカウンタを０に戻す。
+	 */
+	public void reset() {
+		for (Counters c : counters.values()) {
+			c.invocations.set(0);
+			c.retries.set(0);
+			c.retriesExhausted.set(0);
+			c.lockWaits.set(0);
+			c.lockWaitNanos.set(0);
+			c.lockTimeouts.set(0);
+		}
+	}
+
+	private static class Counters {
+		final AtomicLong invocations = new AtomicLong();
+		final AtomicLong retries = new AtomicLong();
+		final AtomicLong retriesExhausted = new AtomicLong();
+		final AtomicLong lockWaits = new AtomicLong();
+		final AtomicLong lockWaitNanos = new AtomicLong();
+		final AtomicLong lockTimeouts = new AtomicLong();
+	}
+}
@@ -0,0 +1,32 @@
+package org.beginningee6.book.chapter09.ejb.stock;
+
+/**
+ * 在庫引き当て時にItem01エンティティを取得する際のロック方式。
+ */
+public enum SellLockStrategy {
+
+	/**
+	 * ロックを指定せずにEntityManager.find()で取得する（従来の方式）。
+	 * 
+	 * 同時に引き当てが行われた場合の振る舞いはデータベースの
+	 * 分離レベルに依存する。
+	 */
+	NONE,
+
+	/**
+	 * 取得時の在庫数量をバージョンとみなし、在庫数量が取得時から
+	 * 変更されていない場合にだけ更新する。
+	 * 
+	 * 他のトランザクションにより在庫数量が変更されていた場合は、
+	 * 待ち時間にゆらぎを加えて上限回数まで再試行する。
+	 */
+	OPTIMISTIC,
+
+	/**
+	 * LockModeType.PESSIMISTIC_WRITEを指定したEntityManager.find()で
+	 * 行ロックを取得してから更新する。
+	 * 
+	 * 行ロックの取得はタイムアウト時間を指定して待機する。
+	 */
+	PESSIMISTIC_WRITE
+}
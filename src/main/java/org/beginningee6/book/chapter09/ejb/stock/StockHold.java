@@ -0,0 +1,84 @@
+package org.beginningee6.book.chapter09.ejb.stock;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import org.hibernate.annotations.Index;
+
+/**
+ * Item01エンティティの在庫数量を期限付きで確保（ホールド）したものを
+ * 表すエンティティ。
+ *
+ * ホールドは在庫数量を差し引くのと同じトランザクションで追加され、
+ * 確定・解放・期限切れにより在庫数量を戻すのと同じトランザクションで
+ * 削除される。そのため、サーバを再起動しても確保した在庫数量が
+ * 失われることはない。
+ *
+ * 期限の時刻をReservationWheelのティックと同じ単位に丸めた値を
+ * expiryBucketとして保持する。起動時にはexpiryBucketの順に読み込んで
+ * ReservationWheelに登録し直す。
+ *
+ * このエンティティはChapter09StockPUで管理される。
+ */
+@Entity
+@Table(name = "STOCK_HOLD")
+public class StockHold {
+
+	@Id
+	@GeneratedValue
+	private Long id;
+
+	@Column(name = "ITEM_ID", nullable = false)
+	private Long itemId;
+
+	@Column(name = "QUANTITY", nullable = false)
+	private int quantity;
+
+	// 期限の時刻（エポックからのミリ秒）
+	@Column(name = "EXPIRES_AT", nullable = false)
+	private long expiresAt;
+
+	// 期限切れのホールドをティックごとに読み込むため、索引を作成する
+	@Index(name = "STOCK_HOLD_BUCKET_IDX")
+	@Column(name = "EXPIRY_BUCKET", nullable = false)
+	private long expiryBucket;
+
+	public StockHold() {
+	}
+
+	public StockHold(Long itemId, int quantity, long expiresAt, long expiryBucket) {
+		this.itemId = itemId;
+		this.quantity = quantity;
+		this.expiresAt = expiresAt;
+		this.expiryBucket = expiryBucket;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public Long getItemId() {
+		return itemId;
+	}
+
+	public int getQuantity() {
+		return quantity;
+	}
+
+	public long getExpiresAt() {
+		return expiresAt;
+	}
+
+	public long getExpiryBucket() {
+		return expiryBucket;
+	}
+
+	@Override
+	public String toString() {
+		return "StockHold [id=" + id + ", itemId=" + itemId + ", quantity=" + quantity
+				+ ", expiresAt=" + expiresAt + ", expiryBucket=" + expiryBucket + "]";
+	}
+}
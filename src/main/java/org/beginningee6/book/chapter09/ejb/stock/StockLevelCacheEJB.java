@@ -0,0 +1,269 @@
+package org.beginningee6.book.chapter09.ejb.stock;
+
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * Item01エンティティの在庫数量を、IDをキーとしてメモリ上に保持する
+ * リードスルーキャッシュのシングルトン・セッションBean。
+ *
+ * キャッシュにない在庫数量は、呼び出し元のトランザクションの外で
+ * データベースから読み込むため、コミットされていない在庫数量が
+ * キャッシュに入ることはない。
+ *
+ * 在庫数量を更新する処理は、invalidateOnCommit()によりトランザクションの
+ * 完了時にキャッシュを更新する。コミットされた場合にだけエントリを破棄し、
+ * ロールバックされた場合は何もしない。読み込みの途中で同じItem01
+ * エンティティの破棄があった場合、読み込んだ在庫数量は古い可能性があるため
+ * キャッシュに入れない。破棄はItem01エンティティごとに判断するため、
+ * 他のItem01エンティティの破棄が読み込みを妨げることはない。
+ *
+ * 呼び出し元のトランザクションが既に在庫数量を更新した（invalidateOnCommit()
+ * を呼び出した、あるいはtouch()で行ロックの取得を通知した）Item01
+ * エンティティについては、トランザクションの外で読み込むと呼び出し元の
+ * 行ロックを待ち続けることになるため、キャッシュを使用せずに呼び出し元の
+ * トランザクションの中で読み込む。
+ *
+ * このBeanを経由せずに在庫数量が更新される場合に備えて、エントリは
+ * stockCache.ttlMillisを過ぎると読み込み直す。エントリの数は
+ * stockCache.maxEntriesを上限とし、最も長く参照されていないものから
+ * 破棄する（LRU）。
+ *
+ * キャッシュした在庫数量は、行ロックを取得せずに在庫数量の不足を
+ * 判断する事前チェックにだけ使用すること。在庫数量の更新は、
+ * 従来どおりデータベースから読み込んだItem01エンティティに対して行う。
+ */
+@Singleton
+// キャッシュはこのBeanのロックで保護するため、コンテナによる排他制御は行わない
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class StockLevelCacheEJB {
+
+	// 呼び出し元のトランザクションが更新したItem01エンティティのIDを
+	// トランザクションに関連付けて保持するためのキー
+	private static final Object TOUCHED_KEY = StockLevelCacheEJB.class.getName() + ".touched";
+
+	@PersistenceContext(unitName = "Chapter09ProductionPU")
+	private EntityManager em;
+
+	// 在庫数量を呼び出し元のトランザクションの外で読み込むために注入
+	@Resource
+	private SessionContext ctx;
+
+	// トランザクション完了時の処理を登録するために注入
+	@Resource
+	private TransactionSynchronizationRegistry txSyncRegistry;
+
+	@Resource(name = "stockCache.maxEntries")
+	private int maxEntries = 10000;
+
+	@Resource(name = "stockCache.ttlMillis")
+	private long ttlMillis = 1000L;
+
+	// アクセス順のLinkedHashMapにより、最も長く参照されていない
+	// エントリを破棄する
+	private final Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+			if (size() > maxEntries) {
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Item01エンティティのコミット済みの在庫数量を返す。
+	 *
+	 * キャッシュにない場合は、呼び出し元のトランザクションの外で
+	 * データベースから読み込む。呼び出し元のトランザクションが既に
+	 * 更新したItem01エンティティの場合は、キャッシュを使用せずに
+	 * 呼び出し元のトランザクションの中で読み込む。
+	 *
+	 * @param itemId Item01エンティティのID
+	 * @return 在庫数量。Item01エンティティが存在しない場合はnull
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public Integer getAvailableInStock(Long itemId) {
+		if (isTouched(itemId)) {
+			return readAvailableInStock(itemId);
+		}
+
+		// 読み込み中であることを示すエントリを置き、読み込みの途中で
+		// 破棄された（エントリが置き換えられた）場合はキャッシュに入れない
+		Entry loading = new Entry(null, 0L);
+		synchronized (this) {
+			Entry entry = entries.get(itemId);
+			if (entry != null && entry.availableInStock != null
+					&& System.currentTimeMillis() - entry.loadedAt < ttlMillis) {
+				hits.incrementAndGet();
+				return entry.availableInStock;
+			}
+			entries.put(itemId, loading);
+		}
+		misses.incrementAndGet();
+
+		Integer availableInStock = ctx.getBusinessObject(StockLevelCacheEJB.class).loadCommitted(itemId);
+		synchronized (this) {
+			if (entries.get(itemId) == loading) {
+				if (availableInStock == null) {
+					entries.remove(itemId);
+				} else {
+					entries.put(itemId, new Entry(availableInStock, System.currentTimeMillis()));
+				}
+			}
+		}
+		return availableInStock;
+	}
+
+	/**
+	 * Item01エンティティのコミット済みの在庫数量を、呼び出し元の
+	 * トランザクションの外でデータベースから読み込む。
+	 *
+	 * getAvailableInStock()がキャッシュにない在庫数量を読み込むために
+	 * 使用する。読み込んだ在庫数量はキャッシュに入れない。
+	 *
+	 * @param itemId Item01エンティティのID
+	 * @return 在庫数量。Item01エンティティが存在しない場合はnull
+	 */
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public Integer loadCommitted(Long itemId) {
+		return readAvailableInStock(itemId);
+	}
+
+	/**
+	 * 呼び出し元のトランザクションがItem01エンティティの行ロックを
+	 * 取得したことを通知する。
+	 *
+	 * 以降、同じトランザクションでのgetAvailableInStock()は、呼び出し元の
+	 * トランザクションの中で読み込む。トランザクションがない場合は何もしない。
+	 *
+	 * @param itemId 行ロックを取得したItem01エンティティのID
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public void touch(Long itemId) {
+		if (txSyncRegistry.getTransactionKey() == null) {
+			return;
+		}
+		@SuppressWarnings("unchecked")
+		Set<Long> touched = (Set<Long>) txSyncRegistry.getResource(TOUCHED_KEY);
+		if (touched == null) {
+			touched = new HashSet<Long>();
+			txSyncRegistry.putResource(TOUCHED_KEY, touched);
+		}
+		touched.add(itemId);
+	}
+
+	/**
+	 * 呼び出し元のトランザクションがコミットされた時点で、Item01
+	 * エンティティの在庫数量をキャッシュから破棄する。
+	 *
+	 * トランザクションがない場合は、ただちに破棄する。
+	 *
+	 * @param itemId 在庫数量を更新したItem01エンティティのID
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public void invalidateOnCommit(final Long itemId) {
+		if (txSyncRegistry.getTransactionKey() == null) {
+			invalidate(itemId);
+			return;
+		}
+		touch(itemId);
+		txSyncRegistry.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) {
+					invalidate(itemId);
+				}
+			}
+		});
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getHits() {
+		return hits.get();
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	/**
+	 * すべてのエントリを破棄し、カウンタを０に戻す。
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public synchronized void clear() {
+		entries.clear();
+		hits.set(0);
+		misses.set(0);
+		evictions.set(0);
+	}
+
+	private synchronized void invalidate(Long itemId) {
+		entries.remove(itemId);
+	}
+
+	// 呼び出し元のトランザクションが更新したItem01エンティティかどうか
+	private boolean isTouched(Long itemId) {
+		if (txSyncRegistry.getTransactionKey() == null) {
+			return false;
+		}
+		Set<?> touched = (Set<?>) txSyncRegistry.getResource(TOUCHED_KEY);
+		return touched != null && touched.contains(itemId);
+	}
+
+	private Integer readAvailableInStock(Long itemId) {
+		List<Integer> result = em.createQuery(
+				"SELECT i.availableInStock FROM Item01 i WHERE i.id = :id", Integer.class)
+				.setParameter("id", itemId)
+				.getResultList();
+		return result.isEmpty() ? null : result.get(0);
+	}
+
+	private static class Entry {
+		// 読み込み中の場合はnull
+		final Integer availableInStock;
+		final long loadedAt;
+
+		Entry(Integer availableInStock, long loadedAt) {
+			this.availableInStock = availableInStock;
+			this.loadedAt = loadedAt;
+		}
+	}
+}
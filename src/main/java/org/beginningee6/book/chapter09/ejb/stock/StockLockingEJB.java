@@ -0,0 +1,311 @@
+package org.beginningee6.book.chapter09.ejb.stock;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import javax.annotation.Resource;
+import javax.ejb.EJB;
+import javax.ejb.Stateless;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityNotFoundException;
+import javax.persistence.LockModeType;
+import javax.persistence.LockTimeoutException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceContext;
+import javax.persistence.PessimisticLockException;
+
+import org.beginningee6.book.chapter09.ejb.stock.event.EventSourcedStockEJB;
+import org.beginningee6.book.chapter09.jpa.ex01.Item01;
+import org.beginningee6.book.chapter09.jpa.ex01.StockAvailabilityException;
+
+/**
+ * 指定されたロック方式でItem01エンティティを取得し、在庫数量をひとつ
+ * 減らすEJB。
+ *
+ * 呼び出し元のトランザクションの中で実行されることを前提としており、
+ * ex03.ItemEJB（コンテナ管理トランザクション）からも、ex05.ItemEJB
+ * （Bean管理トランザクション）からも同じように使用できる。
+ *
+ * ロック方式の既定値などは、以下の環境エントリで変更できる。
+ *
+ * ・sell.lockStrategy：既定のロック方式（NONE、OPTIMISTIC、PESSIMISTIC_WRITE）
+ * ・sell.optimisticMaxAttempts：OPTIMISTICでの試行回数の上限
+ * ・sell.backoffBaseMillis：OPTIMISTICで再試行する際の待ち時間の基準値
+ * ・sell.backoffMaxMillis：OPTIMISTICで再試行する際の待ち時間の上限
+ * ・sell.lockTimeoutMillis：PESSIMISTIC_WRITEで行ロックの取得を待つ時間
+ *
+ * EventSourcedStockEJBで在庫数量を管理している間は、在庫数量の列を
+ * 更新しないよう、IllegalStateExceptionをスローする（ex03、ex05の
+ * ItemEJBは、その間はEventSourcedStockEJBで引き当てる）。
+ */
+@Stateless
+public class StockLockingEJB {
+
+	// JPA 2.0で定義されているロック取得のタイムアウト時間のヒント
+	private static final String LOCK_TIMEOUT_HINT = "javax.persistence.lock.timeout";
+
+	@PersistenceContext(unitName = "Chapter09ProductionPU")
+	private EntityManager em;
+
+	@EJB
+	private SellLockStatisticsEJB statistics;
+
+	@EJB
+	private StockLevelCacheEJB stockLevelCache;
+
+	@EJB
+	private EventSourcedStockEJB eventSourcedStock;
+
+	@Resource(name = "sell.lockStrategy")
+	private String defaultStrategy = SellLockStrategy.NONE.name();
+
+	@Resource(name = "sell.optimisticMaxAttempts")
+	private int optimisticMaxAttempts = 5;
+
+	@Resource(name = "sell.backoffBaseMillis")
+	private int backoffBaseMillis = 2;
+
+	@Resource(name = "sell.backoffMaxMillis")
+	private int backoffMaxMillis = 50;
+
+	@Resource(name = "sell.lockTimeoutMillis")
+	private int lockTimeoutMillis = 2000;
+
+	private final Random random = new Random();
+
+	/**
+	 * 環境エントリで指定された既定のロック方式を返す。
+	 *
+	 * @return 既定のロック方式
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public SellLockStrategy getDefaultStrategy() {
+		return SellLockStrategy.valueOf(defaultStrategy);
+	}
+
+	/**
+	 * 指定されたロック方式でItem01エンティティを取得し、在庫数量をひとつ減らす。
+	 *
+	 * @param itemId 在庫数量を減らすItem01エンティティのID
+	 * @param strategy ロック方式
+	 * @return 在庫数量を減らしたItem01エンティティ
+	 * @throws StockAvailabilityException 在庫数量が０の場合
+	 * @throws OptimisticLockException OPTIMISTICで試行回数の上限に達した場合
+	 * @throws LockTimeoutException PESSIMISTIC_WRITEで行ロックを取得できなかった場合
+	 * @throws IllegalStateException 在庫数量を増減のイベントで管理している場合
+	 */
+	// 呼び出し元のトランザクションの中でだけ実行できる
+	@TransactionAttribute(TransactionAttributeType.MANDATORY)
+	public Item01 decreaseAvailableStock(Long itemId, SellLockStrategy strategy)
+			throws StockAvailabilityException {
+
+		checkNotEventSourced(itemId);
+		statistics.recordInvocation(strategy);
+
+		Item01 item;
+		switch (strategy) {
+		case OPTIMISTIC:
+			item = decreaseOptimistically(itemId);
+			break;
+		case PESSIMISTIC_WRITE:
+			item = decreasePessimistically(itemId);
+			break;
+		default:
+			item = em.find(Item01.class, itemId);
+			item.decreaseAvailableStock();
+			break;
+		}
+
+		// コミットされた時点で、キャッシュした在庫数量を破棄する
+		stockLevelCache.invalidateOnCommit(itemId);
+		return item;
+	}
+
+	/**
+	 * 指定されたロック方式でItem01エンティティを取得し、在庫数量が２以上の
+	 * 場合にだけ在庫数量をひとつ減らす。
+	 *
+	 * decreaseAvailableStock()と異なり、在庫数量の最後のひとつは減らさず、
+	 * 在庫数量の不足やItem01エンティティが存在しないことを例外ではなく
+	 * 戻り値で通知する。引き当てなかった場合、データベースは更新しない。
+	 *
+	 * @param itemId 在庫数量を減らすItem01エンティティのID
+	 * @param strategy ロック方式
+	 * @return 引き当ての結果
+	 * @throws OptimisticLockException OPTIMISTICで試行回数の上限に達した場合
+	 * @throws LockTimeoutException PESSIMISTIC_WRITEで行ロックを取得できなかった場合
+	 * @throws IllegalStateException 在庫数量を増減のイベントで管理している場合
+	 */
+	// 呼び出し元のトランザクションの中でだけ実行できる
+	@TransactionAttribute(TransactionAttributeType.MANDATORY)
+	public SaleOutcome trySell(Long itemId, SellLockStrategy strategy) {
+
+		checkNotEventSourced(itemId);
+		statistics.recordInvocation(strategy);
+
+		SaleOutcome outcome;
+		if (strategy == SellLockStrategy.OPTIMISTIC) {
+			outcome = trySellOptimistically(itemId);
+		} else {
+			Item01 item = strategy == SellLockStrategy.PESSIMISTIC_WRITE
+					? findPessimistically(itemId)
+					: em.find(Item01.class, itemId);
+			if (item == null) {
+				outcome = SaleOutcome.notFound(itemId);
+			} else if (item.getAvailableInStock() <= 1) {
+				outcome = SaleOutcome.notSold(itemId, item.getAvailableInStock());
+			} else {
+				item.setAvailableInStock(item.getAvailableInStock() - 1);
+				outcome = SaleOutcome.sold(itemId, item.getAvailableInStock());
+			}
+		}
+
+		if (outcome.isSold()) {
+			// コミットされた時点で、キャッシュした在庫数量を破棄する
+			stockLevelCache.invalidateOnCommit(itemId);
+		}
+		return outcome;
+	}
+
+	// 在庫数量を増減のイベントで管理している間は、在庫数量の列を更新しない
+	private void checkNotEventSourced(Long itemId) {
+		if (eventSourcedStock.isEnabled()) {
+			throw new IllegalStateException("Stock is event-sourced; use EventSourcedStockEJB to sell Item01: id=" + itemId);
+		}
+	}
+
+	private Item01 decreaseOptimistically(Long itemId) throws StockAvailabilityException {
+		// 呼び出し元が同じトランザクションで変更したItem01エンティティを
+		// 先にデータベースへ反映し、その在庫数量を条件とする
+		em.flush();
+		for (int attempt = 1; ; attempt++) {
+			Integer expected = readAvailableInStock(itemId);
+			if (expected == null) {
+				throw new EntityNotFoundException("Item01 not found: id=" + itemId);
+			}
+
+			// Item01エンティティが在庫数量を減らす際と同じく、在庫数量が０の
+			// 場合はStockAvailabilityExceptionをスローする
+			// （管理されているエンティティを変更するとコミット時に在庫数量の
+			// UPDATE文がもう一度発行されるため、エンティティは変更しない）
+			if (expected == 0) {
+				throw new StockAvailabilityException();
+			}
+
+			// 取得時の在庫数量を条件とするUPDATE文だけで更新する
+			if (compareAndSetStock(itemId, expected, expected - 1)) {
+				// 永続コンテキストのItem01エンティティを更新後の在庫数量で読み込み直す
+				// （呼び出し元の変更はフラッシュ済みのため失われない）
+				Item01 item = em.find(Item01.class, itemId);
+				em.refresh(item);
+				return item;
+			}
+
+			// 取得してから更新するまでの間に他のトランザクションが在庫数量を
+			// 変更したため、再試行する
+			if (attempt >= optimisticMaxAttempts) {
+				statistics.recordRetriesExhausted(SellLockStrategy.OPTIMISTIC);
+				throw new OptimisticLockException(
+						"Item01 stock changed concurrently: id=" + itemId + ", attempts=" + attempt);
+			}
+			statistics.recordRetry(SellLockStrategy.OPTIMISTIC);
+			backoff(attempt);
+		}
+	}
+
+	private Item01 decreasePessimistically(Long itemId) throws StockAvailabilityException {
+		Item01 item = findPessimistically(itemId);
+		item.decreaseAvailableStock();
+		return item;
+	}
+
+	private Item01 findPessimistically(Long itemId) {
+		Map<String, Object> hints = new HashMap<String, Object>();
+		hints.put(LOCK_TIMEOUT_HINT, lockTimeoutMillis);
+
+		Item01 item;
+		long start = System.nanoTime();
+		try {
+			item = em.find(Item01.class, itemId, LockModeType.PESSIMISTIC_WRITE, hints);
+		} catch (LockTimeoutException e) {
+			statistics.recordLockWait(SellLockStrategy.PESSIMISTIC_WRITE, System.nanoTime() - start, true);
+			throw e;
+		} catch (PessimisticLockException e) {
+			statistics.recordLockWait(SellLockStrategy.PESSIMISTIC_WRITE, System.nanoTime() - start, true);
+			throw e;
+		}
+		statistics.recordLockWait(SellLockStrategy.PESSIMISTIC_WRITE, System.nanoTime() - start, false);
+		// 行ロックを保持している間は、キャッシュの在庫数量をこのトランザクションの
+		// 外で読み込まないよう通知する
+		stockLevelCache.touch(itemId);
+		return item;
+	}
+
+	private SaleOutcome trySellOptimistically(Long itemId) {
+		// decreaseOptimistically()と同様に、呼び出し元の変更を反映してから読み込む
+		em.flush();
+		for (int attempt = 1; ; attempt++) {
+			Integer expected = readAvailableInStock(itemId);
+			if (expected == null) {
+				return SaleOutcome.notFound(itemId);
+			}
+			if (expected <= 1) {
+				return SaleOutcome.notSold(itemId, expected);
+			}
+
+			// decreaseOptimistically()と同様に、取得時の在庫数量を条件とする
+			// UPDATE文だけで更新する
+			if (compareAndSetStock(itemId, expected, expected - 1)) {
+				return SaleOutcome.sold(itemId, expected - 1);
+			}
+
+			if (attempt >= optimisticMaxAttempts) {
+				statistics.recordRetriesExhausted(SellLockStrategy.OPTIMISTIC);
+				throw new OptimisticLockException(
+						"Item01 stock changed concurrently: id=" + itemId + ", attempts=" + attempt);
+			}
+			statistics.recordRetry(SellLockStrategy.OPTIMISTIC);
+			backoff(attempt);
+		}
+	}
+
+	// Item01エンティティを永続コンテキストに読み込まずに在庫数量だけを読み込む
+	// （呼び出し元が管理しているItem01エンティティを切り離さないため）
+	private Integer readAvailableInStock(Long itemId) {
+		List<Integer> result = em.createQuery(
+				"SELECT i.availableInStock FROM Item01 i WHERE i.id = :id", Integer.class)
+				.setParameter("id", itemId)
+				.getResultList();
+		return result.isEmpty() ? null : result.get(0);
+	}
+
+	private boolean compareAndSetStock(Long itemId, int expected, int newValue) {
+		int updated = em.createQuery(
+				"UPDATE Item01 i SET i.availableInStock = :decreased " +
+				"WHERE i.id = :id AND i.availableInStock = :expected")
+				.setParameter("decreased", newValue)
+				.setParameter("id", itemId)
+				.setParameter("expected", expected)
+				.executeUpdate();
+		return updated == 1;
+	}
+
+	// 試行回数に応じて上限まで指数的に伸ばした待ち時間の範囲から、
+	// ランダムに選んだ時間だけ待つ（再試行のタイミングを分散させる）
+	private void backoff(int attempt) {
+		long ceiling = Math.min((long) backoffMaxMillis, (long) backoffBaseMillis << Math.min(attempt, 20));
+		long sleepMillis = (long) (random.nextDouble() * ceiling);
+		if (sleepMillis <= 0) {
+			return;
+		}
+		try {
+			Thread.sleep(sleepMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
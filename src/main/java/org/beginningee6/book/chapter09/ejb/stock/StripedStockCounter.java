@@ -0,0 +1,218 @@
+package org.beginningee6.book.chapter09.ejb.stock;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 在庫数量をCPU数分のサブカウンタ（ストライプ）に分散して保持するカウンタ。
+ *
+ * java.util.concurrent.atomic.LongAdderと同様に、スレッドごとに異なる
+ * ストライプを更新することで、多数のスレッドが同じ在庫数量を同時に
+ * 更新する場合の競合を抑える。
+ *
+ * LongAdderとの違いは、引き当て（tryReserve）によって在庫数量が
+ * ０未満にならないことを保証する点にある。各ストライプの値は
+ * compareAndSetにより０以上に保たれ、あるストライプで引き当てられない
+ * 場合は他のストライプから引き当てる。
+ *
+ * また、前回のdrainDelta()以降に行われた引き当てと入庫の差分を
+ * 別のストライプに記録しており、これをデータベースへの反映に使用する。
+ */
+public class StripedStockCounter {
+
+	// 隣接するストライプが同じキャッシュラインに乗らないようにするための
+	// 間隔（long 8個 = 64バイト）
+	private static final int PADDING = 8;
+
+	// 在庫数量のストライプ
+	private final AtomicLongArray cells;
+
+	// 前回のdrainDelta()以降の在庫数量の増減のストライプ
+	private final AtomicLongArray deltas;
+
+	private final int stripes;
+
+	private final int mask;
+
+	// スレッドごとに使用するストライプの位置
+	private final ThreadLocal<int[]> probe = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			long id = Thread.currentThread().getId();
+			return new int[] { (int) (id * 0x9E3779B9L) };
+		}
+	};
+
+	/**
+	 * 利用可能なCPU数に応じたストライプ数でカウンタを生成する。
+	 *
+	 * @param initialStock 在庫数量の初期値
+	 */
+	public StripedStockCounter(long initialStock) {
+		this(Runtime.getRuntime().availableProcessors(), initialStock);
+	}
+
+	/**
+	 * 指定されたストライプ数でカウンタを生成する。
+	 *
+	 * @param minStripes ストライプ数の下限（２のべき乗に切り上げられる）
+	 * @param initialStock 在庫数量の初期値
+	 */
+	public StripedStockCounter(int minStripes, long initialStock) {
+		if (initialStock < 0) {
+			throw new IllegalArgumentException("initialStock must not be negative: " + initialStock);
+		}
+		int n = 1;
+		while (n < minStripes) {
+			n <<= 1;
+		}
+		this.stripes = n;
+		this.mask = n - 1;
+		this.cells = new AtomicLongArray(n * PADDING);
+		this.deltas = new AtomicLongArray(n * PADDING);
+
+		// 初期値をストライプに均等に分配する
+		long share = initialStock / n;
+		long remainder = initialStock % n;
+		for (int i = 0; i < n; i++) {
+			cells.set(i * PADDING, share + (i < remainder ? 1 : 0));
+		}
+	}
+
+	/**
+	 * 在庫数量を指定された数量だけ引き当てる。
+	 *
+	 * 在庫数量の合計が不足する場合は何も変更せずにfalseを返す。
+	 *
+	 * @param quantity 引き当てる数量
+	 * @return 引き当てた場合はtrue
+	 */
+	public boolean tryReserve(long quantity) {
+		if (quantity <= 0) {
+			throw new IllegalArgumentException("quantity must be positive: " + quantity);
+		}
+
+		int[] p = probe.get();
+		int start = p[0];
+		for (int i = 0; i < stripes; i++) {
+			int index = ((start + i) & mask) * PADDING;
+			for (;;) {
+				long current = cells.get(index);
+				if (current < quantity) {
+					// このストライプでは引き当てられないため、次のストライプへ
+					break;
+				}
+				if (cells.compareAndSet(index, current, current - quantity)) {
+					deltas.addAndGet(index, -quantity);
+					if (i > 0) {
+						// 次回は引き当てられたストライプから試す
+						p[0] = start + i;
+					}
+					return true;
+				}
+				// 他のスレッドと競合した場合は同じストライプで再試行する
+			}
+		}
+
+		// 単一のストライプでは引き当てられない場合、複数のストライプから
+		// 集めて引き当てる
+		return gather(quantity);
+	}
+
+	private boolean gather(long quantity) {
+		long[] taken = new long[stripes];
+		long remaining = quantity;
+		for (int i = 0; i < stripes && remaining > 0; i++) {
+			int index = i * PADDING;
+			for (;;) {
+				long current = cells.get(index);
+				long take = Math.min(current, remaining);
+				if (take <= 0) {
+					break;
+				}
+				if (cells.compareAndSet(index, current, current - take)) {
+					taken[i] = take;
+					remaining -= take;
+					break;
+				}
+			}
+		}
+
+		if (remaining > 0) {
+			// 在庫数量の合計が不足しているため、集めた分を元に戻す
+			for (int i = 0; i < stripes; i++) {
+				if (taken[i] > 0) {
+					cells.addAndGet(i * PADDING, taken[i]);
+				}
+			}
+			return false;
+		}
+
+		for (int i = 0; i < stripes; i++) {
+			if (taken[i] > 0) {
+				deltas.addAndGet(i * PADDING, -taken[i]);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * 在庫数量を指定された数量だけ増やす。
+	 *
+	 * @param quantity 増やす数量
+	 */
+	public void add(long quantity) {
+		if (quantity <= 0) {
+			throw new IllegalArgumentException("quantity must be positive: " + quantity);
+		}
+		int index = (probe.get()[0] & mask) * PADDING;
+		cells.addAndGet(index, quantity);
+		deltas.addAndGet(index, quantity);
+	}
+
+	/**
+	 * 在庫数量の合計を返す。
+	 *
+	 * 他のスレッドが更新中の場合、返される値はその時点の近似値となる。
+	 *
+	 * @return 在庫数量の合計
+	 */
+	public long sum() {
+		long sum = 0;
+		for (int i = 0; i < stripes; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	/**
+	 * 前回の呼び出し以降の在庫数量の増減を返し、増減の記録を０に戻す。
+	 *
+	 * @return 在庫数量の増減（引き当てが多い場合は負の値）
+	 */
+	public long drainDelta() {
+		long delta = 0;
+		for (int i = 0; i < stripes; i++) {
+			delta += deltas.getAndSet(i * PADDING, 0);
+		}
+		return delta;
+	}
+
+	/**
+	 * drainDelta()で取り出したもののデータベースへ反映できなかった
+	 * 増減を記録に戻す。
+	 *
+	 * @param delta 記録に戻す在庫数量の増減
+	 */
+	public void restoreDelta(long delta) {
+		deltas.addAndGet(0, delta);
+	}
+
+	/**
+	 * ストライプ数を返す。
+	 *
+	 * @return ストライプ数
+	 */
+	public int getStripes() {
+		return stripes;
+	}
+}
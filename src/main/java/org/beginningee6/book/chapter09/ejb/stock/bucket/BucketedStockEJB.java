@@ -0,0 +1,466 @@
+package org.beginningee6.book.chapter09.ejb.stock.bucket;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJB;
+import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.beginningee6.book.chapter09.ejb.stock.HotItemStockLedgerEJB;
+import org.beginningee6.book.chapter09.ejb.stock.StockLevelCacheEJB;
+import org.beginningee6.book.chapter09.ejb.stock.event.EventSourcedStockEJB;
+import org.beginningee6.book.chapter09.jpa.ex01.Item01;
+
+/**
+ * Item01エンティティの在庫数量を複数のStockBucketの行に分割して管理する
+ * シングルトン・セッションBean。
+ *
+ * 在庫数量がひとつの行にある場合、同じItem01エンティティに対する在庫引き当ては
+ * 行ロックを保持している時間あたりひとつしか行えない。split()でN個の
+ * バケットに分割すると、在庫引き当てはいずれかひとつのバケットの行だけを
+ * 条件付きUPDATE文で更新するため、最大N個の引き当てを同時に行える。
+ *
+ * 引き当てるバケットは、このBeanから引き当て中（トランザクションが完了して
+ * いない）の数が最も少ないものを、ランダムな位置から探して選ぶ。選んだ
+ * バケットの在庫数量が０の場合は、他のバケットを順に試す。引き当てによって
+ * 生じたバケット間の在庫数量の偏りは、タイマーにより定期的に
+ * rebalanceAll()で均される。
+ *
+ * HotItemStockLedgerEJBと同様に、在庫数量の最後のひとつは引き当てない。
+ * 分割時に在庫数量から１を引いた数量をバケットに移し、残したひとつは
+ * Item01エンティティの在庫数量としておく。そのため、分割している間は
+ * Item01エンティティに対する通常の在庫引き当ては行えない。
+ * 分割している間の入庫はItem01エンティティの在庫数量に加えられ、
+ * すべてのバケットの在庫数量が０になった後にsellOne()で引き当てられる。
+ *
+ * StockBucketエンティティは、Item01エンティティと同じデータソースを
+ * 使用するChapter09StockPUで管理される。
+ */
+@Singleton
+// 引き当て中の数はスレッドセーフなAtomicIntegerArrayで管理するため、
+// コンテナによる排他制御は行わない
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class BucketedStockEJB {
+	private static final Logger logger = Logger.getLogger(BucketedStockEJB.class.getName());
+
+	@PersistenceContext(unitName = "Chapter09StockPU")
+	private EntityManager em;
+
+	@PersistenceContext(unitName = "Chapter09ProductionPU")
+	private EntityManager itemEm;
+
+	// トランザクション完了時の処理を登録するために注入
+	@Resource
+	private TransactionSynchronizationRegistry txSyncRegistry;
+
+	// Item01エンティティごとに別のトランザクションで均すために注入
+	@Resource
+	private SessionContext ctx;
+
+	@EJB
+	private StockLevelCacheEJB stockLevelCache;
+
+	// ホットに指定されたItem01エンティティを分割しないために注入
+	@EJB
+	private HotItemStockLedgerEJB hotItemStockLedger;
+
+	// 在庫数量を増減のイベントで管理している間は分割しないために注入
+	@EJB
+	private EventSourcedStockEJB eventSourcedStock;
+
+	// バケット間の在庫数量の差がこの値以上になったら均す
+	@Resource(name = "stockBuckets.rebalanceThreshold")
+	private int rebalanceThreshold = 2;
+
+	// 分割されたItem01エンティティのIDと、バケットごとの引き当て中の数
+	private final ConcurrentMap<Long, AtomicIntegerArray> inFlight
+		= new ConcurrentHashMap<Long, AtomicIntegerArray>();
+
+	private final Random random = new Random();
+
+	private final AtomicLong sells = new AtomicLong();
+	private final AtomicLong fallbacks = new AtomicLong();
+	private final AtomicLong rowSells = new AtomicLong();
+	private final AtomicLong soldOut = new AtomicLong();
+	private final AtomicLong rebalances = new AtomicLong();
+
+	/**
+	 * Item01エンティティの在庫数量を指定された数のバケットに分割する。
+	 *
+	 * 行ロックを取得してItem01エンティティを読み込み、在庫数量から１を引いた
+	 * 数量をバケットに均等に移す。既に分割されている場合は何もしない。
+	 *
+	 * @param itemId 分割するItem01エンティティのID
+	 * @param buckets バケットの数
+	 * @throws IllegalStateException HotItemStockLedgerEJBでホットに指定されている場合、
+	 *         あるいはEventSourcedStockEJBで在庫数量を増減のイベントで管理している場合
+	 */
+	public void split(Long itemId, int buckets) {
+		if (buckets < 1) {
+			throw new IllegalArgumentException("buckets must be positive: " + buckets);
+		}
+		if (countBuckets(itemId) > 0) {
+			return;
+		}
+		if (hotItemStockLedger.isHot(itemId)) {
+			throw new IllegalStateException("Item01 is marked hot: id=" + itemId);
+		}
+		if (eventSourcedStock.isEnabled()) {
+			throw new IllegalStateException("Stock is event-sourced; Item01 cannot be split: id=" + itemId);
+		}
+
+		// 分割中に他のトランザクションが在庫数量を更新しないよう、
+		// 行ロックを取得して読み込む
+		Item01 item = itemEm.find(Item01.class, itemId, LockModeType.PESSIMISTIC_WRITE);
+		if (item == null) {
+			throw new IllegalArgumentException("Item01 not found: id=" + itemId);
+		}
+
+		// 在庫数量の最後のひとつは引き当てないため、Item01エンティティに残す
+		int stock = item.getAvailableInStock();
+		int sellable = Math.max(0, stock - 1);
+		item.setAvailableInStock(stock - sellable);
+		for (int i = 0; i < buckets; i++) {
+			em.persist(new StockBucket(itemId, i, share(sellable, buckets, i)));
+		}
+		stockLevelCache.invalidateOnCommit(itemId);
+
+		logger.info("Item01(id=" + itemId + ") split into " + buckets + " buckets with " + sellable + " sellable units");
+	}
+
+	/**
+	 * バケットに分割されたItem01エンティティの在庫数量をひとつの行に戻す。
+	 *
+	 * バケットの在庫数量の合計をItem01エンティティの在庫数量に加え、
+	 * バケットを削除する。分割されていない場合は何もしない。
+	 *
+	 * @param itemId 戻すItem01エンティティのID
+	 */
+	public void merge(final Long itemId) {
+		List<StockBucket> buckets = lockBuckets(itemId);
+		if (buckets.isEmpty()) {
+			return;
+		}
+
+		int total = 0;
+		for (StockBucket bucket : buckets) {
+			total += bucket.getQuantity();
+			em.remove(bucket);
+		}
+
+		Item01 item = itemEm.find(Item01.class, itemId, LockModeType.PESSIMISTIC_WRITE);
+		item.setAvailableInStock(item.getAvailableInStock() + total);
+		stockLevelCache.invalidateOnCommit(itemId);
+
+		txSyncRegistry.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				if (status == Status.STATUS_COMMITTED) {
+					inFlight.remove(itemId);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Item01エンティティがバケットに分割されているかどうかを返す。
+	 *
+	 * @param itemId Item01エンティティのID
+	 * @return 分割されている場合はtrue
+	 */
+	public boolean isBucketed(Long itemId) {
+		return findInFlight(itemId) != null;
+	}
+
+	/**
+	 * バケットに分割されたItem01エンティティの在庫をひとつ引き当てる。
+	 *
+	 * 引き当て中の数が最も少ないバケットの在庫数量を条件付きUPDATE文で
+	 * ひとつ減らす。そのバケットの在庫数量が０の場合は、他のバケットを
+	 * 順に試し、すべてのバケットの在庫数量が０の場合は、分割後の入庫が
+	 * 加えられたItem01エンティティの在庫数量から、最後のひとつを残して
+	 * 引き当てる。更新したバケットの行ロックは呼び出し元のトランザクションが
+	 * 完了するまで保持され、その間、そのバケットは引き当て中として数えられる。
+	 *
+	 * どのバケットも更新しなかった場合はデータベースに何も変更を
+	 * 加えていないため、トランザクションをロールバックにマークする
+	 * 必要はない。
+	 *
+	 * @param itemId 在庫を引き当てるItem01エンティティのID
+	 * @return 引き当てた場合はtrue、すべてのバケットの在庫数量が０で、
+	 * 　　　　　Item01エンティティの在庫数量が１以下の場合はfalse
+	 * @throws IllegalArgumentException バケットに分割されていない場合
+	 */
+	public boolean sellOne(Long itemId) {
+		AtomicIntegerArray counts = findInFlight(itemId);
+		if (counts == null) {
+			throw new IllegalArgumentException("Item01 is not split into buckets: id=" + itemId);
+		}
+
+		int n = counts.length();
+		int first = leastContended(counts);
+		for (int k = 0; k < n; k++) {
+			int index = (first + k) % n;
+			counts.incrementAndGet(index);
+			// UPDATE文が例外をスローした場合も、引き当て中の数を戻す
+			boolean releaseOnCompletion = false;
+			try {
+				int updated = em.createQuery(
+						"UPDATE StockBucket b SET b.quantity = b.quantity - 1 " +
+						"WHERE b.itemId = :itemId AND b.bucketIndex = :index AND b.quantity > 0")
+						.setParameter("itemId", itemId)
+						.setParameter("index", index)
+						.executeUpdate();
+				if (updated == 1) {
+					releaseOnCompletion(counts, index);
+					releaseOnCompletion = true;
+				}
+			} finally {
+				if (!releaseOnCompletion) {
+					counts.decrementAndGet(index);
+				}
+			}
+			if (releaseOnCompletion) {
+				if (k > 0) {
+					fallbacks.incrementAndGet();
+				}
+				sells.incrementAndGet();
+				return true;
+			}
+		}
+
+		// 分割後の入庫はItem01エンティティの在庫数量に加えられるため、
+		// 最後のひとつを残してItem01エンティティの行から引き当てる
+		int updated = itemEm.createQuery(
+				"UPDATE Item01 i SET i.availableInStock = i.availableInStock - 1 " +
+				"WHERE i.id = :id AND i.availableInStock > 1")
+				.setParameter("id", itemId)
+				.executeUpdate();
+		if (updated == 1) {
+			stockLevelCache.invalidateOnCommit(itemId);
+			rowSells.incrementAndGet();
+			sells.incrementAndGet();
+			return true;
+		}
+
+		soldOut.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * バケットに分割されたItem01エンティティの在庫数量を返す。
+	 *
+	 * バケットの在庫数量の合計に、Item01エンティティに残した在庫数量を
+	 * 加えた値となる。引き当て中のバケットがある場合、その行ロックが
+	 * 解放されるまで待たされることがある。
+	 *
+	 * @param itemId Item01エンティティのID
+	 * @return 在庫数量
+	 * @throws IllegalArgumentException バケットに分割されていない場合
+	 */
+	public long getAvailableInStock(Long itemId) {
+		Long total = em.createQuery(
+				"SELECT SUM(b.quantity) FROM StockBucket b WHERE b.itemId = :itemId", Long.class)
+				.setParameter("itemId", itemId)
+				.getSingleResult();
+		if (total == null) {
+			throw new IllegalArgumentException("Item01 is not split into buckets: id=" + itemId);
+		}
+		Item01 item = itemEm.find(Item01.class, itemId);
+		return total + item.getAvailableInStock();
+	}
+
+	/**
+	 * Item01エンティティのバケットをbucketIndexの順に返す。
+	 *
+	 * @param itemId Item01エンティティのID
+	 * @return バケットのリスト。分割されていない場合は空のリスト
+	 */
+	public List<StockBucket> getBuckets(Long itemId) {
+		return em.createQuery(
+				"SELECT b FROM StockBucket b WHERE b.itemId = :itemId ORDER BY b.bucketIndex",
+				StockBucket.class)
+				.setParameter("itemId", itemId)
+				.getResultList();
+	}
+
+	/**
+	 * バケットに分割されたすべてのItem01エンティティについて、
+	 * バケット間の在庫数量の偏りを均す。
+	 *
+	 * 均している間はそのItem01エンティティのすべてのバケットの行ロックを
+	 * 保持するため、Item01エンティティごとに別のトランザクションで行う。
+	 */
+	@Schedule(hour = "*", minute = "*", second = "*/10", persistent = false)
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void rebalanceAll() {
+		List<Long> itemIds = em.createQuery(
+				"SELECT DISTINCT b.itemId FROM StockBucket b", Long.class)
+				.getResultList();
+
+		BucketedStockEJB self = ctx.getBusinessObject(BucketedStockEJB.class);
+		for (Long itemId : itemIds) {
+			try {
+				self.rebalance(itemId);
+			} catch (RuntimeException e) {
+				// 他のItem01エンティティの処理は続ける
+				logger.warning("Failed to rebalance buckets of Item01(id=" + itemId + "): " + e);
+			}
+		}
+	}
+
+	/**
+	 * Item01エンティティのバケット間の在庫数量の偏りを均す。
+	 *
+	 * すべてのバケットの行ロックをbucketIndexの順に取得し、在庫数量の
+	 * 最大と最小の差が環境エントリstockBuckets.rebalanceThreshold以上の
+	 * 場合に、合計を変えずに均等に配り直す。
+	 *
+	 * @param itemId Item01エンティティのID
+	 * @return 配り直した場合はtrue
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public boolean rebalance(Long itemId) {
+		List<StockBucket> buckets = lockBuckets(itemId);
+		if (buckets.isEmpty()) {
+			return false;
+		}
+
+		int total = 0;
+		int min = Integer.MAX_VALUE;
+		int max = Integer.MIN_VALUE;
+		for (StockBucket bucket : buckets) {
+			total += bucket.getQuantity();
+			min = Math.min(min, bucket.getQuantity());
+			max = Math.max(max, bucket.getQuantity());
+		}
+		if (max - min < rebalanceThreshold) {
+			return false;
+		}
+
+		for (StockBucket bucket : buckets) {
+			bucket.setQuantity(share(total, buckets.size(), bucket.getBucketIndex()));
+		}
+		rebalances.incrementAndGet();
+		return true;
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getSells() {
+		return sells.get();
+	}
+
+	/**
+	 * 最初に選んだバケットの在庫数量が０で、他のバケットから引き当てた回数を返す。
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getFallbacks() {
+		return fallbacks.get();
+	}
+
+	/**
+	 * すべてのバケットの在庫数量が０で、Item01エンティティの行から引き当てた回数を返す。
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getRowSells() {
+		return rowSells.get();
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getSoldOut() {
+		return soldOut.get();
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getRebalances() {
+		return rebalances.get();
+	}
+
+	private List<StockBucket> lockBuckets(Long itemId) {
+		// デッドロックを避けるため、常にbucketIndexの順に行ロックを取得する
+		return em.createQuery(
+				"SELECT b FROM StockBucket b WHERE b.itemId = :itemId ORDER BY b.bucketIndex",
+				StockBucket.class)
+				.setParameter("itemId", itemId)
+				.setLockMode(LockModeType.PESSIMISTIC_WRITE)
+				.getResultList();
+	}
+
+	private int countBuckets(Long itemId) {
+		Long count = em.createQuery(
+				"SELECT COUNT(b) FROM StockBucket b WHERE b.itemId = :itemId", Long.class)
+				.setParameter("itemId", itemId)
+				.getSingleResult();
+		return count.intValue();
+	}
+
+	private AtomicIntegerArray findInFlight(Long itemId) {
+		AtomicIntegerArray counts = inFlight.get(itemId);
+		if (counts != null) {
+			return counts;
+		}
+
+		// 他のインスタンスや再起動前に分割されたものは、バケットの数を
+		// データベースから読み込む
+		int buckets = countBuckets(itemId);
+		if (buckets == 0) {
+			return null;
+		}
+		AtomicIntegerArray existing = inFlight.putIfAbsent(itemId, new AtomicIntegerArray(buckets));
+		return existing != null ? existing : inFlight.get(itemId);
+	}
+
+	private int leastContended(AtomicIntegerArray counts) {
+		// 引き当て中の数が同じバケットに集中しないよう、ランダムな位置から探す
+		int n = counts.length();
+		int start = random.nextInt(n);
+		int best = start;
+		int bestCount = counts.get(start);
+		for (int k = 1; k < n && bestCount > 0; k++) {
+			int index = (start + k) % n;
+			int count = counts.get(index);
+			if (count < bestCount) {
+				best = index;
+				bestCount = count;
+			}
+		}
+		return best;
+	}
+
+	private void releaseOnCompletion(final AtomicIntegerArray counts, final int index) {
+		// 行ロックはトランザクションの完了まで保持されるため、
+		// 完了した時点で引き当て中の数を戻す
+		txSyncRegistry.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				counts.decrementAndGet(index);
+			}
+		});
+	}
+
+	private static int share(int total, int buckets, int index) {
+		return total / buckets + (index < total % buckets ? 1 : 0);
+	}
+}
@@ -0,0 +1,73 @@
+package org.beginningee6.book.chapter09.ejb.stock.bucket;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+
+/**
+ * Item01エンティティの在庫数量を複数の行に分割して保持する場合の、
+ * ひとつの行（バケット）を表すエンティティ。
+ *
+ * ひとつのItem01エンティティにつき、bucketIndexが０からN－１までの
+ * N個のバケットを持ち、その在庫数量の合計が引き当て可能な在庫数量となる。
+ * 在庫引き当てはいずれかひとつのバケットの行だけを更新するため、
+ * 同じItem01エンティティに対する引き当てが最大N個まで同時に行える。
+ *
+ * このエンティティはChapter09StockPUで管理される。
+ */
+@Entity
+@Table(name = "STOCK_BUCKET",
+		uniqueConstraints = @UniqueConstraint(columnNames = { "ITEM_ID", "BUCKET_INDEX" }))
+public class StockBucket {
+
+	@Id
+	@GeneratedValue
+	private Long id;
+
+	@Column(name = "ITEM_ID", nullable = false)
+	private Long itemId;
+
+	@Column(name = "BUCKET_INDEX", nullable = false)
+	private int bucketIndex;
+
+	@Column(name = "QUANTITY", nullable = false)
+	private int quantity;
+
+	public StockBucket() {
+	}
+
+	public StockBucket(Long itemId, int bucketIndex, int quantity) {
+		this.itemId = itemId;
+		this.bucketIndex = bucketIndex;
+		this.quantity = quantity;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public Long getItemId() {
+		return itemId;
+	}
+
+	public int getBucketIndex() {
+		return bucketIndex;
+	}
+
+	public int getQuantity() {
+		return quantity;
+	}
+
+	public void setQuantity(int quantity) {
+		this.quantity = quantity;
+	}
+
+	@Override
+	public String toString() {
+		return "StockBucket [id=" + id + ", itemId=" + itemId
+				+ ", bucketIndex=" + bucketIndex + ", quantity=" + quantity + "]";
+	}
+}
@@ -0,0 +1,518 @@
+package org.beginningee6.book.chapter09.ejb.stock.event;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.annotation.Resource;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.EJBException;
+import javax.ejb.Schedule;
+import javax.ejb.SessionContext;
+import javax.ejb.Singleton;
+import javax.ejb.TransactionAttribute;
+import javax.ejb.TransactionAttributeType;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+import org.beginningee6.book.chapter09.jpa.ex01.Item01;
+
+/**
+ * Item01エンティティの在庫数量を、増減のイベント（StockEvent）の追加だけで
+ * 管理するシングルトン・セッションBean。
+ *
+ * Item01エンティティの在庫数量の列を更新する場合、同じItem01エンティティに
+ * 対する在庫引き当てと入庫は、その行の行ロックをトランザクションの完了まで
+ * 待つことになる。このBeanでは、引き当てと入庫は増減のイベントをINSERT
+ * するだけで、既存の行を更新しないため、行ロックを待つことはない。
+ *
+ * 在庫数量は、Item01エンティティごとのStockSnapshotの在庫数量に、
+ * StockEventの増減の合計を加えた値となる。StockSnapshotがまだない場合は、
+ * Item01エンティティの在庫数量の列を起点とする。イベントは、タイマーにより
+ * 定期的にcompactAll()でStockSnapshotに反映され、削除される。
+ *
+ * 在庫引き当てでは、在庫数量の最後のひとつは引き当てない（ex03と同様）。
+ * 引き当ての判断は、このBeanがメモリ上にItem01エンティティごとに保持する
+ * コミット済みの在庫数量で行い、データベースは読み込まない。
+ * コミット済みの在庫数量は、そのItem01エンティティを最初に使用したときに
+ * StockSnapshotとStockEventから読み込み、その後は増減したトランザクションが
+ * コミットされた時点（Synchronization.afterCompletion()）で更新する。
+ * 引き当て中（トランザクションが完了していない）の数量も、メモリ上で
+ * 数えて、引き当て可能な数量から差し引く。
+ * そのため、HotItemStockLedgerEJBと同様に、ひとつのサーバで使用する
+ * ことを前提とする。
+ *
+ * 読み込みはItem01エンティティごとのロックの外で行い、読み込みの間に
+ * 他のトランザクションの増減が完了した場合や、完了していない増減が
+ * ある場合は、それが完了してから読み込み直す。
+ *
+ * 以下の環境エントリで動作を変更できる。
+ *
+ * ・inventory.eventSourced：trueの場合、ex01、ex03、ex05のItemEJBと
+ * 　InventoryEJBの入庫と在庫引き当て、ex05の期限付きの確保と解放、
+ * 　RestockWriteBehindEJBの反映がこのBeanを使用する。このBeanを
+ * 　使用できない経路（ex03のItemEJB.sellItems()、ホットの指定、
+ * 　バケットへの分割）はIllegalStateExceptionをスローする
+ * ・stockEvents.compactionThreshold：イベントの数がこの値以上のItem01
+ * 　エンティティだけを、タイマーで反映する
+ * ・stockEvents.compactionBatchSize：ひとつのトランザクションで反映する
+ * 　イベントの数の上限
+ *
+ * 有効にしている間は、Item01エンティティの在庫数量の列を他の方法で
+ * 更新しないこと。StockSnapshotを作成した後の列の更新は反映されない。
+ *
+ * StockEventとStockSnapshotは、Item01エンティティと同じデータソースを
+ * 使用するChapter09StockPUで管理される。
+ */
+@Singleton
+// 引き当て中の数量はItem01エンティティごとのロックで保護するため、
+// コンテナによる排他制御は行わない
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class EventSourcedStockEJB {
+	private static final Logger logger = Logger.getLogger(EventSourcedStockEJB.class.getName());
+
+	@PersistenceContext(unitName = "Chapter09StockPU")
+	private EntityManager em;
+
+	@PersistenceContext(unitName = "Chapter09ProductionPU")
+	private EntityManager itemEm;
+
+	// トランザクション完了時の処理を登録するために注入
+	@Resource
+	private TransactionSynchronizationRegistry txSyncRegistry;
+
+	// Item01エンティティごとに別のトランザクションで反映するために注入
+	@Resource
+	private SessionContext ctx;
+
+	@Resource(name = "inventory.eventSourced")
+	private boolean enabled = false;
+
+	@Resource(name = "stockEvents.compactionThreshold")
+	private int compactionThreshold = 100;
+
+	@Resource(name = "stockEvents.compactionBatchSize")
+	private int compactionBatchSize = 1000;
+
+	// トランザクションごとの、このBeanで増減した数量をTransactionSynchronizationRegistryに
+	// 保持するキー
+	private static final String PENDING_KEY = EventSourcedStockEJB.class.getName() + ".pending";
+
+	// Item01エンティティのIDと、コミット済みの在庫数量および引き当て中の数量
+	private final ConcurrentMap<Long, Level> levels
+		= new ConcurrentHashMap<Long, Level>();
+
+	private final AtomicLong events = new AtomicLong();
+	private final AtomicLong sells = new AtomicLong();
+	private final AtomicLong soldOut = new AtomicLong();
+	private final AtomicLong rereads = new AtomicLong();
+	private final AtomicLong compactions = new AtomicLong();
+	private final AtomicLong compactedEvents = new AtomicLong();
+
+	/**
+	 * 環境エントリinventory.eventSourcedで、在庫数量をこのBeanで
+	 * 管理するよう指定されているかどうかを返す。
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * 入庫のイベントを追加する。
+	 *
+	 * @param itemId 在庫数量を増やすItem01エンティティのID
+	 * @param quantity 増やす数量
+	 */
+	public void add(Long itemId, int quantity) {
+		if (quantity <= 0) {
+			throw new IllegalArgumentException("quantity must be positive: " + quantity);
+		}
+		Level level = levelFor(itemId);
+		synchronized (level) {
+			track(itemId, level, quantity, 0);
+		}
+		em.persist(new StockEvent(itemId, quantity, System.currentTimeMillis()));
+		events.incrementAndGet();
+	}
+
+	/**
+	 * 在庫を引き当て、引き当てのイベントを追加する。
+	 *
+	 * メモリ上のコミット済みの在庫数量に呼び出し元のトランザクションで
+	 * 入庫した数量を加え、引き当て中の数量を引いた数量で判断する。
+	 * 引き当てた数量は、呼び出し元のトランザクションが完了するまで
+	 * 引き当て中として数えられる。
+	 *
+	 * 引き当てなかった場合はデータベースに何も変更を加えていないため、
+	 * トランザクションをロールバックにマークする必要はない。
+	 *
+	 * @param itemId 在庫を引き当てるItem01エンティティのID
+	 * @param quantity 引き当てる数量
+	 * @return 引き当てた場合は引き当て後の在庫数量、在庫数量が不足する
+	 *         場合は-1
+	 */
+	public long trySell(Long itemId, final int quantity) {
+		if (quantity <= 0) {
+			throw new IllegalArgumentException("quantity must be positive: " + quantity);
+		}
+
+		Level level = levelFor(itemId);
+		load(itemId, level);
+		long remaining;
+		// 同じItem01エンティティの引き当ての判断だけを順に行う
+		// （データベースの読み込みも行ロックの取得も行わない）
+		synchronized (level) {
+			Pending own = pending(itemId, false);
+			long available = level.committed + (own != null ? own.added : 0) - level.reserved;
+			if (available - quantity <= 0) {
+				soldOut.incrementAndGet();
+				return -1;
+			}
+			track(itemId, level, 0, quantity);
+			remaining = available - quantity;
+		}
+
+		em.persist(new StockEvent(itemId, -quantity, System.currentTimeMillis()));
+		events.incrementAndGet();
+		sells.incrementAndGet();
+		return remaining;
+	}
+
+	/**
+	 * Item01エンティティの在庫数量を返す。
+	 *
+	 * 呼び出し元のトランザクションで追加したイベントは含まれ、
+	 * 他のトランザクションが引き当て中の数量は含まれない。
+	 *
+	 * @param itemId Item01エンティティのID
+	 * @return メモリ上のコミット済みの在庫数量（StockSnapshotの在庫数量と
+	 *         StockEventの増減の合計）に、呼び出し元のトランザクションの増減を
+	 *         加えた値
+	 * @throws IllegalArgumentException Item01エンティティが存在しない場合
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getAvailableInStock(Long itemId) {
+		Level level = levelFor(itemId);
+		load(itemId, level);
+		synchronized (level) {
+			Pending own = pending(itemId, false);
+			return level.committed + (own != null ? own.added - own.sold : 0);
+		}
+	}
+
+	/**
+	 * イベントの数が環境エントリstockEvents.compactionThreshold以上の
+	 * すべてのItem01エンティティについて、イベントをStockSnapshotに反映する。
+	 *
+	 * 反映している間はStockSnapshotの行ロックを保持するため、Item01
+	 * エンティティごとに別のトランザクションで行う。
+	 */
+	@Schedule(hour = "*", minute = "*", second = "*/10", persistent = false)
+	@TransactionAttribute(TransactionAttributeType.NOT_SUPPORTED)
+	public void compactAll() {
+		List<Long> itemIds = em.createQuery(
+				"SELECT e.itemId FROM StockEvent e GROUP BY e.itemId HAVING COUNT(e) >= :threshold",
+				Long.class)
+				.setParameter("threshold", (long) compactionThreshold)
+				.getResultList();
+
+		EventSourcedStockEJB self = ctx.getBusinessObject(EventSourcedStockEJB.class);
+		for (Long itemId : itemIds) {
+			try {
+				self.compact(itemId);
+			} catch (RuntimeException e) {
+				// 他のItem01エンティティの処理は続ける
+				logger.warning("Failed to compact stock events of Item01(id=" + itemId + "): " + e);
+			}
+		}
+	}
+
+	/**
+	 * Item01エンティティのイベントを、IDの順に最大で環境エントリ
+	 * stockEvents.compactionBatchSizeの数だけStockSnapshotに反映し、
+	 * 反映したイベントを削除する。
+	 *
+	 * 反映するイベントは、このトランザクションで読み込めた（コミット済みの）
+	 * ものだけであり、削除もそのIDを指定して行うため、反映されずに
+	 * 削除されるイベントはない。
+	 *
+	 * @param itemId Item01エンティティのID
+	 * @return 反映したイベントの数
+	 */
+	@TransactionAttribute(TransactionAttributeType.REQUIRES_NEW)
+	public int compact(Long itemId) {
+		long now = System.currentTimeMillis();
+		StockSnapshot snapshot = em.find(StockSnapshot.class, itemId, LockModeType.PESSIMISTIC_WRITE);
+		if (snapshot == null) {
+			// Item01エンティティの在庫数量の列を起点とする
+			Item01 item = itemEm.find(Item01.class, itemId);
+			snapshot = new StockSnapshot(itemId, item != null ? item.getAvailableInStock() : 0, now);
+			em.persist(snapshot);
+		}
+
+		List<Object[]> compacted = em.createQuery(
+				"SELECT e.id, e.delta FROM StockEvent e WHERE e.itemId = :itemId ORDER BY e.id",
+				Object[].class)
+				.setParameter("itemId", itemId)
+				.setMaxResults(compactionBatchSize)
+				.getResultList();
+		if (compacted.isEmpty()) {
+			return 0;
+		}
+
+		List<Long> ids = new ArrayList<Long>(compacted.size());
+		long delta = 0;
+		for (Object[] event : compacted) {
+			ids.add((Long) event[0]);
+			delta += ((Number) event[1]).intValue();
+		}
+		em.createQuery("DELETE FROM StockEvent e WHERE e.id IN (:ids)")
+				.setParameter("ids", ids)
+				.executeUpdate();
+		snapshot.apply(delta, ids.size(), now);
+
+		compactions.incrementAndGet();
+		compactedEvents.addAndGet(ids.size());
+		return ids.size();
+	}
+
+	/**
+	 * 追加したイベントの数を返す。
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getEvents() {
+		return events.get();
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getSells() {
+		return sells.get();
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getSoldOut() {
+		return soldOut.get();
+	}
+
+	/**
+	 * 在庫数量を読み込む間に反映が行われたため、読み込み直した回数を返す。
+	 */
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getRereads() {
+		return rereads.get();
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getCompactions() {
+		return compactions.get();
+	}
+
+	@TransactionAttribute(TransactionAttributeType.SUPPORTS)
+	public long getCompactedEvents() {
+		return compactedEvents.get();
+	}
+
+	/**
+	 * メモリ上のコミット済みの在庫数量を、まだ読み込んでいなければ読み込む。
+	 *
+	 * データベースの読み込みはItem01エンティティごとのロックの外で、
+	 * 呼び出し元のトランザクションで行う（呼び出し元が追加したイベントの
+	 * 行ロックを待たないため）。読み込んだ値から呼び出し元の増減を除いた
+	 * 値を、コミット済みの在庫数量とする。
+	 *
+	 * 他のトランザクションの増減が完了していない間は、読み込んだ値に
+	 * それが含まれるかどうかが決まらないため、完了を待ってから読み込む。
+	 * 読み込みの間に他のトランザクションの増減が完了した場合は、
+	 * 読み込み直す。
+	 */
+	private void load(Long itemId, Level level) {
+		for (;;) {
+			Pending own = pending(itemId, false);
+			int ownCalls = own != null ? own.calls : 0;
+			long completions;
+			synchronized (level) {
+				if (level.loaded) {
+					return;
+				}
+				while (level.inFlight > ownCalls) {
+					try {
+						level.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new EJBException("Interrupted while loading stock level of Item01(id=" + itemId + ")", e);
+					}
+					if (level.loaded) {
+						return;
+					}
+				}
+				completions = level.completions;
+			}
+
+			long base = readLevel(itemId);
+
+			synchronized (level) {
+				if (level.loaded) {
+					return;
+				}
+				if (level.completions == completions && level.inFlight == ownCalls) {
+					level.committed = base - (own != null ? own.added - own.sold : 0);
+					level.loaded = true;
+					return;
+				}
+			}
+			rereads.incrementAndGet();
+		}
+	}
+
+	/**
+	 * 増減を呼び出し元のトランザクションの増減として数え、完了した時点で
+	 * メモリ上の数量に反映するよう登録する。levelのロックを保持して呼び出す。
+	 */
+	private void track(Long itemId, final Level level, final int added, final int sold) {
+		// コミットされた場合は、コミット済みの在庫数量に増減を加え、
+		// ロールバックされた場合は、増減がなかったことになる。
+		// いずれの場合も完了した時点で引き当て中の数量から除く
+		// （登録に失敗した場合に引き当て中の数量が残らないよう、数える前に
+		// 登録する）
+		txSyncRegistry.registerInterposedSynchronization(new Synchronization() {
+			public void beforeCompletion() {
+			}
+
+			public void afterCompletion(int status) {
+				synchronized (level) {
+					if (status == Status.STATUS_COMMITTED && level.loaded) {
+						level.committed += added - sold;
+					}
+					level.reserved -= sold;
+					level.inFlight--;
+					level.completions++;
+					level.notifyAll();
+				}
+			}
+		});
+		Pending own = pending(itemId, true);
+		own.added += added;
+		own.sold += sold;
+		own.calls++;
+		level.reserved += sold;
+		level.inFlight++;
+	}
+
+	/**
+	 * 呼び出し元のトランザクションでこのBeanにより増減した数量を返す。
+	 *
+	 * @param create 無い場合に作成するかどうか
+	 * @return トランザクションの外で呼び出された場合や、作成しない場合で
+	 *         増減が無い場合はnull
+	 */
+	@SuppressWarnings("unchecked")
+	private Pending pending(Long itemId, boolean create) {
+		if (txSyncRegistry.getTransactionStatus() == Status.STATUS_NO_TRANSACTION) {
+			return null;
+		}
+		Map<Long, Pending> pending = (Map<Long, Pending>) txSyncRegistry.getResource(PENDING_KEY);
+		if (pending == null) {
+			if (!create) {
+				return null;
+			}
+			pending = new HashMap<Long, Pending>();
+			txSyncRegistry.putResource(PENDING_KEY, pending);
+		}
+		Pending own = pending.get(itemId);
+		if (own == null && create) {
+			own = new Pending();
+			pending.put(itemId, own);
+		}
+		return own;
+	}
+
+	private long readLevel(Long itemId) {
+		// StockSnapshotのバージョンが、イベントの合計を読み込む前後で
+		// 変わっていなければ、その間に反映は行われていない
+		for (;;) {
+			Object[] before = readSnapshot(itemId);
+			Long delta = em.createQuery(
+					"SELECT SUM(e.delta) FROM StockEvent e WHERE e.itemId = :itemId", Long.class)
+					.setParameter("itemId", itemId)
+					.getSingleResult();
+			Object[] after = readSnapshot(itemId);
+
+			if (sameVersion(before, after)) {
+				long base = before != null ? ((Number) before[0]).longValue() : initialLevel(itemId);
+				return base + (delta != null ? delta : 0L);
+			}
+			rereads.incrementAndGet();
+		}
+	}
+
+	private Object[] readSnapshot(Long itemId) {
+		// 永続コンテキストにあるStockSnapshotを返さないよう、値だけを読み込む
+		List<Object[]> rows = em.createQuery(
+				"SELECT s.availableInStock, s.version FROM StockSnapshot s WHERE s.itemId = :itemId",
+				Object[].class)
+				.setParameter("itemId", itemId)
+				.getResultList();
+		return rows.isEmpty() ? null : rows.get(0);
+	}
+
+	private static boolean sameVersion(Object[] before, Object[] after) {
+		if (before == null || after == null) {
+			return before == after;
+		}
+		return ((Number) before[1]).longValue() == ((Number) after[1]).longValue();
+	}
+
+	private long initialLevel(Long itemId) {
+		Item01 item = itemEm.find(Item01.class, itemId);
+		if (item == null) {
+			throw new IllegalArgumentException("Item01 not found: id=" + itemId);
+		}
+		return item.getAvailableInStock();
+	}
+
+	private Level levelFor(Long itemId) {
+		Level level = levels.get(itemId);
+		if (level == null) {
+			Level created = new Level();
+			level = levels.putIfAbsent(itemId, created);
+			if (level == null) {
+				level = created;
+			}
+		}
+		return level;
+	}
+
+	/**
+	 * Item01エンティティごとのコミット済みの在庫数量と引き当て中の数量。
+	 * このオブジェクトのロックで保護する。
+	 */
+	private static class Level {
+		// コミット済みの在庫数量を読み込んだかどうか
+		boolean loaded;
+		long committed;
+		long reserved;
+		// 完了していない増減の数と、完了した増減の数
+		int inFlight;
+		long completions;
+	}
+
+	/**
+	 * トランザクションごとの、Item01エンティティの増減。
+	 */
+	private static class Pending {
+		long added;
+		long sold;
+		int calls;
+	}
+}
@@ -0,0 +1,71 @@
+package org.beginningee6.book.chapter09.ejb.stock.event;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import org.hibernate.annotations.Index;
+
+/**
+ * Item01エンティティの在庫数量の増減を表すイベントのエンティティ。
+ *
+ * イベントは追加（INSERT）されるだけで、更新されることはない。
+ * Item01エンティティの在庫数量は、StockSnapshotの在庫数量に、
+ * そのItem01エンティティのイベントの増減を加えた値となる。
+ * StockSnapshotに反映したイベントは、反映と同じトランザクションで削除される。
+ *
+ * このエンティティはChapter09StockPUで管理される。
+ */
+@Entity
+@Table(name = "STOCK_EVENT")
+public class StockEvent {
+
+	@Id
+	@GeneratedValue
+	private Long id;
+
+	// 在庫数量を求める際にItem01エンティティごとに集計するため、索引を作成する
+	@Index(name = "STOCK_EVENT_ITEM_IDX")
+	@Column(name = "ITEM_ID", nullable = false)
+	private Long itemId;
+
+	@Column(name = "DELTA", nullable = false)
+	private int delta;
+
+	// 記録した時刻（エポックからのミリ秒）
+	@Column(name = "CREATED_AT", nullable = false)
+	private long createdAt;
+
+	public StockEvent() {
+	}
+
+	public StockEvent(Long itemId, int delta, long createdAt) {
+		this.itemId = itemId;
+		this.delta = delta;
+		this.createdAt = createdAt;
+	}
+
+	public Long getId() {
+		return id;
+	}
+
+	public Long getItemId() {
+		return itemId;
+	}
+
+	public int getDelta() {
+		return delta;
+	}
+
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	@Override
+	public String toString() {
+		return "StockEvent [id=" + id + ", itemId=" + itemId
+				+ ", delta=" + delta + ", createdAt=" + createdAt + "]";
+	}
+}
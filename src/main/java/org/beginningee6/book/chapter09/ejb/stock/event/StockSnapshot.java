@@ -0,0 +1,90 @@
+package org.beginningee6.book.chapter09.ejb.stock.event;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Version;
+
+/**
+ * Item01エンティティごとに、StockEventを反映した在庫数量を保持する
+ * スナップショットのエンティティ。
+ *
+ * 在庫引き当てや入庫では更新されず、EventSourcedStockEJB.compact()だけが
+ * 更新する。バージョンは反映のたびに増えるため、在庫数量を読み込む側は、
+ * スナップショットとイベントを読み込む間に反映が行われたかどうかを
+ * 判断できる。
+ *
+ * このエンティティはChapter09StockPUで管理される。
+ */
+@Entity
+@Table(name = "STOCK_SNAPSHOT")
+public class StockSnapshot {
+
+	@Id
+	@Column(name = "ITEM_ID")
+	private Long itemId;
+
+	@Column(name = "AVAILABLE_IN_STOCK", nullable = false)
+	private long availableInStock;
+
+	// これまでに反映したイベントの数
+	@Column(name = "COMPACTED_EVENTS", nullable = false)
+	private long compactedEvents;
+
+	// 最後に反映した時刻（エポックからのミリ秒）
+	@Column(name = "TAKEN_AT", nullable = false)
+	private long takenAt;
+
+	@Version
+	@Column(name = "VERSION")
+	private long version;
+
+	public StockSnapshot() {
+	}
+
+	public StockSnapshot(Long itemId, long availableInStock, long takenAt) {
+		this.itemId = itemId;
+		this.availableInStock = availableInStock;
+		this.takenAt = takenAt;
+	}
+
+	/**
+	 * イベントの増減の合計を在庫数量に反映する。
+	 *
+	 * @param delta 反映するイベントの増減の合計
+	 * @param events 反映するイベントの数
+	 * @param now 反映した時刻
+	 */
+	public void apply(long delta, int events, long now) {
+		availableInStock += delta;
+		compactedEvents += events;
+		takenAt = now;
+	}
+
+	public Long getItemId() {
+		return itemId;
+	}
+
+	public long getAvailableInStock() {
+		return availableInStock;
+	}
+
+	public long getCompactedEvents() {
+		return compactedEvents;
+	}
+
+	public long getTakenAt() {
+		return takenAt;
+	}
+
+	public long getVersion() {
+		return version;
+	}
+
+	@Override
+	public String toString() {
+		return "StockSnapshot [itemId=" + itemId + ", availableInStock=" + availableInStock
+				+ ", compactedEvents=" + compactedEvents + ", version=" + version + "]";
+	}
+}
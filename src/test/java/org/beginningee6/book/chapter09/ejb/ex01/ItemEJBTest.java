@@ -2,8 +2,18 @@ package org.beginningee6.book.chapter09.ejb.ex01;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.*;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 import javax.ejb.EJB;
@@ -13,6 +23,13 @@ import javax.persistence.PersistenceContext;
 import javax.persistence.TypedQuery;
 import javax.transaction.UserTransaction;
 
+import org.beginningee6.book.chapter09.ejb.async.AsyncAdmissionEJB;
+import org.beginningee6.book.chapter09.ejb.id.PooledIdAllocatorEJB;
+import org.beginningee6.book.chapter09.ejb.journal.StockJournalEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.stock.RestockWriteBehindEJB;
+import org.beginningee6.book.chapter09.ejb.stock.bucket.BucketedStockEJB;
+import org.beginningee6.book.chapter09.ejb.stock.event.EventSourcedStockEJB;
 import org.beginningee6.book.chapter09.jpa.ex01.Item01;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
@@ -48,14 +65,25 @@ public class ItemEJBTest {
 		WebArchive archive = ShrinkWrap
 				.create(WebArchive.class)
 				.addPackage(ItemEJB.class.getPackage())
+				.addPackage(AsyncAdmissionEJB.class.getPackage())
+				.addPackage(RestockWriteBehindEJB.class.getPackage())
+				.addPackage(BucketedStockEJB.class.getPackage())
+				.addPackage(EventSourcedStockEJB.class.getPackage())
+				.addPackage(PooledIdAllocatorEJB.class.getPackage())
+				.addPackage(StockJournalEJB.class.getPackage())
+				.addPackage(LatencyInterceptor.class.getPackage())
 				.addAsLibraries(dependencyLibs)
+				.addAsResource("META-INF/persistence.xml")
+				.addAsResource("META-INF/orm-pooled-ids.xml")
 				.addAsWebInfResource("jbossas-ds.xml")
 				.addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml");
 
 		return archive;
 	}
 
-	@PersistenceContext
+	// StockEventエンティティ用のChapter09StockPUもデプロイされるため、
+	// 永続化ユニットを指定する
+	@PersistenceContext(unitName = "Chapter09ProductionPU")
 	EntityManager em;
 
 	@Inject
@@ -64,6 +92,18 @@ public class ItemEJBTest {
 	@EJB
 	ItemEJB itemEJB;	// ステートレス・セッションBeanの注入
 
+	@EJB
+	RestockWriteBehindEJB restockWriteBehind;
+
+	@EJB
+	AsyncAdmissionEJB asyncAdmission;
+
+	@EJB
+	ItemRequestDedupeEJB requestDedupe;
+
+	@EJB
+	StockJournalEJB stockJournal;
+
 	@Before
 	public void setUp() throws Exception {
 		clearData();
@@ -154,4 +194,363 @@ public class ItemEJBTest {
 		assertThat(query.getResultList().size(), is(0));
 	}
 
+	/**
+	 * RestockWriteBehindEJBに記録した在庫数量の増分が、コミットされた
+	 * ものだけ、Item01エンティティごとにひとつのUPDATE文にまとめて
+	 * 反映されることを確認するテスト。
+	 * 
+	 * タイマーによる反映は、最も古い増分の記録からrestock.maxAgeMillis
+	 * （１秒）を過ぎるまで行われないため、記録から反映までの間に
+	 * 一部が反映されることはない。
+	 */
+	@Test
+	public void testWriteBehindRestock() throws Exception {
+		
+		///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		Item01 other = new Item01();
+		other.setTitle("The Restaurant at the End of the Universe");
+		other.setPrice(12.5F);
+		other.setDescription("Science fiction comedy book");
+
+		// 在庫数量はいずれも１
+		Item01 created = itemEJB.createItem(item);
+		Item01 createdOther = itemEJB.createItem(other);
+		
+		// タイマーによる反映が済んでいないものを反映しておく
+		restockWriteBehind.flush();
+		long statementsBefore = restockWriteBehind.getFlushedStatements();
+		long unitsBefore = restockWriteBehind.getFlushedUnits();
+
+        ///// テスト /////
+		
+		// ３回と２回の入庫をそれぞれ別のトランザクションでコミットする
+		for (int i = 0; i < 3; i++) {
+			userTransaction.begin();
+			restockWriteBehind.add(created.getId(), 1);
+			if (i < 2) {
+				restockWriteBehind.add(createdOther.getId(), 1);
+			}
+			userTransaction.commit();
+		}
+		// ロールバックされた入庫は記録されない
+		userTransaction.begin();
+		restockWriteBehind.add(created.getId(), 10);
+		userTransaction.rollback();
+		
+		long pendingBeforeFlush = restockWriteBehind.getPendingUnits(created.getId());
+		long otherPendingBeforeFlush = restockWriteBehind.getPendingUnits(createdOther.getId());
+		restockWriteBehind.flush();
+
+        ///// 検証 /////
+		
+		assertThat(pendingBeforeFlush, 									is(3L));
+		assertThat(otherPendingBeforeFlush, 							is(2L));
+		
+		// ５回の入庫が、Item01エンティティごとにひとつ、合わせて２つの
+		// UPDATE文で反映されていることを確認
+		assertThat(restockWriteBehind.getFlushedStatements() - statementsBefore, 	is(2L));
+		assertThat(restockWriteBehind.getFlushedUnits() - unitsBefore, 			is(5L));
+		
+		// 反映が済んだ増分は取り除かれていることを確認
+		assertThat(restockWriteBehind.getPendingUnits(created.getId()), 	is(0L));
+		assertThat(restockWriteBehind.getPendingItems(), 					is(0));
+
+		Item01 persisted = em.find(Item01.class, created.getId());
+		assertThat(persisted.getAvailableInStock(), 	is(1 + 3));
+		Item01 persistedOther = em.find(Item01.class, createdOther.getId());
+		assertThat(persistedOther.getAvailableInStock(), is(1 + 2));
+	}
+
+	/**
+	 * 反映していない増分の合計がrestock.maxUnflushedUnits（1000）に
+	 * 達した場合に、入庫のトランザクションとは別のスレッドで反映される
+	 * ことを確認するテスト。
+	 * 
+	 * 入庫のトランザクションは反映先の行ロックを保持しているが、反映は
+	 * コミットされた後に非同期に行われるため、入庫が反映を待つことはない。
+	 */
+	@Test
+	public void testWriteBehindRestockFlushesAsynchronouslyAtThreshold() throws Exception {
+		
+		///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 在庫数量は１
+		Item01 created = itemEJB.createItem(item);
+		restockWriteBehind.flush();
+
+        ///// テスト /////
+		
+		// 反映先の行ロックを保持したまま、上限に達する増分を記録する
+		userTransaction.begin();
+		em.joinTransaction();
+		em.createQuery("UPDATE Item01 i SET i.availableInStock = i.availableInStock WHERE i.id = :id")
+				.setParameter("id", created.getId())
+				.executeUpdate();
+		restockWriteBehind.add(created.getId(), 1000);
+		userTransaction.commit();
+
+		// 非同期の反映が済むまで待つ
+		long deadline = System.currentTimeMillis() + 10000L;
+		while (restockWriteBehind.getPendingUnits(created.getId()) > 0) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Restock was not flushed");
+			}
+			Thread.sleep(10L);
+		}
+
+        ///// 検証 /////
+		
+		em.clear();
+		Item01 persisted = em.find(Item01.class, created.getId());
+		assertThat(persisted.getAvailableInStock(), 	is(1 + 1000));
+	}
+
+	/**
+	 * ItemEJB.createItemAsync()メソッドによりItem01エンティティを
+	 * 非同期に永続化するテスト。
+	 * 
+	 * 非同期に実行されるcreateItem()でも、永続化と在庫数量の更新が
+	 * ひとつのトランザクションでコミットされていることを確認する。
+	 */
+	@Test
+	public void testCreateAnItemAsync() throws Exception {
+		
+		///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+		
+		long completedBefore = asyncAdmission.getCompleted();
+
+        ///// テスト /////
+		
+		Future<Item01> future = itemEJB.createItemAsync(item);
+		Item01 returned = future.get();
+
+        ///// 検証 /////
+		
+		assertThat(returned.getId(), 				is(notNullValue()));
+		assertThat(returned.getAvailableInStock(), 	is(1));
+		assertThat(asyncAdmission.getCompleted() - completedBefore, is(1L));
+		
+		// データベースからの直接検索により、永続化と在庫数量の更新が
+		// 確実に行われていることを再度確認
+		Item01 persisted = em.find(Item01.class, returned.getId());
+		assertThat(persisted.getAvailableInStock(), 	is(1));
+	}
+
+	/**
+	 * ItemEJB.createItems()メソッドにより５件のItem01エンティティを
+	 * ２件ずつのチャンクで永続化するテスト。
+	 */
+	@Test
+	public void testCreateItemsInChunks() throws Exception {
+		
+		///// 準備 /////
+		
+		List<Item01> items = new ArrayList<Item01>();
+		for (int i = 0; i < 5; i++) {
+			Item01 item = new Item01();
+			item.setTitle("The Hitchhiker's Guide to the Galaxy " + i);
+			item.setPrice(12.5F);
+			item.setDescription("Science fiction comedy book");
+			items.add(item);
+		}
+
+        ///// テスト /////
+		
+		List<ChunkResult> results = itemEJB.createItems(items.iterator(), 2);
+
+        ///// 検証 /////
+		
+		// ２件、２件、１件の３チャンクで永続化されていることを確認
+		assertThat(results.size(), 					is(3));
+		assertThat(results.get(0).getItemCount(), 	is(2));
+		assertThat(results.get(1).getItemCount(), 	is(2));
+		assertThat(results.get(2).getItemCount(), 	is(1));
+		
+		// データベースからの直接検索により、すべてのItem01エンティティが
+		// 在庫数量１で永続化されていることを確認
+		TypedQuery<Item01> query = em.createNamedQuery("Item01.findAllItems", Item01.class);
+		List<Item01> persisted = query.getResultList();
+		assertThat(persisted.size(), is(5));
+		for (Item01 item : persisted) {
+			assertThat(item.getAvailableInStock(), is(1));
+		}
+	}
+
+	/**
+	 * ItemEJB.createItem()、createItem(String, Item01)、createItems()、
+	 * createItemAsync()による商品の登録が、コミットされたものだけ
+	 * ジャーナルに記録されることを確認するテスト。
+	 * 
+	 * 同じリクエストIDで再度登録した場合と、ロールバックされた
+	 * createItemFail()は記録されない。
+	 */
+	@Test
+	public void testCreatedItemsAreJournaled() throws Exception {
+		
+		///// 準備 /////
+		
+		List<Item01> items = new ArrayList<Item01>();
+		for (int i = 0; i < 6; i++) {
+			Item01 item = new Item01();
+			item.setTitle("The Hitchhiker's Guide to the Galaxy " + i);
+			item.setPrice(12.5F);
+			item.setDescription("Science fiction comedy book");
+			items.add(item);
+		}
+		String requestId = UUID.randomUUID().toString();
+
+		// ジャーナルは以前のテストの記録も含むため、記録の前後の差で確認する
+		long recordsBefore = stockJournal.getAppendedRecords();
+		Map<Long, Long> levelsBefore = stockJournal.rebuildStockLevels();
+
+        ///// テスト /////
+		
+		Item01 created = itemEJB.createItem(items.get(0));
+		Item01 deduped = itemEJB.createItem(requestId, items.get(1));
+		itemEJB.createItem(requestId, items.get(1));
+		itemEJB.createItems(items.subList(2, 4).iterator(), 2);
+		Item01 async = itemEJB.createItemAsync(items.get(4)).get();
+		itemEJB.createItemFail(items.get(5));
+
+		Map<Long, Long> levels = stockJournal.rebuildStockLevels();
+
+        ///// 検証 /////
+		
+		// 再度の登録とロールバックされた登録を除く５件が記録されていることを確認
+		assertThat(stockJournal.getAppendedRecords() - recordsBefore, 	is(5L));
+
+		// 再生した在庫数量がデータベースの在庫数量と一致することを確認
+		for (Item01 item : new Item01[] { created, deduped, async }) {
+			assertThat(difference(levels, levelsBefore, item.getId()), 	is(1L));
+			assertThat(em.find(Item01.class, item.getId()).getAvailableInStock(), is(1));
+		}
+	}
+
+	/**
+	 * 同じリクエストIDでItemEJB.createItem(String, Item01)を多数のスレッド
+	 * から同時に実行した場合に、Item01エンティティが１件だけ永続化され、
+	 * すべてのスレッドに同じ結果が返ることを確認するテスト。
+	 */
+	@Test
+	public void testCreateAnItemWithDuplicateRequestsConcurrently() throws Exception {
+		
+		///// 準備 /////
+		
+		final String requestId = UUID.randomUUID().toString();
+		final int threads = 16;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+		List<Future<Item01>> results = new ArrayList<Future<Item01>>();
+		for (int i = 0; i < threads; i++) {
+			final Item01 item = new Item01();
+			item.setTitle("The Hitchhiker's Guide to the Galaxy");
+			item.setPrice(12.5F);
+			item.setDescription("Science fiction comedy book");
+			results.add(executor.submit(new Callable<Item01>() {
+				public Item01 call() throws Exception {
+					start.await();
+					return itemEJB.createItem(requestId, item);
+				}
+			}));
+		}
+
+        ///// テスト /////
+		
+		// すべてのスレッドから同時に実行する
+		long duplicatesBefore = requestDedupe.getDuplicates();
+		start.countDown();
+
+		List<Item01> returned = new ArrayList<Item01>();
+		try {
+			for (Future<Item01> result : results) {
+				returned.add(result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+        ///// 検証 /////
+		
+		// すべてのスレッドに同じItem01エンティティが返されることを確認
+		Long id = returned.get(0).getId();
+		assertThat(id, is(notNullValue()));
+		for (Item01 item : returned) {
+			assertThat(item.getId(), is(id));
+		}
+		assertThat(requestDedupe.getDuplicates() - duplicatesBefore, is((long) threads - 1));
+
+		// データベースからの直接検索により、Item01エンティティが１件だけ
+		// 永続化されていることを確認
+		TypedQuery<Item01> query = em.createNamedQuery("Item01.findAllItems", Item01.class);
+		List<Item01> persisted = query.getResultList();
+		assertThat(persisted.size(), is(1));
+		assertThat(persisted.get(0).getId(), is(id));
+	}
+
+	/**
+	 * ロールバックされたリクエストは記録されず、同じリクエストIDで
+	 * 再実行できることを確認するテスト。
+	 */
+	@Test
+	public void testCreateAnItemRetryAfterRollback() throws Exception {
+		
+		///// 準備 /////
+		
+		String requestId = UUID.randomUUID().toString();
+
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 最初のリクエストはクライアントのトランザクションごとロールバックする
+		userTransaction.begin();
+		itemEJB.createItem(requestId, item);
+		userTransaction.rollback();
+
+		Item01 retry = new Item01();
+		retry.setTitle("The Hitchhiker's Guide to the Galaxy");
+		retry.setPrice(12.5F);
+		retry.setDescription("Science fiction comedy book");
+
+        ///// テスト /////
+		
+		Item01 returned = itemEJB.createItem(requestId, retry);
+		Item01 duplicate = itemEJB.createItem(requestId, new Item01());
+
+        ///// 検証 /////
+		
+		// 再実行したリクエストの結果が永続化され、その後の再送には
+		// 同じ結果が返されることを確認
+		assertThat(returned, 				is(sameInstance(retry)));
+		assertThat(duplicate.getId(), 		is(retry.getId()));
+
+		TypedQuery<Item01> query = em.createNamedQuery("Item01.findAllItems", Item01.class);
+		List<Item01> persisted = query.getResultList();
+		assertThat(persisted.size(), 		is(1));
+		assertThat(persisted.get(0).getId(), is(retry.getId()));
+	}
+
+	private long difference(Map<Long, Long> after, Map<Long, Long> before, Long itemId) {
+		Long level = after.get(itemId);
+		Long previous = before.get(itemId);
+		return (level != null ? level : 0L) - (previous != null ? previous : 0L);
+	}
 }
@@ -0,0 +1,265 @@
+package org.beginningee6.book.chapter09.ejb.ex02;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter09.ejb.ex02.reader.Book02ReaderEJB;
+import org.beginningee6.book.chapter09.ejb.ex02.reader.CD02ReaderEJB;
+import org.beginningee6.book.chapter09.ejb.ex02.reader.KeysetPage;
+import org.beginningee6.book.chapter09.ejb.ex02.reader.ReadCallback;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.jpa.ex02.Book02;
+import org.beginningee6.book.chapter09.jpa.ex02.CD02;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.jboss.shrinkwrap.resolver.api.maven.Maven;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Book02ReaderEJBおよびCD02ReaderEJBにより、Book02エンティティと
+ * CD02エンティティをIDの昇順にページ単位で読み込むテスト。
+ */
+@RunWith(Arquillian.class)
+public class KeysetReaderTest {
+	private static final Logger logger = Logger.getLogger(KeysetReaderTest.class
+			.getName());
+
+	// 永続化するエンティティの件数
+	private static final int COUNT = 7;
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+		File[] dependencyLibs
+			= Maven
+				.configureResolver()
+				.fromFile("D:\\apache-maven-3.0.3\\conf\\settings.xml")
+				.resolve("org.beginningee6.book:beginningee6-chapter09-jpa:0.0.1-SNAPSHOT")
+				.withTransitivity()
+				.asFile();
+
+		WebArchive archive = ShrinkWrap
+				.create(WebArchive.class)
+				.addPackage(Book02ReaderEJB.class.getPackage())
+				.addPackage(LatencyInterceptor.class.getPackage())
+				.addAsLibraries(dependencyLibs)
+				.addAsWebInfResource("jbossas-ds.xml")
+				.addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	Book02ReaderEJB bookReader;
+
+	@EJB
+	CD02ReaderEJB cdReader;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+		insertData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Book02").executeUpdate();
+		em.createQuery("DELETE FROM CD02").executeUpdate();
+		userTransaction.commit();
+	}
+
+	private void insertData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		for (int i = 0; i < COUNT; i++) {
+			Book02 book = new Book02();
+	        book.setTitle("The Hitchhiker's Guide to the Galaxy " + i);
+	        book.setPrice(12.5F);
+	        book.setDescription("Science fiction comedy book");
+	        book.setIsbn("1-84023-742-2");
+	        book.setNbOfPage(354);
+	        book.setIllustrations(false);
+	        em.persist(book);
+
+	        em.persist(new CD02(
+	        		"Title " + i,
+	        		10.0F,
+	        		"Title " + i + " Description",
+	        		null,
+	        		"Music Company 1",
+	        		1,
+	        		100.0F,
+	        		"male"));
+		}
+		userTransaction.commit();
+	}
+
+	/**
+	 * 前のページの最後のIDをキーとして、Book02エンティティを
+	 * ３件ずつ読み込むテスト。
+	 *
+	 * ７件が３件、３件、１件のページに分かれ、最後のページでは
+	 * isLast()がtrueとなる。
+	 */
+	@Test
+	public void testFindPageByKeyset() throws Exception {
+
+        ///// テスト /////
+
+		List<KeysetPage<Book02>> pages = new ArrayList<KeysetPage<Book02>>();
+		KeysetPage<Book02> page = null;
+		do {
+			page = bookReader.findPage(page == null ? null : page.getLastId(), 3);
+			pages.add(page);
+		} while (!page.isLast());
+
+        ///// 検証 /////
+
+		assertThat(pages.size(), is(3));
+		assertThat(pages.get(0).getEntities().size(), is(3));
+		assertThat(pages.get(1).getEntities().size(), is(3));
+		assertThat(pages.get(2).getEntities().size(), is(1));
+
+		// ページをまたいでIDが昇順に並び、重複しないことを確認
+		Long previous = null;
+		for (KeysetPage<Book02> p : pages) {
+			for (Book02 book : p.getEntities()) {
+				if (previous != null) {
+					assertThat(book.getId() > previous, is(true));
+				}
+				previous = book.getId();
+			}
+		}
+		assertThat(pages.get(2).getLastId(), is(previous));
+	}
+
+	/**
+	 * 呼び出し元のトランザクションの中で、すべてのCD02エンティティを
+	 * コールバックで読み込むテスト。
+	 *
+	 * 読み込んだエンティティはページごとに切り離されるため、呼び出し元の
+	 * トランザクションの永続コンテキストには残らない。
+	 */
+	@Test
+	public void testForEachInCallerTransaction() throws Exception {
+
+        ///// 準備 /////
+
+		final List<CD02> read = new ArrayList<CD02>();
+
+		userTransaction.begin();
+		em.joinTransaction();
+
+		try {
+	        ///// テスト /////
+
+			long count = cdReader.forEach(new ReadCallback<CD02>() {
+				public void read(CD02 cd) {
+					read.add(cd);
+				}
+			});
+
+	        ///// 検証 /////
+
+			assertThat(count, is((long) COUNT));
+			assertThat(read.size(), is(COUNT));
+
+			// 永続コンテキストから切り離されていることを確認
+			for (CD02 cd : read) {
+				assertThat(em.contains(cd), is(false));
+			}
+		} finally {
+			userTransaction.rollback();
+		}
+	}
+
+	/**
+	 * 呼び出し元のトランザクションで既に読み込んでいるCD02エンティティを
+	 * 含むページを読み込むテスト。
+	 *
+	 * 呼び出し元が保持しているエンティティは切り離されず、変更を
+	 * 続けることができる。
+	 */
+	@Test
+	public void testFindPageKeepsEntitiesManagedByCaller() throws Exception {
+
+        ///// 準備 /////
+
+		userTransaction.begin();
+		em.joinTransaction();
+
+		try {
+			CD02 held = em.createQuery("SELECT c FROM CD02 c ORDER BY c.id", CD02.class)
+					.setMaxResults(1)
+					.getSingleResult();
+
+	        ///// テスト /////
+
+			KeysetPage<CD02> page = cdReader.findPage(null, 3);
+
+	        ///// 検証 /////
+
+			List<CD02> entities = page.getEntities();
+			assertThat(entities.size(), 				is(3));
+
+			// 呼び出し元が保持しているエンティティは管理されたまま
+			assertThat(entities.get(0), 				is(sameInstance(held)));
+			assertThat(em.contains(held), 				is(true));
+
+			// それ以外は永続コンテキストから切り離されていることを確認
+			assertThat(em.contains(entities.get(1)), 	is(false));
+			assertThat(em.contains(entities.get(2)), 	is(false));
+		} finally {
+			userTransaction.rollback();
+		}
+	}
+
+	/**
+	 * トランザクションを開始していない状態で、イテレータにより
+	 * すべてのBook02エンティティを読み込むテスト。
+	 */
+	@Test
+	public void testIterateAll() throws Exception {
+
+        ///// テスト /////
+
+		int count = 0;
+		Iterator<Book02> books = bookReader.iterateAll();
+		while (books.hasNext()) {
+			books.next();
+			count++;
+		}
+
+        ///// 検証 /////
+
+		assertThat(count, is(COUNT));
+	}
+}
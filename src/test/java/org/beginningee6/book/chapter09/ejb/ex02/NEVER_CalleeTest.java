@@ -16,6 +16,11 @@ import javax.transaction.UserTransaction;
 import org.beginningee6.book.chapter09.ejb.ex02.callee.REQUIRES_NEW_CalleeEJB;
 import org.beginningee6.book.chapter09.ejb.ex02.caller.REQUIRED_CallerEJB;
 import org.beginningee6.book.chapter09.ejb.ex02.caller.SUPPORTS_CallerEJB;
+import org.beginningee6.book.chapter09.ejb.id.PooledIdAllocatorEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.stock.StockLevelCacheEJB;
+import org.beginningee6.book.chapter09.ejb.stock.bucket.StockBucket;
+import org.beginningee6.book.chapter09.ejb.stock.event.StockEvent;
 import org.beginningee6.book.chapter09.jpa.ex02.Book02;
 import org.beginningee6.book.chapter09.jpa.ex02.CD02;
 import org.jboss.arquillian.container.test.api.Deployment;
@@ -55,14 +60,23 @@ public class NEVER_CalleeTest {
 				.create(WebArchive.class)
 				.addPackage(REQUIRES_NEW_CalleeEJB.class.getPackage())
 				.addPackage(REQUIRED_CallerEJB.class.getPackage())
+				.addPackage(StockLevelCacheEJB.class.getPackage())
+				.addPackage(StockBucket.class.getPackage())
+				.addPackage(StockEvent.class.getPackage())
+				.addPackage(PooledIdAllocatorEJB.class.getPackage())
+				.addPackage(LatencyInterceptor.class.getPackage())
 				.addAsLibraries(dependencyLibs)
+				.addAsResource("META-INF/persistence.xml")
+				.addAsResource("META-INF/orm-pooled-ids.xml")
 				.addAsWebInfResource("jbossas-ds.xml")
 				.addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml");
 
 		return archive;
 	}
 
-	@PersistenceContext
+	// REQUIRED_CallerEJBが使用するChapter09BatchPUもデプロイされるため、
+	// 永続化ユニットを指定する
+	@PersistenceContext(unitName = "Chapter09ProductionPU")
 	EntityManager em;
 
 	@Inject
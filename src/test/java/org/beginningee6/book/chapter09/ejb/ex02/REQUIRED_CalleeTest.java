@@ -4,6 +4,8 @@ import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 import javax.ejb.EJB;
@@ -16,6 +18,12 @@ import javax.transaction.UserTransaction;
 import org.beginningee6.book.chapter09.ejb.ex02.callee.REQUIRED_CalleeEJB;
 import org.beginningee6.book.chapter09.ejb.ex02.caller.REQUIRED_CallerEJB;
 import org.beginningee6.book.chapter09.ejb.ex02.caller.SUPPORTS_CallerEJB;
+import org.beginningee6.book.chapter09.ejb.id.PooledIdAllocatorEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.ConnectionStatistics;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.stock.StockLevelCacheEJB;
+import org.beginningee6.book.chapter09.ejb.stock.bucket.StockBucket;
+import org.beginningee6.book.chapter09.ejb.stock.event.StockEvent;
 import org.beginningee6.book.chapter09.jpa.ex02.Book02;
 import org.beginningee6.book.chapter09.jpa.ex02.CD02;
 import org.jboss.arquillian.container.test.api.Deployment;
@@ -55,14 +63,23 @@ public class REQUIRED_CalleeTest {
 				.create(WebArchive.class)
 				.addPackage(REQUIRED_CalleeEJB.class.getPackage())
 				.addPackage(REQUIRED_CallerEJB.class.getPackage())
+				.addPackage(StockLevelCacheEJB.class.getPackage())
+				.addPackage(StockBucket.class.getPackage())
+				.addPackage(StockEvent.class.getPackage())
+				.addPackage(PooledIdAllocatorEJB.class.getPackage())
+				.addPackage(LatencyInterceptor.class.getPackage())
 				.addAsLibraries(dependencyLibs)
+				.addAsResource("META-INF/persistence.xml")
+				.addAsResource("META-INF/orm-pooled-ids.xml")
 				.addAsWebInfResource("jbossas-ds.xml")
 				.addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml");
 
 		return archive;
 	}
 
-	@PersistenceContext
+	// REQUIRED_CallerEJBが使用するChapter09BatchPUもデプロイされるため、
+	// 永続化ユニットを指定する
+	@PersistenceContext(unitName = "Chapter09ProductionPU")
 	EntityManager em;
 
 	@Inject
@@ -284,4 +301,78 @@ public class REQUIRED_CalleeTest {
 		assertThat(cdQuery.getResultList().size(), is(1));
 		assertThat(cdQuery.getResultList().get(0).getTitle(), is("Title 1"));
 	}
+
+	/**
+	 * ==========================================================================
+	 * 呼び出し元：REQUIREDのバッチ永続化の確認
+	 * ==========================================================================
+	 */
+
+	/**
+	 * JDBCのバッチサイズを超える件数のBook02エンティティとCD02エンティティを
+	 * まとめて永続化する例
+	 * 
+	 * 【結果】
+	 * すべてのエンティティが単一トランザクションのコミットの結果として
+	 * 永続化され、それぞれにIDが割り当てられる。
+	 * INSERT文はバッチサイズ（50件）ごとにまとめて発行される。
+	 * （バッチ更新が無効な場合や、IDをIDENTITYで生成する場合は、
+	 * 　INSERT文が１件ずつ発行され、バッチに追加されない）
+	 */
+	@Test
+	public void testREQUIRED_Caller_PersistAll() throws Exception {
+		
+        ///// 準備 /////
+		
+		List<Book02> books = new ArrayList<Book02>();
+		List<CD02> cds = new ArrayList<CD02>();
+		for (int i = 0; i < 120; i++) {
+			Book02 b = new Book02();
+	        b.setTitle("The Hitchhiker's Guide to the Galaxy " + i);
+	        b.setPrice(12.5F);
+	        b.setDescription("Science fiction comedy book");
+	        b.setIsbn("1-84023-742-2");
+	        b.setNbOfPage(354);
+	        b.setIllustrations(false);
+	        books.add(b);
+
+	        cds.add(new CD02(
+	        		"Title " + i,
+	        		10.0F,
+	        		"Title " + i + " Description",
+	        		null,
+	        		"Music Company 1",
+	        		1,
+	        		100.0F,
+	        		"male"));
+		}
+		
+		long batchedBefore = ConnectionStatistics.getStatementsBatched();
+		long batchesBefore = ConnectionStatistics.getBatchesExecuted();
+		
+        ///// テスト /////
+		
+		required_callerEJB.persistAll(books, cds);
+
+        ///// 検証 /////
+
+		// すべてのINSERT文がバッチに追加され、Book02とCD02のそれぞれで
+		// ５０件、５０件、２０件のバッチとして実行されたことを確認
+		long batched = ConnectionStatistics.getStatementsBatched() - batchedBefore;
+		long batches = ConnectionStatistics.getBatchesExecuted() - batchesBefore;
+		assertThat(batched, is(240L));
+		assertThat(batches > 0 && batches <= 6, is(true));
+
+		// すべてのエンティティが永続化されたことを確認
+		assertThat(bookQuery.getResultList().size(), is(120));
+		assertThat(cdQuery.getResultList().size(), is(120));
+		
+		// 永続化したエンティティにIDが割り当てられたことを確認
+		for (Book02 b : books) {
+			assertThat(b.getId(), is(notNullValue()));
+		}
+		for (CD02 c : cds) {
+			assertThat(c.getId(), is(notNullValue()));
+		}
+	}
 }
@@ -4,6 +4,8 @@ import static org.hamcrest.CoreMatchers.*;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 import javax.ejb.EJB;
@@ -16,6 +18,15 @@ import javax.transaction.UserTransaction;
 import org.beginningee6.book.chapter09.ejb.ex02.callee.REQUIRES_NEW_CalleeEJB;
 import org.beginningee6.book.chapter09.ejb.ex02.caller.REQUIRED_CallerEJB;
 import org.beginningee6.book.chapter09.ejb.ex02.caller.SUPPORTS_CallerEJB;
+import org.beginningee6.book.chapter09.ejb.id.PooledIdAllocatorEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.monitor.TransactionTrace;
+import org.beginningee6.book.chapter09.ejb.monitor.TransactionTrace.EventType;
+import org.beginningee6.book.chapter09.ejb.monitor.TransactionTrace.Span;
+import org.beginningee6.book.chapter09.ejb.monitor.TransactionTraceEJB;
+import org.beginningee6.book.chapter09.ejb.stock.StockLevelCacheEJB;
+import org.beginningee6.book.chapter09.ejb.stock.bucket.StockBucket;
+import org.beginningee6.book.chapter09.ejb.stock.event.StockEvent;
 import org.beginningee6.book.chapter09.jpa.ex02.Book02;
 import org.beginningee6.book.chapter09.jpa.ex02.CD02;
 import org.jboss.arquillian.container.test.api.Deployment;
@@ -55,14 +66,23 @@ public class REQUIRES_NEW_CalleeTest {
 				.create(WebArchive.class)
 				.addPackage(REQUIRES_NEW_CalleeEJB.class.getPackage())
 				.addPackage(REQUIRED_CallerEJB.class.getPackage())
+				.addPackage(StockLevelCacheEJB.class.getPackage())
+				.addPackage(StockBucket.class.getPackage())
+				.addPackage(StockEvent.class.getPackage())
+				.addPackage(PooledIdAllocatorEJB.class.getPackage())
+				.addPackage(LatencyInterceptor.class.getPackage())
 				.addAsLibraries(dependencyLibs)
+				.addAsResource("META-INF/persistence.xml")
+				.addAsResource("META-INF/orm-pooled-ids.xml")
 				.addAsWebInfResource("jbossas-ds.xml")
 				.addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml");
 
 		return archive;
 	}
 
-	@PersistenceContext
+	// REQUIRED_CallerEJBが使用するChapter09BatchPUもデプロイされるため、
+	// 永続化ユニットを指定する
+	@PersistenceContext(unitName = "Chapter09ProductionPU")
 	EntityManager em;
 
 	@Inject
@@ -77,6 +97,9 @@ public class REQUIRES_NEW_CalleeTest {
 	// トランザクション属性がSUPPORTSのメソッドが定義されている
 	@EJB
 	SUPPORTS_CallerEJB supports_callerEJB;
+
+	@EJB
+	TransactionTraceEJB transactionTraces;
 	
 	private Book02 book;
 	private CD02 cd;
@@ -278,4 +301,69 @@ public class REQUIRES_NEW_CalleeTest {
 		assertThat(cdQuery.getResultList().size(), is(1));
 		assertThat(cdQuery.getResultList().get(0).getTitle(), is("Title 1"));
 	}
+
+	/**
+	 * REQUIRES_NEWの呼び出し先を実行している間、呼び出し元の
+	 * トランザクションが保留されたことがTransactionTraceに記録される
+	 * ことを確認するテスト。
+	 */
+	@Test
+	public void testTraceSuspendAndResume() throws Exception {
+
+        ///// 準備 /////
+
+		int sampleEvery = transactionTraces.getSampleEvery();
+		transactionTraces.setSampleEvery(1);	// すべての呼び出しを採取する
+		transactionTraces.clear();
+
+        ///// テスト /////
+
+		try {
+			required_callerEJB.REQUIRES_NEW_CalleePersistAndRollback_REQUIRED_CallerPersist(book, cd);
+		} finally {
+			transactionTraces.setSampleEvery(sampleEvery);
+		}
+
+        ///// 検証 /////
+
+		List<TransactionTrace> traces = transactionTraces.getRecentTraces();
+		assertThat(traces.size(), is(1));
+
+		TransactionTrace trace = traces.get(0);
+		logger.info(trace.format());
+		assertThat(trace.isCompleted(), is(true));
+
+		// 呼び出し元：トランザクションを開始し、コミットする
+		Span caller = trace.getRoot();
+		assertThat(caller.getMethod(),
+				is("caller.REQUIRED_CallerEJB.REQUIRES_NEW_CalleePersistAndRollback_REQUIRED_CallerPersist(Book02,CD02)"));
+		assertThat(typesOf(caller), is(types(EventType.BEGIN, EventType.COMMIT)));
+
+		// 呼び出し先：呼び出し元のトランザクションを保留して別の
+		// トランザクションを開始し、ロールバックした後に再開する
+		assertThat(caller.getChildren().size(), is(1));
+		Span callee = caller.getChildren().get(0);
+		assertThat(callee.getMethod(), is("callee.REQUIRES_NEW_CalleeEJB.persistThenRollback(CD02)"));
+		assertThat(typesOf(callee), is(types(
+				EventType.SUSPEND, EventType.BEGIN, EventType.ROLLBACK, EventType.RESUME)));
+		assertThat(callee.getEvents().get(0).getTransactionId(),
+				is(caller.getEvents().get(0).getTransactionId()));
+		assertThat(callee.getSuspendedNanos() > 0, is(true));
+	}
+
+	private static List<EventType> typesOf(Span span) {
+		List<EventType> types = new ArrayList<EventType>();
+		for (TransactionTrace.Event event : span.getEvents()) {
+			types.add(event.getType());
+		}
+		return types;
+	}
+
+	private static List<EventType> types(EventType... types) {
+		List<EventType> list = new ArrayList<EventType>();
+		for (EventType type : types) {
+			list.add(type);
+		}
+		return list;
+	}
 }
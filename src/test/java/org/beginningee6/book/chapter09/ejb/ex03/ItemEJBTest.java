@@ -2,17 +2,43 @@ package org.beginningee6.book.chapter09.ejb.ex03;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.*;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import javax.ejb.EJB;
+import javax.ejb.EJBException;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
+import javax.transaction.Status;
 import javax.transaction.UserTransaction;
 
+import org.beginningee6.book.chapter09.ejb.async.AsyncAdmissionEJB;
+import org.beginningee6.book.chapter09.ejb.id.PooledIdAllocatorEJB;
+import org.beginningee6.book.chapter09.ejb.journal.StockJournalEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.stock.HotItemStockLedgerEJB;
+import org.beginningee6.book.chapter09.ejb.stock.SaleOutcome;
+import org.beginningee6.book.chapter09.ejb.stock.SellLockStatisticsEJB;
+import org.beginningee6.book.chapter09.ejb.stock.SellLockStrategy;
+import org.beginningee6.book.chapter09.ejb.stock.StockLevelCacheEJB;
+import org.beginningee6.book.chapter09.ejb.stock.bucket.BucketedStockEJB;
+import org.beginningee6.book.chapter09.ejb.stock.bucket.StockBucket;
+import org.beginningee6.book.chapter09.ejb.stock.event.EventSourcedStockEJB;
 import org.beginningee6.book.chapter09.jpa.ex01.Item01;
+import org.beginningee6.book.chapter09.jpa.ex01.StockAvailabilityException;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
 import org.jboss.shrinkwrap.api.Archive;
@@ -47,14 +73,25 @@ public class ItemEJBTest {
 		WebArchive archive = ShrinkWrap
 				.create(WebArchive.class)
 				.addPackage(ItemEJB.class.getPackage())
+				.addPackage(AsyncAdmissionEJB.class.getPackage())
+				.addPackage(HotItemStockLedgerEJB.class.getPackage())
+				.addPackage(BucketedStockEJB.class.getPackage())
+				.addPackage(EventSourcedStockEJB.class.getPackage())
+				.addPackage(PooledIdAllocatorEJB.class.getPackage())
+				.addPackage(StockJournalEJB.class.getPackage())
+				.addPackage(LatencyInterceptor.class.getPackage())
 				.addAsLibraries(dependencyLibs)
+				.addAsResource("META-INF/persistence.xml")
+				.addAsResource("META-INF/orm-pooled-ids.xml")
 				.addAsWebInfResource("jbossas-ds.xml")
 				.addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml");
 
 		return archive;
 	}
 
-	@PersistenceContext
+	// StockBucketエンティティ用のChapter09StockPUもデプロイされるため、
+	// 永続化ユニットを指定する
+	@PersistenceContext(unitName = "Chapter09ProductionPU")
 	EntityManager em;
 
 	@Inject
@@ -63,6 +100,24 @@ public class ItemEJBTest {
 	@EJB
 	ItemEJB itemEJB;	// ステートレス・セッションBeanを注入
 
+	@EJB
+	HotItemStockLedgerEJB hotItemStockLedger;
+
+	@EJB
+	SellLockStatisticsEJB sellLockStatistics;
+
+	@EJB
+	StockLevelCacheEJB stockLevelCache;
+
+	@EJB
+	BucketedStockEJB bucketedStock;
+
+	@EJB
+	StockJournalEJB stockJournal;
+
+	@EJB
+	EventSourcedStockEJB eventSourcedStock;
+
 	@Before
 	public void setUp() throws Exception {
 		clearData();
@@ -224,4 +279,941 @@ public class ItemEJBTest {
 		assertThat(persisted.getAvailableInStock(), is(1));
 	}
 
+	/**
+	 * ItemEJB.sellOneItemByConditionalUpdate()メソッドにより在庫数量が２の
+	 * Item01エンティティに対して在庫を引き当てるテスト。
+	 * 
+	 * 条件付きUPDATE文の更新件数が１件となり、在庫数量が－１される。
+	 */
+	@Test
+	public void testSellOneItemByConditionalUpdateWhenStockAvailable() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		Item01 created = itemEJB.createItem(item);
+		// 在庫数量は２
+		created = itemEJB.addAvailableStock(created, 1);
+		
+        ///// テスト /////
+		
+		boolean sold = itemEJB.sellOneItemByConditionalUpdate(created);
+
+        ///// 検証 /////
+
+		// 引き当てに成功したことを確認
+		assertThat(sold, is(true));
+		
+		// データベースからの直接検索により、在庫数量が－１されている
+		// こと（２→１）を確認
+		Item01 persisted = em.find(Item01.class, created.getId());
+		assertThat(persisted.getAvailableInStock(), is(1));
+	}
+
+	/**
+	 * ItemEJB.sellOneItemByConditionalUpdate()メソッドにより在庫数量が１の
+	 * Item01エンティティに対して在庫を引き当てるテスト。
+	 * 
+	 * 条件付きUPDATE文の更新件数が０件となり、例外もロールバックも
+	 * 発生せずに引き当てに失敗したことが返される。
+	 */
+	@Test
+	public void testSellOneItemByConditionalUpdateWhenStockNotAvailable() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 在庫数量は１
+		Item01 created = itemEJB.createItem(item);
+		
+        ///// テスト /////
+		
+		boolean sold = itemEJB.sellOneItemByConditionalUpdate(created);
+		
+        ///// 検証 /////
+
+		// 引き当てに失敗したことを確認
+		assertThat(sold, is(false));
+
+		// 在庫数量が１のままであることを確認
+		Item01 persisted = em.find(Item01.class, created.getId());
+		assertThat(persisted.getAvailableInStock(), is(1));
+	}
+
+	/**
+	 * ItemEJB.sellItems()メソッドにより複数明細の在庫を単一の
+	 * トランザクションで引き当てるテスト。
+	 */
+	@Test
+	public void testSellItems() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item1 = new Item01();
+		item1.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item1.setPrice(12.5F);
+		item1.setDescription("Science fiction comedy book");
+		// 在庫数量は５
+		Item01 created1 = itemEJB.addAvailableStock(itemEJB.createItem(item1), 4);
+
+		Item01 item2 = new Item01();
+		item2.setTitle("The Restaurant at the End of the Universe");
+		item2.setPrice(13.5F);
+		item2.setDescription("Science fiction comedy book");
+		// 在庫数量は３
+		Item01 created2 = itemEJB.addAvailableStock(itemEJB.createItem(item2), 2);
+
+		Map<Long, Integer> quantities = new HashMap<Long, Integer>();
+		quantities.put(created2.getId(), 2);
+		quantities.put(created1.getId(), 3);
+		
+        ///// テスト /////
+		
+		List<Item01> soldItems = itemEJB.sellItems(quantities);
+
+        ///// 検証 /////
+
+		// 引き当て後のItem01エンティティがIDの昇順に返されることを確認
+		assertThat(soldItems.size(), is(2));
+		assertThat(soldItems.get(0).getId() < soldItems.get(1).getId(), is(true));
+		
+		// データベースからの直接検索により、全明細の在庫数量が
+		// 更新されていることを確認
+		assertThat(em.find(Item01.class, created1.getId()).getAvailableInStock(), is(5 - 3));
+		assertThat(em.find(Item01.class, created2.getId()).getAvailableInStock(), is(3 - 2));
+	}
+
+	/**
+	 * ItemEJB.sellItems()メソッドにより複数明細の在庫を引き当てる際に、
+	 * ひとつの明細で在庫数量が不足するテスト。
+	 * 
+	 * 不足した明細を示すInventoryLevelTooLowExceptionがスローされ、
+	 * 全明細の更新がロールバックされる。
+	 */
+	@Test
+	public void testSellItemsWhenOneLineShort() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item1 = new Item01();
+		item1.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item1.setPrice(12.5F);
+		item1.setDescription("Science fiction comedy book");
+		// 在庫数量は５
+		Item01 created1 = itemEJB.addAvailableStock(itemEJB.createItem(item1), 4);
+
+		Item01 item2 = new Item01();
+		item2.setTitle("The Restaurant at the End of the Universe");
+		item2.setPrice(13.5F);
+		item2.setDescription("Science fiction comedy book");
+		// 在庫数量は２
+		Item01 created2 = itemEJB.addAvailableStock(itemEJB.createItem(item2), 1);
+
+		Map<Long, Integer> quantities = new HashMap<Long, Integer>();
+		quantities.put(created1.getId(), 3);
+		quantities.put(created2.getId(), 2);
+		
+        ///// テスト /////
+		
+		try {
+			itemEJB.sellItems(quantities);
+			fail("Should throw InventoryLevelTooLowException");
+		} catch (InventoryLevelTooLowException e) {
+			// 在庫数量が不足した明細が特定されていることを確認
+			assertThat(e.getItemId(), 				is(created2.getId()));
+			assertThat(e.getRequestedQuantity(), 	is(2));
+			assertThat(e.getAvailableInStock(), 	is(2));
+		}
+		
+        ///// 検証 /////
+
+		// 在庫数量が不足しなかった明細の更新もロールバックされていることを確認
+		assertThat(em.find(Item01.class, created1.getId()).getAvailableInStock(), is(5));
+		assertThat(em.find(Item01.class, created2.getId()).getAvailableInStock(), is(2));
+	}
+
+	/**
+	 * ItemEJB.sellOneHotItem()メソッドによりホットに指定したItem01エンティティの
+	 * 在庫をメモリ上で引き当てるテスト。
+	 * 
+	 * 引き当て結果はHotItemStockLedgerEJB.reconcile()の実行時に
+	 * データベースへ反映される。
+	 */
+	@Test
+	public void testSellOneHotItem() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 在庫数量は３
+		Item01 created = itemEJB.addAvailableStock(itemEJB.createItem(item), 2);
+		hotItemStockLedger.markHot(created.getId());
+		
+        ///// テスト /////
+		
+		Item01 sold = itemEJB.sellOneHotItem(created);
+
+        ///// 検証 /////
+
+		try {
+			// メモリ上の在庫数量が－１されていること（３→２）を確認
+			assertThat(sold.getAvailableInStock(), is(2));
+			assertThat(hotItemStockLedger.getAvailableInStock(created.getId()), is(2L));
+			
+			// データベースにはまだ反映されていないことを確認
+			assertThat(em.find(Item01.class, created.getId()).getAvailableInStock(), is(3));
+			
+			// 反映後はデータベースの在庫数量も－１されていることを確認
+			hotItemStockLedger.reconcile();
+			em.clear();
+			assertThat(em.find(Item01.class, created.getId()).getAvailableInStock(), is(2));
+		} finally {
+			hotItemStockLedger.unmarkHot(created.getId());
+			hotItemStockLedger.reconcile();
+		}
+	}
+
+	/**
+	 * ホットに指定したItem01エンティティをItemEJB.sellOneItem()メソッドで
+	 * 引き当てると、メモリ上で引き当てられ、行を直接更新する
+	 * ItemEJB.sellItems()メソッドでは引き当てられないことを確認するテスト。
+	 */
+	@Test
+	public void testSellOneItemRoutesHotItemToLedger() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 在庫数量は３
+		Item01 created = itemEJB.addAvailableStock(itemEJB.createItem(item), 2);
+		hotItemStockLedger.markHot(created.getId());
+
+		Map<Long, Integer> quantities = new HashMap<Long, Integer>();
+		quantities.put(created.getId(), 1);
+		
+        ///// テスト /////
+		
+		try {
+			Item01 sold = itemEJB.sellOneItem(created);
+			// 入庫もメモリ上の在庫数量に加えられる
+			itemEJB.addAvailableStock(sold, 2);
+
+	        ///// 検証 /////
+
+			// メモリ上の在庫数量が３－１＋２＝４となることを確認
+			assertThat(hotItemStockLedger.getAvailableInStock(created.getId()), is(4L));
+			// データベースにはまだ反映されていないことを確認
+			em.clear();
+			assertThat(em.find(Item01.class, created.getId()).getAvailableInStock(), is(3));
+
+			try {
+				itemEJB.sellItems(quantities);
+				fail();
+			} catch (Exception e) {
+				// ホットに指定されている間は行を直接更新しないことを確認
+				assertThat(e, is(instanceOf(javax.ejb.EJBException.class)));
+			}
+
+			// 反映後はデータベースの在庫数量も４となることを確認
+			hotItemStockLedger.reconcile();
+			em.clear();
+			assertThat(em.find(Item01.class, created.getId()).getAvailableInStock(), is(4));
+		} finally {
+			hotItemStockLedger.unmarkHot(created.getId());
+			hotItemStockLedger.reconcile();
+		}
+	}
+
+	/**
+	 * ItemEJB.sellOneBucketedItem()メソッドによりバケットに分割した
+	 * Item01エンティティの在庫を引き当てるテスト。
+	 * 
+	 * 在庫数量７のうち最後のひとつを除いた６が３つのバケットに２ずつ配られ、
+	 * 引き当てはいずれかひとつのバケットから行われる。すべてのバケットの
+	 * 在庫数量が０になると、InventoryLevelTooLowExceptionがスローされる。
+	 * その後に入庫した在庫は、Item01エンティティの行から引き当てられる。
+	 */
+	@Test
+	public void testSellOneBucketedItem() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 在庫数量は７
+		Item01 created = itemEJB.addAvailableStock(itemEJB.createItem(item), 6);
+		bucketedStock.split(created.getId(), 3);
+		
+		try {
+	        ///// テスト /////
+			
+			// ひとつのバケットの在庫数量（２）を超えて引き当てる
+			for (int i = 0; i < 4; i++) {
+				itemEJB.sellOneBucketedItem(created);
+			}
+	
+	        ///// 検証 /////
+	
+			// バケットの在庫数量の合計と残したひとつで３となることを確認
+			assertThat(bucketedStock.getAvailableInStock(created.getId()), is(3L));
+			
+			// 偏りを均した後も合計は変わらないことを確認
+			bucketedStock.rebalance(created.getId());
+			int total = 0;
+			for (StockBucket bucket : bucketedStock.getBuckets(created.getId())) {
+				assertThat(bucket.getQuantity() <= 1, is(true));
+				total += bucket.getQuantity();
+			}
+			assertThat(total, is(2));
+			
+			// 残りの２つを引き当てた後は、在庫数量の不足となることを確認
+			itemEJB.sellOneBucketedItem(created);
+			itemEJB.sellOneBucketedItem(created);
+			try {
+				itemEJB.sellOneBucketedItem(created);
+				fail();
+			} catch (InventoryLevelTooLowException e) {
+				logger.info(e.getClass().getName());
+			}
+			
+			// 分割後の入庫はItem01エンティティの行に加えられ、
+			// 最後のひとつを残して引き当てられることを確認
+			long rowSellsBefore = bucketedStock.getRowSells();
+			itemEJB.addAvailableStock(em.find(Item01.class, created.getId()), 2);
+			itemEJB.sellOneBucketedItem(created);
+			itemEJB.sellOneBucketedItem(created);
+			try {
+				itemEJB.sellOneBucketedItem(created);
+				fail();
+			} catch (InventoryLevelTooLowException e) {
+				logger.info(e.getClass().getName());
+			}
+			assertThat(bucketedStock.getRowSells() - rowSellsBefore, is(2L));
+		} finally {
+			bucketedStock.merge(created.getId());
+		}
+
+		// ひとつの行に戻した後は、在庫数量が１となることを確認
+		assertThat(em.find(Item01.class, created.getId()).getAvailableInStock(), is(1));
+	}
+
+	/**
+	 * バケットに分割したItem01エンティティの在庫を、
+	 * ItemEJB.sellOneItem()メソッドにより引き当てるテスト。
+	 * 
+	 * 分割されているかどうかはsellOneItem()メソッドの中で判定され、
+	 * 引き当てはバケットから行われる。ItemEJB.getAvailableInStock()メソッドは
+	 * バケットの在庫数量とItem01エンティティの行の在庫数量の合計を返す。
+	 * 数量をまとめて引き当てるsellItems()メソッドは、分割された
+	 * Item01エンティティを受け付けない。
+	 */
+	@Test
+	public void testSellOneItemDispatchesBucketedItem() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 在庫数量は７
+		Item01 created = itemEJB.addAvailableStock(itemEJB.createItem(item), 6);
+		bucketedStock.split(created.getId(), 3);
+		
+		try {
+	        ///// テスト /////
+			
+			long sellsBefore = bucketedStock.getSells();
+			itemEJB.sellOneItem(created);
+			itemEJB.sellOneItem(created, SellLockStrategy.OPTIMISTIC);
+	
+	        ///// 検証 /////
+	
+			// バケットから引き当てられたことを確認
+			assertThat(bucketedStock.getSells() - sellsBefore,		is(2L));
+			
+			// バケットと行の在庫数量の合計が５となることを確認
+			assertThat(itemEJB.getAvailableInStock(created.getId()),	is(5));
+			
+			// まとめての引き当ては受け付けられないことを確認
+			Map<Long, Integer> quantities = new HashMap<Long, Integer>();
+			quantities.put(created.getId(), 1);
+			try {
+				itemEJB.sellItems(quantities);
+				fail();
+			} catch (EJBException e) {
+				logger.info(e.getClass().getName());
+			}
+			assertThat(itemEJB.getAvailableInStock(created.getId()),	is(5));
+		} finally {
+			bucketedStock.merge(created.getId());
+		}
+
+		// ひとつの行に戻した後も、在庫数量が５となることを確認
+		assertThat(em.find(Item01.class, created.getId()).getAvailableInStock(), is(5));
+	}
+
+	/**
+	 * ロック方式にOPTIMISTICを指定してItem01エンティティの在庫を
+	 * 引き当てるテスト。
+	 * 
+	 * 競合がないため、再試行せずに在庫数量が－１される。
+	 */
+	@Test
+	public void testSellOneItemWithOptimisticLock() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 在庫数量は３
+		Item01 created = itemEJB.addAvailableStock(itemEJB.createItem(item), 2);
+		sellLockStatistics.reset();
+		
+        ///// テスト /////
+		
+		Item01 sold = itemEJB.sellOneItem(created, SellLockStrategy.OPTIMISTIC);
+
+        ///// 検証 /////
+
+		assertThat(sold.getAvailableInStock(), is(2));
+		assertThat(em.find(Item01.class, created.getId()).getAvailableInStock(), is(2));
+		
+		// 引き当て回数が記録され、再試行は行われていないことを確認
+		assertThat(sellLockStatistics.getInvocations(SellLockStrategy.OPTIMISTIC), is(1L));
+		assertThat(sellLockStatistics.getRetries(SellLockStrategy.OPTIMISTIC), is(0L));
+	}
+
+	/**
+	 * ロック方式にOPTIMISTICを指定して、２つのスレッドから同じItem01
+	 * エンティティの在庫を同時に引き当てるテスト。
+	 * 
+	 * テストのトランザクションで行ロックを保持している間に、２つのスレッドが
+	 * 在庫数量の読み込みで待つようにしておき、コミットにより同時に同じ
+	 * 在庫数量を読み込ませる。後から更新したスレッドの条件付きUPDATE文は
+	 * １件も更新しないため、再試行して引き当てる。
+	 * 
+	 * 両方のスレッドが行ロックを待っていることはDerbyのロック表で確認する。
+	 * 再試行の回数はスレッドの進み方によって変わるため、１回以上であることと
+	 * 最終的な在庫数量を検証する。
+	 */
+	@Test
+	public void testSellOneItemWithOptimisticLockWhenStockChangedConcurrently() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 在庫数量は３
+		final Item01 created = itemEJB.addAvailableStock(itemEJB.createItem(item), 2);
+		sellLockStatistics.reset();
+
+		// 在庫数量を変えずに更新し、コミットするまで行ロックを保持する
+		userTransaction.begin();
+		em.joinTransaction();
+		em.createQuery("UPDATE Item01 i SET i.availableInStock = i.availableInStock WHERE i.id = :id")
+				.setParameter("id", created.getId())
+				.executeUpdate();
+
+		final CountDownLatch started = new CountDownLatch(2);
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		List<Future<Item01>> results = new ArrayList<Future<Item01>>();
+		for (int i = 0; i < 2; i++) {
+			results.add(executor.submit(new Callable<Item01>() {
+				public Item01 call() throws Exception {
+					started.countDown();
+					return itemEJB.sellOneItem(created, SellLockStrategy.OPTIMISTIC);
+				}
+			}));
+		}
+		
+        ///// テスト /////
+		
+		// 両方のスレッドが在庫数量の読み込みで行ロックを待つまで待ち、
+		// コミットして同時に読み込ませる
+		assertThat(started.await(10, TimeUnit.SECONDS), is(true));
+		long deadline = System.currentTimeMillis() + 10000L;
+		while (countLockWaiters() < 2) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Threads did not block on the row lock");
+			}
+			Thread.sleep(10L);
+		}
+		userTransaction.commit();
+
+		List<Integer> remaining = new ArrayList<Integer>();
+		try {
+			for (Future<Item01> result : results) {
+				remaining.add(result.get().getAvailableInStock());
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+        ///// 検証 /////
+
+		// 両方とも引き当てられ、在庫数量が２と１になっていることを確認
+		assertThat(remaining.contains(2), 	is(true));
+		assertThat(remaining.contains(1), 	is(true));
+		assertThat(em.find(Item01.class, created.getId()).getAvailableInStock(), is(1));
+		
+		// 後から更新したスレッドが再試行していることを確認
+		assertThat(sellLockStatistics.getInvocations(SellLockStrategy.OPTIMISTIC), 		is(2L));
+		assertThat(sellLockStatistics.getRetries(SellLockStrategy.OPTIMISTIC) >= 1, 		is(true));
+		assertThat(sellLockStatistics.getRetriesExhausted(SellLockStrategy.OPTIMISTIC), 	is(0L));
+	}
+
+	// Derbyのロック表から、ロックを待っているトランザクションの数を数える
+	private int countLockWaiters() {
+		Number waiters = (Number) em.createNativeQuery(
+				"SELECT COUNT(*) FROM SYSCS_DIAG.LOCK_TABLE WHERE STATE = 'WAIT'")
+				.getSingleResult();
+		return waiters.intValue();
+	}
+
+	/**
+	 * ロック方式にPESSIMISTIC_WRITEを指定して在庫数量が１のItem01エンティティ
+	 * の在庫を引き当てるテスト。
+	 * 
+	 * 行ロックの取得が記録され、InventoryLevelTooLowExceptionがスローされて
+	 * トランザクションはロールバックされる。
+	 */
+	@Test
+	public void testSellOneItemWithPessimisticLockWhenStockNotAvailable() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 在庫数量は１
+		Item01 created = itemEJB.createItem(item);
+		sellLockStatistics.reset();
+		
+        ///// テスト /////
+		
+		try {
+			itemEJB.sellOneItem(created, SellLockStrategy.PESSIMISTIC_WRITE);
+			fail("Should throw InventoryLevelTooLowException");
+		} catch (InventoryLevelTooLowException e) {
+			// 在庫数量１からの引き当てはできないため、例外がスローされる
+		}
+
+        ///// 検証 /////
+
+		assertThat(em.find(Item01.class, created.getId()).getAvailableInStock(), is(1));
+		
+		// 行ロックの取得が記録されていることを確認
+		assertThat(sellLockStatistics.getLockWaits(SellLockStrategy.PESSIMISTIC_WRITE), is(1L));
+		assertThat(sellLockStatistics.getLockTimeouts(SellLockStrategy.PESSIMISTIC_WRITE), is(0L));
+	}
+
+	/**
+	 * 在庫数量が不足するItem01エンティティの引き当てが、キャッシュした
+	 * 在庫数量による事前チェックで断られ、入庫がコミットされた後は
+	 * キャッシュが破棄されて引き当てられることを確認するテスト。
+	 */
+	@Test
+	public void testSellOneItemWithCachedStockLevel() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 在庫数量は１
+		Item01 created = itemEJB.createItem(item);
+		stockLevelCache.clear();
+		
+        ///// テスト /////
+		
+		// １回目はキャッシュにないため読み込み、２回目はキャッシュから読む
+		for (int i = 0; i < 2; i++) {
+			try {
+				itemEJB.sellOneItem(created);
+				fail();
+			} catch (InventoryLevelTooLowException e) {
+				assertThat(e.getAvailableInStock(), is(1));
+			}
+		}
+		long hits = stockLevelCache.getHits();
+		long misses = stockLevelCache.getMisses();
+		
+		// 入庫のコミットによりキャッシュした在庫数量が破棄される
+		created = itemEJB.addAvailableStock(created, 1);
+		Item01 sold = itemEJB.sellOneItem(created);
+
+        ///// 検証 /////
+
+		assertThat(misses, 							is(1L));
+		assertThat(hits, 							is(1L));
+		assertThat(sold.getAvailableInStock(), 		is(1));
+		assertThat(stockLevelCache.getMisses(), 	is(2L));
+		
+		Item01 persisted = em.find(Item01.class, created.getId());
+		assertThat(persisted.getAvailableInStock(), is(1));
+	}
+
+	/**
+	 * 同じトランザクションで入庫したItem01エンティティを引き当てる場合は、
+	 * キャッシュした在庫数量ではなく、そのトランザクションの中で読み込んだ
+	 * 在庫数量で事前チェックが行われることを確認するテスト。
+	 * 
+	 * トランザクションの外で読み込むと、コミットされていない入庫が
+	 * 見えないうえ、入庫による行ロックを待ち続けることになる。
+	 */
+	@Test
+	public void testSellOneItemAfterRestockInSameTransaction() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 在庫数量は１（キャッシュにも１を読み込んでおく）
+		Item01 created = itemEJB.createItem(item);
+		stockLevelCache.clear();
+		assertThat(stockLevelCache.getAvailableInStock(created.getId()), is(1));
+		
+        ///// テスト /////
+		
+		userTransaction.begin();
+		Item01 sold;
+		try {
+			Item01 restocked = itemEJB.addAvailableStock(created, 2);
+			sold = itemEJB.sellOneItem(restocked);
+			userTransaction.commit();
+		} catch (Exception e) {
+			userTransaction.rollback();
+			throw e;
+		}
+
+        ///// 検証 /////
+
+		// 入庫後の在庫数量３から引き当てられていることを確認
+		assertThat(sold.getAvailableInStock(), 		is(2));
+		// トランザクションの中での読み込みはキャッシュを使用しない
+		assertThat(stockLevelCache.getMisses(), 	is(1L));
+		assertThat(stockLevelCache.getHits(), 		is(0L));
+		
+		Item01 persisted = em.find(Item01.class, created.getId());
+		assertThat(persisted.getAvailableInStock(), is(2));
+	}
+
+	/**
+	 * 在庫数量が０のItem01エンティティの引き当てが、キャッシュした在庫数量に
+	 * よる事前チェックでも、行ロックを取得した場合と同じく
+	 * StockAvailabilityExceptionで断られることを確認するテスト。
+	 */
+	@Test
+	public void testSellOneItemWithCachedStockLevelWhenStockIsZero() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 在庫数量は０
+		Item01 created = itemEJB.addAvailableStock(itemEJB.createItem(item), -1);
+		stockLevelCache.clear();
+		
+        ///// テスト /////
+		
+		// １回目はキャッシュにないため読み込み、２回目はキャッシュから読む
+		for (int i = 0; i < 2; i++) {
+			try {
+				itemEJB.sellOneItem(created);
+				fail();
+			} catch (StockAvailabilityException e) {
+				// 在庫数量が０のため、例外がスローされる
+			}
+		}
+
+        ///// 検証 /////
+
+		assertThat(stockLevelCache.getMisses(), 	is(1L));
+		assertThat(stockLevelCache.getHits(), 		is(1L));
+		
+		Item01 persisted = em.find(Item01.class, created.getId());
+		assertThat(persisted.getAvailableInStock(), is(0));
+	}
+
+	/**
+	 * ItemEJB.trySellOneItem()メソッドにより在庫数量が２のItem01エンティティの
+	 * 在庫を２回引き当てるテスト。
+	 * 
+	 * １回目は引き当てられ、２回目は最後のひとつであるため引き当てられないが、
+	 * いずれも例外はスローされない。
+	 */
+	@Test
+	public void testTrySellOneItem() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 在庫数量は２
+		Item01 created = itemEJB.addAvailableStock(itemEJB.createItem(item), 1);
+		
+        ///// テスト /////
+		
+		SaleOutcome sold = itemEJB.trySellOneItem(created);
+		SaleOutcome blocked = itemEJB.trySellOneItem(created);
+
+        ///// 検証 /////
+
+		assertThat(sold.getStatus(), 				is(SaleOutcome.Status.SOLD));
+		assertThat(sold.getAvailableInStock(), 		is(1));
+		assertThat(blocked.getStatus(), 			is(SaleOutcome.Status.LAST_UNIT_BLOCKED));
+		assertThat(blocked.getAvailableInStock(), 	is(1));
+		
+		// データベースからの直接検索により、在庫数量が１であることを確認
+		Item01 persisted = em.find(Item01.class, created.getId());
+		assertThat(persisted.getAvailableInStock(), is(1));
+	}
+
+	/**
+	 * 呼び出し元のトランザクションの中で、ItemEJB.trySellOneItem()メソッドに
+	 * より２つのItem01エンティティの在庫を引き当てるテスト。
+	 * 
+	 * 一方が最後のひとつであるため引き当てられなくても、呼び出し元の
+	 * トランザクションはロールバックにマークされず、もう一方の引き当ては
+	 * コミットされる。
+	 */
+	@Test
+	public void testTrySellOneItemInCallerTransaction() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		Item01 lastUnit = new Item01();
+		lastUnit.setTitle("The Restaurant at the End of the Universe");
+		lastUnit.setPrice(12.5F);
+		lastUnit.setDescription("Science fiction comedy book");
+
+		// 在庫数量は２と１
+		Item01 created = itemEJB.addAvailableStock(itemEJB.createItem(item), 1);
+		Item01 createdLastUnit = itemEJB.createItem(lastUnit);
+		
+        ///// テスト /////
+		
+		userTransaction.begin();
+		SaleOutcome blocked = itemEJB.trySellOneItem(createdLastUnit);
+		SaleOutcome sold = itemEJB.trySellOneItem(created);
+		int status = userTransaction.getStatus();
+		userTransaction.commit();
+
+        ///// 検証 /////
+
+		assertThat(blocked.getStatus(), 	is(SaleOutcome.Status.LAST_UNIT_BLOCKED));
+		assertThat(sold.getStatus(), 		is(SaleOutcome.Status.SOLD));
+		
+		// 引き当てられなかった後も、トランザクションは続行できる
+		assertThat(status, 					is(Status.STATUS_ACTIVE));
+		
+		// データベースからの直接検索により、引き当てがコミットされていることを確認
+		assertThat(em.find(Item01.class, created.getId()).getAvailableInStock(), 			is(1));
+		assertThat(em.find(Item01.class, createdLastUnit.getId()).getAvailableInStock(), 	is(1));
+	}
+
+	/**
+	 * ItemEJB.createItem()、addAvailableStock()、sellOneItem()、
+	 * trySellOneItem()による在庫数量の増減がジャーナルに記録され、
+	 * 再生により在庫数量が求められることを確認するテスト。
+	 * 
+	 * 在庫数量を更新した後でロールバックされた引き当ては記録されない。
+	 */
+	@Test
+	public void testStockJournal() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		Item01 lastUnit = new Item01();
+		lastUnit.setTitle("The Restaurant at the End of the Universe");
+		lastUnit.setPrice(12.5F);
+		lastUnit.setDescription("Science fiction comedy book");
+
+		// ジャーナルは以前のテストの記録も含むため、記録の前後の差で確認する
+		long recordsBefore = stockJournal.getAppendedRecords();
+		Map<Long, Long> levelsBefore = stockJournal.rebuildStockLevels();
+
+        ///// テスト /////
+		
+		// 在庫数量は１→３→２→１（ロールバックされた引き当てを除く）
+		Item01 created = itemEJB.addAvailableStock(itemEJB.createItem(item), 2);
+		itemEJB.sellOneItem(created);
+
+		// 在庫数量を更新し、ジャーナルへの記録を登録した後で、呼び出し元の
+		// トランザクションがロールバックされる
+		userTransaction.begin();
+		itemEJB.sellOneItem(created, SellLockStrategy.PESSIMISTIC_WRITE);
+		userTransaction.rollback();
+
+		SaleOutcome outcome = itemEJB.trySellOneItem(created, SellLockStrategy.PESSIMISTIC_WRITE);
+
+		// 在庫数量は１のため、在庫数量を０に更新した後で引き当てられず、
+		// ロールバックされる
+		// （ロック方式を指定した場合、キャッシュした在庫数量による事前の
+		// チェックを行わないため、データベースの更新まで実行される）
+		Item01 createdLastUnit = itemEJB.createItem(lastUnit);
+		try {
+			itemEJB.sellOneItem(createdLastUnit, SellLockStrategy.PESSIMISTIC_WRITE);
+			fail();
+		} catch (InventoryLevelTooLowException e) {
+			// 想定どおり
+		}
+
+		Map<Long, Long> levels = stockJournal.rebuildStockLevels();
+
+        ///// 検証 /////
+
+		assertThat(outcome.isSold(), 	is(true));
+
+		// ロールバックされた引き当てを除く５件が記録されていることを確認
+		assertThat(stockJournal.getAppendedRecords() - recordsBefore, 	is(5L));
+
+		// 再生した在庫数量がデータベースの在庫数量と一致することを確認
+		assertThat(difference(levels, levelsBefore, created.getId()), 			is(1L));
+		assertThat(difference(levels, levelsBefore, createdLastUnit.getId()), 	is(1L));
+		assertThat(em.find(Item01.class, created.getId()).getAvailableInStock(), 			is(1));
+		assertThat(em.find(Item01.class, createdLastUnit.getId()).getAvailableInStock(), 	is(1));
+	}
+
+	/**
+	 * EventSourcedStockEJBにより、Item01エンティティを更新せずに、
+	 * 増減のイベントの追加だけで入庫と在庫引き当てを行うテスト。
+	 * 
+	 * イベントをスナップショットに反映した後も在庫数量は変わらず、
+	 * 在庫数量の最後のひとつは引き当てられない。
+	 */
+	@Test
+	public void testEventSourcedStock() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// Item01エンティティの在庫数量は１
+		Item01 created = itemEJB.createItem(item);
+		Long itemId = created.getId();
+
+        ///// テスト /////
+		
+		// 在庫数量は１→４→３
+		eventSourcedStock.add(itemId, 3);
+		long afterSell = eventSourcedStock.trySell(itemId, 1);
+
+		int compacted = eventSourcedStock.compact(itemId);
+		long afterCompaction = eventSourcedStock.getAvailableInStock(itemId);
+
+		// 在庫数量は３→１となり、最後のひとつは引き当てられない
+		long afterSellTwo = eventSourcedStock.trySell(itemId, 2);
+		long lastUnit = eventSourcedStock.trySell(itemId, 1);
+
+        ///// 検証 /////
+
+		assertThat(afterSell, 			is(3L));
+		assertThat(compacted, 			is(2));
+		assertThat(afterCompaction, 	is(3L));
+		assertThat(afterSellTwo, 		is(1L));
+		assertThat(lastUnit, 			is(-1L));
+		assertThat(eventSourcedStock.getAvailableInStock(itemId), 	is(1L));
+
+		// Item01エンティティの在庫数量の列は更新されていないことを確認
+		Item01 persisted = em.find(Item01.class, itemId);
+		assertThat(persisted.getAvailableInStock(), 	is(1));
+	}
+
+	/**
+	 * EventSourcedStockEJBで引き当てたトランザクションがロールバックされた
+	 * 場合に、引き当て中の数量が残らないことを確認するテスト。
+	 * 
+	 * ロールバックされた引き当ての数量は、その後の引き当てで再び
+	 * 引き当てられる。
+	 */
+	@Test
+	public void testEventSourcedStockWhenRolledBack() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 在庫数量は１→２
+		Long itemId = itemEJB.createItem(item).getId();
+		eventSourcedStock.add(itemId, 1);
+
+        ///// テスト /////
+		
+		// 引き当てた後でロールバックする
+		userTransaction.begin();
+		long rolledBack = eventSourcedStock.trySell(itemId, 1);
+		userTransaction.rollback();
+
+		// ロールバックされた数量を含めて引き当てる
+		long afterSell = eventSourcedStock.trySell(itemId, 1);
+
+        ///// 検証 /////
+
+		assertThat(rolledBack, 		is(1L));
+		assertThat(afterSell, 		is(1L));
+		assertThat(eventSourcedStock.getAvailableInStock(itemId), 	is(1L));
+	}
+
+	private long difference(Map<Long, Long> after, Map<Long, Long> before, Long itemId) {
+		Long level = after.get(itemId);
+		Long previous = before.get(itemId);
+		return (level != null ? level : 0L) - (previous != null ? previous : 0L);
+	}
 }
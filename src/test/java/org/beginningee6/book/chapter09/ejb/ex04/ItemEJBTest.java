@@ -16,6 +16,12 @@ import javax.transaction.UserTransaction;
 import org.beginningee6.book.chapter09.ejb.ex04.exception.CheckedExceptionWithApplicationAnnotationRollbackTrue;
 import org.beginningee6.book.chapter09.ejb.ex04.exception.CheckedExceptionWithoutAnnotation;
 import org.beginningee6.book.chapter09.ejb.ex04.exception.UncheckedExceptionWithApplicationAnnotationRollbackTrue;
+import org.beginningee6.book.chapter09.ejb.ex04.exception.UncheckedExceptionWithoutAnnotation;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyMonitorEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.MethodLatencySnapshot;
+import org.beginningee6.book.chapter09.ejb.monitor.RollbackAnalyticsEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.RollbackCauseSnapshot;
 import org.beginningee6.book.chapter09.jpa.ex01.Item01;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
@@ -51,6 +57,7 @@ public class ItemEJBTest {
 				.create(WebArchive.class)
 				.addPackage(ItemEJB.class.getPackage())
 				.addPackage(CheckedExceptionWithoutAnnotation.class.getPackage())
+				.addPackage(LatencyInterceptor.class.getPackage())
 				.addAsLibraries(dependencyLibs)
 				.addAsWebInfResource("jbossas-ds.xml")
 				.addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml");
@@ -67,6 +74,12 @@ public class ItemEJBTest {
 	@EJB
 	ItemEJB itemEJB;	// ステートレス・セッションBanを注入
 
+	@EJB
+	LatencyMonitorEJB latencyMonitor;
+
+	@EJB
+	RollbackAnalyticsEJB rollbackAnalytics;
+
 	@Before
 	public void setUp() throws Exception {
 		clearData();
@@ -287,4 +300,135 @@ public class ItemEJBTest {
 		
 	}
 
+	/**
+	 * LatencyInterceptorにより、ビジネスメソッドのレイテンシが呼び出しの
+	 * 結果の種類ごとに記録されることを確認するテスト。
+	 */
+	@Test
+	public void testLatencyIsRecordedPerOutcome() throws Exception {
+		
+		///// 準備 /////
+		
+		latencyMonitor.reset();
+
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		///// テスト /////
+		
+		itemEJB.ejbMethodThrowsCheckedExceptionWithoutAnnotation(item);
+
+		try {
+			itemEJB.ejbMethodThrowsCheckedExceptionWithApplicationAnnotationRollbackTrue(new Item01());
+			fail("Should throw exception");
+		} catch (CheckedExceptionWithApplicationAnnotationRollbackTrue e) {
+			// 例外がスローされることを確認する
+		}
+
+		///// 検証 /////
+
+		// 例外をスローせずに戻った呼び出しはCOMMITTEDとして記録される
+		MethodLatencySnapshot committed = find(
+				"ex04.ItemEJB.ejbMethodThrowsCheckedExceptionWithoutAnnotation(Item01)", "COMMITTED");
+		assertThat(committed, is(notNullValue()));
+		assertThat(committed.getCount(), is(1L));
+		assertThat(committed.getP50Micros() <= committed.getMaxMicros(), is(true));
+
+		// 呼び出し先で捕捉された例外は、呼び出し先のEXCEPTIONとして記録される
+		MethodLatencySnapshot caught = find(
+				"ex04.InventoryEJB.throwCheckedExceptionWithoutAnnotation()", "EXCEPTION");
+		assertThat(caught, is(notNullValue()));
+		assertThat(caught.getCount(), is(1L));
+
+		// 例外をスローした呼び出しはEXCEPTIONとして記録される
+		MethodLatencySnapshot thrown = find(
+				"ex04.ItemEJB.ejbMethodThrowsCheckedExceptionWithApplicationAnnotationRollbackTrue(Item01)", "EXCEPTION");
+		assertThat(thrown, is(notNullValue()));
+		assertThat(thrown.getCount(), is(1L));
+		assertThat(find(
+				"ex04.ItemEJB.ejbMethodThrowsCheckedExceptionWithApplicationAnnotationRollbackTrue(Item01)", "COMMITTED"),
+				is(nullValue()));
+	}
+
+
+	/**
+	 * RollbackCauseInterceptorにより、ロールバックの原因となった
+	 * ビジネスメソッドと例外クラスごとに、ロールバックの回数と失われた
+	 * エンティティの数が記録されることを確認するテスト。
+	 */
+	@Test
+	public void testRollbackCausesAreRankedByDiscardedWork() throws Exception {
+		
+		///// 準備 /////
+		
+		rollbackAnalytics.reset();
+
+		///// テスト /////
+		
+		// チェック例外（rollback=true）によるロールバックを２回
+		for (int i = 0; i < 2; i++) {
+			try {
+				itemEJB.ejbMethodThrowsCheckedExceptionWithApplicationAnnotationRollbackTrue(newItem());
+				fail("Should throw exception");
+			} catch (CheckedExceptionWithApplicationAnnotationRollbackTrue e) {
+				// 例外がスローされることを確認する
+			}
+		}
+
+		// 非チェック例外（アノテーションなし）によるロールバックを１回
+		try {
+			itemEJB.ejbMethodThrowsUncheckedExceptionWithoutAnnotation(newItem());
+			fail("Should throw exception");
+		} catch (Exception e) {
+			// 例外がスローされることを確認する
+		}
+
+		// ロールバックされない呼び出しは記録されない
+		itemEJB.ejbMethodThrowsCheckedExceptionWithoutAnnotation(newItem());
+
+		///// 検証 /////
+
+		List<RollbackCauseSnapshot> causes = rollbackAnalytics.getTopCauses(10);
+		assertThat(causes.size(), is(2));
+
+		// 失われたエンティティの数が多い順に並ぶ
+		RollbackCauseSnapshot first = causes.get(0);
+		assertThat(first.getMethod(), 
+				is("ex04.InventoryEJB.throwCheckedExceptionWithApplicationAnnotationRollbackTrue()"));
+		assertThat(first.getException(), 
+				is(CheckedExceptionWithApplicationAnnotationRollbackTrue.class.getName()));
+		assertThat(first.getRollbacks(), 			is(2L));
+		assertThat(first.getDiscardedEntities(), 	is(2L));
+		assertThat(first.getMaxDiscardedEntities(), is(1L));
+
+		RollbackCauseSnapshot second = causes.get(1);
+		assertThat(second.getMethod(), 
+				is("ex04.InventoryEJB.throwUncheckedExceptionWithoutAnnotation()"));
+		assertThat(second.getException(), 
+				is(UncheckedExceptionWithoutAnnotation.class.getName()));
+		assertThat(second.getRollbacks(), 			is(1L));
+		assertThat(second.getDiscardedEntities(), 	is(1L));
+
+		assertThat(rollbackAnalytics.getTopCauses(1).size(), is(1));
+	}
+
+	private Item01 newItem() {
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+		return item;
+	}
+
+	private MethodLatencySnapshot find(String method, String outcome) {
+		for (MethodLatencySnapshot snapshot : latencyMonitor.getSnapshots()) {
+			if (snapshot.getMethod().equals(method) && snapshot.getOutcome().equals(outcome)) {
+				return snapshot;
+			}
+		}
+		return null;
+	}
+
 }
@@ -0,0 +1,266 @@
+package org.beginningee6.book.chapter09.ejb.ex05;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.ejb.EJBException;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter09.ejb.id.PooledIdAllocatorEJB;
+import org.beginningee6.book.chapter09.ejb.journal.StockJournalEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.stock.HotItemStockLedgerEJB;
+import org.beginningee6.book.chapter09.ejb.stock.SaleOutcome;
+import org.beginningee6.book.chapter09.ejb.stock.bucket.BucketedStockEJB;
+import org.beginningee6.book.chapter09.ejb.stock.event.EventSourcedStockEJB;
+import org.beginningee6.book.chapter09.jpa.ex01.Item01;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.jboss.shrinkwrap.resolver.api.maven.Maven;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * EventSourcedStockEJBの環境エントリinventory.eventSourcedにtrueを
+ * 指定してデプロイした場合に、ex05のItemEJBとInventoryEJBの入庫と
+ * 在庫引き当てが、Item01エンティティの在庫数量の列を更新せずに、
+ * 増減のイベントの追加だけで行われることを確認するテスト。
+ */
+@RunWith(Arquillian.class)
+public class EventSourcedItemEJBTest {
+	private static final Logger logger = Logger.getLogger(EventSourcedItemEJBTest.class
+			.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+		File[] dependencyLibs
+			= Maven
+				.configureResolver()
+				.fromFile("D:\\apache-maven-3.0.3\\conf\\settings.xml")
+				.resolve("org.beginningee6.book:beginningee6-chapter09-jpa:0.0.1-SNAPSHOT")
+				.withTransitivity()
+				.asFile();
+
+		WebArchive archive = ShrinkWrap
+				.create(WebArchive.class)
+				.addPackage(ItemEJB.class.getPackage())
+				.addPackage(HotItemStockLedgerEJB.class.getPackage())
+				.addPackage(BucketedStockEJB.class.getPackage())
+				.addPackage(EventSourcedStockEJB.class.getPackage())
+				.addPackage(PooledIdAllocatorEJB.class.getPackage())
+				.addPackage(StockJournalEJB.class.getPackage())
+				.addPackage(LatencyInterceptor.class.getPackage())
+				.addAsLibraries(dependencyLibs)
+				.addAsResource("META-INF/persistence.xml")
+				.addAsResource("META-INF/orm-pooled-ids.xml")
+				// 環境エントリinventory.eventSourcedにtrueを指定する
+				.addAsWebInfResource("ejb-jar-event-sourced.xml", "ejb-jar.xml")
+				.addAsWebInfResource("jbossas-ds.xml")
+				.addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		return archive;
+	}
+
+	@PersistenceContext(unitName = "Chapter09ProductionPU")
+	EntityManager em;
+
+	@PersistenceContext(unitName = "Chapter09StockPU")
+	EntityManager stockEm;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	ItemEJB itemEJB;
+
+	@EJB
+	InventoryEJB inventoryEJB;
+
+	@EJB
+	EventSourcedStockEJB eventSourcedStock;
+
+	@EJB
+	HotItemStockLedgerEJB hotItemStockLedger;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Item01").executeUpdate();
+		userTransaction.commit();
+	}
+
+	/**
+	 * ItemEJB.addAvailableStock()メソッドとsellOneItem()メソッドにより、
+	 * 入庫と在庫引き当てのイベントが追加され、Item01エンティティの
+	 * 在庫数量の列は更新されないことを確認するテスト。
+	 */
+	@Test
+	public void testAddAvailableStockAndSellOneItem() throws Exception {
+
+        ///// 準備 /////
+
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 在庫数量は１
+		Item01 created = itemEJB.createItem(item);
+		Long itemId = created.getId();
+
+        ///// テスト /////
+
+		// 在庫数量は１→４→３
+		Item01 stocked = itemEJB.addAvailableStock(created, 3);
+		int afterStock = stocked.getAvailableInStock();
+		Item01 sold = itemEJB.sellOneItem(stocked);
+
+        ///// 検証 /////
+
+		assertThat(eventSourcedStock.isEnabled(), 					is(true));
+		assertThat(afterStock, 										is(4));
+		assertThat(sold.getAvailableInStock(), 						is(3));
+		assertThat(eventSourcedStock.getAvailableInStock(itemId), 	is(3L));
+		assertThat(countEvents(itemId), 							is(2L));
+
+		// Item01エンティティの在庫数量の列は更新されていないことを確認
+		Item01 persisted = em.find(Item01.class, itemId);
+		assertThat(persisted.getAvailableInStock(), 	is(1));
+	}
+
+	/**
+	 * ItemEJB.sellOneItem()メソッドとtrySellOneItem()メソッドで、
+	 * イベントで管理している在庫数量の最後のひとつは引き当てられない
+	 * ことを確認するテスト。
+	 *
+	 * 引き当てなかった場合、イベントは追加されない。
+	 */
+	@Test
+	public void testLastUnitIsNotSold() throws Exception {
+
+        ///// 準備 /////
+
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 在庫数量は２
+		Item01 created = itemEJB.addAvailableStock(itemEJB.createItem(item), 1);
+		Long itemId = created.getId();
+
+        ///// テスト /////
+
+		SaleOutcome sold = itemEJB.trySellOneItem(created);
+		SaleOutcome blocked = itemEJB.trySellOneItem(created);
+		// InventoryLevelTooLowExceptionによりロールバックされ、nullが返される
+		Item01 notSold = itemEJB.sellOneItem(created);
+
+        ///// 検証 /////
+
+		assertThat(sold.getStatus(), 				is(SaleOutcome.Status.SOLD));
+		assertThat(sold.getAvailableInStock(), 		is(1));
+		assertThat(blocked.getStatus(), 			is(SaleOutcome.Status.LAST_UNIT_BLOCKED));
+		assertThat(blocked.getAvailableInStock(), 	is(1));
+		assertThat(notSold, 						is(nullValue()));
+		assertThat(eventSourcedStock.getAvailableInStock(itemId), 	is(1L));
+		assertThat(countEvents(itemId), 							is(2L));
+
+		Item01 persisted = em.find(Item01.class, itemId);
+		assertThat(persisted.getAvailableInStock(), 	is(1));
+	}
+
+	/**
+	 * InventoryEJB.reserve()メソッドで確保した数量がイベントとして
+	 * 差し引かれ、release()メソッドで戻されることを確認するテスト。
+	 */
+	@Test
+	public void testReserveThenRelease() throws Exception {
+
+        ///// 準備 /////
+
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 在庫数量は１０
+		Item01 created = itemEJB.addAvailableStock(itemEJB.createItem(item), 9);
+		Long itemId = created.getId();
+
+        ///// テスト /////
+
+		long reservationId = inventoryEJB.reserve(itemId, 3, 60000L);
+		long afterReserve = eventSourcedStock.getAvailableInStock(itemId);
+		boolean released = inventoryEJB.release(reservationId);
+
+        ///// 検証 /////
+
+		assertThat(afterReserve, 									is(10L - 3));
+		assertThat(released, 										is(true));
+		assertThat(eventSourcedStock.getAvailableInStock(itemId), 	is(10L));
+
+		Item01 persisted = em.find(Item01.class, itemId);
+		assertThat(persisted.getAvailableInStock(), 	is(1));
+	}
+
+	/**
+	 * イベントで在庫数量を管理している間は、在庫数量の列を更新する
+	 * ホットの指定ができないことを確認するテスト。
+	 */
+	@Test
+	public void testMarkHotIsRejected() throws Exception {
+
+        ///// 準備 /////
+
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		Item01 created = itemEJB.createItem(item);
+
+        ///// テスト /////
+
+		try {
+			hotItemStockLedger.markHot(created.getId());
+			fail("markHot() must be rejected while stock is event-sourced");
+		} catch (EJBException e) {
+
+        ///// 検証 /////
+
+			// IllegalStateExceptionがEJBExceptionにラップされてスローされる
+			assertThat(e.getCause(), is(instanceOf(IllegalStateException.class)));
+		}
+
+		assertThat(hotItemStockLedger.isHot(created.getId()), 	is(false));
+	}
+
+	private long countEvents(Long itemId) {
+		return stockEm.createQuery(
+				"SELECT COUNT(e) FROM StockEvent e WHERE e.itemId = :itemId", Long.class)
+				.setParameter("itemId", itemId)
+				.getSingleResult();
+	}
+}
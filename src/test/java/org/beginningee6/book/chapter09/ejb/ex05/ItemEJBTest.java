@@ -2,6 +2,7 @@ package org.beginningee6.book.chapter09.ejb.ex05;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.*;
+import static org.junit.Assert.fail;
 
 import java.io.File;
 import java.util.logging.Logger;
@@ -12,6 +13,14 @@ import javax.persistence.EntityManager;
 import javax.persistence.PersistenceContext;
 import javax.transaction.UserTransaction;
 
+import org.beginningee6.book.chapter09.ejb.id.PooledIdAllocatorEJB;
+import org.beginningee6.book.chapter09.ejb.journal.StockJournalEJB;
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.stock.HotItemStockLedgerEJB;
+import org.beginningee6.book.chapter09.ejb.stock.SaleOutcome;
+import org.beginningee6.book.chapter09.ejb.stock.StockHold;
+import org.beginningee6.book.chapter09.ejb.stock.bucket.BucketedStockEJB;
+import org.beginningee6.book.chapter09.ejb.stock.event.EventSourcedStockEJB;
 import org.beginningee6.book.chapter09.jpa.ex01.Item01;
 import org.jboss.arquillian.container.test.api.Deployment;
 import org.jboss.arquillian.junit.Arquillian;
@@ -46,22 +55,41 @@ public class ItemEJBTest {
 		WebArchive archive = ShrinkWrap
 				.create(WebArchive.class)
 				.addPackage(ItemEJB.class.getPackage())
+				.addPackage(HotItemStockLedgerEJB.class.getPackage())
+				.addPackage(BucketedStockEJB.class.getPackage())
+				.addPackage(EventSourcedStockEJB.class.getPackage())
+				.addPackage(PooledIdAllocatorEJB.class.getPackage())
+				.addPackage(StockJournalEJB.class.getPackage())
+				.addPackage(LatencyInterceptor.class.getPackage())
 				.addAsLibraries(dependencyLibs)
+				.addAsResource("META-INF/persistence.xml")
+				.addAsResource("META-INF/orm-pooled-ids.xml")
 				.addAsWebInfResource("jbossas-ds.xml")
 				.addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml");
 
 		return archive;
 	}
 
-	@PersistenceContext
+	// StockBucketエンティティ用のChapter09StockPUもデプロイされるため、
+	// 永続化ユニットを指定する
+	@PersistenceContext(unitName = "Chapter09ProductionPU")
 	EntityManager em;
 
+	@PersistenceContext(unitName = "Chapter09StockPU")
+	EntityManager stockEm;
+
 	@Inject
 	UserTransaction userTransaction;
 
 	@EJB
 	ItemEJB itemEJB;	// ステートレス・セッションBeanを注入
 
+	@EJB
+	InventoryEJB inventoryEJB;
+
+	@EJB
+	StockReservationEJB stockReservation;
+
 	@Before
 	public void setUp() throws Exception {
 		clearData();
@@ -223,4 +251,187 @@ public class ItemEJBTest {
 		assertThat(persisted.getAvailableInStock(), is(1));
 	}
 
+	/**
+	 * InventoryEJB.reserve()メソッドで確保した在庫数量を、release()メソッドで
+	 * 解放した場合は在庫数量へ戻り、confirm()メソッドで確定した場合は
+	 * 差し引かれたままとなることを確認するテスト。
+	 */
+	@Test
+	public void testReserveThenReleaseOrConfirm() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		Item01 created = itemEJB.createItem(item);
+		// 在庫数量は１０
+		created = itemEJB.addAvailableStock(created, 9);
+		
+        ///// テスト /////
+		
+		long released = inventoryEJB.reserve(created.getId(), 3, 60000L);
+		long confirmed = inventoryEJB.reserve(created.getId(), 2, 60000L);
+		
+		boolean releasedResult = inventoryEJB.release(released);
+		boolean confirmedResult = inventoryEJB.confirm(confirmed);
+
+        ///// 検証 /////
+
+		assertThat(releasedResult, 							is(true));
+		assertThat(confirmedResult, 						is(true));
+		// 既に解放・確定したホールドは再度解放できない
+		assertThat(inventoryEJB.release(released), 			is(false));
+		assertThat(inventoryEJB.release(confirmed), 		is(false));
+		
+		// 確定した２だけが差し引かれていることを確認
+		Item01 persisted = em.find(Item01.class, created.getId());
+		assertThat(persisted.getAvailableInStock(), is(10 - 2));
+	}
+
+	/**
+	 * InventoryEJB.reserve()メソッドで確保したホールドが、在庫数量を
+	 * 差し引いたのと同じトランザクションでテーブルに追加され、
+	 * confirm()メソッドで削除されることを確認するテスト。
+	 */
+	@Test
+	public void testReservationIsPersistedAsHold() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		Item01 created = itemEJB.createItem(item);
+		// 在庫数量は５
+		created = itemEJB.addAvailableStock(created, 4);
+		
+        ///// テスト /////
+		
+		long reservationId = inventoryEJB.reserve(created.getId(), 2, 60000L);
+
+        ///// 検証 /////
+
+		// ホールドがテーブルに追加され、期限がティック（既定の１秒）単位に
+		// 丸められていることを確認
+		StockHold hold = stockEm.find(StockHold.class, reservationId);
+		assertThat(hold.getItemId(), 						is(created.getId()));
+		assertThat(hold.getQuantity(), 						is(2));
+		assertThat(hold.getExpiryBucket(), 					is(hold.getExpiresAt() / 1000L));
+		assertThat(em.find(Item01.class, created.getId()).getAvailableInStock(), is(3));
+
+		// 確定するとホールドが削除されることを確認
+		assertThat(inventoryEJB.confirm(reservationId), 	is(true));
+		stockEm.clear();
+		assertThat(stockEm.find(StockHold.class, reservationId), is(nullValue()));
+	}
+
+	/**
+	 * 有効期間内に確定も解放もされなかったホールドが、
+	 * StockReservationEJB.sweepExpired()メソッドで在庫数量へ戻される
+	 * ことを確認するテスト。
+	 */
+	@Test
+	public void testExpiredReservationIsRestored() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		Item01 created = itemEJB.createItem(item);
+		// 在庫数量は５
+		created = itemEJB.addAvailableStock(created, 4);
+
+		long reservationId = inventoryEJB.reserve(created.getId(), 4, 1L);
+		
+        ///// テスト /////
+		
+		// ホールドの期限が切れるまで（ホイールの１スロット分）待ってから
+		// 期限切れのホールドを戻す（タイマーにより既に戻されている場合もある）
+		Thread.sleep(2000L);
+		stockReservation.sweepExpired();
+
+        ///// 検証 /////
+
+		// 期限切れのホールドは確定できない
+		assertThat(inventoryEJB.confirm(reservationId), 	is(false));
+		
+		Item01 persisted = em.find(Item01.class, created.getId());
+		assertThat(persisted.getAvailableInStock(), is(5));
+	}
+
+	/**
+	 * 確保後の在庫数量が０以下となる数量は確保できないことを確認するテスト。
+	 */
+	@Test
+	public void testReserveMoreThanAvailable() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 在庫数量は１
+		Item01 created = itemEJB.createItem(item);
+		
+        ///// テスト /////
+		
+		try {
+			inventoryEJB.reserve(created.getId(), 1, 60000L);
+			fail();
+		} catch (InventoryLevelTooLowException e) {
+			// 在庫数量１からの確保はできないため、例外がスローされる
+		}
+		
+        ///// 検証 /////
+
+		Item01 persisted = em.find(Item01.class, created.getId());
+		assertThat(persisted.getAvailableInStock(), is(1));
+	}
+
+	/**
+	 * ItemEJB.trySellOneItem()メソッドにより在庫数量が２のItem01エンティティの
+	 * 在庫を２回引き当てるテスト。
+	 * 
+	 * １回目は引き当てられ、２回目は最後のひとつであるため引き当てられないが、
+	 * いずれも例外はスローされない。
+	 */
+	@Test
+	public void testTrySellOneItem() throws Exception {
+		
+        ///// 準備 /////
+		
+		Item01 item = new Item01();
+		item.setTitle("The Hitchhiker's Guide to the Galaxy");
+		item.setPrice(12.5F);
+		item.setDescription("Science fiction comedy book");
+
+		// 在庫数量は２
+		Item01 created = itemEJB.addAvailableStock(itemEJB.createItem(item), 1);
+		
+        ///// テスト /////
+		
+		SaleOutcome sold = itemEJB.trySellOneItem(created);
+		SaleOutcome blocked = itemEJB.trySellOneItem(created);
+
+        ///// 検証 /////
+
+		assertThat(sold.getStatus(), 				is(SaleOutcome.Status.SOLD));
+		assertThat(sold.getAvailableInStock(), 		is(1));
+		assertThat(blocked.getStatus(), 			is(SaleOutcome.Status.LAST_UNIT_BLOCKED));
+		assertThat(blocked.getAvailableInStock(), 	is(1));
+		
+		// データベースからの直接検索により、在庫数量が１であることを確認
+		Item01 persisted = em.find(Item01.class, created.getId());
+		assertThat(persisted.getAvailableInStock(), is(1));
+	}
 }
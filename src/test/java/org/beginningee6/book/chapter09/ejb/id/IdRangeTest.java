@@ -0,0 +1,117 @@
+package org.beginningee6.book.chapter09.ejb.id;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * IdRangeによるIDの払い出しに関するテスト。
+ */
+public class IdRangeTest {
+
+	/**
+	 * ブロックの先頭から順にIDを払い出し、使い切った後はEXHAUSTEDを
+	 * 返すことを確認するテスト。
+	 */
+	@Test
+	public void testIssueUntilExhausted() {
+
+        ///// 準備 /////
+
+		IdRange range = new IdRange(100, 3);
+
+        ///// テスト /////
+
+		long first = range.next();
+		long second = range.next();
+		long third = range.next();
+		long fourth = range.next();
+
+        ///// 検証 /////
+
+		assertThat(first, 					is(100L));
+		assertThat(second, 					is(101L));
+		assertThat(third, 					is(102L));
+		assertThat(fourth, 					is(IdRange.EXHAUSTED));
+		assertThat(range.getIssued(), 		is(3L));
+		assertThat(range.getRemaining(), 	is(0L));
+	}
+
+	/**
+	 * 払い出していないIDの数（再起動すると無駄になる数）を確認するテスト。
+	 */
+	@Test
+	public void testRemaining() {
+
+        ///// 準備 /////
+
+		IdRange range = new IdRange(1, 10);
+
+        ///// テスト /////
+
+		range.next();
+		range.next();
+
+        ///// 検証 /////
+
+		assertThat(range.getIssued(), 		is(2L));
+		assertThat(range.getRemaining(), 	is(8L));
+	}
+
+	/**
+	 * 多数のスレッドから同時に払い出した場合に、同じIDが払い出されず、
+	 * ブロックの大きさを超えて払い出されないことを確認するテスト。
+	 */
+	@Test
+	public void testConcurrentIssueIsUnique() throws Exception {
+
+        ///// 準備 /////
+
+		final IdRange range = new IdRange(1000, 5000);
+		final Set<Long> issued = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+		final AtomicInteger duplicates = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+
+        ///// テスト /////
+
+		for (int i = 0; i < 16; i++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					long id;
+					while ((id = range.next()) != IdRange.EXHAUSTED) {
+						if (!issued.add(id)) {
+							duplicates.incrementAndGet();
+						}
+					}
+				}
+			});
+		}
+		start.countDown();
+		executor.shutdown();
+		executor.awaitTermination(30, TimeUnit.SECONDS);
+
+        ///// 検証 /////
+
+		assertThat(duplicates.get(), 		is(0));
+		assertThat(issued.size(), 			is(5000));
+		assertThat(issued.contains(1000L), 	is(true));
+		assertThat(issued.contains(5999L), 	is(true));
+		assertThat(range.getRemaining(), 	is(0L));
+	}
+}
@@ -0,0 +1,148 @@
+package org.beginningee6.book.chapter09.ejb.id;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+
+import javax.ejb.EJB;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.beginningee6.book.chapter09.ejb.stock.bucket.StockBucket;
+import org.beginningee6.book.chapter09.ejb.stock.event.StockEvent;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.jboss.shrinkwrap.resolver.api.maven.Maven;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * PooledIdAllocatorEJBによるIDのブロックの確保と、再起動によって
+ * 無駄になったIDの計測に関するテスト。
+ *
+ * IDを格納するテーブルとして、既存のID_LEASEテーブルを指定する。
+ * 払い出したIDの行は挿入しない。
+ */
+@RunWith(Arquillian.class)
+public class PooledIdAllocatorEJBTest {
+
+	private static final String TARGET_TABLE = "ID_LEASE";
+
+	private static final String TARGET_COLUMN = "ID";
+
+	// 環境エントリids.blockSizeの既定値
+	private static final int BLOCK_SIZE = 100;
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+		File[] dependencyLibs
+			= Maven
+				.configureResolver()
+				.fromFile("D:\\apache-maven-3.0.3\\conf\\settings.xml")
+				.resolve("org.beginningee6.book:beginningee6-chapter09-jpa:0.0.1-SNAPSHOT")
+				.withTransitivity()
+				.asFile();
+
+		WebArchive archive = ShrinkWrap
+				.create(WebArchive.class)
+				.addPackage(PooledIdAllocatorEJB.class.getPackage())
+				.addPackage(StockBucket.class.getPackage())
+				.addPackage(StockEvent.class.getPackage())
+				.addPackage(LatencyInterceptor.class.getPackage())
+				.addAsLibraries(dependencyLibs)
+				.addAsResource("META-INF/persistence.xml")
+				.addAsResource("META-INF/orm-pooled-ids.xml")
+				.addAsWebInfResource("jbossas-ds.xml")
+				.addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		return archive;
+	}
+
+	@PersistenceContext(unitName = "Chapter09StockPU")
+	EntityManager em;
+
+	@EJB
+	PooledIdAllocatorEJB allocator;
+
+	/**
+	 * ブロックの大きさを超える数のIDを払い出すテスト。
+	 *
+	 * 最初のブロックを使い切ると次のブロックが確保され、IDは連続して
+	 * 払い出される。最後に確保したブロックがID_LEASEに記録される。
+	 */
+	@Test
+	public void testNextIdReservesBlocks() throws Exception {
+
+        ///// 準備 /////
+
+		String sequenceName = "TEST_IDS_" + System.nanoTime();
+		long blocksBefore = allocator.getBlocksReserved();
+
+        ///// テスト /////
+
+		long first = allocator.nextId(sequenceName, TARGET_TABLE, TARGET_COLUMN);
+		boolean consecutive = true;
+		for (int i = 1; i <= BLOCK_SIZE; i++) {
+			consecutive &= allocator.nextId(sequenceName, TARGET_TABLE, TARGET_COLUMN) == first + i;
+		}
+
+        ///// 検証 /////
+
+		assertThat(first >= 1000000000L, 										is(true));
+		assertThat(consecutive, 												is(true));
+		assertThat(allocator.getBlocksReserved() - blocksBefore, 				is(2L));
+		assertThat(allocator.getIdsRemaining().get(sequenceName), 				is((long) BLOCK_SIZE - 1));
+
+		// ２番目のブロックが記録されていることを確認
+		List<IdLease> leases = findLeases(sequenceName);
+		assertThat(leases.size(), 												is(1));
+		assertThat(leases.get(0).getBlockStart(), 								is(first + BLOCK_SIZE));
+		assertThat(leases.get(0).getBlockEnd(), 								is(first + 2 * BLOCK_SIZE - 1));
+	}
+
+	/**
+	 * 払い出したIDの行を挿入しないまま残っているブロックの記録から、
+	 * 再起動によって無駄になるIDの数を求めるテスト。
+	 *
+	 * 数えたブロックの記録は削除される。
+	 */
+	@Test
+	public void testMeasureRestartWasteFromLeftoverLease() throws Exception {
+
+        ///// 準備 /////
+
+		String sequenceName = "TEST_WASTE_" + System.nanoTime();
+		// ブロックをひとつ確保し、そのうちの３つを払い出す
+		for (int i = 0; i < 3; i++) {
+			allocator.nextId(sequenceName, TARGET_TABLE, TARGET_COLUMN);
+		}
+		int leasesBefore = findLeases(sequenceName).size();
+
+        ///// テスト /////
+
+		Map<String, Long> wasted = allocator.measureRestartWaste();
+
+        ///// 検証 /////
+
+		assertThat(leasesBefore, 						is(1));
+
+		// 払い出した３つも行が挿入されていないため、ブロック全体が無駄になる
+		assertThat(wasted.get(sequenceName), 			is((long) BLOCK_SIZE));
+		assertThat(findLeases(sequenceName).size(), 	is(0));
+	}
+
+	private List<IdLease> findLeases(String sequenceName) {
+		return em.createQuery(
+				"SELECT l FROM IdLease l WHERE l.sequenceName = :sequenceName", IdLease.class)
+				.setParameter("sequenceName", sequenceName)
+				.getResultList();
+	}
+}
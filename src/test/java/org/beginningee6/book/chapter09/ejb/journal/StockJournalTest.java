@@ -0,0 +1,163 @@
+package org.beginningee6.book.chapter09.ejb.journal;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * StockJournalによる記録と、StockJournalReaderによる再生に関するテスト。
+ */
+public class StockJournalTest {
+
+	// ヘッダとレコード３件分のセグメント
+	private static final int SEGMENT_SIZE = StockJournalFormat.HEADER_SIZE + 3 * StockJournalFormat.RECORD_SIZE;
+
+	private File directory;
+
+	@Before
+	public void setUp() throws IOException {
+		directory = File.createTempFile("stock-journal", "");
+		directory.delete();
+		directory.mkdir();
+	}
+
+	@After
+	public void tearDown() {
+		for (File segment : directory.listFiles()) {
+			segment.delete();
+		}
+		directory.delete();
+	}
+
+	/**
+	 * 記録したレコードを再生し、Item01エンティティのIDごとの在庫数量を
+	 * 求めるテスト。
+	 *
+	 * セグメントに収まらないトランザクションは、次のセグメントに記録される。
+	 */
+	@Test
+	public void testAppendAndReplay() throws Exception {
+
+        ///// 準備 /////
+
+		StockJournal journal = new StockJournal(directory, SEGMENT_SIZE, 100, 60000L);
+
+        ///// テスト /////
+
+		long tx1 = journal.append(Arrays.asList(new StockMovement(1L, 5), new StockMovement(2L, 3)));
+		long tx2 = journal.append(Arrays.asList(new StockMovement(1L, -1)));
+		// 最初のセグメントには収まらない
+		long tx3 = journal.append(Arrays.asList(new StockMovement(2L, -1), new StockMovement(1L, 2)));
+		long segmentNumber = journal.getSegmentNumber();
+		journal.close();
+
+		StockJournalReader reader = new StockJournalReader(directory);
+		boolean first = reader.next();
+		long firstItemId = reader.getItemId();
+		int firstDelta = reader.getDelta();
+		long firstTransactionId = reader.getTransactionId();
+		Map<Long, Long> levels = reader.rebuildStockLevels();
+		long records = reader.getRecordNumber();
+		reader.close();
+
+        ///// 検証 /////
+
+		assertThat(tx1, 					is(1L));
+		assertThat(tx2, 					is(2L));
+		assertThat(tx3, 					is(3L));
+		assertThat(segmentNumber, 			is(2L));
+
+		assertThat(first, 					is(true));
+		assertThat(firstItemId, 			is(1L));
+		assertThat(firstDelta, 				is(5));
+		assertThat(firstTransactionId, 		is(1L));
+
+		// 先頭の１件はrebuildStockLevels()の前に読み取っている
+		assertThat(records, 				is(5L));
+		assertThat(levels.get(1L), 			is(-1L + 2L));
+		assertThat(levels.get(2L), 			is(3L - 1L));
+	}
+
+	/**
+	 * 同期していないレコードの数がsyncBatchSizeに達した時点で、
+	 * まとめて同期されることを確認するテスト。
+	 */
+	@Test
+	public void testSyncBatch() throws Exception {
+
+        ///// 準備 /////
+
+		StockJournal journal = new StockJournal(directory, 1024, 3, 60000L);
+
+        ///// テスト /////
+
+		journal.append(Arrays.asList(new StockMovement(1L, 1)));
+		journal.append(Arrays.asList(new StockMovement(1L, 1)));
+		long syncsBeforeBatch = journal.getSyncs();
+		journal.append(Arrays.asList(new StockMovement(1L, 1)));
+		long syncsAfterBatch = journal.getSyncs();
+		journal.append(Arrays.asList(new StockMovement(1L, 1)));
+		int unsynced = journal.getUnsyncedRecords();
+		journal.close();
+
+        ///// 検証 /////
+
+		assertThat(syncsBeforeBatch, 	is(0L));
+		assertThat(syncsAfterBatch, 	is(1L));
+		assertThat(unsynced, 			is(1));
+	}
+
+	/**
+	 * 壊れたレコードが残っているジャーナルを開き直すテスト。
+	 *
+	 * 壊れたレコード以降は読み取られず、記録は新しいセグメントに
+	 * 前回の続きのトランザクションIDで続けられる。
+	 */
+	@Test
+	public void testReopenAfterTornRecord() throws Exception {
+
+        ///// 準備 /////
+
+		StockJournal journal = new StockJournal(directory, 1024, 100, 60000L);
+		journal.append(Arrays.asList(new StockMovement(1L, 10)));
+		journal.append(Arrays.asList(new StockMovement(1L, -1)));
+		journal.close();
+
+		// ２件目のレコードの途中で書き込みが途切れたものとする
+		RandomAccessFile segment = new RandomAccessFile(StockJournalFormat.segmentFile(directory, 1L), "rw");
+		try {
+			segment.seek(StockJournalFormat.HEADER_SIZE + StockJournalFormat.RECORD_SIZE + 8);
+			segment.write(new byte[StockJournalFormat.RECORD_SIZE - 8]);
+		} finally {
+			segment.close();
+		}
+
+        ///// テスト /////
+
+		StockJournal reopened = new StockJournal(directory, 1024, 100, 60000L);
+		long segmentNumber = reopened.getSegmentNumber();
+		long transactionId = reopened.append(Arrays.asList(new StockMovement(1L, 5)));
+		reopened.close();
+
+		StockJournalReader reader = new StockJournalReader(directory);
+		Map<Long, Long> levels = reader.rebuildStockLevels();
+		long records = reader.getRecordNumber();
+		reader.close();
+
+        ///// 検証 /////
+
+		assertThat(segmentNumber, 		is(2L));
+		assertThat(transactionId, 		is(2L));
+		assertThat(records, 			is(2L));
+		assertThat(levels.get(1L), 		is(10L + 5L));
+	}
+}
@@ -0,0 +1,182 @@
+package org.beginningee6.book.chapter09.ejb.loader;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+
+import javax.ejb.EJB;
+import javax.ejb.EJBException;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.transaction.UserTransaction;
+
+import org.beginningee6.book.chapter09.ejb.monitor.LatencyInterceptor;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.junit.Arquillian;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.EmptyAsset;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.jboss.shrinkwrap.resolver.api.maven.Maven;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * CatalogLoaderEJBによるCSVファイルの読み込みと永続化に関するテスト。
+ */
+@RunWith(Arquillian.class)
+public class CatalogLoaderEJBTest {
+	private static final Logger logger = Logger.getLogger(CatalogLoaderEJBTest.class
+			.getName());
+
+	@Deployment
+	public static Archive<?> createDeployment() {
+		File[] dependencyLibs
+			= Maven
+				.configureResolver()
+				.fromFile("D:\\apache-maven-3.0.3\\conf\\settings.xml")
+				.resolve("org.beginningee6.book:beginningee6-chapter09-jpa:0.0.1-SNAPSHOT")
+				.withTransitivity()
+				.asFile();
+
+		WebArchive archive = ShrinkWrap
+				.create(WebArchive.class)
+				.addPackage(CatalogLoaderEJB.class.getPackage())
+				.addPackage(LatencyInterceptor.class.getPackage())
+				.addAsLibraries(dependencyLibs)
+				.addAsWebInfResource("jbossas-ds.xml")
+				.addAsWebInfResource(EmptyAsset.INSTANCE, "beans.xml");
+
+		return archive;
+	}
+
+	@PersistenceContext
+	EntityManager em;
+
+	@Inject
+	UserTransaction userTransaction;
+
+	@EJB
+	CatalogLoaderEJB catalogLoaderEJB;
+
+	private File csv;
+
+	@Before
+	public void setUp() throws Exception {
+		clearData();
+		csv = File.createTempFile("catalog", ".csv");
+	}
+
+	@After
+	public void tearDown() {
+		csv.delete();
+	}
+
+	private void clearData() throws Exception {
+		userTransaction.begin();
+		em.joinTransaction();
+
+		logger.info("Dumping old records...");
+
+		em.createQuery("DELETE FROM Item01").executeUpdate();
+		userTransaction.commit();
+	}
+
+	/**
+	 * 小さなCSVファイルを読み込み、すべてのレコードがItem01エンティティ
+	 * として永続化されることを確認するテスト。
+	 */
+	@Test
+	public void testLoad() throws Exception {
+
+        ///// 準備 /////
+
+		StringBuilder content = new StringBuilder("title,price,description,availableInStock\r\n");
+		for (int i = 0; i < 7; i++) {
+			content.append("Catalog Item " + i + ",12.5,Science fiction comedy book," + i + "\r\n");
+		}
+		write(content.toString());
+
+        ///// テスト /////
+
+		LoadResult result = catalogLoaderEJB.load(csv, CatalogRecordType.ITEM01, true, 3, 2);
+
+        ///// 検証 /////
+
+		// ３件、３件、１件の３チャンク
+		assertThat(result.getRecordCount(), 	is(7L));
+		assertThat(result.getChunkCount(), 		is(3));
+
+		// データベースからの直接検索により、すべてのレコードがコミットされていることを確認
+		assertThat(countItems(), 				is(7L));
+		assertThat(em.createQuery("SELECT SUM(i.availableInStock) FROM Item01 i", Long.class)
+				.getSingleResult(), 			is(0L + 1 + 2 + 3 + 4 + 5 + 6));
+	}
+
+	/**
+	 * ３番目のチャンクの永続化が失敗するCSVファイルを読み込むテスト。
+	 *
+	 * それまでにコミットされた２つのチャンクは取り消されず、解析は
+	 * ファイルの最後に達する前に中止される。
+	 */
+	@Test
+	public void testLoadWhenChunkFails() throws Exception {
+
+        ///// 準備 /////
+
+		// 列の長さを超えるタイトル
+		StringBuilder tooLongTitle = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			tooLongTitle.append('x');
+		}
+
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			String title = i == 25 ? tooLongTitle.toString() : "Catalog Item " + i;
+			content.append(title + ",12.5,Science fiction comedy book\r\n");
+		}
+		write(content.toString());
+
+        ///// テスト /////
+
+		try {
+			catalogLoaderEJB.load(csv, CatalogRecordType.ITEM01, false, 10, 1);
+			fail();
+		} catch (EJBException e) {
+
+        ///// 検証 /////
+
+			// 解析が止まるのを待ってからスローされる
+			assertThat(e.getMessage().contains("parsing cancelled"), 	is(true));
+			assertThat(e.getMessage().contains("after 20 records were committed"), 	is(true));
+			// 永続化の失敗後に、残りのレコードが解析されていない
+			assertThat(e.getMessage().endsWith("parsing cancelled after 1000 records"), 	is(false));
+		}
+
+		// データベースからの直接検索により、最初の２つのチャンクだけが
+		// コミットされていることを確認
+		assertThat(countItems(), 		is(20L));
+	}
+
+	private long countItems() {
+		return em.createQuery("SELECT COUNT(i) FROM Item01 i", Long.class).getSingleResult();
+	}
+
+	private void write(String content) throws IOException {
+		OutputStream out = new FileOutputStream(csv);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+}
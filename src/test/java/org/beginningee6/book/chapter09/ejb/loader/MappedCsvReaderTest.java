@@ -0,0 +1,134 @@
+package org.beginningee6.book.chapter09.ejb.loader;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * MappedCsvReaderのレコードの読み取りに関するテスト。
+ */
+public class MappedCsvReaderTest {
+
+	private File csv;
+
+	@Before
+	public void setUp() throws IOException {
+		csv = File.createTempFile("catalog", ".csv");
+	}
+
+	@After
+	public void tearDown() {
+		csv.delete();
+	}
+
+	/**
+	 * 各フィールドの値を型ごとに読み取るテスト。
+	 */
+	@Test
+	public void testReadFields() throws Exception {
+
+        ///// 準備 /////
+
+		write("title,price,description,isbn,nbOfPage,illustrations\r\n"
+			+ "The Hitchhiker's Guide to the Galaxy,12.5,Science fiction comedy book,1-84023-742-2,354,false\r\n"
+			+ "\r\n"
+			+ "銀河ヒッチハイク・ガイド,-0.25,,4-309-46255-0,-1,TRUE");
+
+        ///// テスト /////
+
+		MappedCsvReader reader = new MappedCsvReader(csv);
+		try {
+			boolean header = reader.next();
+			boolean first = reader.next();
+			String title1 = reader.getString(0);
+			float price1 = reader.getFloat(1);
+			int pages1 = reader.getInt(4);
+			boolean illustrations1 = reader.getBoolean(5);
+
+			boolean second = reader.next();
+			String title2 = reader.getString(0);
+			float price2 = reader.getFloat(1);
+			String description2 = reader.getString(2);
+			int pages2 = reader.getInt(4);
+			boolean illustrations2 = reader.getBoolean(5);
+			long recordNumber = reader.getRecordNumber();
+
+			boolean end = reader.next();
+
+        ///// 検証 /////
+
+			assertThat(header, 			is(true));
+			assertThat(first, 			is(true));
+			assertThat(title1, 			is("The Hitchhiker's Guide to the Galaxy"));
+			assertThat(price1, 			is(12.5F));
+			assertThat(pages1, 			is(354));
+			assertThat(illustrations1, 	is(false));
+
+			// 空行は読み飛ばされる
+			assertThat(second, 			is(true));
+			assertThat(title2, 			is("銀河ヒッチハイク・ガイド"));
+			assertThat(price2, 			is(-0.25F));
+			assertThat(description2, 	is(nullValue()));
+			assertThat(pages2, 			is(-1));
+			assertThat(illustrations2, 	is(true));
+			assertThat(recordNumber, 	is(3L));
+
+			assertThat(end, 			is(false));
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * マップする領域の境界をまたぐレコードを読み取るテスト。
+	 */
+	@Test
+	public void testRecordsAcrossWindows() throws Exception {
+
+        ///// 準備 /////
+
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			content.append("Title ").append(i).append(",").append(i).append(".5,desc\n");
+		}
+		write(content.toString());
+
+        ///// テスト /////
+
+		// ひとつのレコードは最大で18バイト
+		MappedCsvReader reader = new MappedCsvReader(csv, 32);
+		int count = 0;
+		float sum = 0;
+		try {
+			while (reader.next()) {
+				assertThat(reader.getString(0), is("Title " + count));
+				sum += reader.getFloat(1);
+				count++;
+			}
+		} finally {
+			reader.close();
+		}
+
+        ///// 検証 /////
+
+		assertThat(count, 	is(100));
+		assertThat(sum, 	is(5000.0F));
+	}
+
+	private void write(String content) throws IOException {
+		OutputStream out = new FileOutputStream(csv);
+		try {
+			out.write(content.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+	}
+}
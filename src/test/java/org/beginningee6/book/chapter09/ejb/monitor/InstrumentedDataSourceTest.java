@@ -0,0 +1,191 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * InstrumentedDataSourceによる接続の計測に関するテスト。
+ *
+ * コネクションプールの代わりに、何もしない接続を返すデータソースを
+ * ラップする。
+ */
+public class InstrumentedDataSourceTest {
+
+	private static final String METHOD = "ex03.ItemEJB.sellOneItem(Item01)";
+
+	private InstrumentedDataSource dataSource;
+
+	@Before
+	public void setUp() {
+		ConnectionStatistics.reset();
+		dataSource = new InstrumentedDataSource(stubDataSource());
+	}
+
+	/**
+	 * 接続の取得待ち時間と、接続を取得したビジネスメソッドごとの
+	 * 保持時間が記録されることを確認するテスト。
+	 */
+	@Test
+	public void testAcquireWaitAndHoldTime() throws Exception {
+
+        ///// 準備 /////
+
+		long acquired = ConnectionStatistics.getAcquireWait().getCount();
+
+        ///// テスト /////
+
+		String previous = ConnectionStatistics.enter(METHOD);
+		try {
+			Connection connection = dataSource.getConnection();
+			connection.close();
+			// ２回目のclose()は記録しない
+			connection.close();
+		} finally {
+			ConnectionStatistics.exit(previous);
+		}
+
+        ///// 検証 /////
+
+		assertThat(ConnectionStatistics.getAcquireWait().getCount(), 				is(acquired + 1));
+		assertThat(ConnectionStatistics.getHoldTimes().get(METHOD).getCount(), 	is(1L));
+	}
+
+	/**
+	 * ビジネスメソッドの外で取得した接続の保持時間が、まとめて
+	 * 記録されることを確認するテスト。
+	 */
+	@Test
+	public void testHoldTimeOutsideBusinessMethod() throws Exception {
+
+        ///// テスト /////
+
+		dataSource.getConnection().close();
+
+        ///// 検証 /////
+
+		assertThat(ConnectionStatistics.getHoldTimes()
+				.get(ConnectionStatistics.OUTSIDE_BUSINESS_METHOD).getCount(), is(1L));
+	}
+
+	/**
+	 * プリペアドステートメントの要求数が数えられることを確認するテスト。
+	 *
+	 * InstrumentedDriverを使用していない場合、キャッシュのヒット率は
+	 * 求められない。
+	 */
+	@Test
+	public void testStatementsRequested() throws Exception {
+
+        ///// テスト /////
+
+		Connection connection = dataSource.getConnection();
+		connection.prepareStatement("SELECT 1");
+		connection.prepareStatement("SELECT 1");
+		connection.close();
+
+        ///// 検証 /////
+
+		assertThat(ConnectionStatistics.getStatementsRequested(), 			is(2L));
+		if (!ConnectionStatistics.isDriverInstrumented()) {
+			assertThat(ConnectionStatistics.getStatementCacheHitRate(), 	is(-1.0));
+		}
+	}
+
+	/**
+	 * InstrumentedDriverを使用している場合に、物理接続での作成数から
+	 * キャッシュのヒット率が求められ、reset()で物理接続の数も
+	 * 破棄されることを確認するテスト。
+	 */
+	@Test
+	public void testStatementCacheHitRateAndReset() throws Exception {
+
+        ///// 準備 /////
+
+		// InstrumentedDriverが物理接続を開き、１回だけ作成したとする
+		ConnectionStatistics.physicalConnectionOpened();
+
+        ///// テスト /////
+
+		Connection connection = dataSource.getConnection();
+		connection.prepareStatement("SELECT 1");
+		ConnectionStatistics.statementPrepared();
+		connection.prepareStatement("SELECT 1");
+		connection.close();
+
+        ///// 検証 /////
+
+		assertThat(ConnectionStatistics.getPhysicalConnections(), 	is(1L));
+		assertThat(ConnectionStatistics.getStatementCacheHitRate(), is(0.5));
+
+		ConnectionStatistics.reset();
+
+		assertThat(ConnectionStatistics.getPhysicalConnections(), 	is(0L));
+		assertThat(ConnectionStatistics.getStatementCacheHitRate(), is(-1.0));
+
+		// reset()の後も、物理接続での作成数から求められることを確認
+		connection = dataSource.getConnection();
+		connection.prepareStatement("SELECT 1");
+		connection.close();
+		assertThat(ConnectionStatistics.getStatementCacheHitRate(), is(1.0));
+	}
+
+	/**
+	 * プリペアドステートメントのバッチに追加された文の数と、実行された
+	 * バッチの数が数えられることを確認するテスト。
+	 */
+	@Test
+	public void testBatchesCounted() throws Exception {
+
+        ///// テスト /////
+
+		Connection connection = dataSource.getConnection();
+		PreparedStatement statement = connection.prepareStatement("INSERT INTO ITEM01 VALUES (?)");
+		for (int i = 0; i < 3; i++) {
+			statement.addBatch();
+		}
+		statement.executeBatch();
+		statement.addBatch();
+		statement.executeBatch();
+		connection.close();
+
+        ///// 検証 /////
+
+		assertThat(ConnectionStatistics.getStatementsBatched(), 	is(4L));
+		assertThat(ConnectionStatistics.getBatchesExecuted(), 		is(2L));
+	}
+
+	private static DataSource stubDataSource() {
+		final PreparedStatement statement = (PreparedStatement) Proxy.newProxyInstance(
+				PreparedStatement.class.getClassLoader(), new Class<?>[] { PreparedStatement.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return null;
+					}
+				});
+		final Connection connection = (Connection) Proxy.newProxyInstance(
+				Connection.class.getClassLoader(), new Class<?>[] { Connection.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return method.getName().equals("prepareStatement") ? statement : null;
+					}
+				});
+		return (DataSource) Proxy.newProxyInstance(
+				DataSource.class.getClassLoader(), new Class<?>[] { DataSource.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						return method.getName().equals("getConnection") ? connection : null;
+					}
+				});
+	}
+}
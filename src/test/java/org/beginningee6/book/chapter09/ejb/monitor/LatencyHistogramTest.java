@@ -0,0 +1,72 @@
+package org.beginningee6.book.chapter09.ejb.monitor;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import org.junit.Test;
+
+/**
+ * LatencyHistogramの分位点の計算に関するテスト。
+ */
+public class LatencyHistogramTest {
+
+	/**
+	 * 記録した値の分位点が、バケットの幅による誤差（6.25%）の範囲で
+	 * 求められることを確認するテスト。
+	 */
+	@Test
+	public void testValueAtQuantile() {
+
+        ///// 準備 /////
+
+		LatencyHistogram histogram = new LatencyHistogram();
+
+        ///// テスト /////
+
+		// 1マイクロ秒から100ミリ秒まで、1マイクロ秒刻みで記録する
+		for (long i = 1; i <= 100000; i++) {
+			histogram.record(i * 1000L);
+		}
+
+        ///// 検証 /////
+
+		assertThat(histogram.getCount(), 	is(100000L));
+		assertThat(histogram.getMax(), 		is(100000000L));
+		assertWithin(histogram.getValueAtQuantile(0.5), 	50000000L);
+		assertWithin(histogram.getValueAtQuantile(0.9), 	90000000L);
+		assertWithin(histogram.getValueAtQuantile(0.99), 	99000000L);
+		assertWithin(histogram.getValueAtQuantile(0.999), 	99900000L);
+	}
+
+	/**
+	 * 小さな値や負の値、記録がない場合の扱いを確認するテスト。
+	 */
+	@Test
+	public void testSmallValuesAndReset() {
+
+        ///// 準備 /////
+
+		LatencyHistogram histogram = new LatencyHistogram();
+
+        ///// テスト /////
+
+		long empty = histogram.getValueAtQuantile(0.5);
+		histogram.record(3L);
+		histogram.record(-5L);
+
+        ///// 検証 /////
+
+		assertThat(empty, 								is(0L));
+		assertThat(histogram.getCount(), 				is(2L));
+		assertThat(histogram.getValueAtQuantile(0.5), 	is(0L));
+		assertThat(histogram.getValueAtQuantile(1.0), 	is(3L));
+
+		histogram.reset();
+		assertThat(histogram.getCount(), 				is(0L));
+		assertThat(histogram.getMax(), 					is(0L));
+	}
+
+	private static void assertWithin(long actual, long expected) {
+		assertThat(Math.abs(actual - expected) <= expected / 16, is(true));
+	}
+}
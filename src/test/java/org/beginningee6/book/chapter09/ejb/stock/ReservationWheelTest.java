@@ -0,0 +1,93 @@
+package org.beginningee6.book.chapter09.ejb.stock;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.List;
+
+import org.beginningee6.book.chapter09.ejb.stock.ReservationWheel.Hold;
+import org.junit.Test;
+
+/**
+ * ReservationWheelのホールドの保持と期限切れの取り出しに関するテスト。
+ */
+public class ReservationWheelTest {
+
+	/**
+	 * 期限が切れたホールドだけが取り出されることを確認するテスト。
+	 */
+	@Test
+	public void testPollExpired() {
+
+        ///// 準備 /////
+
+		// 100ミリ秒×10スロットのホイール
+		ReservationWheel wheel = new ReservationWheel(10, 100L, 0L);
+		wheel.add(new Hold(1L, 10L, 1, 250L));
+		wheel.add(new Hold(2L, 10L, 2, 550L));
+		// ホイールを一周以上する有効期間のホールド
+		wheel.add(new Hold(3L, 20L, 3, 1250L));
+
+        ///// テスト /////
+
+		List<Hold> first = wheel.pollExpired(300L);
+		List<Hold> second = wheel.pollExpired(1000L);
+		List<Hold> third = wheel.pollExpired(1300L);
+
+        ///// 検証 /////
+
+		assertThat(first.size(), 			is(1));
+		assertThat(first.get(0).getId(), 	is(1L));
+		assertThat(second.size(), 			is(1));
+		assertThat(second.get(0).getId(), 	is(2L));
+		assertThat(third.size(), 			is(1));
+		assertThat(third.get(0).getId(), 	is(3L));
+		assertThat(wheel.size(), 			is(0));
+	}
+
+	/**
+	 * 取り除いたホールドが期限切れとして取り出されないことを確認するテスト。
+	 */
+	@Test
+	public void testRemoveBeforeExpiry() {
+
+        ///// 準備 /////
+
+		ReservationWheel wheel = new ReservationWheel(10, 100L, 0L);
+		wheel.add(new Hold(1L, 10L, 1, 250L));
+
+        ///// テスト /////
+
+		Hold removed = wheel.remove(1L);
+		Hold removedAgain = wheel.remove(1L);
+		List<Hold> expired = wheel.pollExpired(300L);
+
+        ///// 検証 /////
+
+		assertThat(removed.getQuantity(), 	is(1));
+		assertThat(removedAgain, 			is(nullValue()));
+		assertThat(expired.isEmpty(), 		is(true));
+	}
+
+	/**
+	 * 取り出し済みの時刻を期限とするホールドが、次回の取り出しで
+	 * 期限切れとなることを確認するテスト。
+	 */
+	@Test
+	public void testAddAlreadyExpired() {
+
+        ///// 準備 /////
+
+		ReservationWheel wheel = new ReservationWheel(10, 100L, 0L);
+		wheel.pollExpired(500L);
+
+        ///// テスト /////
+
+		wheel.add(new Hold(1L, 10L, 1, 0L));
+		List<Hold> expired = wheel.pollExpired(600L);
+
+        ///// 検証 /////
+
+		assertThat(expired.size(), 			is(1));
+	}
+}
@@ -0,0 +1,107 @@
+package org.beginningee6.book.chapter09.ejb.stock;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * StripedStockCounterの在庫引き当てに関するテスト。
+ */
+public class StripedStockCounterTest {
+
+	/**
+	 * 複数のストライプに分散された在庫数量を引き当てるテスト。
+	 */
+	@Test
+	public void testReserveAcrossStripes() {
+
+        ///// 準備 /////
+
+		StripedStockCounter counter = new StripedStockCounter(4, 10);
+
+        ///// テスト /////
+
+		// ひとつのストライプの在庫数量（２または３）を超える数量を引き当てる
+		boolean reserved = counter.tryReserve(7);
+
+        ///// 検証 /////
+
+		assertThat(reserved, 				is(true));
+		assertThat(counter.sum(), 			is(3L));
+		assertThat(counter.drainDelta(), 	is(-7L));
+		assertThat(counter.drainDelta(), 	is(0L));
+	}
+
+	/**
+	 * 在庫数量を超える数量を引き当てようとした場合に、在庫数量が
+	 * 変更されないことを確認するテスト。
+	 */
+	@Test
+	public void testReserveMoreThanAvailable() {
+
+        ///// 準備 /////
+
+		StripedStockCounter counter = new StripedStockCounter(4, 10);
+
+        ///// テスト /////
+
+		boolean reserved = counter.tryReserve(11);
+
+        ///// 検証 /////
+
+		assertThat(reserved, 				is(false));
+		assertThat(counter.sum(), 			is(10L));
+		assertThat(counter.drainDelta(), 	is(0L));
+	}
+
+	/**
+	 * 多数のスレッドから同時に引き当てた場合に、在庫数量を超えて
+	 * 引き当てられないことを確認するテスト。
+	 */
+	@Test
+	public void testConcurrentReserveNeverGoesBelowZero() throws Exception {
+
+        ///// 準備 /////
+
+		final StripedStockCounter counter = new StripedStockCounter(8, 1000);
+		final AtomicInteger reservedCount = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+
+        ///// テスト /////
+
+		for (int i = 0; i < 16; i++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < 100; j++) {
+						if (counter.tryReserve(1)) {
+							reservedCount.incrementAndGet();
+						}
+					}
+				}
+			});
+		}
+		start.countDown();
+		executor.shutdown();
+		executor.awaitTermination(30, TimeUnit.SECONDS);
+
+        ///// 検証 /////
+
+		// 1600回の引き当てのうち、在庫数量分の1000回だけが成功する
+		assertThat(reservedCount.get(), 	is(1000));
+		assertThat(counter.sum(), 			is(0L));
+		assertThat(counter.drainDelta(), 	is(-1000L));
+	}
+}